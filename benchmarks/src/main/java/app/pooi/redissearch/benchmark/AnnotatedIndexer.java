@@ -0,0 +1,22 @@
+package app.pooi.redissearch.benchmark;
+
+import app.pooi.redissearch.search.Document;
+import app.pooi.redissearch.search.anno.CreateIndex;
+import app.pooi.redissearch.search.anno.Field;
+import org.springframework.stereotype.Component;
+
+/**
+ * 通过 {@link CreateIndex} 注解写入索引, 用于测量切面的开销
+ */
+@Component
+public class AnnotatedIndexer {
+
+    @CreateIndex(index = Dataset.INDEX, documentId = "#p0.documentId", fields = {
+            @Field(propertyName = "title", value = "#p0.fields['title']", tokenizer = "word"),
+            @Field(propertyName = "tag", value = "#p0.fields['tag']", tokenizer = "keyword"),
+            @Field(propertyName = "age", value = "#p0.fields['age']", sort = true),
+            @Field(propertyName = "ctime", value = "#p0.fields['ctime']", sort = true) })
+    public Document save(Document document) {
+        return document;
+    }
+}
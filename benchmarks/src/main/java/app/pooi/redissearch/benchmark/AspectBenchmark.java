@@ -0,0 +1,59 @@
+package app.pooi.redissearch.benchmark;
+
+import app.pooi.redissearch.search.Document;
+import app.pooi.redissearch.search.FieldMeta;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link app.pooi.redissearch.search.anno.CreateIndex} 切面的开销: 注解方法 vs 直接调用 SearchCore 写入相同的索引
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AspectBenchmark extends SearchBenchmarkSupport {
+
+    private final Dataset dataset = new Dataset(42L, 100_000, 50_000);
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private AnnotatedIndexer annotatedIndexer;
+
+    @Override
+    protected void load() {
+        this.annotatedIndexer = this.context.getBean(AnnotatedIndexer.class);
+    }
+
+    @Benchmark
+    public Document annotated() {
+        return this.annotatedIndexer.save(this.document());
+    }
+
+    /**
+     * 与切面相同: 所有字段写入 posting, 排序字段另外写入排序 zset
+     */
+    @Benchmark
+    public int direct() {
+        final Document document = this.document();
+        int n = 0;
+        for (Map.Entry<String, FieldMeta> field : Dataset.meta().entrySet()) {
+            final String value = document.getFields().get(field.getKey());
+            n += this.searchCore.indexDocument(Dataset.INDEX, field.getKey(), document.getDocumentId(), value);
+            if (Boolean.parseBoolean(field.getValue().getSort())) {
+                n += this.searchCore.indexSortField(Dataset.INDEX, field.getKey(), document.getDocumentId(),
+                        Double.valueOf(value));
+            }
+        }
+        return n;
+    }
+
+    private Document document() {
+        return this.dataset.document(Math.floorMod(this.next.getAndIncrement(), this.dataset.size()));
+    }
+}
@@ -0,0 +1,27 @@
+package app.pooi.redissearch.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * benchmarks.jar 入口, 接受与 JMH 相同的命令行参数, 默认附加 GC 分析 (每次操作分配的字节数).
+ * fork 出的 jvm 继承当前 jvm 的参数, 包括 -Dredis.server
+ *
+ * <pre>
+ * java -Dredis.server=/usr/local/bin/redis-server -jar benchmarks/target/benchmarks.jar QueryBenchmark -p terms=2
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,106 @@
+package app.pooi.redissearch.benchmark;
+
+import app.pooi.redissearch.search.Document;
+import app.pooi.redissearch.search.FieldMeta;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * 可复现的合成文档集
+ *
+ * 第 i 个文档只由 seed 和 i 决定. title 的词按 zipf 分布从词表抽取, 词 w0 最常见, 排名越靠后 posting 越小;
+ * tag 从 16 个值中均匀抽取; age 和 ctime 为排序字段
+ */
+public final class Dataset {
+
+    public static final String INDEX = "bench";
+
+    private static final int WORDS_PER_TITLE = 6;
+
+    private static final int TAGS = 16;
+
+    private final long seed;
+
+    private final int documents;
+
+    /**
+     * zipf 分布的累积概率, 下标为词的排名
+     */
+    private final double[] cdf;
+
+    public Dataset(long seed, int documents, int vocabulary) {
+        this.seed = seed;
+        this.documents = documents;
+        this.cdf = new double[vocabulary];
+        double sum = 0D;
+        for (int rank = 0; rank < vocabulary; rank++) {
+            sum += 1D / (rank + 1);
+            cdf[rank] = sum;
+        }
+        for (int rank = 0; rank < vocabulary; rank++) {
+            cdf[rank] /= sum;
+        }
+    }
+
+    public static Map<String, FieldMeta> meta() {
+        return ImmutableMap.of(
+                "title", new FieldMeta(false, "word"),
+                "tag", new FieldMeta(false, "keyword"),
+                "age", new FieldMeta(true, ""),
+                "ctime", new FieldMeta(true, ""));
+    }
+
+    public int size() {
+        return documents;
+    }
+
+    /**
+     * 排名为 rank 的词
+     */
+    public static String term(int rank) {
+        return "w" + rank;
+    }
+
+    /**
+     * 由排名 rank 开始的 terms 个词组成的 title 查询
+     */
+    public static String query(int rank, int terms) {
+        return IntStream.range(rank, rank + terms).mapToObj(r -> "title:" + term(r)).collect(Collectors.joining(" "));
+    }
+
+    public Stream<Document> stream() {
+        return IntStream.range(0, documents).mapToObj(this::document);
+    }
+
+    public Document document(int i) {
+        final Random random = new Random(seed * 31 + i);
+        final Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("title", IntStream.range(0, WORDS_PER_TITLE).mapToObj(w -> term(zipf(random)))
+                .collect(Collectors.joining(" ")));
+        fields.put("tag", "t" + random.nextInt(TAGS));
+        fields.put("age", String.valueOf(random.nextInt(100)));
+        fields.put("ctime", String.valueOf(1_500_000_000L + random.nextInt(100_000_000)));
+        return new Document("d" + i, fields);
+    }
+
+    private int zipf(Random random) {
+        final double p = random.nextDouble();
+        int low = 0;
+        int high = cdf.length - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (cdf[mid] < p) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
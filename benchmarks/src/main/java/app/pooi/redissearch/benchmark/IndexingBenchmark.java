@@ -0,0 +1,56 @@
+package app.pooi.redissearch.benchmark;
+
+import app.pooi.redissearch.search.Document;
+import app.pooi.redissearch.search.FieldMeta;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * 写入吞吐: 逐字段写入单个文档 vs 批量写入
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexingBenchmark extends SearchBenchmarkSupport {
+
+    private static final int BATCH = 500;
+
+    private final Dataset dataset = new Dataset(42L, 1_000_000, 50_000);
+
+    /**
+     * 下一个写入的文档序号, 超过文档集大小后从头覆盖写入
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Benchmark
+    public int singleDocument() {
+        final Document document = this.document(this.next.getAndIncrement());
+        int n = 0;
+        for (Map.Entry<String, FieldMeta> field : Dataset.meta().entrySet()) {
+            final String value = document.getFields().get(field.getKey());
+            n += Boolean.parseBoolean(field.getValue().getSort())
+                    ? this.searchCore.indexSortField(Dataset.INDEX, field.getKey(), document.getDocumentId(),
+                    Double.valueOf(value))
+                    : this.searchCore.indexDocument(Dataset.INDEX, field.getKey(), document.getDocumentId(), value);
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object bulk() {
+        final int from = this.next.getAndAdd(BATCH);
+        return this.bulkIndexer.bulkIndex(Dataset.INDEX, IntStream.range(from, from + BATCH).mapToObj(this::document));
+    }
+
+    private Document document(int i) {
+        return this.dataset.document(Math.floorMod(i, this.dataset.size()));
+    }
+}
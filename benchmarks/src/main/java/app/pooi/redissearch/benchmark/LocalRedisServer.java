@@ -0,0 +1,81 @@
+package app.pooi.redissearch.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 为一次 benchmark 启动的 redis-server 进程, 不持久化
+ *
+ * 可执行文件默认从 PATH 查找, 可通过 -Dredis.server=/path/to/redis-server 指定
+ */
+final class LocalRedisServer implements AutoCloseable {
+
+    private final Process process;
+
+    private final int port;
+
+    private LocalRedisServer(Process process, int port) {
+        this.process = process;
+        this.port = port;
+    }
+
+    static LocalRedisServer start() {
+        final int port = freePort();
+        final File log = new File(System.getProperty("java.io.tmpdir"), "redis-bench-" + port + ".log");
+        try {
+            final Process process = new ProcessBuilder(System.getProperty("redis.server", "redis-server"),
+                    "--port", String.valueOf(port), "--save", "", "--appendonly", "no")
+                    .redirectErrorStream(true).redirectOutput(log).start();
+            final LocalRedisServer server = new LocalRedisServer(process, port);
+            server.awaitReady();
+            return server;
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot start redis-server, see " + log, e);
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    private void awaitReady() throws IOException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.nanoTime() > deadline) {
+                    throw e;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(50);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+    }
+}
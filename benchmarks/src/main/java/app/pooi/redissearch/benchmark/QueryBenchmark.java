@@ -0,0 +1,50 @@
+package app.pooi.redissearch.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 查询延迟, 按查询词数量和词的常见程度 (zipf 排名, 0 最常见) 组合. 关闭结果缓存, 每次都在 redis 中计算
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryBenchmark extends SearchBenchmarkSupport {
+
+    @Param({"100000"})
+    public int documents;
+
+    @Param({"1", "2", "4"})
+    public int terms;
+
+    @Param({"0", "20", "200"})
+    public int rank;
+
+    private String query;
+
+    @Override
+    protected String[] properties() {
+        return new String[]{"redis.search.cache.enabled=false"};
+    }
+
+    @Override
+    protected void load() {
+        this.bulkLoad(new Dataset(42L, this.documents, 50_000).stream());
+        this.query = Dataset.query(this.rank, this.terms);
+    }
+
+    @Benchmark
+    public String query() {
+        return this.searchCore.query(Dataset.INDEX, this.query);
+    }
+
+    @Benchmark
+    public Set<String> queryAndSort() {
+        return this.searchCore.queryAndSort(Dataset.INDEX, this.query, "-age", 0, 19);
+    }
+}
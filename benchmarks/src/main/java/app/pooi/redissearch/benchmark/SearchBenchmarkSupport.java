@@ -0,0 +1,79 @@
+package app.pooi.redissearch.benchmark;
+
+import app.pooi.redissearch.RedisSearchApplication;
+import app.pooi.redissearch.search.BulkIndexer;
+import app.pooi.redissearch.search.Document;
+import app.pooi.redissearch.search.QueryCursors;
+import app.pooi.redissearch.search.SearchCore;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**
+ * 每个 benchmark 启动自己的 redis-server 和 spring 容器, 写入索引元信息, 需要时预先导入文档集
+ */
+public abstract class SearchBenchmarkSupport {
+
+    protected LocalRedisServer redisServer;
+
+    protected ConfigurableApplicationContext context;
+
+    protected SearchCore searchCore;
+
+    protected BulkIndexer bulkIndexer;
+
+    protected QueryCursors queryCursors;
+
+    @Setup(Level.Trial)
+    public void startSearch() {
+        this.redisServer = LocalRedisServer.start();
+        this.context = new SpringApplicationBuilder(RedisSearchApplication.class)
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .logStartupInfo(false)
+                .run(Stream.concat(Stream.of("spring.redis.host=127.0.0.1",
+                        "spring.redis.port=" + this.redisServer.getPort(), "redis.search.prefix=bench",
+                        "logging.level.root=WARN"), Arrays.stream(this.properties()))
+                        .map(property -> "--" + property).toArray(String[]::new));
+        this.searchCore = this.context.getBean(SearchCore.class);
+        this.bulkIndexer = this.context.getBean(BulkIndexer.class);
+        this.queryCursors = this.context.getBean(QueryCursors.class);
+
+        this.searchCore.indexMeta(Dataset.INDEX, Dataset.meta());
+        this.load();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopSearch() throws InterruptedException {
+        if (this.context != null) {
+            this.context.close();
+        }
+        if (this.redisServer != null) {
+            this.redisServer.close();
+        }
+    }
+
+    /**
+     * 额外的 spring 配置, 格式为 key=value. 以命令行参数传入, 优先于 application.properties
+     */
+    protected String[] properties() {
+        return new String[0];
+    }
+
+    /**
+     * 测量前导入数据
+     */
+    protected void load() {
+    }
+
+    protected void bulkLoad(Stream<Document> documents) {
+        this.bulkIndexer.bulkIndex(Dataset.INDEX, documents);
+    }
+}
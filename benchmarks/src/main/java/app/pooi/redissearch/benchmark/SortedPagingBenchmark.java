@@ -0,0 +1,58 @@
+package app.pooi.redissearch.benchmark;
+
+import app.pooi.redissearch.search.CursorPage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 深分页: 每页重新查询并按 offset 读取 vs 在游标保存的结果上继续读取
+ *
+ * 使用最常见的词, 结果集最大. 游标在 setup 中打开并读到 offset 处, 每次调用读取同一页, 不推进游标
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SortedPagingBenchmark extends SearchBenchmarkSupport {
+
+    private static final int PAGE = 20;
+
+    private static final String QUERY = Dataset.query(0, 1);
+
+    private static final String SORT = "-age +ctime";
+
+    @Param({"100000"})
+    public int documents;
+
+    @Param({"20", "1000", "10000"})
+    public int offset;
+
+    private String cursor;
+
+    @Override
+    protected String[] properties() {
+        return new String[]{"redis.search.cache.enabled=false", "redis.search.cursor.ttl=3600",
+                "redis.search.cursor.max-lifetime=3600"};
+    }
+
+    @Override
+    protected void load() {
+        this.bulkLoad(new Dataset(42L, this.documents, 50_000).stream());
+        final CursorPage page = this.queryCursors.open(Dataset.INDEX, QUERY, SORT, this.offset, true);
+        this.cursor = page.getCursor();
+    }
+
+    @Benchmark
+    public Set<String> offsetPage() {
+        return this.searchCore.queryAndSort(Dataset.INDEX, QUERY, SORT, this.offset, this.offset + PAGE - 1);
+    }
+
+    @Benchmark
+    public CursorPage cursorPage() {
+        return this.queryCursors.next(this.cursor, PAGE);
+    }
+}
@@ -0,0 +1,20 @@
+package app.pooi.redissearch.configuration;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+
+/**
+ * 响应式查询使用的 {@link ReactiveStringRedisTemplate}, 与阻塞的 StringRedisTemplate 共用 lettuce 连接工厂
+ */
+@Configuration
+public class ReactiveRedisConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public ReactiveStringRedisTemplate reactiveStringRedisTemplate(ReactiveRedisConnectionFactory connectionFactory) {
+        return new ReactiveStringRedisTemplate(connectionFactory);
+    }
+}
@@ -9,4 +9,439 @@ import lombok.Data;
 public class RedisSearchConfiguration {
     
     private String prefix;
-}
\ No newline at end of file
+
+    private final Query query = new Query();
+
+    private final Cache cache = new Cache();
+
+    private final Bulk bulk = new Bulk();
+
+    private final Async async = new Async();
+
+    private final Meta meta = new Meta();
+
+    private final Planner planner = new Planner();
+
+    private final Cluster cluster = new Cluster();
+
+    private final Cursor cursor = new Cursor();
+
+    private final Bitmap bitmap = new Bitmap();
+
+    private final Metrics metrics = new Metrics();
+
+    private final Keys keys = new Keys();
+
+    private final Federation federation = new Federation();
+
+    private final Rebuild rebuild = new Rebuild();
+
+    private final Prefix prefixes = new Prefix();
+
+    private final Ranking ranking = new Ranking();
+
+    private final Snapshot snapshot = new Snapshot();
+
+    private final Stats stats = new Stats();
+
+    private final Delete delete = new Delete();
+
+    @Data
+    public static class Query {
+
+        /**
+         * 使用 lua 脚本单次往返执行查询, 关闭或脚本执行失败时退回 pipeline 方式
+         */
+        private boolean script = true;
+
+        /**
+         * 临时结果 key 的过期时间(秒)
+         */
+        private long ttl = 30L;
+    }
+
+    @Data
+    public static class Cache {
+
+        /**
+         * 按规范化查询缓存结果, 写入索引时通过代数(generation)失效
+         */
+        private boolean enabled = true;
+
+        /**
+         * 本地缓存最大条目数
+         */
+        private long maximumSize = 10_000L;
+
+        /**
+         * 本地缓存条目写入后的最长存活时间(秒)
+         */
+        private long expireAfterWrite = 60L;
+    }
+
+    @Data
+    public static class Bulk {
+
+        /**
+         * 每个 pipeline 包含的文档数
+         */
+        private int chunkSize = 500;
+
+        /**
+         * 并行提交 pipeline 的连接数
+         */
+        private int parallelism = 1;
+    }
+
+    @Data
+    public static class Async {
+
+        /**
+         * 待写入队列容量(按文档计, 同一文档的多次修改合并为一条)
+         */
+        private int capacity = 10_000;
+
+        /**
+         * 消费队列的线程数
+         */
+        private int workers = 2;
+
+        /**
+         * 每次从队列取出并放入同一个 pipeline 的文档数
+         */
+        private int batchSize = 200;
+
+        /**
+         * 队列满时的处理策略
+         */
+        private Backpressure backpressure = Backpressure.BLOCK;
+
+        /**
+         * 关闭时等待队列写完的最长时间(秒)
+         */
+        private long shutdownTimeout = 30L;
+    }
+
+    @Data
+    public static class Meta {
+
+        /**
+         * 订阅其他节点的元信息变更通知, 收到后丢弃本地缓存
+         */
+        private boolean subscribe = true;
+
+        /**
+         * 本地元信息缓存的最长存活时间(秒), 防止错过变更通知后一直使用旧数据
+         */
+        private long expireAfterWrite = 300L;
+    }
+
+    @Data
+    public static class Planner {
+
+        /**
+         * 查询前获取各条件集合大小, 用于提前返回空结果和选择执行方式
+         */
+        private boolean enabled = true;
+
+        /**
+         * 最小的必要条件集合不超过该大小时逐个检查成员, 不再创建临时 key
+         */
+        private long membershipThreshold = 128L;
+
+        /**
+         * 按单个字段排序且页的结束位置不超过该值时, 按排序 zset 的顺序分批检查成员, 取满一页即停止; 0 为关闭
+         */
+        private int topK = 100;
+
+        /**
+         * top-K 每批读取的排序 zset 成员数
+         */
+        private int topKBatch = 256;
+
+        /**
+         * 缓存的查询语法树数量
+         */
+        private long parseCacheSize = 10_000L;
+    }
+
+    @Data
+    public static class Cluster {
+
+        /**
+         * 每个索引的分片数, 大于 1 时 key 带有 {index.shard} hash tag, 文档按 id 路由到分片
+         */
+        private int shards = 1;
+
+        /**
+         * 并行查询各分片的线程数
+         */
+        private int parallelism = 4;
+    }
+
+    @Data
+    public static class Cursor {
+
+        /**
+         * 每次读取一页后结果 key 延长的存活时间(秒)
+         */
+        private long ttl = 60L;
+
+        /**
+         * 游标自创建起的最长存活时间(秒), 超过后不再延长
+         */
+        private long maxLifetime = 600L;
+
+        /**
+         * 默认是否为快照: 为 true 时游标始终读取创建时的结果, 为 false 时索引变化后重新查询, 后续页可以看到新的写入
+         */
+        private boolean snapshot = true;
+
+        /**
+         * 游标签名的密钥, 所有节点需相同; 为空时使用 redis 中所有节点共享的随机密钥, 首次使用时生成
+         */
+        private String secret = "";
+    }
+
+    @Data
+    public static class Bitmap {
+
+        /**
+         * 是否在 jvm 中用压缩位图缓存 posting 并计算集合运算
+         */
+        private boolean enabled = false;
+
+        /**
+         * 位图缓存的最大字节数, 超过后按最近最少使用淘汰
+         */
+        private long maximumBytes = 64L * 1024 * 1024;
+
+        /**
+         * 位图写入后的最长缓存时间(秒), 限制错过失效通知时的不一致时间
+         */
+        private long expireAfterWrite = 300L;
+
+        /**
+         * 本地缓存的文档id字典条目数
+         */
+        private long dictionarySize = 1_000_000L;
+
+        /**
+         * union 的 posting 数量达到该值时并行计算
+         */
+        private int parallelUnion = 8;
+
+        /**
+         * 等待异步加载的 posting 数量上限, 超过后丢弃
+         */
+        private int loadQueue = 1_000;
+
+        /**
+         * jvm 中计算的结果需要写回 redis 时 (排序结果较大或需要保存结果 key) 的最大文档数, 超过时改在 redis 中计算
+         */
+        private int writeBackLimit = 10_000;
+    }
+
+    public enum Backpressure {
+        /**
+         * 阻塞调用线程直到队列有空位
+         */
+        BLOCK,
+        /**
+         * 丢弃最早进入队列的写入, 删除不会被丢弃; 队列中都含删除时丢弃新的写入, 新的删除等待队列有空位
+         */
+        DROP_OLDEST,
+        /**
+         * 抛出 {@link java.util.concurrent.RejectedExecutionException}
+         */
+        FAIL
+    }
+
+    @Data
+    public static class Metrics {
+
+        /**
+         * 记录查询各阶段耗时、redis 往返次数、涉及的 posting 大小、结果数量、临时 key 数量及写入耗时, 通过 actuator 暴露
+         */
+        private boolean enabled = true;
+
+        /**
+         * 查询总耗时超过该值(毫秒)时记录慢查询日志, 包括解析后的查询和各阶段耗时; 0 表示不记录
+         */
+        private long slowQuery = 0L;
+    }
+
+    @Data
+    public static class Keys {
+
+        /**
+         * 新建的索引使用紧凑 key 布局: 索引名和字段名编码为短id, 反向索引只保存词项, 见 app.pooi.redissearch.search.IndexKeys.
+         * 已有索引通过 POST /index/{index}/layout/compact 在后台在线转换, GET 同一路径查看进度
+         */
+        private boolean compact = false;
+
+        /**
+         * 转换时每个 pipeline 处理的文档数
+         */
+        private int migrationBatch = 500;
+
+        /**
+         * 切换布局状态后等待其他节点收到通知的时间(秒), 之后才开始复制或删除旧 key
+         */
+        private long migrationGrace = 5L;
+    }
+
+    @Data
+    public static class Federation {
+
+        /**
+         * 联合查询时并行查询各索引的线程数, 所有请求共用
+         */
+        private int parallelism = 4;
+
+        /**
+         * 等待执行的单索引查询数上限, 超过后在请求线程中执行
+         */
+        private int queueCapacity = 256;
+
+        /**
+         * 一次联合查询最多涉及的索引数, 按模式匹配超过时拒绝
+         */
+        private int maxIndexes = 32;
+    }
+
+    @Data
+    public static class Rebuild {
+
+        /**
+         * 重建时每秒最多索引的文档数, 0 表示不限制
+         */
+        private double rate = 0D;
+
+        /**
+         * 重建时并行提交 pipeline 的连接数
+         */
+        private int parallelism = 2;
+
+        /**
+         * 重建时每个 pipeline 包含的文档数
+         */
+        private int chunkSize = 500;
+
+        /**
+         * 标记重建或切换别名后等待其他节点收到通知的时间(秒), 之后才开始写入新版本或删除旧版本
+         */
+        private long grace = 5L;
+
+        /**
+         * 删除旧版本时每批 SCAN 并 UNLINK 的 key 数
+         */
+        private int deleteBatch = 500;
+
+        /**
+         * 删除旧版本时两批之间的间隔(毫秒), 降低对 redis 的影响
+         */
+        private long deleteInterval = 10L;
+
+        /**
+         * 关闭时等待中断的重建清除重建标记并删除新版本的最长时间(秒)
+         */
+        private long shutdownTimeout = 30L;
+    }
+
+    @Data
+    public static class Prefix {
+
+        /**
+         * 前缀查询 field:abc* 最多展开的词数, 匹配的词更多时查询失败而不是截断;
+         * 前缀联想时以前缀开头的词更多则改为按文档数遍历
+         */
+        private int maxExpansions = 1_000;
+
+        /**
+         * 联想请求未指定数量时返回的词数
+         */
+        private int suggestLimit = 10;
+    }
+
+    @Data
+    public static class Ranking {
+
+        /**
+         * BM25 词频饱和参数, 越大词频对分数的影响越接近线性
+         */
+        private double k1 = 1.2D;
+
+        /**
+         * BM25 文档长度归一化参数, 0 表示不按长度归一化
+         */
+        private double b = 0.75D;
+
+        /**
+         * 相关性排序叠加 sort 时排序值的系数, 排序值与相关性分数的量级不同时用于缩放
+         */
+        private double sortWeight = 1.0D;
+    }
+
+    @Data
+    public static class Snapshot {
+
+        /**
+         * 快照文件所在目录, 接口只接受该目录下的文件名
+         */
+        private String directory = "snapshots";
+
+        /**
+         * 每个分块包含的 key 数, 也是导出时每次 SCAN 和 DUMP pipeline 的 key 数
+         */
+        private int chunkSize = 1_000;
+
+        /**
+         * 导入时并行 RESTORE 的分块数
+         */
+        private int parallelism = 4;
+    }
+
+    @Data
+    public static class Stats {
+
+        /**
+         * 定期统计所有索引的间隔(秒), 统计结果作为 gauge 暴露; 0 表示只在请求时统计
+         */
+        private long interval = 0L;
+
+        /**
+         * 每个字段列出的最大 posting 数
+         */
+        private int top = 10;
+
+        /**
+         * 每类 key 每个分片读取 MEMORY USAGE 的 key 数, 用于估算内存占用
+         */
+        private int sample = 32;
+
+        /**
+         * 每次 SCAN 和读取大小的 pipeline 的 key 数
+         */
+        private int batchSize = 500;
+    }
+
+    @Data
+    public static class Delete {
+
+        /**
+         * 批量删除时每次脚本调用删除的文档数, 同一分片的文档才能在一次调用中删除
+         */
+        private int batchSize = 1_000;
+
+        /**
+         * 定期清理的间隔(秒), 见 {@link app.pooi.redissearch.search.IndexSweeper}; 0 表示只在请求时清理
+         */
+        private long sweepInterval = 0L;
+
+        /**
+         * 清理时每次 SCAN 或脚本处理的 key 数、词数
+         */
+        private int sweepBatch = 500;
+    }
+}
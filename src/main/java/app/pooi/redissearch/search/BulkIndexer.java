@@ -0,0 +1,178 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import app.pooi.redissearch.search.tokenizer.Tokenizers;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 批量索引
+ *
+ * 文档按 chunkSize 分块, 每块的 SADD/ZADD 放入同一个 pipeline, 可通过多个连接并行提交
+ */
+@Slf4j
+@RestController
+@Service
+public class BulkIndexer {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final SearchCore searchCore;
+    private final Tokenizers tokenizers;
+    private final SearchMetrics searchMetrics;
+    private final IndexAliases indexAliases;
+    private final ExecutorService executor;
+
+    public BulkIndexer(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            SearchCore searchCore, Tokenizers tokenizers, SearchMetrics searchMetrics, IndexAliases indexAliases) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.searchCore = searchCore;
+        this.tokenizers = tokenizers;
+        this.searchMetrics = searchMetrics;
+        this.indexAliases = indexAliases;
+        final int parallelism = redisSearchConfiguration.getBulk().getParallelism();
+        this.executor = parallelism > 1
+                ? Executors.newFixedThreadPool(parallelism,
+                        new ThreadFactoryBuilder().setNameFormat("rs-bulk-%d").setDaemon(true).build())
+                : MoreExecutors.newDirectExecutorService();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+
+    @PostMapping("/index/{index}/bulk")
+    public BulkResult bulkIndex(@PathVariable("index") String index, @RequestBody List<Document> documents,
+            @RequestParam(value = "chunkSize", required = false) Integer chunkSize) {
+        return this.bulkIndex(index, documents.stream(),
+                chunkSize != null ? chunkSize : this.redisSearchConfiguration.getBulk().getChunkSize());
+    }
+
+    public BulkResult bulkIndex(String index, Stream<Document> documents) {
+        return this.bulkIndex(index, documents, this.redisSearchConfiguration.getBulk().getChunkSize());
+    }
+
+    /**
+     * 批量索引文档, 同时最多有 parallelism 个分块在提交中. 索引重建中时每个分块同时写入当前版本和重建版本
+     *
+     * @param index     文档名称
+     * @param documents 文档流, 按需读取
+     * @param chunkSize 每个 pipeline 包含的文档数
+     * @return 成功数量及失败的分块
+     */
+    public BulkResult bulkIndex(String index, Stream<Document> documents, int chunkSize) {
+        final Map<String, Map<String, FieldMeta>> metas = new LinkedHashMap<>();
+        this.indexAliases.writes(index).forEach(version -> metas.put(version, this.searchCore.fieldMeta(version)));
+        final int parallelism = Math.max(1, this.redisSearchConfiguration.getBulk().getParallelism());
+        final Semaphore permits = new Semaphore(parallelism);
+
+        final AtomicLong indexed = new AtomicLong();
+        final List<BulkResult.ChunkFailure> failures = Collections.synchronizedList(new ArrayList<>());
+
+        long total = 0L;
+        long chunkNo = 0L;
+        final Iterator<List<Document>> chunks = Iterators.partition(documents.iterator(), Math.max(chunkSize, 1));
+        while (chunks.hasNext()) {
+            final List<Document> chunk = chunks.next();
+            final long no = chunkNo++;
+            total += chunk.size();
+
+            permits.acquireUninterruptibly();
+            this.executor.execute(() -> {
+                try {
+                    metas.forEach((version, meta) -> this.flush(version, meta, chunk));
+                    indexed.addAndGet(chunk.size());
+                } catch (RuntimeException e) {
+                    log.warn("bulk index {} chunk {} failed", index, no, e);
+                    failures.add(new BulkResult.ChunkFailure(no,
+                            chunk.stream().map(Document::getDocumentId).collect(Collectors.toList()),
+                            e.getMessage()));
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+        // 等待提交中的分块完成
+        permits.acquireUninterruptibly(parallelism);
+        permits.release(parallelism);
+
+        final BulkResult result = new BulkResult();
+        result.setTotal(total);
+        result.setIndexed(indexed.get());
+        result.setFailures(failures.stream().sorted(Comparator.comparingLong(BulkResult.ChunkFailure::getChunk))
+                .collect(Collectors.toList()));
+        return result;
+    }
+
+    /**
+     * 一个分块一个 pipeline, 分词和数值转换在打开 pipeline 前完成, 非法文档不会写入一半.
+     * 开启评分的字段在 pipeline 之后逐个文档写入评分 posting, 见 {@link SearchCore#writeScores}
+     *
+     * @param index 版本名称, 见 {@link IndexAliases}
+     * @param meta  该版本的字段元信息
+     */
+    void flush(String index, Map<String, FieldMeta> meta, List<Document> chunk) {
+        final List<Consumer<StringRedisTemplate>> writes = Lists.newArrayList();
+        final List<Runnable> scores = Lists.newArrayList();
+        final List<IndexKeys> layouts = this.searchCore.writeLayouts(index, chunk.stream()
+                .flatMap(document -> document.getFields().keySet().stream()).collect(Collectors.toSet()));
+
+        for (Document document : chunk) {
+            final String documentId = Objects.requireNonNull(document.getDocumentId(), "documentId");
+            document.getFields().forEach((field, value) -> {
+                if (value == null) {
+                    return;
+                }
+                final FieldMeta fieldMeta = meta.get(field);
+                final List<String> tokens = this.tokenizers.forField(fieldMeta).tokenize(value);
+                writes.add(template -> this.searchCore.writeDocument(template, layouts, field, documentId, tokens));
+                final List<String> terms = this.tokenizers.prefixTerms(fieldMeta, value);
+                writes.add(template -> this.searchCore.writeTerms(template, layouts, field, documentId, terms));
+
+                if (fieldMeta != null && "true".equals(fieldMeta.getSort())) {
+                    final Double score = Double.valueOf(value);
+                    writes.add(template -> this.searchCore.writeSortField(template, layouts, field, documentId, score));
+                }
+                if (fieldMeta != null && "true".equals(fieldMeta.getScored())) {
+                    final Map<String, Integer> frequencies = this.tokenizers.frequencies(fieldMeta, value);
+                    scores.add(() -> this.searchCore.writeScores(layouts, field, documentId, frequencies));
+                }
+            });
+        }
+
+        this.searchMetrics.index("bulk", index, "*", () -> {
+            final List<Object> results = this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                    final StringRedisTemplate template = (StringRedisTemplate) operations;
+                    writes.forEach(write -> write.accept(template));
+                    searchCore.bumpGeneration(template, index);
+                    return null;
+                }
+            });
+            scores.forEach(Runnable::run);
+            return results;
+        });
+    }
+}
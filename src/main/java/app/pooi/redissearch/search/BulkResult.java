@@ -0,0 +1,33 @@
+package app.pooi.redissearch.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 批量索引结果, 单个分块失败不影响其余分块
+ */
+@Data
+public class BulkResult {
+
+    private long total;
+
+    private long indexed;
+
+    private List<ChunkFailure> failures;
+
+    @Data
+    @AllArgsConstructor
+    public static class ChunkFailure {
+
+        /**
+         * 分块序号, 从 0 开始
+         */
+        private long chunk;
+
+        private List<String> documentIds;
+
+        private String message;
+    }
+}
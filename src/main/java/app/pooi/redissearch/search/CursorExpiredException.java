@@ -0,0 +1,17 @@
+package app.pooi.redissearch.search;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * 游标超过最长存活时间, 或快照游标的结果 key 已经过期
+ */
+@ResponseStatus(HttpStatus.GONE)
+public class CursorExpiredException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CursorExpiredException(String message) {
+        super(message);
+    }
+}
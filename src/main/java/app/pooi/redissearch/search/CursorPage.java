@@ -0,0 +1,28 @@
+package app.pooi.redissearch.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 游标分页结果
+ */
+@Data
+@AllArgsConstructor
+public class CursorPage {
+
+    private List<String> documentIds;
+
+    /**
+     * 读取下一页的游标, 已经读完时为 null
+     */
+    private String cursor;
+
+    private long total;
+
+    /**
+     * 为 true 时所有页来自同一份结果, 不会看到游标创建之后的写入
+     */
+    private boolean snapshot;
+}
@@ -0,0 +1,23 @@
+package app.pooi.redissearch.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * 待索引的文档
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Document {
+
+    private String documentId;
+
+    /**
+     * 字段名称 -> 字段值
+     */
+    private Map<String, String> fields;
+}
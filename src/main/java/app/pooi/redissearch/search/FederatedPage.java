@@ -0,0 +1,36 @@
+package app.pooi.redissearch.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 联合查询结果
+ */
+@Data
+@AllArgsConstructor
+public class FederatedPage {
+
+    private List<Hit> hits;
+
+    /**
+     * 索引 -> 该索引过滤后的结果数, 按查询的索引顺序
+     */
+    private Map<String, Long> totals;
+
+    @Data
+    @AllArgsConstructor
+    public static class Hit {
+
+        private String index;
+
+        private String documentId;
+
+        /**
+         * 加权排序分值, 不排序时为 null
+         */
+        private Double score;
+    }
+}
@@ -0,0 +1,168 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static app.pooi.redissearch.search.SearchCore.Util.genQueryIdxName;
+
+/**
+ * 联合查询: 同一个查询在多个索引上执行后按统一顺序合并
+ *
+ * 各索引的查询在共用的有界线程池中并行执行 (redis.search.federation.parallelism), 每个索引按分片查询的方式取得前 stop + 1 条
+ * (带分值), 再按 (分值, 文档id, 索引) 做 k 路归并后截取 start..stop; 不排序时按 (文档id, 索引) 归并.
+ * 排序字段在各索引中的取值需要可比, 某个索引没有该排序字段时其结果为空
+ */
+@RestController
+@Service
+public class FederatedSearch {
+
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final SearchCore searchCore;
+    private final IndexShards indexShards;
+    private final IndexMetaRegistry indexMetaRegistry;
+    private final SearchMetrics searchMetrics;
+    private final IndexAliases indexAliases;
+
+    private final ExecutorService executor;
+
+    public FederatedSearch(RedisSearchConfiguration redisSearchConfiguration, SearchCore searchCore,
+            IndexShards indexShards, IndexMetaRegistry indexMetaRegistry, SearchMetrics searchMetrics,
+            IndexAliases indexAliases) {
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.searchCore = searchCore;
+        this.indexShards = indexShards;
+        this.indexMetaRegistry = indexMetaRegistry;
+        this.searchMetrics = searchMetrics;
+        this.indexAliases = indexAliases;
+        final RedisSearchConfiguration.Federation federation = redisSearchConfiguration.getFederation();
+        // 队列满时在请求线程中执行, 限制积压的查询数
+        this.executor = new ThreadPoolExecutor(federation.getParallelism(), federation.getParallelism(), 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, federation.getQueueCapacity())),
+                new ThreadFactoryBuilder().setNameFormat("rs-federation-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+
+    /**
+     * 在多个索引上查询并合并
+     *
+     * @param indexes 索引名称列表, 与 pattern 至少指定一个
+     * @param pattern 索引名称的 glob 模式, 如 person*, 匹配已注册元信息的索引
+     * @return 合并后的 start..stop 及每个索引的结果总数, 不存在的索引总数为 0
+     */
+    @GetMapping("/query/federated")
+    public FederatedPage query(@RequestParam(value = "indexes", required = false) List<String> indexes,
+            @RequestParam(value = "pattern", required = false) String pattern, @RequestParam("param") String query,
+            @RequestParam("sort") String sort, Integer start, Integer stop) {
+        final List<String> targets = this.targets(indexes, pattern);
+        final long offset = start == null ? 0 : start;
+        final long end = stop == null ? -1 : stop;
+        final boolean sorted = Arrays.stream(sort.split(" ")).anyMatch(f -> !f.isEmpty());
+
+        final List<CompletableFuture<IndexPage>> futures = targets.stream()
+                .map(index -> CompletableFuture.supplyAsync(() -> this.query(index, query, sort, sorted, end),
+                        this.executor))
+                .collect(Collectors.toList());
+        final List<IndexPage> pages;
+        try {
+            pages = futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        } catch (CompletionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+
+        final Map<String, Long> totals = new LinkedHashMap<>();
+        pages.forEach(page -> totals.put(page.index, page.total));
+        final List<List<FederatedPage.Hit>> hits = pages.stream()
+                .map(page -> page.tuples.stream()
+                        .map(t -> new FederatedPage.Hit(page.index, t.getValue(), t.getScore()))
+                        .collect(Collectors.toList()))
+                .collect(Collectors.toList());
+        return new FederatedPage(PageMerger.merge(hits, hitOrder(sorted), offset, end), totals);
+    }
+
+    /**
+     * 指定的索引和模式匹配的索引, 去重后保持顺序
+     */
+    private List<String> targets(List<String> indexes, String pattern) {
+        final Set<String> targets = new LinkedHashSet<>();
+        if (indexes != null) {
+            indexes.stream().filter(index -> !index.isEmpty()).forEach(targets::add);
+        }
+        if (pattern != null && !pattern.isEmpty()) {
+            targets.addAll(this.indexMetaRegistry.indexes(pattern));
+        }
+        if (indexes == null && (pattern == null || pattern.isEmpty())) {
+            throw new IllegalArgumentException("indexes or pattern is required");
+        }
+        final int maxIndexes = this.redisSearchConfiguration.getFederation().getMaxIndexes();
+        if (targets.size() > maxIndexes) {
+            throw new IllegalArgumentException(
+                    "federated query on " + targets.size() + " indexes exceeds max indexes " + maxIndexes);
+        }
+        return new ArrayList<>(targets);
+    }
+
+    /**
+     * 在一个索引当前版本的所有分片上查询前 end + 1 条并归并, 同时统计该索引的结果总数
+     */
+    private IndexPage query(String index, String query, String sort, boolean sorted, long end) {
+        return this.searchMetrics.trace("federated", index, query, sort, () -> {
+            final String version = this.indexAliases.read(index);
+            if (this.searchCore.fieldMeta(version).isEmpty()) {
+                return new IndexPage(index, Collections.emptyList(), 0L);
+            }
+            final String prefix = this.redisSearchConfiguration.getPrefix();
+            final String resultId = this.redisSearchConfiguration.getCache().isEnabled() ? QueryCache
+                    .resultId(this.searchCore.generation(version), this.searchCore.canonicalQuery(query, sort)) : null;
+            final List<ShardPage> pages = this.indexShards.scatter(version,
+                    shard -> this.searchCore.queryPage(version, shard, query,
+                            this.searchCore.sortWeights(version, shard, sort), 0, (int) end, true, false,
+                            resultId == null ? genQueryIdxName(prefix, shard)
+                                    : genQueryIdxName(prefix, shard, resultId)));
+            return new IndexPage(index,
+                    PageMerger.merge(pages.stream().map(ShardPage::getTuples).collect(Collectors.toList()),
+                            SearchCore.pageOrder(sorted), 0, end),
+                    pages.stream().mapToLong(ShardPage::getTotal).sum());
+        });
+    }
+
+    /**
+     * 与分片归并相同的顺序, 相同时按索引名称
+     */
+    private static Comparator<FederatedPage.Hit> hitOrder(boolean sorted) {
+        final Comparator<FederatedPage.Hit> byValue = Comparator.comparing(FederatedPage.Hit::getDocumentId)
+                .thenComparing(FederatedPage.Hit::getIndex);
+        return sorted ? Comparator.comparing(FederatedPage.Hit::getScore).thenComparing(byValue) : byValue;
+    }
+
+    private static final class IndexPage {
+
+        private final String index;
+
+        private final List<ZSetOperations.TypedTuple<String>> tuples;
+
+        private final long total;
+
+        IndexPage(String index, List<ZSetOperations.TypedTuple<String>> tuples, long total) {
+            this.index = index;
+            this.tuples = tuples;
+            this.total = total;
+        }
+    }
+}
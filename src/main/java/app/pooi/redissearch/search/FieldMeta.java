@@ -10,6 +10,10 @@ public class FieldMeta {
 
     private String splitFun = "";
 
+    private String prefix = "false";
+
+    private String scored = "false";
+
     public FieldMeta() {
 
     }
@@ -17,4 +21,19 @@ public class FieldMeta {
     public FieldMeta(boolean sort) {
         this.sort = Boolean.toString(sort);
     }
+
+    public FieldMeta(boolean sort, String splitFun) {
+        this.sort = Boolean.toString(sort);
+        this.splitFun = splitFun;
+    }
+
+    public FieldMeta(boolean sort, String splitFun, boolean prefix) {
+        this(sort, splitFun);
+        this.prefix = Boolean.toString(prefix);
+    }
+
+    public FieldMeta(boolean sort, String splitFun, boolean prefix, boolean scored) {
+        this(sort, splitFun, prefix);
+        this.scored = Boolean.toString(scored);
+    }
 }
@@ -0,0 +1,220 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static app.pooi.redissearch.search.SearchCore.Util.*;
+
+/**
+ * 索引别名和版本
+ *
+ * 对外使用的索引名称是别名, 指向当前版本 (rs:{prefix}:alias, 索引 -> 版本号), 没有记录时为版本 0.
+ * 版本 n 以 {index}@{n} 代替索引名称生成所有 key (见 {@link SearchCore.Util#genVersionName}), 版本 0 即索引名称本身,
+ * 元信息、key 布局、分片和代数都按版本独立. 重建中的索引 (rs:{prefix}:rebuild, 索引 -> 版本号) 同时写入当前版本和重建版本,
+ * 见 {@link IndexRebuilder}. 版本按索引缓存, 变更时通过元信息频道通知其他节点
+ */
+@Component
+public class IndexAliases implements MessageListener {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+
+    /**
+     * 索引 -> {当前版本, 重建中的版本(没有时为 -1)}
+     */
+    private final Cache<String, long[]> versions;
+
+    private RedisMessageListenerContainer container;
+
+    public IndexAliases(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.versions = CacheBuilder.newBuilder()
+                .expireAfterWrite(redisSearchConfiguration.getMeta().getExpireAfterWrite(), TimeUnit.SECONDS)
+                .build();
+    }
+
+    @PostConstruct
+    public void subscribe() {
+        if (!this.redisSearchConfiguration.getMeta().isSubscribe()) {
+            return;
+        }
+        this.container = new RedisMessageListenerContainer();
+        this.container.setConnectionFactory(this.redisTemplate.getConnectionFactory());
+        this.container.addMessageListener(this,
+                new ChannelTopic(genIdxMetaChannelName(this.redisSearchConfiguration.getPrefix())));
+        this.container.afterPropertiesSet();
+        this.container.start();
+    }
+
+    @PreDestroy
+    public void unsubscribe() throws Exception {
+        if (this.container != null) {
+            this.container.destroy();
+        }
+    }
+
+    /**
+     * 查询使用的版本
+     *
+     * @return 代替索引名称生成 key 的版本名称
+     */
+    public String read(String index) {
+        return genVersionName(index, this.versions(index)[0]);
+    }
+
+    /**
+     * 本地缓存中已有版本时的查询版本, 获取时不访问 redis
+     *
+     * @return 没有缓存时为 null
+     */
+    String readIfPresent(String index) {
+        final long[] cached = this.versions.getIfPresent(index);
+        return cached == null ? null : genVersionName(index, cached[0]);
+    }
+
+    /**
+     * 写入使用的版本, 重建中时为当前版本和重建版本
+     */
+    public List<String> writes(String index) {
+        return writes(index, this.versions(index));
+    }
+
+    /**
+     * 本地缓存中已有版本时的写入版本, 获取时不访问 redis
+     *
+     * @return 没有缓存时为 null
+     */
+    List<String> writesIfPresent(String index) {
+        final long[] cached = this.versions.getIfPresent(index);
+        return cached == null ? null : writes(index, cached);
+    }
+
+    private static List<String> writes(String index, long[] versions) {
+        return versions[1] < 0 ? ImmutableList.of(genVersionName(index, versions[0]))
+                : ImmutableList.of(genVersionName(index, versions[0]), genVersionName(index, versions[1]));
+    }
+
+    /**
+     * 版本名称是否属于某个索引的非 0 版本
+     */
+    static boolean isVersion(String name) {
+        return name.indexOf('@') >= 0;
+    }
+
+    private long[] versions(String index) {
+        try {
+            return this.versions.get(index, () -> {
+                final String prefix = this.redisSearchConfiguration.getPrefix();
+                final List<Object> loaded = this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                        final StringRedisTemplate template = (StringRedisTemplate) operations;
+                        template.opsForHash().get(genAliasName(prefix), index);
+                        template.opsForHash().get(genRebuildName(prefix), index);
+                        return null;
+                    }
+                });
+                return new long[]{loaded.get(0) == null ? 0L : Long.parseLong((String) loaded.get(0)),
+                        loaded.get(1) == null ? -1L : Long.parseLong((String) loaded.get(1))};
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("cannot load version of " + index, e.getCause());
+        }
+    }
+
+    /**
+     * 分配新的版本号, 版本号递增且不会重复使用
+     */
+    long allocate(String index) {
+        return this.redisTemplate.opsForHash()
+                .increment(genVersionSeqName(this.redisSearchConfiguration.getPrefix()), index, 1L);
+    }
+
+    /**
+     * 标记为重建中, 之后的写入同时写入该版本
+     *
+     * @throws IllegalStateException 索引已在重建中
+     */
+    void begin(String index, long version) {
+        if (!Boolean.TRUE.equals(this.redisTemplate.opsForHash().putIfAbsent(
+                genRebuildName(this.redisSearchConfiguration.getPrefix()), index, String.valueOf(version)))) {
+            throw new IllegalStateException("index " + index + " is already being rebuilt");
+        }
+        this.publish(index);
+    }
+
+    /**
+     * 重建标记中的版本, 直接读取 redis
+     *
+     * @return 不在重建中时为 -1
+     */
+    long rebuilding(String index) {
+        final Object version = this.redisTemplate.opsForHash()
+                .get(genRebuildName(this.redisSearchConfiguration.getPrefix()), index);
+        return version == null ? -1L : Long.parseLong((String) version);
+    }
+
+    /**
+     * 原子地把别名指向重建版本并清除重建标记
+     *
+     * @return 切换前的版本
+     * @throws IllegalStateException 重建标记已不是该版本
+     */
+    long swap(String index, long version) {
+        return this.finish(index, version, true);
+    }
+
+    /**
+     * 清除重建标记, 别名不变
+     */
+    void abort(String index, long version) {
+        this.finish(index, version, false);
+    }
+
+    private long finish(String index, long version, boolean swap) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final Long previous = this.redisTemplate.execute(SearchScripts.ALIAS,
+                Arrays.asList(genAliasName(prefix), genRebuildName(prefix)), index, String.valueOf(version),
+                swap ? "1" : "0");
+        this.publish(index);
+        if (previous == null || previous < 0) {
+            throw new IllegalStateException("index " + index + " is not being rebuilt to version " + version);
+        }
+        return previous;
+    }
+
+    private void publish(String index) {
+        this.versions.invalidate(index);
+        this.redisTemplate.convertAndSend(genIdxMetaChannelName(this.redisSearchConfiguration.getPrefix()), index);
+    }
+
+    /**
+     * 元信息频道的消息以索引名称开头, 收到后丢弃该索引的版本
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        final String index = new String(message.getBody(), StandardCharsets.UTF_8).split(" ")[0];
+        this.versions.invalidate(index);
+    }
+}
@@ -0,0 +1,224 @@
+package app.pooi.redissearch.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static app.pooi.redissearch.search.SearchCore.Util.*;
+
+/**
+ * 一个索引的 posting / 排序 zset / 文档反向索引 key 布局
+ *
+ * 默认布局 (verbose):
+ * <pre>
+ * rs:{prefix}:idx:{shard}:{field}:{value}   posting
+ * rs:{prefix}:idx:{shard}:{field}           排序 zset
+ * rs:{prefix}:doc:{shard}:{documentId}      反向索引, 成员为完整 key
+ * </pre>
+ * 紧凑布局 (compact) 中索引名和字段名替换为字典分配的短id (见 {@link KeyLayouts}), 反向索引只保存 key 在分片前缀之后的部分:
+ * <pre>
+ * rs:{prefix}:c:{token}:{fieldId}:{value}   posting, 反向索引成员为 {fieldId}:{value}
+ * rs:{prefix}:c:{token}:{fieldId}           排序 zset, 反向索引成员为 {fieldId}
+ * rs:{prefix}:r:{token}:{documentId}        反向索引
+ * </pre>
+ * 未分片时 token 为索引id; 分片时 token 仍为分片名称, 保持与查询临时 key 相同的 hash tag.
+ * 前缀索引使用字段名称加上 ~ 的伪字段, 其排序 zset 位置保存所有词 (分值均为 0), posting 位置保存每个词的文档;
+ * 每个词的文档数保存在伪字段 {field}~# 排序 zset 位置.
+ * 评分 posting 使用字段名称加上 ^ 的伪字段, posting 位置为 zset (文档id -> 词频分量), 排序 zset 位置为文档长度;
+ * 字段的总长度保存在伪字段 {field}^# 排序 zset 位置的 hash 中
+ */
+final class IndexKeys {
+
+    /**
+     * 前缀索引伪字段名称的后缀, 查询语法中的字段名称不会包含该字符
+     */
+    static final String TERMS = "~";
+
+    /**
+     * 评分 posting 伪字段名称的后缀, 查询语法中的字段名称不会包含该字符
+     */
+    static final String SCORED = "^";
+
+    /**
+     * 评分统计伪字段名称在 {@link #SCORED} 之后、词的文档数伪字段名称在 {@link #TERMS} 之后的后缀
+     */
+    private static final String STATS = "#";
+
+    private final String prefix;
+
+    private final String index;
+
+    /**
+     * 索引id, 默认布局为 null
+     */
+    private final String id;
+
+    /**
+     * 字段名称 -> 字段id
+     */
+    private final Function<String, String> fieldIds;
+
+    private IndexKeys(String prefix, String index, String id, Function<String, String> fieldIds) {
+        this.prefix = prefix;
+        this.index = index;
+        this.id = id;
+        this.fieldIds = fieldIds;
+    }
+
+    static IndexKeys verbose(String prefix, String index) {
+        return new IndexKeys(prefix, index, null, Function.identity());
+    }
+
+    static IndexKeys compact(String prefix, String index, String id, Function<String, String> fieldIds) {
+        return new IndexKeys(prefix, index, id, fieldIds);
+    }
+
+    boolean isCompact() {
+        return this.id != null;
+    }
+
+    String getIndex() {
+        return index;
+    }
+
+    private String token(String shard) {
+        return shard.equals(this.index) ? this.id : shard;
+    }
+
+    String posting(String shard, String field, String value) {
+        return isCompact() ? this.base(shard) + this.fieldIds.apply(field) + ":" + value
+                : genIdxName(this.prefix, shard, field, value);
+    }
+
+    /**
+     * 字段所有 posting key 的公共前缀
+     */
+    String postingPrefix(String shard, String field) {
+        return this.posting(shard, field, "");
+    }
+
+    /**
+     * 分片所有 posting 和排序 zset key 的公共前缀, 默认布局中查询临时 key 同样在该前缀下
+     */
+    String shardPrefix(String shard) {
+        return isCompact() ? this.base(shard) : genSortIdxName(this.prefix, shard, "");
+    }
+
+    String sort(String shard, String field) {
+        return isCompact() ? this.base(shard) + this.fieldIds.apply(field) : genSortIdxName(this.prefix, shard, field);
+    }
+
+    /**
+     * 字段前缀索引的伪字段名称
+     */
+    static String termField(String field) {
+        return field + TERMS;
+    }
+
+    /**
+     * 字段前缀索引用到的所有伪字段名称
+     */
+    static List<String> termFields(String field) {
+        return Arrays.asList(termField(field), termField(field) + STATS);
+    }
+
+    /**
+     * 字段评分 posting 的伪字段名称
+     */
+    static String scoredField(String field) {
+        return field + SCORED;
+    }
+
+    /**
+     * 字段评分 posting 用到的所有伪字段名称
+     */
+    static List<String> scoredFields(String field) {
+        return Arrays.asList(scoredField(field), scoredField(field) + STATS);
+    }
+
+    /**
+     * 元信息中的所有字段及前缀索引、评分 posting 的伪字段, 用于预先分配紧凑布局的字段id
+     */
+    static List<String> fields(Map<String, FieldMeta> meta) {
+        final List<String> fields = new ArrayList<>(meta.keySet());
+        meta.forEach((field, fieldMeta) -> {
+            if ("true".equals(fieldMeta.getPrefix())) {
+                fields.addAll(termFields(field));
+            }
+            if ("true".equals(fieldMeta.getScored())) {
+                fields.addAll(scoredFields(field));
+            }
+        });
+        return fields;
+    }
+
+    /**
+     * 字段前缀索引的词表, 按字典序排列的 zset
+     */
+    String terms(String shard, String field) {
+        return this.sort(shard, termField(field));
+    }
+
+    /**
+     * 字段前缀索引中每个词的文档数, 词 -> 文档数的 zset, 随写入和删除维护
+     */
+    String termCounts(String shard, String field) {
+        return this.sort(shard, termField(field) + STATS);
+    }
+
+    /**
+     * 包含某个前缀索引词的文档集合, 集合大小即该词的文档数
+     */
+    String termPosting(String shard, String field, String term) {
+        return this.posting(shard, termField(field), term);
+    }
+
+    /**
+     * 包含某个词的文档 zset, 分值为词在文档中的词频分量, 大小即该词的文档数
+     */
+    String scoredPosting(String shard, String field, String token) {
+        return this.posting(shard, scoredField(field), token);
+    }
+
+    /**
+     * 字段的文档长度 zset, 文档id -> 词数, 大小即字段有词的文档数
+     */
+    String lengths(String shard, String field) {
+        return this.sort(shard, scoredField(field));
+    }
+
+    /**
+     * 字段的评分统计 hash, length 为所有文档的总词数
+     */
+    String stats(String shard, String field) {
+        return this.sort(shard, scoredField(field) + STATS);
+    }
+
+    String document(String shard, String documentId) {
+        return isCompact() ? genCompactDocName(this.prefix, this.token(shard), documentId)
+                : genDocIdxName(this.prefix, shard, documentId);
+    }
+
+    /**
+     * 反向索引成员省略的 key 前缀, 默认布局为 ""
+     */
+    String base(String shard) {
+        return isCompact() ? genCompactIdxName(this.prefix, this.token(shard)) : "";
+    }
+
+    /**
+     * posting 或排序 zset key 转为反向索引成员
+     */
+    String member(String shard, String key) {
+        return isCompact() ? key.substring(this.base(shard).length()) : key;
+    }
+
+    /**
+     * 反向索引成员转为 posting 或排序 zset key
+     */
+    String key(String shard, String member) {
+        return this.base(shard) + member;
+    }
+}
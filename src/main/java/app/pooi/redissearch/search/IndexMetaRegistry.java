@@ -0,0 +1,182 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.hash.Jackson2HashMapper;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static app.pooi.redissearch.search.SearchCore.Util.genIdxMetaChannelName;
+import static app.pooi.redissearch.search.SearchCore.Util.genIdxMetaName;
+
+/**
+ * 索引字段元信息的本地缓存
+ *
+ * 每个索引只从 redis 加载一次; 注册时只有字段定义确实变化才写入 redis,
+ * 并通过 pub/sub 通知其他节点丢弃本地缓存
+ */
+@Slf4j
+@Component
+public class IndexMetaRegistry implements MessageListener {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final Jackson2HashMapper hashMapper = new Jackson2HashMapper(true);
+
+    private final Cache<String, Map<String, FieldMeta>> metas;
+
+    private RedisMessageListenerContainer container;
+
+    public IndexMetaRegistry(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.metas = CacheBuilder.newBuilder()
+                .expireAfterWrite(redisSearchConfiguration.getMeta().getExpireAfterWrite(), TimeUnit.SECONDS)
+                .build();
+    }
+
+    @PostConstruct
+    public void subscribe() {
+        if (!this.redisSearchConfiguration.getMeta().isSubscribe()) {
+            return;
+        }
+        this.container = new RedisMessageListenerContainer();
+        this.container.setConnectionFactory(this.redisTemplate.getConnectionFactory());
+        this.container.addMessageListener(this,
+                new ChannelTopic(genIdxMetaChannelName(this.redisSearchConfiguration.getPrefix())));
+        this.container.afterPropertiesSet();
+        this.container.start();
+    }
+
+    @PreDestroy
+    public void unsubscribe() throws Exception {
+        if (this.container != null) {
+            this.container.destroy();
+        }
+    }
+
+    /**
+     * 索引字段元信息, 本地没有时从 redis 加载
+     *
+     * @param index indexName
+     * @return field meta info map, 索引不存在时为空
+     */
+    public Map<String, FieldMeta> get(String index) {
+        final Map<String, FieldMeta> cached = this.metas.getIfPresent(index);
+        if (cached != null) {
+            return cached;
+        }
+        final Map<String, Object> hash = QueryTrace.stage("meta", () -> this.redisTemplate
+                .<String, Object>opsForHash().entries(genIdxMetaName(this.redisSearchConfiguration.getPrefix(), index)));
+        return this.load(index, hash);
+    }
+
+    /**
+     * 通过 SCAN 查找名称匹配 glob 模式的索引, 不包括索引的非 0 版本 (见 {@link IndexAliases})
+     *
+     * @param pattern 索引名称模式, 如 person*
+     * @return 按名称排序的索引名称
+     */
+    public List<String> indexes(String pattern) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final int metaPrefix = genIdxMetaName(prefix, "").length();
+        final Set<String> indexes = new TreeSet<>();
+        this.redisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (Cursor<byte[]> cursor = connection
+                    .scan(ScanOptions.scanOptions().match(genIdxMetaName(prefix, pattern)).count(1000L).build())) {
+                cursor.forEachRemaining(key -> {
+                    final String index = new String(key, StandardCharsets.UTF_8).substring(metaPrefix);
+                    if (!IndexAliases.isVersion(index)) {
+                        indexes.add(index);
+                    }
+                });
+            } catch (IOException e) {
+                throw new IllegalStateException("scan indexes " + pattern + " failed", e);
+            }
+            return null;
+        });
+        return new ArrayList<>(indexes);
+    }
+
+    /**
+     * 本地缓存的索引字段元信息
+     *
+     * @return 没有缓存时为 null
+     */
+    Map<String, FieldMeta> getIfPresent(String index) {
+        return this.metas.getIfPresent(index);
+    }
+
+    /**
+     * 将从 redis 读出的元信息 hash 放入本地缓存, 空 hash 不缓存
+     *
+     * @return field meta info map, hash 为空时为空
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, FieldMeta> load(String index, Map<String, Object> hash) {
+        if (hash.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, FieldMeta> loaded = ImmutableMap.copyOf((Map<String, FieldMeta>) hashMapper.fromHash(hash));
+        this.metas.put(index, loaded);
+        return loaded;
+    }
+
+    /**
+     * 注册索引字段元信息, 与已有定义合并后没有变化时不访问 redis
+     *
+     * @param index     indexName
+     * @param fieldMeta field meta info map
+     */
+    public void register(String index, Map<String, FieldMeta> fieldMeta) {
+        final Map<String, FieldMeta> current = this.get(index);
+        final Map<String, FieldMeta> merged = new TreeMap<>(current);
+        merged.putAll(fieldMeta);
+        if (merged.equals(current)) {
+            return;
+        }
+
+        final String idxMetaName = genIdxMetaName(this.redisSearchConfiguration.getPrefix(), index);
+        log.info("writing {} meta info...", idxMetaName);
+        this.redisTemplate.opsForHash().putAll(idxMetaName, hashMapper.toHash(fieldMeta));
+        this.metas.put(index, ImmutableMap.copyOf(merged));
+        this.redisTemplate.convertAndSend(genIdxMetaChannelName(this.redisSearchConfiguration.getPrefix()),
+                index + " " + schemaHash(merged));
+    }
+
+    /**
+     * 收到 "index schemaHash", 与本地一致时忽略(包括本节点自己发出的通知)
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        final String[] body = new String(message.getBody(), StandardCharsets.UTF_8).split(" ");
+        final Map<String, FieldMeta> cached = this.metas.getIfPresent(body[0]);
+        if (cached != null && body.length > 1 && body[1].equals(schemaHash(cached))) {
+            return;
+        }
+        log.info("index {} meta changed, evicting local cache", body[0]);
+        this.metas.invalidate(body[0]);
+    }
+
+    private static String schemaHash(Map<String, FieldMeta> meta) {
+        return Hashing.murmur3_128().hashString(new TreeMap<>(meta).toString(), StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,425 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Streams;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static app.pooi.redissearch.search.SearchCore.Util.*;
+
+/**
+ * 在线重建索引, 见 {@link IndexAliases}
+ *
+ * <ol>
+ * <li>分配新版本并写入其字段元信息 (当前版本的元信息合并请求中的字段), 标记为重建中后等待 redis.search.rebuild.grace 秒,
+ * 使所有节点开始同时写入两个版本</li>
+ * <li>SCAN 源文档 hash 或读取文档流, 按 chunk-size 分块、按 rate 限速后由 parallelism 个线程写入新版本</li>
+ * <li>全部写入成功后原子地把别名指向新版本, 再等待一个 grace 周期使所有节点切换读取</li>
+ * <li>SCAN 并分批 UNLINK 旧版本的 key</li>
+ * </ol>
+ * 有分块写入失败、被中断或被取消时不切换别名, 清除重建标记并删除新版本. 重建期间修改的文档可能被源数据中较旧的内容覆盖, 建议在写入较少时执行
+ */
+@Slf4j
+@RestController
+@Service
+public class IndexRebuilder {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final SearchCore searchCore;
+    private final BulkIndexer bulkIndexer;
+    private final IndexAliases indexAliases;
+    private final IndexShards indexShards;
+    private final KeyLayouts keyLayouts;
+
+    private final ExecutorService jobs = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("rs-rebuild-%d").setDaemon(true).build());
+
+    /**
+     * 索引 -> 本节点最近一次重建
+     */
+    private final Map<String, Job> latest = new ConcurrentHashMap<>();
+
+    public IndexRebuilder(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            SearchCore searchCore, BulkIndexer bulkIndexer, IndexAliases indexAliases, IndexShards indexShards,
+            KeyLayouts keyLayouts) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.searchCore = searchCore;
+        this.bulkIndexer = bulkIndexer;
+        this.indexAliases = indexAliases;
+        this.indexShards = indexShards;
+        this.keyLayouts = keyLayouts;
+    }
+
+    /**
+     * 中断进行中的重建, 等待其清除重建标记并删除新版本
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        this.jobs.shutdownNow();
+        final long timeout = this.redisSearchConfiguration.getRebuild().getShutdownTimeout();
+        if (!this.jobs.awaitTermination(timeout, TimeUnit.SECONDS)) {
+            log.warn("rebuild jobs not stopped in {}s", timeout);
+        }
+    }
+
+    /**
+     * 在后台重建索引, 源数据为 source 匹配的 hash 或 documents
+     *
+     * @return 重建开始时的进度
+     * @throws IllegalStateException 索引不存在或已在重建中
+     */
+    @PostMapping("/index/{index}/rebuild")
+    public RebuildStatus rebuild(@PathVariable("index") String index, @RequestBody RebuildRequest request) {
+        if ((request.getSource() == null) == (request.getDocuments() == null)) {
+            throw new IllegalArgumentException("exactly one of source and documents is required");
+        }
+        final RedisSearchConfiguration.Rebuild conf = this.redisSearchConfiguration.getRebuild();
+        final Stream<Document> documents = request.getSource() != null ? this.scan(request.getSource())
+                : request.getDocuments().stream();
+        return this.rebuild(index, request.getFields() != null ? request.getFields() : Collections.emptyMap(),
+                documents, request.getRate() != null ? request.getRate() : conf.getRate(),
+                request.getParallelism() != null ? request.getParallelism() : conf.getParallelism());
+    }
+
+    /**
+     * 在后台用文档流重建索引, 文档流在重建线程中按需读取, 结束后关闭
+     *
+     * @param fields      新版本的字段元信息, 覆盖当前版本的同名字段
+     * @param rate        每秒最多索引的文档数, 0 表示不限制
+     * @param parallelism 并行提交的 pipeline 数
+     */
+    public RebuildStatus rebuild(String index, Map<String, FieldMeta> fields, Stream<Document> documents,
+            double rate, int parallelism) {
+        final Map<String, FieldMeta> meta = new TreeMap<>(this.searchCore.fieldMeta(this.indexAliases.read(index)));
+        meta.putAll(fields);
+        if (meta.isEmpty()) {
+            documents.close();
+            throw new IllegalStateException("index " + index + " does not exist");
+        }
+
+        final long version = this.indexAliases.allocate(index);
+        final String target = genVersionName(index, version);
+        this.searchCore.versionMeta(target, meta);
+        try {
+            this.indexAliases.begin(index, version);
+        } catch (IllegalStateException e) {
+            this.dropMeta(target);
+            documents.close();
+            throw e;
+        }
+
+        final Job job = new Job(index, version);
+        this.latest.put(index, job);
+        this.jobs.execute(() -> this.run(job, documents, rate, Math.max(1, parallelism)));
+        return job.status();
+    }
+
+    /**
+     * 本节点最近一次重建的进度
+     *
+     * @return 没有重建过时为 null
+     */
+    @GetMapping("/index/{index}/rebuild")
+    public RebuildStatus status(@PathVariable("index") String index) {
+        final Job job = this.latest.get(index);
+        return job == null ? null : job.status();
+    }
+
+    /**
+     * 取消重建: 清除重建标记, 用于重建节点已停止而标记残留的情况. 本节点的重建在写入完成后停止并删除新版本,
+     * 否则在后台删除新版本; 其他节点上仍在进行的重建切换别名时失败, 同样删除新版本
+     *
+     * @return 取消后的进度
+     * @throws IllegalStateException 索引不在重建中
+     */
+    @DeleteMapping("/index/{index}/rebuild")
+    public RebuildStatus abort(@PathVariable("index") String index) {
+        final long version = this.indexAliases.rebuilding(index);
+        if (version < 0) {
+            throw new IllegalStateException("index " + index + " is not being rebuilt");
+        }
+        final Job running = this.latest.get(index);
+        if (running != null && running.version == version && running.state == RebuildStatus.State.BUILDING) {
+            running.message = "aborted";
+            this.indexAliases.abort(index, version);
+            return running.status();
+        }
+        this.indexAliases.abort(index, version);
+
+        final Job job = new Job(index, version);
+        job.message = "aborted";
+        job.state = RebuildStatus.State.DELETING;
+        this.latest.put(index, job);
+        this.jobs.execute(() -> {
+            try {
+                this.delete(job, genVersionName(index, version));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                log.error("delete aborted version {} of {} failed", version, index, e);
+            } finally {
+                job.state = RebuildStatus.State.FAILED;
+            }
+        });
+        return job.status();
+    }
+
+    private void run(Job job, Stream<Document> documents, double rate, int parallelism) {
+        final String target = genVersionName(job.index, job.version);
+        final long grace = TimeUnit.SECONDS.toMillis(this.redisSearchConfiguration.getRebuild().getGrace());
+        boolean swapped = false;
+        try {
+            try (Stream<Document> source = documents) {
+                Thread.sleep(grace);
+                this.write(job, target, source, rate, parallelism);
+            } catch (RuntimeException e) {
+                log.warn("rebuild of {} to version {} failed", job.index, job.version, e);
+                job.message = e.getMessage();
+            }
+            if (job.message != null) {
+                job.state = RebuildStatus.State.FAILED;
+                return;
+            }
+
+            final long previous = this.indexAliases.swap(job.index, job.version);
+            swapped = true;
+            log.info("index {} rebuilt, {} documents, alias switched from version {} to {}", job.index,
+                    job.indexed.get(), previous, job.version);
+            job.state = RebuildStatus.State.DELETING;
+            Thread.sleep(grace);
+            this.delete(job, genVersionName(job.index, previous));
+            log.info("index {} version {} deleted, {} keys", job.index, previous, job.deleted.get());
+            job.state = RebuildStatus.State.DONE;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.message = "interrupted";
+            job.state = RebuildStatus.State.FAILED;
+        } catch (RuntimeException e) {
+            log.error("rebuild of {} to version {} failed", job.index, job.version, e);
+            job.message = e.getMessage();
+            job.state = RebuildStatus.State.FAILED;
+        } finally {
+            if (!swapped) {
+                this.discard(job, target);
+            }
+        }
+    }
+
+    /**
+     * 别名未切换时清除重建标记并删除新版本. 被中断时暂时清除中断状态, 使删除中的等待不被打断, 结束后恢复
+     */
+    private void discard(Job job, String target) {
+        final boolean interrupted = Thread.interrupted();
+        job.state = RebuildStatus.State.DELETING;
+        try {
+            try {
+                this.indexAliases.abort(job.index, job.version);
+            } catch (IllegalStateException e) {
+                // 已通过 abort 接口取消
+                log.info("rebuild marker of {} is no longer version {}", job.index, job.version);
+            }
+            this.delete(job, target);
+        } catch (InterruptedException e) {
+            log.warn("delete of abandoned version {} interrupted", target);
+        } catch (RuntimeException e) {
+            log.error("delete of abandoned version {} failed", target, e);
+        } finally {
+            job.state = RebuildStatus.State.FAILED;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 分块写入新版本, 同时最多有 parallelism 个分块在提交中; 有分块失败后不再读取
+     */
+    private void write(Job job, String target, Stream<Document> documents, double rate, int parallelism)
+            throws InterruptedException {
+        final Map<String, FieldMeta> meta = this.searchCore.fieldMeta(target);
+        final RateLimiter limiter = rate > 0 ? RateLimiter.create(rate) : null;
+        final Semaphore permits = new Semaphore(parallelism);
+        final ExecutorService workers = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setNameFormat("rs-rebuild-" + target + "-%d").setDaemon(true).build());
+        try {
+            final Iterator<List<Document>> chunks = Iterators.partition(documents.iterator(),
+                    Math.max(1, this.redisSearchConfiguration.getRebuild().getChunkSize()));
+            while (job.message == null && chunks.hasNext()) {
+                final List<Document> chunk = chunks.next();
+                job.total.addAndGet(chunk.size());
+                if (limiter != null) {
+                    limiter.acquire(chunk.size());
+                }
+                permits.acquire();
+                workers.execute(() -> {
+                    try {
+                        this.bulkIndexer.flush(target, meta, chunk);
+                        job.indexed.addAndGet(chunk.size());
+                    } catch (RuntimeException e) {
+                        log.warn("rebuild of {} chunk failed", target, e);
+                        job.failed.addAndGet(chunk.size());
+                        job.message = e.getMessage() != null ? e.getMessage() : e.toString();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+            // 等待提交中的分块完成
+            permits.acquire(parallelism);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * SCAN 源文档 hash, 每 chunk-size 个 key 在一个 pipeline 中读取
+     */
+    private Stream<Document> scan(String pattern) {
+        final int batchSize = Math.max(1, this.redisSearchConfiguration.getRebuild().getChunkSize());
+        final Cursor<byte[]> cursor = this.redisTemplate.executeWithStickyConnection(
+                connection -> connection.scan(ScanOptions.scanOptions().match(pattern).count(batchSize).build()));
+        return Streams.stream(Iterators.partition(
+                Iterators.transform(cursor, key -> new String(key, StandardCharsets.UTF_8)), batchSize))
+                .flatMap(keys -> this.read(keys).stream())
+                .onClose(() -> {
+                    try {
+                        cursor.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private List<Document> read(List<String> keys) {
+        final List<Object> hashes = this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                keys.forEach(key -> ((StringRedisTemplate) operations).opsForHash().entries(key));
+                return null;
+            }
+        });
+        final List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            final Map<?, ?> hash = (Map<?, ?>) hashes.get(i);
+            if (hash == null || hash.isEmpty()) {
+                continue;
+            }
+            final Map<String, String> fields = new HashMap<>();
+            hash.forEach((field, value) -> fields.put(String.valueOf(field), String.valueOf(value)));
+            final String key = keys.get(i);
+            documents.add(new Document(key.substring(key.lastIndexOf(':') + 1), fields));
+        }
+        return documents;
+    }
+
+    /**
+     * 分批删除一个版本的所有 key: 两种布局的 posting、排序 zset、反向索引和查询临时 key, 以及代数、位图字典和元信息
+     */
+    private void delete(Job job, String version) throws InterruptedException {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final List<String> shards = this.indexShards.shards(version);
+        final List<String> patterns = new ArrayList<>();
+        shards.forEach(shard -> {
+            patterns.add(genSortIdxName(prefix, shard, "*"));
+            patterns.add(genDocIdxName(prefix, shard, "*"));
+        });
+        if (!this.keyLayouts.state(version).isEmpty()) {
+            final IndexKeys compact = this.keyLayouts.compact(version, Collections.emptyList());
+            shards.forEach(shard -> {
+                patterns.add(compact.base(shard) + "*");
+                patterns.add(compact.document(shard, "*"));
+            });
+        }
+        for (String pattern : patterns) {
+            this.unlink(job, pattern);
+        }
+
+        final List<String> keys = new ArrayList<>();
+        shards.forEach(shard -> keys.addAll(Arrays.asList(genIdxGenName(prefix, shard), genDictName(prefix, shard),
+                genDictReverseName(prefix, shard), genDictSeqName(prefix, shard), genDictFreeName(prefix, shard))));
+        job.deleted.addAndGet(this.redisTemplate.unlink(keys));
+        this.dropMeta(version);
+    }
+
+    private void dropMeta(String version) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        this.redisTemplate.delete(genIdxMetaName(prefix, version));
+        this.redisTemplate.opsForHash().delete(genLayoutName(prefix), version);
+    }
+
+    /**
+     * SCAN 匹配的 key, 每 delete-batch 个 UNLINK 一次, 批次之间间隔 delete-interval 毫秒
+     */
+    private void unlink(Job job, String pattern) throws InterruptedException {
+        final RedisSearchConfiguration.Rebuild conf = this.redisSearchConfiguration.getRebuild();
+        final int batchSize = Math.max(1, conf.getDeleteBatch());
+        try (Cursor<byte[]> cursor = this.redisTemplate.executeWithStickyConnection(
+                connection -> connection.scan(ScanOptions.scanOptions().match(pattern).count(batchSize).build()))) {
+            final Iterator<List<String>> batches = Iterators.partition(
+                    Iterators.transform(cursor, key -> new String(key, StandardCharsets.UTF_8)), batchSize);
+            while (batches.hasNext()) {
+                final Long deleted = this.redisTemplate.unlink(batches.next());
+                job.deleted.addAndGet(deleted == null ? 0L : deleted);
+                if (conf.getDeleteInterval() > 0) {
+                    Thread.sleep(conf.getDeleteInterval());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("scan " + pattern + " failed", e);
+        }
+    }
+
+    private static final class Job {
+
+        private final String index;
+
+        private final long version;
+
+        private volatile RebuildStatus.State state = RebuildStatus.State.BUILDING;
+
+        private final AtomicLong total = new AtomicLong();
+
+        private final AtomicLong indexed = new AtomicLong();
+
+        private final AtomicLong failed = new AtomicLong();
+
+        private final AtomicLong deleted = new AtomicLong();
+
+        private volatile String message;
+
+        Job(String index, long version) {
+            this.index = index;
+            this.version = version;
+        }
+
+        RebuildStatus status() {
+            return new RebuildStatus(this.index, this.version, this.state, this.total.get(), this.indexed.get(),
+                    this.failed.get(), this.deleted.get(), this.message);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static app.pooi.redissearch.search.SearchCore.Util.genShardName;
+
+/**
+ * 索引分片
+ *
+ * 分片数大于 1 时, 每个分片的所有 key 使用同一个 hash tag, 集合运算在 redis cluster 的同一个 slot 内完成;
+ * 文档按 id 路由到分片, 查询并行发往所有分片后在 jvm 中合并. 分片数为 1 时分片名称就是索引名称, key 与不分片时相同
+ */
+@Component
+public class IndexShards {
+
+    private final int shards;
+
+    private final ExecutorService executor;
+
+    public IndexShards(RedisSearchConfiguration redisSearchConfiguration) {
+        this.shards = Math.max(1, redisSearchConfiguration.getCluster().getShards());
+        this.executor = this.shards > 1
+                ? Executors.newFixedThreadPool(redisSearchConfiguration.getCluster().getParallelism(),
+                        new ThreadFactoryBuilder().setNameFormat("rs-shard-%d").setDaemon(true).build())
+                : MoreExecutors.newDirectExecutorService();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+
+    public boolean isSharded() {
+        return this.shards > 1;
+    }
+
+    /**
+     * 文档所在分片
+     *
+     * @return 分片名称, 用于替代索引名称生成 key
+     */
+    public String shardOf(String index, String documentId) {
+        if (!isSharded()) {
+            return index;
+        }
+        final int hash = Hashing.murmur3_32().hashString(documentId, StandardCharsets.UTF_8).asInt();
+        return genShardName(index, Math.floorMod(hash, this.shards));
+    }
+
+    /**
+     * 索引的所有分片名称
+     */
+    public List<String> shards(String index) {
+        if (!isSharded()) {
+            return Collections.singletonList(index);
+        }
+        return IntStream.range(0, this.shards).mapToObj(i -> genShardName(index, i)).collect(Collectors.toList());
+    }
+
+    /**
+     * 在所有分片上并行执行, 结果按分片顺序返回. 调用线程的查询统计 ({@link QueryTrace}) 传递到工作线程
+     */
+    public <T> List<T> scatter(String index, Function<String, T> perShard) {
+        final List<String> names = this.shards(index);
+        if (names.size() == 1) {
+            return Collections.singletonList(perShard.apply(names.get(0)));
+        }
+        final Function<String, T> traced = QueryTrace.propagate(perShard);
+        final List<CompletableFuture<T>> futures = names.stream()
+                .map(shard -> CompletableFuture.supplyAsync(() -> traced.apply(shard), this.executor))
+                .collect(Collectors.toList());
+        try {
+            return futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        } catch (CompletionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static app.pooi.redissearch.search.SearchCore.Util.*;
+
+/**
+ * 索引快照的导出和导入, 用于新环境预热或恢复单个索引, 不再需要重放所有源数据
+ *
+ * 导出索引当前版本的所有 key: 元信息、代数、位图字典, 以及两种布局的 posting、排序 zset 和反向索引, 查询临时 key 除外.
+ * 按与删除版本相同的 key 模式 SCAN (见 {@link IndexRebuilder}), 每 chunk-size 个 key 一个 pipeline DUMP,
+ * 写入快照文件的一个分块 (见 {@link SnapshotFile}). 默认布局的反向索引成员是包含前缀的完整 key, 以成员列表保存以便改写前缀.
+ *
+ * 导入时逐块校验后并行 pipeline RESTORE, key 和成员中的 rs:{prefix}: 改写为目标前缀;
+ * 全部写入后登记 key 布局、紧凑布局的名称字典和别名, 代数自增并通知所有节点丢弃缓存
+ */
+@Slf4j
+@RestController
+@Service
+public class IndexSnapshots {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final SearchCore searchCore;
+    private final IndexAliases indexAliases;
+    private final KeyLayouts keyLayouts;
+    private final IndexShards indexShards;
+    private final ExecutorService executor;
+
+    public IndexSnapshots(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            SearchCore searchCore, IndexAliases indexAliases, KeyLayouts keyLayouts, IndexShards indexShards) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.searchCore = searchCore;
+        this.indexAliases = indexAliases;
+        this.keyLayouts = keyLayouts;
+        this.indexShards = indexShards;
+        this.executor = Executors.newFixedThreadPool(
+                Math.max(1, redisSearchConfiguration.getSnapshot().getParallelism()),
+                new ThreadFactoryBuilder().setNameFormat("rs-snapshot-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+
+    /**
+     * 导出到 redis.search.snapshot.directory 下的文件
+     *
+     * @param name 文件名, 不能包含路径
+     */
+    @PostMapping("/index/{index}/snapshot")
+    public Map<String, Long> export(@PathVariable("index") String index, @RequestParam("name") String name)
+            throws IOException {
+        final Path directory = Paths.get(this.redisSearchConfiguration.getSnapshot().getDirectory());
+        Files.createDirectories(directory);
+        return this.export(index, this.file(name));
+    }
+
+    /**
+     * 从 redis.search.snapshot.directory 下的文件导入
+     *
+     * @param name    文件名, 不能包含路径
+     * @param prefix  目标前缀, 为空时使用 redis.search.prefix
+     * @param replace 是否覆盖已存在的 key
+     */
+    @PostMapping("/index/{index}/snapshot/restore")
+    public Map<String, Long> restore(@PathVariable("index") String index, @RequestParam("name") String name,
+            @RequestParam(value = "prefix", required = false) String prefix,
+            @RequestParam(value = "replace", defaultValue = "false") boolean replace) throws IOException {
+        return this.restore(index, this.file(name), prefix, replace);
+    }
+
+    private Path file(String name) {
+        if (name.isEmpty() || name.startsWith(".") || name.contains("/") || name.contains("\\")) {
+            throw new IllegalArgumentException("invalid snapshot name " + name);
+        }
+        return Paths.get(this.redisSearchConfiguration.getSnapshot().getDirectory()).resolve(name);
+    }
+
+    /**
+     * 导出索引当前版本, 导出期间的写入可能只有一部分包含在快照中
+     *
+     * @return keys 导出的 key 数, chunks 分块数, bytes 文件大小
+     * @throws IllegalStateException 索引不存在或正在转换 key 布局
+     */
+    public Map<String, Long> export(String index, Path file) throws IOException {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final String version = this.indexAliases.read(index);
+        final Map<String, FieldMeta> meta = this.searchCore.fieldMeta(version);
+        if (meta.isEmpty()) {
+            throw new IllegalStateException("index " + index + " does not exist");
+        }
+        final String layout = this.keyLayouts.state(version);
+        if (KeyLayouts.MIGRATING.equals(layout)) {
+            throw new IllegalStateException("index " + index + " is migrating to compact layout");
+        }
+        final List<String> shards = this.indexShards.shards(version);
+        final SnapshotFile.Header header = new SnapshotFile.Header(prefix, index, version, layout, shards.size(),
+                layout.isEmpty() ? Collections.emptyMap() : this.names(version, meta));
+
+        final SnapshotFile.Writer writer = new SnapshotFile.Writer(file, header);
+        try {
+            final List<String> keys = new ArrayList<>();
+            keys.add(genIdxMetaName(prefix, version));
+            shards.forEach(shard -> keys.addAll(Arrays.asList(genIdxGenName(prefix, shard),
+                    genDictName(prefix, shard), genDictReverseName(prefix, shard), genDictSeqName(prefix, shard),
+                    genDictFreeName(prefix, shard))));
+            writer.write(this.dump(keys, false));
+
+            for (String shard : shards) {
+                this.export(writer, genSortIdxName(prefix, shard, "*"), genQueryIdxName(prefix, shard, ""), false);
+                this.export(writer, genDocIdxName(prefix, shard, "*"), null, true);
+                if (!layout.isEmpty()) {
+                    final IndexKeys compact = this.keyLayouts.compact(version, Collections.emptyList());
+                    this.export(writer, compact.base(shard) + "*", null, false);
+                    this.export(writer, compact.document(shard, "*"), null, false);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        final Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("keys", writer.getEntries());
+        stats.put("chunks", writer.getChunks());
+        stats.put("bytes", writer.getBytes());
+        log.info("index {} exported to {}, {} keys", index, file, writer.getEntries());
+        return stats;
+    }
+
+    /**
+     * 紧凑布局 key 中用到的索引和字段的字典id
+     */
+    private Map<String, Long> names(String version, Map<String, FieldMeta> meta) {
+        final List<String> names = new ArrayList<>();
+        names.add("i:" + version);
+        IndexKeys.fields(meta).forEach(field -> names.add("f:" + field));
+        final List<Object> ids = this.redisTemplate.opsForHash()
+                .multiGet(genNamesName(this.redisSearchConfiguration.getPrefix()), new ArrayList<>(names));
+        final Map<String, Long> resolved = new LinkedHashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (ids.get(i) != null) {
+                resolved.put(names.get(i), Long.valueOf((String) ids.get(i)));
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * SCAN 匹配的 key, 每 chunk-size 个写入一个分块
+     *
+     * @param exclude 排除的 key 前缀, 可以为 null
+     * @param members 是否保存为成员列表
+     */
+    private void export(SnapshotFile.Writer writer, String pattern, String exclude, boolean members)
+            throws IOException {
+        final int batchSize = Math.max(1, this.redisSearchConfiguration.getSnapshot().getChunkSize());
+        try (Cursor<byte[]> cursor = this.redisTemplate.executeWithStickyConnection(
+                connection -> connection.scan(ScanOptions.scanOptions().match(pattern).count(batchSize).build()))) {
+            final Iterator<List<String>> batches = Iterators.partition(
+                    Iterators.transform(cursor, key -> new String(key, StandardCharsets.UTF_8)), batchSize);
+            while (batches.hasNext()) {
+                final List<String> keys = new ArrayList<>(batches.next());
+                if (exclude != null) {
+                    keys.removeIf(key -> key.startsWith(exclude));
+                }
+                writer.write(this.dump(keys, members));
+            }
+        }
+    }
+
+    /**
+     * 一个 pipeline 读出 key 的 DUMP 值 (或集合成员) 和剩余存活时间, 已不存在的 key 跳过
+     */
+    @SuppressWarnings("unchecked")
+    private List<SnapshotFile.Entry> dump(List<String> keys, boolean members) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<Object> values = this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                final byte[] raw = key.getBytes(StandardCharsets.UTF_8);
+                if (members) {
+                    connection.sMembers(raw);
+                } else {
+                    connection.dump(raw);
+                }
+                connection.pTtl(raw);
+            }
+            return null;
+        }, null);
+
+        final List<SnapshotFile.Entry> chunk = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            final Object value = values.get(i * 2);
+            final Long ttl = (Long) values.get(i * 2 + 1);
+            if (value == null || ttl == null || ttl == -2) {
+                continue;
+            }
+            final byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+            if (members) {
+                final Set<byte[]> set = (Set<byte[]>) value;
+                if (!set.isEmpty()) {
+                    chunk.add(new SnapshotFile.Entry(SnapshotFile.MEMBERS, key, ttl, null, new ArrayList<>(set)));
+                }
+            } else {
+                chunk.add(new SnapshotFile.Entry(SnapshotFile.DUMP, key, ttl, (byte[]) value, null));
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * 导入快照, 索引名称和分片数必须与快照相同; 覆盖时不会删除目标中快照以外的 key
+     *
+     * @param prefix  目标前缀, 为空时使用 redis.search.prefix
+     * @param replace 是否覆盖已存在的 key, 否则目标中已有该版本时失败
+     * @return keys 导入的 key 数, chunks 分块数
+     * @throws IllegalStateException 目标已存在、分片数不同或紧凑布局的字典id冲突
+     */
+    public Map<String, Long> restore(String index, Path file, String prefix, boolean replace) throws IOException {
+        final String target = prefix == null || prefix.isEmpty() ? this.redisSearchConfiguration.getPrefix() : prefix;
+        try (SnapshotFile.Reader reader = new SnapshotFile.Reader(file)) {
+            final SnapshotFile.Header header = reader.header();
+            if (!header.getIndex().equals(index)) {
+                throw new IllegalArgumentException("snapshot " + file + " is of index " + header.getIndex());
+            }
+            final List<String> shards = this.indexShards.shards(header.getVersion());
+            if (shards.size() != header.getShards()) {
+                throw new IllegalStateException("snapshot of " + index + " has " + header.getShards()
+                        + " shards, but " + shards.size() + " configured");
+            }
+            if (!replace
+                    && Boolean.TRUE.equals(this.redisTemplate.hasKey(genIdxMetaName(target, header.getVersion())))) {
+                throw new IllegalStateException("index " + header.getVersion() + " already exists under " + target);
+            }
+            this.claim(target, header.getNames());
+
+            final Map<String, Long> stats = this.restore(reader, "rs:" + header.getPrefix() + ":",
+                    "rs:" + target + ":", replace);
+            this.activate(target, header, shards);
+            log.info("index {} restored from {} under prefix {}, {} keys", index, file, target, stats.get("keys"));
+            return stats;
+        }
+    }
+
+    /**
+     * 按快照中的id登记紧凑布局的名称字典
+     */
+    private void claim(String prefix, Map<String, Long> names) {
+        if (names.isEmpty()) {
+            return;
+        }
+        final List<String> args = new ArrayList<>();
+        names.forEach((name, id) -> {
+            args.add(name);
+            args.add(String.valueOf(id));
+        });
+        final String conflict = this.redisTemplate.execute(SearchScripts.CLAIM,
+                Arrays.asList(genNamesName(prefix), genNamesReverseName(prefix), genNamesSeqName(prefix)),
+                args.toArray());
+        if (conflict != null && !conflict.isEmpty()) {
+            throw new IllegalStateException("compact layout id of " + conflict + " conflicts under " + prefix);
+        }
+    }
+
+    /**
+     * 逐块读取, 同时最多有 parallelism 个分块在 RESTORE 中; 任一分块失败时停止读取并抛出
+     */
+    private Map<String, Long> restore(SnapshotFile.Reader reader, String from, String to, boolean replace)
+            throws IOException {
+        final int parallelism = Math.max(1, this.redisSearchConfiguration.getSnapshot().getParallelism());
+        final Semaphore permits = new Semaphore(parallelism);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        final AtomicLong keys = new AtomicLong();
+
+        long chunks = 0;
+        try {
+            List<SnapshotFile.Entry> chunk;
+            while (failure.get() == null && (chunk = reader.next()) != null) {
+                final List<SnapshotFile.Entry> entries = chunk;
+                chunks++;
+                permits.acquireUninterruptibly();
+                this.executor.execute(() -> {
+                    try {
+                        this.restore(entries, from, to, replace);
+                        keys.addAndGet(entries.size());
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        } finally {
+            // 等待提交中的分块完成
+            permits.acquireUninterruptibly(parallelism);
+            permits.release(parallelism);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("restore failed after " + keys.get() + " keys", failure.get());
+        }
+
+        final Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("keys", keys.get());
+        stats.put("chunks", chunks);
+        return stats;
+    }
+
+    private void restore(List<SnapshotFile.Entry> chunk, String from, String to, boolean replace) {
+        this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (SnapshotFile.Entry entry : chunk) {
+                final byte[] key = rewrite(entry.getKey(), from, to);
+                final long ttl = Math.max(entry.getTtl(), 0L);
+                if (entry.getType() == SnapshotFile.DUMP) {
+                    connection.restore(key, ttl, entry.getValue(), replace);
+                } else {
+                    this.restoreMembers(connection, key, ttl, entry.getMembers().stream()
+                            .map(member -> rewrite(member, from, to)).toArray(byte[][]::new), replace);
+                }
+            }
+            return null;
+        }, null);
+    }
+
+    private void restoreMembers(RedisConnection connection, byte[] key, long ttl, byte[][] members,
+            boolean replace) {
+        if (replace) {
+            connection.del(key);
+        }
+        connection.sAdd(key, members);
+        if (ttl > 0) {
+            connection.pExpire(key, ttl);
+        }
+    }
+
+    /**
+     * 以 from 开头时替换为 to, 前缀相同时原样返回
+     */
+    static byte[] rewrite(byte[] key, String from, String to) {
+        if (from.equals(to)) {
+            return key;
+        }
+        final String value = new String(key, StandardCharsets.UTF_8);
+        return value.startsWith(from) ? (to + value.substring(from.length())).getBytes(StandardCharsets.UTF_8)
+                : key;
+    }
+
+    /**
+     * 登记 key 布局和别名, 所有分片的代数自增, 并通知所有节点丢弃该索引的元信息、布局和版本缓存
+     */
+    private void activate(String prefix, SnapshotFile.Header header, List<String> shards) {
+        final String index = header.getIndex();
+        final String version = header.getVersion();
+        if (!header.getLayout().isEmpty()) {
+            this.redisTemplate.opsForHash().put(genLayoutName(prefix), version, header.getLayout());
+        }
+        // 快照的版本成为当前版本
+        if (!IndexAliases.isVersion(version)) {
+            this.redisTemplate.opsForHash().delete(genAliasName(prefix), index);
+        } else {
+            final String number = version.substring(version.lastIndexOf('@') + 1);
+            this.redisTemplate.opsForHash().put(genAliasName(prefix), index, number);
+            final Object seq = this.redisTemplate.opsForHash().get(genVersionSeqName(prefix), index);
+            if (seq == null || Long.parseLong((String) seq) < Long.parseLong(number)) {
+                this.redisTemplate.opsForHash().put(genVersionSeqName(prefix), index, number);
+            }
+        }
+        shards.forEach(shard -> this.redisTemplate.opsForValue().increment(genIdxGenName(prefix, shard)));
+        this.redisTemplate.convertAndSend(genIdxMetaChannelName(prefix), version);
+        this.redisTemplate.convertAndSend(genIdxMetaChannelName(prefix), index);
+    }
+}
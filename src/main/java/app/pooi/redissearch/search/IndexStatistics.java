@@ -0,0 +1,93 @@
+package app.pooi.redissearch.search;
+
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 索引规模统计, 见 {@link IndexStats}
+ */
+@Data
+public class IndexStatistics {
+
+    private String index;
+
+    /**
+     * 统计的版本名称, 见 {@link IndexAliases}
+     */
+    private String version;
+
+    /**
+     * key 布局状态, 默认布局为 ""
+     */
+    private String layout;
+
+    private int shards;
+
+    /**
+     * 有索引字段的文档数, 即反向索引 key 数
+     */
+    private long documents;
+
+    /**
+     * 存活的查询临时 key 数
+     */
+    private long tempKeys;
+
+    /**
+     * 估算的内存占用(字节), 每类 key 按抽样 key 的 MEMORY USAGE 平均值乘以 key 数
+     */
+    private long memory;
+
+    /**
+     * 读取了 MEMORY USAGE 的 key 数
+     */
+    private long sampled;
+
+    /**
+     * 统计耗时(毫秒)
+     */
+    private long elapsed;
+
+    /**
+     * 字段名称 -> 字段统计, 包括前缀索引和评分 posting 的伪字段
+     */
+    private Map<String, FieldStatistics> fields = new LinkedHashMap<>();
+
+    @Data
+    public static class FieldStatistics {
+
+        /**
+         * posting key 数, 即词数; 分片时同一个词在每个分片各计一次
+         */
+        private long terms;
+
+        /**
+         * 所有 posting 大小之和
+         */
+        private long postings;
+
+        private long maxPosting;
+
+        /**
+         * posting 大小分布, 大小上界 -> posting 数, 上界依次为 1, 10, 100 ... 最后一档为 +Inf
+         */
+        private Map<String, Long> histogram = new LinkedHashMap<>();
+
+        /**
+         * 最大的 posting, 词 -> 大小, 按大小降序; 分片时从各分片最大的词中选出, 大小为所有分片之和
+         */
+        private Map<String, Long> heaviest = new LinkedHashMap<>();
+
+        /**
+         * 排序 zset 大小, 字段没有排序 zset 时为 null
+         */
+        private Long sortSize;
+
+        /**
+         * 估算的 posting 和排序 zset 内存占用(字节)
+         */
+        private long memory;
+    }
+}
@@ -0,0 +1,526 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+
+import static app.pooi.redissearch.search.SearchCore.Util.genQueryIdxName;
+
+/**
+ * 索引规模统计, 用于发现停用词一类的超大 posting 和规划分片
+ *
+ * 统计时按分片 SCAN 索引当前版本的 key: 每个字段 (包括前缀索引和评分 posting 的伪字段) 的 posting 数量和大小分布、
+ * 排序 zset 大小、反向索引数量 (文档数) 以及存活的查询临时 key 数量. 所有字段的 posting 在分片前缀上一次 SCAN, 按字段的
+ * posting 前缀归类; 每批 key 一个 pipeline 读取 SCARD / ZCARD, 每个字段和每类 key 的前 sample 个同时通过脚本读取
+ * MEMORY USAGE, 按平均值估算内存占用. 统计会遍历索引的所有 key, 耗时与 key 数成正比.
+ *
+ * 最近一次统计结果同时作为 micrometer gauge 暴露, 通过 /actuator/metrics 查看:
+ * <ul>
+ * <li>redis.search.index.documents: 文档数</li>
+ * <li>redis.search.index.temp.keys: 查询临时 key 数</li>
+ * <li>redis.search.index.memory: 估算的内存占用(字节)</li>
+ * <li>redis.search.index.terms: 字段的词数, 标签 field</li>
+ * <li>redis.search.index.posting.max: 字段最大的 posting 大小, 标签 field</li>
+ * <li>redis.search.index.sort.size: 字段排序 zset 大小, 标签 field</li>
+ * </ul>
+ * 配置 redis.search.stats.interval 后定期统计所有索引, 否则只在请求时统计
+ */
+@Slf4j
+@RestController
+@Service
+public class IndexStats {
+
+    /**
+     * posting 大小分布的上界, 最后一档为 +Inf
+     */
+    private static final long[] BOUNDS = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L};
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final SearchCore searchCore;
+    private final IndexAliases indexAliases;
+    private final KeyLayouts keyLayouts;
+    private final IndexShards indexShards;
+    private final IndexMetaRegistry indexMetaRegistry;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 索引 -> 最近一次统计结果
+     */
+    private final Map<String, IndexStatistics> latest = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    public IndexStats(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            SearchCore searchCore, IndexAliases indexAliases, KeyLayouts keyLayouts, IndexShards indexShards,
+            IndexMetaRegistry indexMetaRegistry, MeterRegistry meterRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.searchCore = searchCore;
+        this.indexAliases = indexAliases;
+        this.keyLayouts = keyLayouts;
+        this.indexShards = indexShards;
+        this.indexMetaRegistry = indexMetaRegistry;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        final long interval = this.redisSearchConfiguration.getStats().getInterval();
+        if (interval <= 0) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("rs-stats-%d").setDaemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 统计所有索引, 单个索引失败时记录日志后继续
+     */
+    private void refresh() {
+        for (String index : this.indexMetaRegistry.indexes("*")) {
+            try {
+                this.stats(index, this.redisSearchConfiguration.getStats().getTop(),
+                        this.redisSearchConfiguration.getStats().getSample());
+            } catch (RuntimeException e) {
+                log.warn("collect stats of index {} failed", index, e);
+            }
+        }
+    }
+
+    /**
+     * @param top    每个字段列出的最大 posting 数, 为空时使用 redis.search.stats.top
+     * @param sample 每类 key 每个分片读取 MEMORY USAGE 的 key 数, 为空时使用 redis.search.stats.sample
+     */
+    @GetMapping("/index/{index}/stats")
+    public IndexStatistics stats(@PathVariable("index") String index,
+            @RequestParam(value = "top", required = false) Integer top,
+            @RequestParam(value = "sample", required = false) Integer sample) {
+        return this.stats(index, top == null ? this.redisSearchConfiguration.getStats().getTop() : top,
+                sample == null ? this.redisSearchConfiguration.getStats().getSample() : sample);
+    }
+
+    /**
+     * 统计索引当前版本, 统计期间的写入可能只有一部分计入
+     *
+     * @throws IllegalStateException 索引不存在
+     */
+    public IndexStatistics stats(String index, int top, int sample) {
+        final long start = System.nanoTime();
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final String version = this.indexAliases.read(index);
+        final Map<String, FieldMeta> meta = this.searchCore.fieldMeta(version);
+        if (meta.isEmpty()) {
+            throw new IllegalStateException("index " + index + " does not exist");
+        }
+        final String layout = this.keyLayouts.state(version);
+        final List<String> shards = this.indexShards.shards(version);
+        final IndexKeys keys = KeyLayouts.COMPACT.equals(layout)
+                ? this.keyLayouts.compact(version, IndexKeys.fields(meta)) : this.keyLayouts.verbose(version);
+
+        this.redisTemplate.execute((RedisCallback<String>) connection -> connection
+                .scriptLoad(SearchScripts.MEMORY.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+
+        final IndexStatistics statistics = new IndexStatistics();
+        statistics.setIndex(index);
+        statistics.setVersion(version);
+        statistics.setLayout(layout);
+        statistics.setShards(shards.size());
+
+        final Sample documents = new Sample();
+        final Sample tempKeys = new Sample();
+        final Map<String, Field> fields = new LinkedHashMap<>();
+        this.fields(meta).forEach((field, sorted) -> fields.put(field,
+                new Field(sorted, field.endsWith(IndexKeys.SCORED), top)));
+        for (String shard : shards) {
+            final Map<String, Field> postings = new HashMap<>();
+            fields.forEach((field, stats) -> postings.put(keys.postingPrefix(shard, field), stats));
+            this.postings(keys.shardPrefix(shard), genQueryIdxName(prefix, shard, ""), postings, sample);
+            fields.forEach((field, stats) -> {
+                stats.endShard();
+                if (stats.sorted) {
+                    this.sort(keys.sort(shard, field), stats);
+                }
+            });
+            this.scan(keys.document(shard, "*"), sample, documents);
+            this.scan(genQueryIdxName(prefix, shard, "") + "*", 0, tempKeys);
+        }
+        if (shards.size() > 1) {
+            fields.forEach((field, stats) -> this.heaviest(keys, shards, field, stats));
+        }
+
+        long memory = documents.estimate();
+        long sampled = documents.sampled;
+        for (Map.Entry<String, Field> entry : fields.entrySet()) {
+            final IndexStatistics.FieldStatistics field = entry.getValue().statistics();
+            statistics.getFields().put(entry.getKey(), field);
+            memory += field.getMemory();
+            sampled += entry.getValue().postings.sampled + entry.getValue().sorts;
+        }
+        statistics.setDocuments(documents.keys);
+        statistics.setTempKeys(tempKeys.keys);
+        statistics.setMemory(memory);
+        statistics.setSampled(sampled);
+        statistics.setElapsed(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        this.latest.put(index, statistics);
+        if (this.redisSearchConfiguration.getMetrics().isEnabled()) {
+            this.register(index, statistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * 统计的字段 -> 是否有排序 zset: 元信息中的字段, 前缀索引的伪字段 (排序 zset 位置为词表),
+     * 评分 posting 的伪字段 (排序 zset 位置为文档长度)
+     */
+    private Map<String, Boolean> fields(Map<String, FieldMeta> meta) {
+        final Map<String, Boolean> fields = new LinkedHashMap<>();
+        meta.forEach((field, fieldMeta) -> {
+            fields.put(field, "true".equals(fieldMeta.getSort()));
+            if ("true".equals(fieldMeta.getPrefix())) {
+                fields.put(IndexKeys.termField(field), true);
+            }
+            if ("true".equals(fieldMeta.getScored())) {
+                fields.put(IndexKeys.scoredField(field), true);
+            }
+        });
+        return fields;
+    }
+
+    /**
+     * 在分片前缀上 SCAN 所有字段的 posting, 按 posting 前缀归类到字段; 每批一个 pipeline 读取大小,
+     * 每个字段的前 sample 个 posting 同时读取 MEMORY USAGE. 排序 zset、评分统计等不在任何 posting 前缀下的 key 被跳过
+     *
+     * @param shardPrefix 分片前缀, 见 {@link IndexKeys#shardPrefix}
+     * @param temp        查询临时 key 的前缀, 默认布局中与 posting 共用分片前缀
+     * @param postings    posting 前缀 -> 字段统计
+     */
+    private void postings(String shardPrefix, String temp, Map<String, Field> postings, int sample) {
+        final Map<Field, Integer> remaining = new HashMap<>();
+        postings.values().forEach(field -> remaining.put(field, sample));
+        this.scan(shardPrefix + "*", batch -> {
+            final List<byte[]> raws = new ArrayList<>();
+            final List<String> terms = new ArrayList<>();
+            final List<Field> owners = new ArrayList<>();
+            final List<byte[]> sampled = new ArrayList<>();
+            final List<Field> sampledOwners = new ArrayList<>();
+            for (byte[] raw : batch) {
+                final String key = new String(raw, StandardCharsets.UTF_8);
+                final int end = key.startsWith(temp) ? -1 : key.indexOf(':', shardPrefix.length());
+                final Field field = end < 0 ? null : postings.get(key.substring(0, end + 1));
+                if (field == null) {
+                    continue;
+                }
+                field.postings.keys++;
+                raws.add(raw);
+                terms.add(key.substring(end + 1));
+                owners.add(field);
+                if (remaining.merge(field, -1, Integer::sum) >= 0) {
+                    sampled.add(raw);
+                    sampledOwners.add(field);
+                }
+            }
+            if (raws.isEmpty()) {
+                return;
+            }
+
+            final List<Object> values = this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < raws.size(); i++) {
+                    if (owners.get(i).scored) {
+                        connection.zCard(raws.get(i));
+                    } else {
+                        connection.sCard(raws.get(i));
+                    }
+                }
+                sampled.forEach(key -> memory(connection, key));
+                return null;
+            }, null);
+            for (int i = 0; i < raws.size(); i++) {
+                owners.get(i).add(terms.get(i), number(values.get(i)));
+            }
+            for (int i = 0; i < sampled.size(); i++) {
+                sampledOwners.get(i).postings.sample(number(values.get(raws.size() + i)));
+            }
+        });
+    }
+
+    /**
+     * SCAN 匹配的 key 计数, 前 sample 个 key 在 pipeline 中读取 MEMORY USAGE
+     */
+    private void scan(String pattern, int sample, Sample counter) {
+        final int[] remaining = {sample};
+        this.scan(pattern, batch -> {
+            counter.keys += batch.size();
+            final List<byte[]> sampled = batch.subList(0, Math.min(remaining[0], batch.size()));
+            remaining[0] -= sampled.size();
+            if (sampled.isEmpty()) {
+                return;
+            }
+            final List<Object> values = this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                sampled.forEach(key -> memory(connection, key));
+                return null;
+            }, null);
+            values.forEach(value -> counter.sample(number(value)));
+        });
+    }
+
+    /**
+     * SCAN 匹配的 key, 按 redis.search.stats.batch-size 分批处理
+     */
+    private void scan(String pattern, Consumer<List<byte[]>> consumer) {
+        final int batchSize = Math.max(1, this.redisSearchConfiguration.getStats().getBatchSize());
+        try (Cursor<byte[]> cursor = this.redisTemplate.executeWithStickyConnection(
+                connection -> connection.scan(ScanOptions.scanOptions().match(pattern).count(batchSize).build()))) {
+            final Iterator<List<byte[]>> batches = Iterators.partition(cursor, batchSize);
+            while (batches.hasNext()) {
+                consumer.accept(batches.next());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("scan " + pattern + " failed", e);
+        }
+    }
+
+    /**
+     * 分片时各分片最大的词在其他分片中也可能有 posting, 一个 pipeline 读取这些词在所有分片上的大小之和
+     */
+    private void heaviest(IndexKeys keys, List<String> shards, String field, Field stats) {
+        if (stats.candidates.isEmpty()) {
+            return;
+        }
+        final List<String> terms = new ArrayList<>(stats.candidates.keySet());
+        final boolean scored = field.endsWith(IndexKeys.SCORED);
+        final List<Object> sizes = this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String term : terms) {
+                for (String shard : shards) {
+                    final byte[] key = keys.posting(shard, field, term).getBytes(StandardCharsets.UTF_8);
+                    if (scored) {
+                        connection.zCard(key);
+                    } else {
+                        connection.sCard(key);
+                    }
+                }
+            }
+            return null;
+        }, null);
+        for (int i = 0; i < terms.size(); i++) {
+            long total = 0L;
+            for (int j = 0; j < shards.size(); j++) {
+                total += number(sizes.get(i * shards.size() + j));
+            }
+            stats.candidates.put(terms.get(i), total);
+        }
+    }
+
+    /**
+     * 一个 pipeline 读取排序 zset 的大小和 MEMORY USAGE
+     */
+    private void sort(String key, Field field) {
+        final byte[] raw = key.getBytes(StandardCharsets.UTF_8);
+        final List<Object> values = this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zCard(raw);
+            memory(connection, raw);
+            return null;
+        }, null);
+        field.sortSize += number(values.get(0));
+        field.sortMemory += number(values.get(1));
+        field.sorts++;
+    }
+
+    /**
+     * 在 pipeline 中读取 MEMORY USAGE, 调用前脚本已加载
+     */
+    private static void memory(RedisConnection connection, byte[] key) {
+        connection.evalSha(SearchScripts.MEMORY.getSha1(), ReturnType.INTEGER, 1, key);
+    }
+
+    /**
+     * pipeline 中整数结果的值, key 已不存在时 MEMORY USAGE 为 null
+     */
+    private static long number(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof byte[]) {
+            return Long.parseLong(new String((byte[]) value, StandardCharsets.UTF_8));
+        }
+        return 0L;
+    }
+
+    /**
+     * 注册最近一次统计结果的 gauge, 已注册时 micrometer 返回已有的 gauge
+     */
+    private void register(String index, IndexStatistics statistics) {
+        this.gauge("redis.search.index.documents", index, null, IndexStatistics::getDocuments);
+        this.gauge("redis.search.index.temp.keys", index, null, IndexStatistics::getTempKeys);
+        this.gauge("redis.search.index.memory", index, null, IndexStatistics::getMemory);
+        statistics.getFields().forEach((field, fieldStatistics) -> {
+            this.gauge("redis.search.index.terms", index, field, s -> s.getFields().get(field).getTerms());
+            this.gauge("redis.search.index.posting.max", index, field,
+                    s -> s.getFields().get(field).getMaxPosting());
+            if (fieldStatistics.getSortSize() != null) {
+                this.gauge("redis.search.index.sort.size", index, field,
+                        s -> s.getFields().get(field).getSortSize());
+            }
+        });
+    }
+
+    private void gauge(String name, String index, String field, ToDoubleFunction<IndexStatistics> value) {
+        final Gauge.Builder<IndexStats> builder = Gauge.builder(name, this, stats -> {
+            final IndexStatistics statistics = stats.latest.get(index);
+            return statistics == null || (field != null && !statistics.getFields().containsKey(field)) ? Double.NaN
+                    : value.applyAsDouble(statistics);
+        }).tag("index", index);
+        if (field != null) {
+            builder.tag("field", field);
+        }
+        builder.register(this.meterRegistry);
+    }
+
+    /**
+     * 一类 key 的数量和 MEMORY USAGE 抽样
+     */
+    private static class Sample {
+
+        private long keys;
+
+        private long sampled;
+
+        private long sampledBytes;
+
+        void sample(long bytes) {
+            this.sampled++;
+            this.sampledBytes += bytes;
+        }
+
+        /**
+         * 抽样平均值乘以 key 数
+         */
+        long estimate() {
+            return this.sampled == 0 ? 0L : Math.round((double) this.sampledBytes / this.sampled * this.keys);
+        }
+    }
+
+    /**
+     * 一个字段在所有分片上的统计
+     */
+    private static class Field {
+
+        private final boolean sorted;
+
+        /**
+         * posting 为 zset
+         */
+        private final boolean scored;
+
+        private final int top;
+
+        private final Sample postings = new Sample();
+
+        private final long[] histogram = new long[BOUNDS.length + 1];
+
+        /**
+         * 当前分片最大的 posting, 堆顶为其中最小的
+         */
+        private final PriorityQueue<Map.Entry<String, Long>> heaviest =
+                new PriorityQueue<>(Map.Entry.comparingByValue());
+
+        /**
+         * 各分片最大的词 -> 大小
+         */
+        private final Map<String, Long> candidates = new HashMap<>();
+
+        private long total;
+
+        private long max;
+
+        private long sortSize;
+
+        private long sortMemory;
+
+        private int sorts;
+
+        Field(boolean sorted, boolean scored, int top) {
+            this.sorted = sorted;
+            this.scored = scored;
+            this.top = Math.max(0, top);
+        }
+
+        void add(String term, long size) {
+            this.total += size;
+            this.max = Math.max(this.max, size);
+            int bucket = 0;
+            while (bucket < BOUNDS.length && size > BOUNDS[bucket]) {
+                bucket++;
+            }
+            this.histogram[bucket]++;
+            if (this.top > 0 && (this.heaviest.size() < this.top || size > this.heaviest.peek().getValue())) {
+                this.heaviest.add(new AbstractMap.SimpleImmutableEntry<>(term, size));
+                if (this.heaviest.size() > this.top) {
+                    this.heaviest.poll();
+                }
+            }
+        }
+
+        /**
+         * 一个分片的 posting 统计完成, 当前分片最大的词加入候选
+         */
+        void endShard() {
+            this.heaviest.forEach(entry -> this.candidates.merge(entry.getKey(), entry.getValue(), Long::sum));
+            this.heaviest.clear();
+        }
+
+        IndexStatistics.FieldStatistics statistics() {
+            final IndexStatistics.FieldStatistics statistics = new IndexStatistics.FieldStatistics();
+            statistics.setTerms(this.postings.keys);
+            statistics.setPostings(this.total);
+            statistics.setMaxPosting(this.max);
+            for (int i = 0; i < this.histogram.length; i++) {
+                statistics.getHistogram().put(i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf",
+                        this.histogram[i]);
+            }
+            this.candidates.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed()
+                            .thenComparing(Map.Entry.comparingByKey()))
+                    .limit(this.top)
+                    .forEach(entry -> statistics.getHeaviest().put(entry.getKey(), entry.getValue()));
+            statistics.setSortSize(this.sorted ? this.sortSize : null);
+            statistics.setMemory(this.postings.estimate() + this.sortMemory);
+            return statistics;
+        }
+    }
+}
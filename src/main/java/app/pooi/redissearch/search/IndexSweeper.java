@@ -0,0 +1,182 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static app.pooi.redissearch.search.SearchCore.Util.genQueryIdxName;
+
+/**
+ * 索引清理
+ *
+ * 删除文档时 {@link SearchScripts#DELETE} 只从 posting 中移除该文档, redis 会删除移除最后一个成员后的空集合, 不会留下空 posting.
+ * 定期清理的是另外两类残留:
+ * <ul>
+ * <li>前缀索引词表只增不减, posting 已不存在的词通过 {@link SearchScripts#SWEEP} 分批移除,
+ * 同时按 posting 大小校正词的文档数</li>
+ * <li>pipeline 方式查询时临时 key 的写入和 EXPIRE 不是原子的, 中途失败时临时 key 没有过期时间.
+ * 为其设置 redis.search.query.ttl 的过期时间而不是直接删除, 不会删除正在写入的查询结果</li>
+ * </ul>
+ * 配置 redis.search.delete.sweep-interval 后定期清理所有索引, 索引重建中时同时清理当前版本和重建版本
+ */
+@Slf4j
+@RestController
+@Service
+public class IndexSweeper {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final SearchCore searchCore;
+    private final IndexAliases indexAliases;
+    private final IndexShards indexShards;
+    private final IndexMetaRegistry indexMetaRegistry;
+
+    private ScheduledExecutorService scheduler;
+
+    public IndexSweeper(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            SearchCore searchCore, IndexAliases indexAliases, IndexShards indexShards,
+            IndexMetaRegistry indexMetaRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.searchCore = searchCore;
+        this.indexAliases = indexAliases;
+        this.indexShards = indexShards;
+        this.indexMetaRegistry = indexMetaRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        final long interval = this.redisSearchConfiguration.getDelete().getSweepInterval();
+        if (interval <= 0) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("rs-sweep-%d").setDaemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(this::sweepAll, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 清理所有索引, 单个索引失败时记录日志后继续
+     */
+    private void sweepAll() {
+        for (String index : this.indexMetaRegistry.indexes("*")) {
+            try {
+                final Map<String, Long> swept = this.sweep(index);
+                if (swept.values().stream().anyMatch(count -> count > 0)) {
+                    log.info("index {} swept, {}", index, swept);
+                }
+            } catch (RuntimeException e) {
+                log.warn("sweep index {} failed", index, e);
+            }
+        }
+    }
+
+    /**
+     * @return terms 移除的词数, tempKeys 设置了过期时间的临时 key 数
+     */
+    @PostMapping("/index/{index}/sweep")
+    public Map<String, Long> sweep(@PathVariable("index") String index) {
+        long terms = 0L;
+        long tempKeys = 0L;
+        for (String version : this.indexAliases.writes(index)) {
+            final Map<String, FieldMeta> meta = this.searchCore.fieldMeta(version);
+            final List<IndexKeys> layouts = this.searchCore.writeLayouts(version, meta.keySet());
+            for (String shard : this.indexShards.shards(version)) {
+                for (IndexKeys keys : layouts) {
+                    for (Map.Entry<String, FieldMeta> field : meta.entrySet()) {
+                        if ("true".equals(field.getValue().getPrefix())) {
+                            terms += this.sweepTerms(keys, shard, field.getKey());
+                        }
+                    }
+                }
+                tempKeys += this.sweepTempKeys(shard);
+            }
+        }
+        final Map<String, Long> swept = new LinkedHashMap<>();
+        swept.put("terms", terms);
+        swept.put("tempKeys", tempKeys);
+        return swept;
+    }
+
+    /**
+     * 按字典序分批移除字段词表中 posting 已不存在的词, 校正其余词的文档数
+     */
+    private long sweepTerms(IndexKeys keys, String shard, String field) {
+        final List<String> scriptKeys = Arrays.asList(keys.terms(shard, field), keys.termCounts(shard, field));
+        final String postingPrefix = keys.termPosting(shard, field, "");
+        final String batch = String.valueOf(Math.max(1, this.redisSearchConfiguration.getDelete().getSweepBatch()));
+        long removed = 0L;
+        String cursor = "";
+        do {
+            final List<?> result = this.redisTemplate.execute(SearchScripts.SWEEP, scriptKeys, postingPrefix,
+                    cursor, batch);
+            if (result == null || result.size() < 2) {
+                break;
+            }
+            removed += ((Number) result.get(0)).longValue();
+            cursor = String.valueOf(result.get(1));
+        } while (!cursor.isEmpty());
+        return removed;
+    }
+
+    /**
+     * SCAN 分片的查询临时 key, 每批一个 pipeline 读取剩余存活时间, 没有过期时间的再一个 pipeline 设置过期时间
+     */
+    private long sweepTempKeys(String shard) {
+        final String pattern = genQueryIdxName(this.redisSearchConfiguration.getPrefix(), shard, "*");
+        final int batchSize = Math.max(1, this.redisSearchConfiguration.getDelete().getSweepBatch());
+        final long ttl = this.redisSearchConfiguration.getQuery().getTtl();
+        long expired = 0L;
+        try (Cursor<byte[]> cursor = this.redisTemplate.executeWithStickyConnection(
+                connection -> connection.scan(ScanOptions.scanOptions().match(pattern).count(batchSize).build()))) {
+            final Iterator<List<byte[]>> batches = Iterators.partition(cursor, batchSize);
+            while (batches.hasNext()) {
+                final List<byte[]> keys = batches.next();
+                final List<Object> ttls = this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    keys.forEach(connection::ttl);
+                    return null;
+                }, null);
+                final List<byte[]> persistent = new ArrayList<>();
+                for (int i = 0; i < keys.size(); i++) {
+                    if (Long.valueOf(-1L).equals(ttls.get(i))) {
+                        persistent.add(keys.get(i));
+                    }
+                }
+                if (!persistent.isEmpty()) {
+                    this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        persistent.forEach(key -> connection.expire(key, ttl));
+                        return null;
+                    }, null);
+                    expired += persistent.size();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("scan " + pattern + " failed", e);
+        }
+        return expired;
+    }
+}
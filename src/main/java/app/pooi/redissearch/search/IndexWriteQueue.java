@@ -0,0 +1,421 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * 异步索引写入队列
+ *
+ * 有界队列, 同一文档未写入的修改会合并; 由一组线程批量取出, 每批放入一个 pipeline 写入.
+ * 文档正在写入时, 其后续修改留在队列中, 写入完成后才能被取出, 同一文档的修改按进入队列的顺序生效.
+ * 队列满且策略为 DROP_OLDEST 时只丢弃不含删除的写入: 先丢弃最早的写入, 队列中都含删除时丢弃新的写入,
+ * 新的修改含删除时等待队列有空位. 关闭时停止接收新修改并等待队列写完
+ *
+ * 队列长度和等待时间作为 micrometer gauge 暴露: redis.search.async.queue.depth, redis.search.async.queue.lag (毫秒);
+ * 每批写入的耗时计入 redis.search.index, 标签 operation 为 async
+ */
+@Slf4j
+@RestController
+@Service
+public class IndexWriteQueue {
+
+    private final StringRedisTemplate redisTemplate;
+    private final SearchCore searchCore;
+    private final IndexAliases indexAliases;
+    private final SearchMetrics searchMetrics;
+    private final RedisSearchConfiguration.Async conf;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * index:documentId -> 待写入的修改, 按首次进入队列的顺序
+     */
+    private final LinkedHashMap<String, Mutation> pending = new LinkedHashMap<>();
+
+    /**
+     * 正在写入的 index:documentId
+     */
+    private final Set<String> writing = new HashSet<>();
+
+    private final ExecutorService workers;
+
+    private volatile boolean running = true;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile long lastLagMillis;
+
+    public IndexWriteQueue(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            SearchCore searchCore, IndexAliases indexAliases, SearchMetrics searchMetrics,
+            MeterRegistry meterRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.searchCore = searchCore;
+        this.indexAliases = indexAliases;
+        this.searchMetrics = searchMetrics;
+        this.conf = redisSearchConfiguration.getAsync();
+        if (conf.getCapacity() <= 0 || conf.getWorkers() <= 0 || conf.getBatchSize() <= 0) {
+            throw new IllegalArgumentException(
+                    "redis.search.async capacity, workers and batch-size must be positive");
+        }
+        Gauge.builder("redis.search.async.queue.depth", this, IndexWriteQueue::depth).register(meterRegistry);
+        Gauge.builder("redis.search.async.queue.lag", this, IndexWriteQueue::lagMillis).baseUnit("milliseconds")
+                .register(meterRegistry);
+        this.workers = Executors.newFixedThreadPool(conf.getWorkers(),
+                new ThreadFactoryBuilder().setNameFormat("rs-async-index-%d").setDaemon(true).build());
+        for (int i = 0; i < conf.getWorkers(); i++) {
+            this.workers.execute(this::drain);
+        }
+    }
+
+    /**
+     * 异步为文档创建索引
+     *
+     * @param fields 字段名称 -> 字段值
+     * @param scores 排序字段名称 -> 排序值
+     */
+    public void index(String index, String documentId, Map<String, String> fields, Map<String, Double> scores) {
+        this.offer(new Mutation(index, documentId, false, fields, scores, System.currentTimeMillis()));
+    }
+
+    /**
+     * 异步删除文档索引
+     */
+    public void delete(String index, String documentId) {
+        this.offer(new Mutation(index, documentId, true, null, null, System.currentTimeMillis()));
+    }
+
+    private void offer(Mutation mutation) {
+        final String key = mutation.getIndex() + ":" + mutation.getDocumentId();
+        lock.lock();
+        try {
+            while (true) {
+                if (!running) {
+                    rejected.increment();
+                    throw new RejectedExecutionException("index write queue is shutting down");
+                }
+                final Mutation previous = pending.get(key);
+                if (previous != null) {
+                    pending.put(key, previous.merge(mutation));
+                    coalesced.increment();
+                    return;
+                }
+                if (pending.size() < conf.getCapacity()) {
+                    break;
+                }
+                switch (conf.getBackpressure()) {
+                case DROP_OLDEST:
+                    if (this.dropOldestWrite()) {
+                        break;
+                    }
+                    if (!mutation.isDelete()) {
+                        log.warn("index write queue full of deletes, dropping {}", mutation);
+                        dropped.increment();
+                        return;
+                    }
+                    notFull.awaitUninterruptibly();
+                    break;
+                case FAIL:
+                    rejected.increment();
+                    throw new RejectedExecutionException("index write queue is full");
+                default:
+                    notFull.awaitUninterruptibly();
+                }
+            }
+            pending.put(key, mutation);
+            enqueued.increment();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃队列中最早的不含删除的写入, 调用时持有锁
+     *
+     * @return 队列中都含删除时为 false
+     */
+    private boolean dropOldestWrite() {
+        final Iterator<Mutation> it = pending.values().iterator();
+        while (it.hasNext()) {
+            final Mutation eldest = it.next();
+            if (!eldest.isDelete()) {
+                log.warn("index write queue full, dropping {}", eldest);
+                it.remove();
+                dropped.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 取出一批不在写入中的文档的修改, 并标记为写入中
+     *
+     * @return 关闭且队列已空时为空
+     */
+    private List<Mutation> take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (pending.isEmpty() && !running) {
+                    return Collections.emptyList();
+                }
+                final List<Mutation> batch = new ArrayList<>(Math.min(conf.getBatchSize(), pending.size()));
+                final Iterator<Map.Entry<String, Mutation>> it = pending.entrySet().iterator();
+                while (it.hasNext() && batch.size() < conf.getBatchSize()) {
+                    final Map.Entry<String, Mutation> entry = it.next();
+                    if (writing.add(entry.getKey())) {
+                        batch.add(entry.getValue());
+                        it.remove();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    notFull.signalAll();
+                    return batch;
+                }
+                // 队列为空, 或剩下的文档都在其他线程写入中
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写入完成, 这些文档的后续修改可以被取出
+     */
+    private void release(List<Mutation> batch) {
+        lock.lock();
+        try {
+            batch.forEach(m -> writing.remove(m.getIndex() + ":" + m.getDocumentId()));
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        try {
+            List<Mutation> batch;
+            while (!(batch = this.take()).isEmpty()) {
+                try {
+                    this.apply(batch);
+                } finally {
+                    this.release(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 写入一批修改, 耗时计入写入指标, 批次涉及多个索引时 index 标签为 *
+     */
+    private void apply(List<Mutation> batch) {
+        final Set<String> indexes = batch.stream().map(Mutation::getIndex).collect(Collectors.toSet());
+        try {
+            this.searchMetrics.index("async", indexes.size() == 1 ? indexes.iterator().next() : "*", "*", () -> {
+                this.flush(batch);
+                return null;
+            });
+            applied.add(batch.size());
+        } catch (RuntimeException e) {
+            failed.add(batch.size());
+            log.error("async index of {} documents failed", batch.size(), e);
+        }
+        this.lastLagMillis = System.currentTimeMillis()
+                - batch.stream().mapToLong(Mutation::getEnqueuedAt).min().orElse(System.currentTimeMillis());
+    }
+
+    /**
+     * 先删除再写入; 同一索引的删除批量执行, 写入部分同一批次共用一个 pipeline, 索引重建中时同时写入当前版本和重建版本
+     */
+    private void flush(List<Mutation> batch) {
+        batch.stream().filter(Mutation::isDelete)
+                .collect(Collectors.groupingBy(Mutation::getIndex, LinkedHashMap::new,
+                        Collectors.mapping(Mutation::getDocumentId, Collectors.toList())))
+                .forEach(this.searchCore::deleteDocumentIndexes);
+
+        // 分词和 key 布局在打开 pipeline 前准备好, pipeline 中的读取都会返回 null
+        final List<Mutation> writes = batch.stream().filter(m -> m.getFields() != null)
+                .collect(Collectors.toList());
+        final Map<String, Set<String>> fields = new HashMap<>();
+        writes.forEach(m -> {
+            final Set<String> indexFields = fields.computeIfAbsent(m.getIndex(), i -> new HashSet<>());
+            indexFields.addAll(m.getFields().keySet());
+            indexFields.addAll(m.getScores().keySet());
+        });
+        // 索引 -> 写入的版本, 版本 -> key 布局
+        final Map<String, List<String>> versions = new HashMap<>();
+        final Map<String, List<IndexKeys>> layouts = new HashMap<>();
+        fields.forEach((index, indexFields) -> {
+            versions.put(index, this.indexAliases.writes(index));
+            versions.get(index).forEach(version -> layouts.put(version,
+                    searchCore.writeLayouts(version, indexFields)));
+        });
+        // 修改 -> 版本 -> 字段 -> 分词/前缀索引的词, 各版本的分词器和元信息可能不同
+        final Map<Mutation, Map<String, Map<String, List<String>>>> tokens = new IdentityHashMap<>();
+        final Map<Mutation, Map<String, Map<String, List<String>>>> terms = new IdentityHashMap<>();
+        writes.forEach(m -> {
+            final Map<String, Map<String, List<String>>> versionTokens = new HashMap<>();
+            final Map<String, Map<String, List<String>>> versionTerms = new HashMap<>();
+            versions.get(m.getIndex()).forEach(version -> {
+                final Map<String, List<String>> fieldTokens = new HashMap<>();
+                final Map<String, List<String>> fieldTerms = new HashMap<>();
+                m.getFields().forEach((field, value) -> {
+                    fieldTokens.put(field, searchCore.tokenizer(version, field).tokenize(value));
+                    fieldTerms.put(field, searchCore.prefixTerms(version, field, value));
+                });
+                versionTokens.put(version, fieldTokens);
+                versionTerms.put(version, fieldTerms);
+            });
+            tokens.put(m, versionTokens);
+            terms.put(m, versionTerms);
+        });
+
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                final StringRedisTemplate template = (StringRedisTemplate) operations;
+                writes.forEach(m -> tokens.get(m).forEach((version, fieldTokens) -> {
+                    final List<IndexKeys> versionLayouts = layouts.get(version);
+                    fieldTokens.forEach((field, words) -> searchCore.writeDocument(template, versionLayouts,
+                            field, m.getDocumentId(), words));
+                    terms.get(m).get(version).forEach((field, words) -> searchCore.writeTerms(template,
+                            versionLayouts, field, m.getDocumentId(), words));
+                    m.getScores().forEach((field, score) -> searchCore.writeSortField(template, versionLayouts,
+                            field, m.getDocumentId(), score));
+                }));
+                layouts.keySet().forEach(version -> searchCore.bumpGeneration(template, version));
+                return null;
+            }
+        });
+        // 评分 posting 通过脚本写入, 不能放在 pipeline 中
+        writes.forEach(m -> versions.get(m.getIndex()).forEach(version -> m.getFields().forEach((field, value) -> {
+            if (searchCore.isScored(version, field)) {
+                searchCore.writeScores(layouts.get(version), field, m.getDocumentId(),
+                        searchCore.frequencies(version, field, value));
+            }
+        })));
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        this.workers.shutdown();
+        if (!this.workers.awaitTermination(conf.getShutdownTimeout(), TimeUnit.SECONDS)) {
+            log.warn("index write queue not drained in {}s, {} documents left", conf.getShutdownTimeout(),
+                    this.depth());
+        }
+    }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 队列中最早一条修改已等待的时间
+     */
+    public long lagMillis() {
+        lock.lock();
+        try {
+            return pending.isEmpty() ? 0L
+                    : System.currentTimeMillis() - pending.values().iterator().next().getEnqueuedAt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GetMapping("/index/queue/stats")
+    public Map<String, Long> stats() {
+        return ImmutableMap.<String, Long>builder()
+                .put("depth", (long) this.depth())
+                .put("lagMillis", this.lagMillis())
+                .put("lastBatchLagMillis", this.lastLagMillis)
+                .put("enqueued", enqueued.sum())
+                .put("coalesced", coalesced.sum())
+                .put("dropped", dropped.sum())
+                .put("rejected", rejected.sum())
+                .put("applied", applied.sum())
+                .put("failed", failed.sum())
+                .build();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Mutation {
+
+        private final String index;
+
+        private final String documentId;
+
+        /**
+         * 写入前是否先删除文档已有索引
+         */
+        private final boolean delete;
+
+        private final Map<String, String> fields;
+
+        private final Map<String, Double> scores;
+
+        private final long enqueuedAt;
+
+        /**
+         * 合并同一文档的后续修改, 删除总是保留在写入之前执行
+         */
+        Mutation merge(Mutation next) {
+            if (next.delete) {
+                return new Mutation(index, documentId, true, null, null, enqueuedAt);
+            }
+            return new Mutation(index, documentId, delete, next.fields, next.scores, enqueuedAt);
+        }
+
+        @Override
+        public String toString() {
+            return (delete ? "delete " : "index ") + index + ":" + documentId;
+        }
+    }
+}
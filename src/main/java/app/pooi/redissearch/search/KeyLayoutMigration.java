@@ -0,0 +1,346 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static app.pooi.redissearch.search.SearchCore.Util.*;
+
+/**
+ * 已有索引从默认 key 布局转换为紧凑布局, 见 {@link IndexKeys}
+ *
+ * 转换在后台线程中执行, 请求立即返回进度:
+ * <ol>
+ * <li>状态改为 migrating, 等待 redis.search.keys.migration-grace 秒使所有节点开始双写</li>
+ * <li>SCAN 每个分片的文档反向索引, 按 migration-batch 分批读取后在 pipeline 中写入紧凑布局</li>
+ * <li>状态改为 compact 并使查询缓存失效, 再等待一个 grace 周期使所有节点切换读取</li>
+ * <li>SCAN 并分批删除默认布局的 posting、排序 zset 和反向索引</li>
+ * </ol>
+ * 只有把状态从默认布局改为 migrating 的节点执行转换, 其他请求失败; 转换中断时状态仍为 migrating,
+ * 确认没有节点在转换后通过 resume 重新复制 (复制是幂等的).
+ * 各节点在元信息缓存过期 (redis.search.meta.expire-after-write) 前可能仍使用旧状态, 未开启元信息订阅时 grace 不应小于该值.
+ * 转换期间删除的文档可能已被复制到紧凑布局, 建议在写入较少时执行
+ */
+@Slf4j
+@RestController
+@Service
+public class KeyLayoutMigration {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final SearchCore searchCore;
+    private final KeyLayouts keyLayouts;
+    private final IndexShards indexShards;
+    private final IndexAliases indexAliases;
+
+    private final ExecutorService jobs = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("rs-migration-%d").setDaemon(true).build());
+
+    /**
+     * 版本名称 -> 本节点最近一次转换
+     */
+    private final Map<String, Job> latest = new ConcurrentHashMap<>();
+
+    public KeyLayoutMigration(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            SearchCore searchCore, KeyLayouts keyLayouts, IndexShards indexShards, IndexAliases indexAliases) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.searchCore = searchCore;
+        this.keyLayouts = keyLayouts;
+        this.indexShards = indexShards;
+        this.indexAliases = indexAliases;
+    }
+
+    /**
+     * 中断进行中的转换, 布局保持 migrating
+     */
+    @PreDestroy
+    public void shutdown() {
+        this.jobs.shutdownNow();
+    }
+
+    /**
+     * 在后台转换索引当前版本的 key 布局, 已是紧凑布局时不做修改
+     *
+     * @param resume 为 true 时继续状态为 migrating 的转换, 调用前需确认没有其他节点仍在转换
+     * @return 转换开始时的进度
+     * @throws IllegalStateException 索引不存在, 或已在转换中
+     */
+    @PostMapping("/index/{index}/layout/compact")
+    public MigrationStatus compact(@PathVariable("index") String index,
+            @RequestParam(value = "resume", defaultValue = "false") boolean resume) {
+        final String version = this.indexAliases.read(index);
+        final Map<String, FieldMeta> meta = this.searchCore.fieldMeta(version);
+        if (meta.isEmpty()) {
+            throw new IllegalStateException("index " + index + " does not exist");
+        }
+        final String state = this.keyLayouts.state(version);
+        if (KeyLayouts.COMPACT.equals(state)) {
+            return new Job(version, MigrationStatus.State.DONE).status();
+        }
+
+        final Job job = new Job(version, MigrationStatus.State.COPYING);
+        final Job running = this.latest.compute(version, (key, previous) -> previous != null
+                && (previous.state == MigrationStatus.State.COPYING || previous.state == MigrationStatus.State.DELETING)
+                        ? previous : job);
+        if (running != job) {
+            throw new IllegalStateException("index " + index + " is already migrating on this node");
+        }
+        if (!(resume && KeyLayouts.MIGRATING.equals(state)) && !this.keyLayouts.begin(version)) {
+            job.fail("already migrating");
+            throw new IllegalStateException("index " + index + " is already migrating, pass resume=true if it was"
+                    + " interrupted");
+        }
+        this.jobs.execute(() -> this.run(job, meta));
+        return job.status();
+    }
+
+    /**
+     * 本节点最近一次转换的进度
+     *
+     * @return 没有转换过时为 null
+     */
+    @GetMapping("/index/{index}/layout/compact")
+    public MigrationStatus status(@PathVariable("index") String index) {
+        final Job job = this.latest.get(this.indexAliases.read(index));
+        return job == null ? null : job.status();
+    }
+
+    private void run(Job job, Map<String, FieldMeta> meta) {
+        try {
+            this.compactVersion(job, meta);
+            job.state = MigrationStatus.State.DONE;
+        } catch (InterruptedException e) {
+            job.fail("interrupted");
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("migrate {} to compact layout failed", job.index, e);
+            job.fail(e.getMessage());
+        }
+    }
+
+    private void compactVersion(Job job, Map<String, FieldMeta> meta) throws InterruptedException {
+        final String index = job.index;
+        final long grace = TimeUnit.SECONDS.toMillis(this.redisSearchConfiguration.getKeys().getMigrationGrace());
+        Thread.sleep(grace);
+
+        final IndexKeys compact = this.keyLayouts.compact(index, IndexKeys.fields(meta));
+        for (String shard : this.indexShards.shards(index)) {
+            this.scan(genDocIdxName(this.redisSearchConfiguration.getPrefix(), shard, "*"),
+                    docKeys -> this.copy(compact, shard, docKeys, job));
+        }
+
+        // 前缀索引的词表和词的文档数不在文档反向索引中, 整个合并到紧凑布局, 文档数在迁移中双写, 取两者中较大的;
+        // 评分统计在迁移中双写, 以默认布局为准覆盖
+        final IndexKeys verbose = this.keyLayouts.verbose(index);
+        meta.forEach((field, fieldMeta) -> {
+            if ("true".equals(fieldMeta.getPrefix())) {
+                this.indexShards.shards(index).forEach(shard -> {
+                    this.redisTemplate.opsForZSet().unionAndStore(verbose.terms(shard, field),
+                            Collections.singleton(compact.terms(shard, field)), compact.terms(shard, field));
+                    this.redisTemplate.opsForZSet().unionAndStore(verbose.termCounts(shard, field),
+                            Collections.singleton(compact.termCounts(shard, field)),
+                            compact.termCounts(shard, field), RedisZSetCommands.Aggregate.MAX);
+                });
+            }
+            if ("true".equals(fieldMeta.getScored())) {
+                this.indexShards.shards(index).forEach(shard -> {
+                    final Map<Object, Object> fieldStats = this.redisTemplate.opsForHash()
+                            .entries(verbose.stats(shard, field));
+                    if (!fieldStats.isEmpty()) {
+                        this.redisTemplate.opsForHash().putAll(compact.stats(shard, field), fieldStats);
+                    }
+                });
+            }
+        });
+        log.info("index {} copied to compact layout, {} documents, {} keys", index, job.documents.get(),
+                job.keys.get());
+
+        this.keyLayouts.update(index, KeyLayouts.COMPACT);
+        this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                searchCore.bumpGeneration((StringRedisTemplate) operations, index);
+                return null;
+            }
+        });
+        job.state = MigrationStatus.State.DELETING;
+        Thread.sleep(grace);
+
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        for (String shard : this.indexShards.shards(index)) {
+            final String temp = genQueryIdxName(prefix, shard, "");
+            this.scan(genSortIdxName(prefix, shard, "*"), keys -> {
+                keys.removeIf(key -> key.startsWith(temp));
+                job.deleted.addAndGet(this.redisTemplate.delete(keys));
+            });
+            this.scan(genDocIdxName(prefix, shard, "*"), keys -> job.deleted.addAndGet(this.redisTemplate.delete(keys)));
+        }
+        log.info("index {} migrated to compact layout, {} verbose keys deleted", index, job.deleted.get());
+    }
+
+    /**
+     * 复制一批文档: 一个 pipeline 读出反向索引和排序值, 一个 pipeline 写入紧凑布局
+     *
+     * 默认布局的反向索引成员为 rs:{prefix}:idx:{shard}:{field}:{value} 或 rs:{prefix}:idx:{shard}:{field};
+     * 评分 posting 的伪字段以 {@link IndexKeys#SCORED} 结尾, 其 posting 与排序 zset 相同地带有分值
+     */
+    private void copy(IndexKeys compact, String shard, List<String> docKeys, Job job) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final int docPrefix = genDocIdxName(prefix, shard, "").length();
+        final int idxPrefix = genSortIdxName(prefix, shard, "").length();
+
+        final List<Object> members = this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                docKeys.forEach(docKey -> ((StringRedisTemplate) operations).opsForSet().members(docKey));
+                return null;
+            }
+        });
+
+        // 排序 zset 和评分 posting 需要读出分值
+        final List<String[]> sorts = new ArrayList<>();
+        for (int i = 0; i < docKeys.size(); i++) {
+            final String documentId = docKeys.get(i).substring(docPrefix);
+            for (Object member : (Set<?>) members.get(i)) {
+                final String key = (String) member;
+                if (isScored(key, idxPrefix)) {
+                    sorts.add(new String[]{key, documentId});
+                }
+            }
+        }
+        final List<Object> scores = this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                sorts.forEach(sort -> ((StringRedisTemplate) operations).opsForZSet().score(sort[0], sort[1]));
+                return null;
+            }
+        });
+        final Map<String, Double> sortScores = new HashMap<>();
+        for (int i = 0; i < sorts.size(); i++) {
+            if (scores.get(i) != null) {
+                sortScores.put(sorts.get(i)[0] + " " + sorts.get(i)[1], (Double) scores.get(i));
+            }
+        }
+
+        this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                final StringRedisTemplate template = (StringRedisTemplate) operations;
+                for (int i = 0; i < docKeys.size(); i++) {
+                    final String documentId = docKeys.get(i).substring(docPrefix);
+                    final List<String> compactMembers = new ArrayList<>();
+                    for (Object member : (Set<?>) members.get(i)) {
+                        final String key = (String) member;
+                        final int colon = key.indexOf(':', idxPrefix);
+                        final String field = colon < 0 ? key.substring(idxPrefix) : key.substring(idxPrefix, colon);
+                        final String compactKey;
+                        if (isScored(key, idxPrefix)) {
+                            final Double score = sortScores.get(key + " " + documentId);
+                            if (score == null) {
+                                continue;
+                            }
+                            compactKey = colon < 0 ? compact.sort(shard, field)
+                                    : compact.posting(shard, field, key.substring(colon + 1));
+                            template.opsForZSet().add(compactKey, documentId, score);
+                        } else {
+                            compactKey = compact.posting(shard, field, key.substring(colon + 1));
+                            template.opsForSet().add(compactKey, documentId);
+                        }
+                        compactMembers.add(compact.member(shard, compactKey));
+                    }
+                    if (!compactMembers.isEmpty()) {
+                        template.opsForSet().add(compact.document(shard, documentId),
+                                compactMembers.toArray(new String[0]));
+                    }
+                    job.keys.addAndGet(compactMembers.size());
+                }
+                return null;
+            }
+        });
+        job.documents.addAndGet(docKeys.size());
+    }
+
+    /**
+     * 反向索引成员是否为带分值的 zset: 排序 zset 或评分 posting
+     *
+     * @param idxPrefix 成员中字段名称的起始位置
+     */
+    private static boolean isScored(String key, int idxPrefix) {
+        final int colon = key.indexOf(':', idxPrefix);
+        return colon < 0 || key.substring(idxPrefix, colon).endsWith(IndexKeys.SCORED);
+    }
+
+    /**
+     * SCAN 匹配的 key, 每 migration-batch 个调用一次
+     */
+    private void scan(String pattern, Consumer<List<String>> batch) {
+        final int batchSize = Math.max(1, this.redisSearchConfiguration.getKeys().getMigrationBatch());
+        this.redisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (Cursor<byte[]> cursor = connection
+                    .scan(ScanOptions.scanOptions().match(pattern).count(batchSize).build())) {
+                Iterators.partition(Iterators.transform(cursor, key -> new String(key, StandardCharsets.UTF_8)),
+                        batchSize).forEachRemaining(keys -> batch.accept(new ArrayList<>(keys)));
+            } catch (IOException e) {
+                throw new IllegalStateException("scan " + pattern + " failed", e);
+            }
+            return null;
+        });
+    }
+
+    private static final class Job {
+
+        private final String index;
+
+        private volatile MigrationStatus.State state;
+
+        private final AtomicLong documents = new AtomicLong();
+
+        private final AtomicLong keys = new AtomicLong();
+
+        private final AtomicLong deleted = new AtomicLong();
+
+        private volatile String message;
+
+        Job(String index, MigrationStatus.State state) {
+            this.index = index;
+            this.state = state;
+        }
+
+        void fail(String message) {
+            this.message = message;
+            this.state = MigrationStatus.State.FAILED;
+        }
+
+        MigrationStatus status() {
+            return new MigrationStatus(this.index, this.state, this.documents.get(), this.keys.get(),
+                    this.deleted.get(), this.message);
+        }
+    }
+}
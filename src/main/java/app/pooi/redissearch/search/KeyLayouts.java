@@ -0,0 +1,252 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static app.pooi.redissearch.search.SearchCore.Util.*;
+
+/**
+ * 索引使用的 key 布局, 见 {@link IndexKeys}
+ *
+ * 布局状态保存在 rs:{prefix}:layout (索引 -> compact / migrating), 没有记录的索引使用默认布局.
+ * 转换中 (migrating) 的索引读取默认布局, 同时写入两种布局. 状态按索引缓存, 变更时通过元信息频道通知其他节点.
+ * 紧凑布局的索引id和字段id由 rs:{prefix}:names 字典分配 (复用 {@link SearchScripts#DOCUMENT_IDS}), 分配后不再变化
+ */
+@Slf4j
+@Component
+public class KeyLayouts implements MessageListener {
+
+    static final String COMPACT = "compact";
+
+    static final String MIGRATING = "migrating";
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final IndexMetaRegistry indexMetaRegistry;
+
+    /**
+     * 索引 -> 布局状态, 默认布局为 ""
+     */
+    private final Cache<String, String> states;
+
+    /**
+     * 字典名称 -> id
+     */
+    private final Map<String, String> ids = new ConcurrentHashMap<>();
+
+    private RedisMessageListenerContainer container;
+
+    public KeyLayouts(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            IndexMetaRegistry indexMetaRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.indexMetaRegistry = indexMetaRegistry;
+        this.states = CacheBuilder.newBuilder()
+                .expireAfterWrite(redisSearchConfiguration.getMeta().getExpireAfterWrite(), TimeUnit.SECONDS)
+                .build();
+    }
+
+    @PostConstruct
+    public void subscribe() {
+        if (!this.redisSearchConfiguration.getMeta().isSubscribe()) {
+            return;
+        }
+        this.container = new RedisMessageListenerContainer();
+        this.container.setConnectionFactory(this.redisTemplate.getConnectionFactory());
+        this.container.addMessageListener(this,
+                new ChannelTopic(genIdxMetaChannelName(this.redisSearchConfiguration.getPrefix())));
+        this.container.afterPropertiesSet();
+        this.container.start();
+    }
+
+    @PreDestroy
+    public void unsubscribe() throws Exception {
+        if (this.container != null) {
+            this.container.destroy();
+        }
+    }
+
+    /**
+     * 查询使用的布局
+     */
+    IndexKeys read(String index) {
+        return this.layout(index, this.state(index), this.cachedFields(index));
+    }
+
+    /**
+     * 本地缓存中已有布局状态和字段id时的查询布局, 获取时不访问 redis
+     *
+     * @return 没有缓存时为 null
+     */
+    IndexKeys readIfPresent(String index) {
+        final String state = this.states.getIfPresent(index);
+        return state == null || !this.isResolved(index, state, this.cachedFields(index)) ? null
+                : this.layout(index, state, Collections.emptyList());
+    }
+
+    /**
+     * 写入使用的布局, 转换中时为默认布局和紧凑布局. 在打开 pipeline 之前调用, 之后生成 key 不再访问 redis
+     *
+     * @param fields 将要写入的字段, 紧凑布局时预先分配字段id
+     */
+    List<IndexKeys> writes(String index, Collection<String> fields) {
+        final String state = this.state(index);
+        switch (state) {
+        case COMPACT:
+            return ImmutableList.of(this.layout(index, state, fields));
+        case MIGRATING:
+            return ImmutableList.of(this.verbose(index), this.layout(index, COMPACT, fields));
+        default:
+            return ImmutableList.of(this.verbose(index));
+        }
+    }
+
+    /**
+     * 本地缓存中已有布局状态和字段id时的写入布局, 获取时不访问 redis
+     *
+     * @return 没有缓存时为 null
+     */
+    List<IndexKeys> writesIfPresent(String index, Collection<String> fields) {
+        final String state = this.states.getIfPresent(index);
+        return state == null || !this.isResolved(index, state, fields) ? null : this.writes(index, fields);
+    }
+
+    private boolean isResolved(String index, String state, Collection<String> fields) {
+        return state.isEmpty() || (this.ids.containsKey("i:" + index)
+                && fields.stream().allMatch(field -> this.ids.containsKey("f:" + field)));
+    }
+
+    private IndexKeys layout(String index, String state, Collection<String> fields) {
+        if (!COMPACT.equals(state)) {
+            return this.verbose(index);
+        }
+        final List<String> names = new ArrayList<>();
+        names.add("i:" + index);
+        fields.forEach(field -> names.add("f:" + field));
+        this.resolve(names);
+        return IndexKeys.compact(this.redisSearchConfiguration.getPrefix(), index, this.ids.get("i:" + index),
+                field -> this.id("f:" + field));
+    }
+
+    /**
+     * 本地已缓存元信息的字段及前缀索引的伪字段, 查询时预先分配字段id
+     */
+    private Collection<String> cachedFields(String index) {
+        final Map<String, FieldMeta> meta = this.indexMetaRegistry.getIfPresent(index);
+        return meta == null ? Collections.emptyList() : IndexKeys.fields(meta);
+    }
+
+    String state(String index) {
+        try {
+            return this.states.get(index, () -> {
+                final Object state = this.redisTemplate.opsForHash()
+                        .get(genLayoutName(this.redisSearchConfiguration.getPrefix()), index);
+                return state == null ? "" : (String) state;
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("cannot load key layout of " + index, e.getCause());
+        }
+    }
+
+    IndexKeys verbose(String index) {
+        return IndexKeys.verbose(this.redisSearchConfiguration.getPrefix(), index);
+    }
+
+    /**
+     * 紧凑布局, 用于转换
+     */
+    IndexKeys compact(String index, Collection<String> fields) {
+        return this.layout(index, COMPACT, fields);
+    }
+
+    /**
+     * 新建索引时按配置 redis.search.keys.compact 记录布局, 已有记录时不变
+     */
+    void create(String index) {
+        if (this.redisSearchConfiguration.getKeys().isCompact()
+                && Boolean.TRUE.equals(this.redisTemplate.opsForHash()
+                        .putIfAbsent(genLayoutName(this.redisSearchConfiguration.getPrefix()), index, COMPACT))) {
+            this.states.invalidate(index);
+        }
+    }
+
+    /**
+     * 默认布局的索引开始转换: 没有布局记录时记为 migrating 并通知所有节点, 多个节点同时调用时只有一个成功
+     *
+     * @return 是否由本次调用开始转换
+     */
+    boolean begin(String index) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final boolean begun = Boolean.TRUE
+                .equals(this.redisTemplate.opsForHash().putIfAbsent(genLayoutName(prefix), index, MIGRATING));
+        if (begun) {
+            this.states.invalidate(index);
+            this.redisTemplate.convertAndSend(genIdxMetaChannelName(prefix), index);
+        }
+        return begun;
+    }
+
+    /**
+     * 修改布局状态并通知所有节点
+     */
+    void update(String index, String state) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        this.redisTemplate.opsForHash().put(genLayoutName(prefix), index, state);
+        this.states.invalidate(index);
+        this.redisTemplate.convertAndSend(genIdxMetaChannelName(prefix), index);
+    }
+
+    /**
+     * 字典中名称对应的id (36 进制), 没有时分配
+     */
+    private String id(String name) {
+        final String cached = this.ids.get(name);
+        return cached != null ? cached : this.resolve(Collections.singletonList(name)).get(name);
+    }
+
+    /**
+     * 一次往返分配本地没有缓存的名称
+     */
+    private Map<String, String> resolve(List<String> names) {
+        final List<String> missing = names.stream().filter(name -> !this.ids.containsKey(name)).distinct()
+                .collect(Collectors.toList());
+        if (!missing.isEmpty()) {
+            final String prefix = this.redisSearchConfiguration.getPrefix();
+            final List<Object> assigned = this.redisTemplate.execute(SearchScripts.DOCUMENT_IDS,
+                    Arrays.asList(genNamesName(prefix), genNamesReverseName(prefix), genNamesSeqName(prefix)),
+                    missing.toArray());
+            for (int i = 0; i < missing.size(); i++) {
+                this.ids.putIfAbsent(missing.get(i), Long.toString((Long) assigned.get(i), Character.MAX_RADIX));
+            }
+        }
+        return this.ids;
+    }
+
+    /**
+     * 元信息频道的消息以索引名称开头, 收到后丢弃该索引的布局状态
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        final String index = new String(message.getBody(), StandardCharsets.UTF_8).split(" ")[0];
+        this.states.invalidate(index);
+    }
+}
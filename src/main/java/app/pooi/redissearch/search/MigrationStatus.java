@@ -0,0 +1,55 @@
+package app.pooi.redissearch.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * key 布局转换进度
+ */
+@Data
+@AllArgsConstructor
+public class MigrationStatus {
+
+    /**
+     * 转换的版本名称, 见 {@link IndexAliases}
+     */
+    private String index;
+
+    private State state;
+
+    /**
+     * 已复制的文档数
+     */
+    private long documents;
+
+    /**
+     * 已写入的紧凑布局成员数
+     */
+    private long keys;
+
+    /**
+     * 已删除的默认布局 key 数
+     */
+    private long deleted;
+
+    /**
+     * 失败原因
+     */
+    private String message;
+
+    public enum State {
+        /**
+         * 等待其他节点开始双写, 或正在复制到紧凑布局
+         */
+        COPYING,
+        /**
+         * 已切换为紧凑布局, 正在删除默认布局的 key
+         */
+        DELETING,
+        DONE,
+        /**
+         * 转换中断, 布局仍为 migrating (双写, 读取默认布局), 可以通过 resume 继续
+         */
+        FAILED
+    }
+}
@@ -0,0 +1,66 @@
+package app.pooi.redissearch.search;
+
+import java.util.*;
+
+/**
+ * 合并多个已排序的分页结果
+ */
+final class PageMerger {
+
+    private PageMerger() {
+    }
+
+    /**
+     * k 路堆合并, 每一路必须已按 order 排序
+     *
+     * @param pages 各路结果
+     * @param order 排序规则
+     * @param start 合并后的起始位置
+     * @param stop  合并后的结束位置(包含), 小于 0 表示到末尾
+     */
+    static <T> List<T> merge(List<? extends List<T>> pages, Comparator<? super T> order, long start, long stop) {
+        final PriorityQueue<PeekingCursor<T>> heap = new PriorityQueue<>(Math.max(1, pages.size()),
+                (a, b) -> order.compare(a.peek(), b.peek()));
+        pages.stream().filter(p -> !p.isEmpty()).map(p -> new PeekingCursor<>(p.iterator())).forEach(heap::add);
+
+        final List<T> merged = new ArrayList<>();
+        long position = 0;
+        while (!heap.isEmpty() && (stop < 0 || position <= stop)) {
+            final PeekingCursor<T> cursor = heap.poll();
+            final T next = cursor.next();
+            if (position++ >= start) {
+                merged.add(next);
+            }
+            if (cursor.hasNext()) {
+                heap.add(cursor);
+            }
+        }
+        return merged;
+    }
+
+    private static class PeekingCursor<T> {
+
+        private final Iterator<T> iterator;
+
+        private T head;
+
+        PeekingCursor(Iterator<T> iterator) {
+            this.iterator = iterator;
+            this.head = iterator.next();
+        }
+
+        T peek() {
+            return head;
+        }
+
+        boolean hasNext() {
+            return head != null;
+        }
+
+        T next() {
+            final T current = head;
+            head = iterator.hasNext() ? iterator.next() : null;
+            return current;
+        }
+    }
+}
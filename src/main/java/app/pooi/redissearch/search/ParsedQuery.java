@@ -0,0 +1,101 @@
+package app.pooi.redissearch.search;
+
+import lombok.Value;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 查询语句语法树: field:value 为必要条件, -field:value 为排除条件
+ *
+ * 排序字段可以使用区间条件 field:[min TO max], [ ] 包含边界, { } 不包含边界, * 表示不限, 如 age:[20 TO 60}、age:[* TO 60].
+ * 开启前缀索引的字段可以使用前缀条件 field:abc*, 匹配含有以 abc 开头的词的文档
+ */
+@Value
+public class ParsedQuery {
+
+    private static final Pattern TERM = Pattern.compile("[+-]?([\\w\\d]+):([\\[{][^\\]}]*[\\]}]|\\S+)");
+
+    private static final Pattern RANGE = Pattern.compile("([\\[{])\\s*(\\S+)\\s+TO\\s+(\\S+)\\s*([\\]}])");
+
+    private Set<Term> want;
+
+    private Set<Term> unwant;
+
+    static ParsedQuery parse(String query) {
+        final Matcher matcher = TERM.matcher(query);
+
+        final Set<Term> unwant = new LinkedHashSet<>();
+        final Set<Term> want = new LinkedHashSet<>();
+
+        while (matcher.find()) {
+            final Term t = new Term(matcher.group(1), matcher.group(2));
+            if (matcher.group().startsWith("-")) {
+                unwant.add(t);
+            } else {
+                want.add(t);
+            }
+        }
+        return new ParsedQuery(Collections.unmodifiableSet(want), Collections.unmodifiableSet(unwant));
+    }
+
+    @Value
+    public static class Term {
+
+        private String field;
+
+        private String value;
+
+        public boolean isRange() {
+            return value.startsWith("[") || value.startsWith("{");
+        }
+
+        /**
+         * 以 * 结尾, 是否作为前缀条件由字段是否开启前缀索引决定
+         */
+        public boolean isPrefix() {
+            return !isRange() && value.endsWith("*");
+        }
+
+        /**
+         * 前缀条件去掉末尾 * 后的前缀
+         */
+        public String prefix() {
+            return value.substring(0, value.length() - 1);
+        }
+
+        /**
+         * 区间条件的边界, 转为 ZRANGEBYSCORE 的参数形式: 不包含边界时以 ( 开头, 不限为 -inf/+inf
+         *
+         * @return {min, max}
+         */
+        public String[] bounds() {
+            final Matcher matcher = RANGE.matcher(value);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("illegal range " + this);
+            }
+            return new String[]{bound(matcher.group(2), "[".equals(matcher.group(1)), "-inf"),
+                    bound(matcher.group(3), "]".equals(matcher.group(4)), "+inf")};
+        }
+
+        private String bound(String value, boolean inclusive, String unbounded) {
+            if ("*".equals(value)) {
+                return unbounded;
+            }
+            try {
+                Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("illegal range " + this, e);
+            }
+            return inclusive ? value : "(" + value;
+        }
+
+        @Override
+        public String toString() {
+            return field + ":" + value;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.ParallelAggregation;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static app.pooi.redissearch.search.SearchCore.Util.*;
+
+/**
+ * posting 的本地压缩位图缓存
+ *
+ * 文档id通过保存在 redis 中的字典 (见 {@link SearchScripts#DOCUMENT_IDS}) 映射为每个分片内稠密的整数id,
+ * 删除文档时释放其整数id (见 {@link SearchScripts#DELETE}), expire-after-write 之后再分配给新文档, 使字典和位图保持稠密.
+ * 热门 posting 以 {@link RoaringBitmap} 缓存, 按字节数限制大小并按最近最少使用淘汰.
+ * 查询涉及的 posting 全部命中时在 jvm 中计算 union/intersect/diff, 否则由调用方走 redis, 缺失的 posting 异步加载.
+ * 写入时本地失效并通过 pub/sub 通知其他节点.
+ * 每个 key 按哈希对应一个失效计数, 失效时先增加计数再移除缓存; 加载在 SMEMBERS 前读取计数,
+ * 计数不变时才放入缓存, 避免加载期间的写入通知先于 put 到达而留下旧位图
+ */
+@Slf4j
+@Component
+public class PostingCache implements MessageListener {
+
+    private static final int CHUNK = 1_000;
+
+    private static final int STRIPES = 1 << 10;
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+
+    private final Cache<String, RoaringBitmap> postings;
+
+    /**
+     * 分片 + 文档id -> 整数id, 文档删除后释放, 见 {@link #release}
+     */
+    private final Cache<String, Integer> ids;
+
+    /**
+     * 分片 + 整数id -> 文档id
+     */
+    private final Cache<String, String> documents;
+
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 失效计数, 按 key 的哈希分段; 不同 key 共用一段时只会多放弃一次缓存
+     */
+    private final AtomicLongArray invalidations = new AtomicLongArray(STRIPES);
+
+    private ThreadPoolExecutor loader;
+
+    private RedisMessageListenerContainer container;
+
+    public PostingCache(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        final RedisSearchConfiguration.Bitmap bitmap = redisSearchConfiguration.getBitmap();
+        this.postings = CacheBuilder.newBuilder()
+                .maximumWeight(bitmap.getMaximumBytes())
+                .<String, RoaringBitmap>weigher((key, value) -> value.getSizeInBytes())
+                .expireAfterWrite(bitmap.getExpireAfterWrite(), TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.ids = CacheBuilder.newBuilder().maximumSize(bitmap.getDictionarySize())
+                .expireAfterWrite(bitmap.getExpireAfterWrite(), TimeUnit.SECONDS).build();
+        this.documents = CacheBuilder.newBuilder().maximumSize(bitmap.getDictionarySize())
+                .expireAfterWrite(bitmap.getExpireAfterWrite(), TimeUnit.SECONDS).build();
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        this.loader = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(this.redisSearchConfiguration.getBitmap().getLoadQueue()),
+                new ThreadFactoryBuilder().setNameFormat("rs-posting-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.DiscardPolicy());
+        this.container = new RedisMessageListenerContainer();
+        this.container.setConnectionFactory(this.redisTemplate.getConnectionFactory());
+        this.container.addMessageListener(this,
+                new ChannelTopic(genPostingChannelName(this.redisSearchConfiguration.getPrefix())));
+        this.container.afterPropertiesSet();
+        this.container.start();
+    }
+
+    @PreDestroy
+    public void stop() throws Exception {
+        if (this.loader != null) {
+            this.loader.shutdownNow();
+        }
+        if (this.container != null) {
+            this.container.destroy();
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.redisSearchConfiguration.getBitmap().isEnabled();
+    }
+
+    /**
+     * 在 jvm 中计算查询计划: (intersect 的交集 ∩ union 的并集) - (diff ∪ 每组多词排除条件的交集)
+     *
+     * @param shard 分片名称
+     * @param plan  非空的查询计划
+     * @return 结果位图; 有 posting 不在本地时返回 null, 缺失的 posting 提交异步加载; 有区间或前缀条件时返回 null
+     */
+    public RoaringBitmap evaluate(String shard, QueryPlan plan) {
+        if (!plan.getRanges().isEmpty() || !plan.getPrefixes().isEmpty()) {
+            return null;
+        }
+        final Map<String, RoaringBitmap> bitmaps = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        for (String key : QueryPlanner.keys(plan)) {
+            final RoaringBitmap bitmap = this.postings.getIfPresent(key);
+            if (bitmap != null) {
+                bitmaps.put(key, bitmap);
+            } else {
+                missing.add(key);
+            }
+        }
+        if (!missing.isEmpty()) {
+            missing.forEach(key -> this.loadAsync(shard, key));
+            return null;
+        }
+
+        final List<RoaringBitmap> intersect = plan.getIntersectIdx().stream().map(bitmaps::get)
+                .collect(Collectors.toList());
+        if (!plan.getUnionIdx().isEmpty()) {
+            intersect.add(this.union(plan.getUnionIdx().stream().map(bitmaps::get)));
+        }
+        final RoaringBitmap result = intersect.size() == 1 ? intersect.get(0).clone()
+                : FastAggregation.and(intersect.iterator());
+        final List<RoaringBitmap> diff = plan.getDiffIdx().stream().map(bitmaps::get).collect(Collectors.toList());
+        plan.getExclusions().forEach(postings -> diff.add(FastAggregation.and(postings.stream().map(bitmaps::get)
+                .iterator())));
+        if (!diff.isEmpty() && !result.isEmpty()) {
+            result.andNot(this.union(diff.stream()));
+        }
+        return result;
+    }
+
+    private RoaringBitmap union(Stream<RoaringBitmap> postings) {
+        final RoaringBitmap[] bitmaps = postings.toArray(RoaringBitmap[]::new);
+        return bitmaps.length >= this.redisSearchConfiguration.getBitmap().getParallelUnion()
+                ? ParallelAggregation.or(bitmaps) : FastAggregation.or(bitmaps);
+    }
+
+    /**
+     * 整数id 转为文档id, 按整数id 升序
+     */
+    public List<String> documentIds(String shard, RoaringBitmap bitmap) {
+        final String[] result = new String[bitmap.getCardinality()];
+        final List<Integer> missing = new ArrayList<>();
+        int i = 0;
+        for (int id : bitmap) {
+            result[i] = this.documents.getIfPresent(shard + ":" + id);
+            if (result[i++] == null) {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            final Map<Integer, String> loaded = new HashMap<>();
+            final String reverse = genDictReverseName(this.redisSearchConfiguration.getPrefix(), shard);
+            for (List<Integer> chunk : Lists.partition(missing, CHUNK)) {
+                final List<Object> values = this.redisTemplate.opsForHash().multiGet(reverse,
+                        chunk.stream().map(String::valueOf).collect(Collectors.toList()));
+                for (int j = 0; j < chunk.size(); j++) {
+                    if (values.get(j) != null) {
+                        loaded.put(chunk.get(j), (String) values.get(j));
+                        this.documents.put(shard + ":" + chunk.get(j), (String) values.get(j));
+                    }
+                }
+            }
+            i = 0;
+            for (int id : bitmap) {
+                if (result[i] == null) {
+                    result[i] = loaded.get(id);
+                }
+                i++;
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    private void loadAsync(String shard, String key) {
+        if (this.loader != null && this.loading.add(key)) {
+            this.loader.execute(() -> {
+                try {
+                    this.load(shard, key);
+                } catch (RuntimeException e) {
+                    log.warn("loading posting {} failed", key, e);
+                } finally {
+                    this.loading.remove(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * 读取 posting 并转换为位图, 字典中没有的文档id 在 redis 中分配. 读取后 key 被失效过时只返回不缓存
+     */
+    RoaringBitmap load(String shard, String key) {
+        final int stripe = stripe(key);
+        final long generation = this.invalidations.get(stripe);
+        final Set<String> members = this.redisTemplate.opsForSet().members(key);
+        final RoaringBitmap bitmap = new RoaringBitmap();
+        final List<String> missing = new ArrayList<>();
+        for (String documentId : members) {
+            final Integer id = this.ids.getIfPresent(shard + ":" + documentId);
+            if (id != null) {
+                bitmap.add(id);
+            } else {
+                missing.add(documentId);
+            }
+        }
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final List<String> dict = Arrays.asList(genDictName(prefix, shard), genDictReverseName(prefix, shard),
+                genDictSeqName(prefix, shard), genDictFreeName(prefix, shard));
+        for (List<String> chunk : Lists.partition(missing, CHUNK)) {
+            final List<Object> assigned = this.redisTemplate.execute(SearchScripts.DOCUMENT_IDS, dict,
+                    chunk.toArray());
+            for (int i = 0; i < chunk.size(); i++) {
+                final int id = ((Long) assigned.get(i)).intValue();
+                bitmap.add(id);
+                this.ids.put(shard + ":" + chunk.get(i), id);
+                this.documents.put(shard + ":" + id, chunk.get(i));
+            }
+        }
+        bitmap.runOptimize();
+        this.postings.asMap().compute(key,
+                (k, cached) -> this.invalidations.get(stripe) == generation ? bitmap : cached);
+        return bitmap;
+    }
+
+    private static int stripe(String key) {
+        return key.hashCode() & (STRIPES - 1);
+    }
+
+    /**
+     * 本地失效并在当前 pipeline 中通知其他节点
+     *
+     * @param keys     被修改的 posting key
+     * @param prefixes 被修改的 posting key 前缀, 该前缀下的所有缓存都失效
+     */
+    public void invalidate(StringRedisTemplate template, Collection<String> keys, Collection<String> prefixes) {
+        this.invalidate(template, keys, prefixes, "", Collections.emptyMap());
+    }
+
+    /**
+     * 同时移除删除文档时释放的字典条目, 见 {@link SearchScripts#DELETE}
+     *
+     * @param shard    释放的字典条目所在分片
+     * @param released 文档id -> 释放的整数id
+     */
+    public void invalidate(StringRedisTemplate template, Collection<String> keys, Collection<String> prefixes,
+            String shard, Map<String, String> released) {
+        if (!isEnabled() || (keys.isEmpty() && prefixes.isEmpty() && released.isEmpty())) {
+            return;
+        }
+        this.invalidate(keys, prefixes);
+        this.release(shard, released);
+        template.convertAndSend(genPostingChannelName(this.redisSearchConfiguration.getPrefix()),
+                message(keys, prefixes, shard, released));
+    }
+
+    void invalidate(Collection<String> keys, Collection<String> prefixes) {
+        keys.forEach(key -> this.invalidations.incrementAndGet(stripe(key)));
+        this.postings.invalidateAll(keys);
+        if (!prefixes.isEmpty()) {
+            for (int i = 0; i < STRIPES; i++) {
+                this.invalidations.incrementAndGet(i);
+            }
+            this.postings.asMap().keySet().removeIf(key -> prefixes.stream().anyMatch(key::startsWith));
+        }
+    }
+
+    /**
+     * 移除释放的字典条目. 释放的整数id 在 expire-after-write 之后才会重新分配, 错过通知的节点上的条目届时也已过期
+     */
+    void release(String shard, Map<String, String> released) {
+        released.forEach((documentId, id) -> {
+            this.ids.invalidate(shard + ":" + documentId);
+            this.documents.invalidate(shard + ":" + id);
+        });
+    }
+
+    static String message(Collection<String> keys, Collection<String> prefixes) {
+        return message(keys, prefixes, "", Collections.emptyMap());
+    }
+
+    /**
+     * 失效通知, 每行一个 key (以 = 开头)、前缀 (以 * 开头) 或释放的字典条目 (以 # 开头, 分片、整数id、文档id 以空格分隔)
+     */
+    static String message(Collection<String> keys, Collection<String> prefixes, String shard,
+            Map<String, String> released) {
+        return Stream.of(keys.stream().map(key -> "=" + key), prefixes.stream().map(prefix -> "*" + prefix),
+                released.entrySet().stream().map(e -> "#" + shard + " " + e.getValue() + " " + e.getKey()))
+                .flatMap(lines -> lines).collect(Collectors.joining("\n"));
+    }
+
+    /**
+     * 收到写入通知 (包括本节点自己发出的), 写入已经生效, 再次失效以丢弃写入期间加载的旧位图
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        final Map<Character, List<String>> lines = Arrays
+                .stream(new String(message.getBody(), StandardCharsets.UTF_8).split("\n"))
+                .filter(line -> line.length() > 1)
+                .collect(Collectors.groupingBy(line -> line.charAt(0),
+                        Collectors.mapping(line -> line.substring(1), Collectors.toList())));
+        this.invalidate(lines.getOrDefault('=', Collections.emptyList()),
+                lines.getOrDefault('*', Collections.emptyList()));
+        for (String line : lines.getOrDefault('#', Collections.emptyList())) {
+            final String[] parts = line.split(" ", 3);
+            if (parts.length == 3) {
+                this.release(parts[0], Collections.singletonMap(parts[2], parts[1]));
+            }
+        }
+    }
+
+    public Map<String, Long> stats() {
+        final CacheStats stats = this.postings.stats();
+        return ImmutableMap.<String, Long>builder()
+                .put("hits", stats.hitCount())
+                .put("misses", stats.missCount())
+                .put("evictions", stats.evictionCount())
+                .put("size", this.postings.size())
+                .put("bytes", this.postings.asMap().values().stream().mapToLong(RoaringBitmap::getSizeInBytes).sum())
+                .put("loading", (long) this.loading.size())
+                .build();
+    }
+}
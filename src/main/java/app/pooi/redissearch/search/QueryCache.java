@@ -0,0 +1,75 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 查询结果缓存
+ *
+ * 两级: 本地 jvm 内按条数淘汰的分页结果, 以及 redis 中仍存活的结果 key.
+ * 缓存 key 包含索引代数, 索引写入时代数自增, 旧条目自然失效
+ */
+@Component
+public class QueryCache {
+
+    private final Cache<String, Set<String>> local;
+
+    private final LongAdder remoteHits = new LongAdder();
+
+    private final LongAdder remoteMisses = new LongAdder();
+
+    public QueryCache(RedisSearchConfiguration redisSearchConfiguration) {
+        final RedisSearchConfiguration.Cache conf = redisSearchConfiguration.getCache();
+        this.local = CacheBuilder.newBuilder()
+                .maximumSize(conf.getMaximumSize())
+                .expireAfterWrite(conf.getExpireAfterWrite(), TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 规范化查询对应的结果 id, 相同语义的查询得到相同的 id
+     *
+     * @param generation 索引代数
+     * @param canonical  规范化后的查询
+     */
+    static String resultId(long generation, String canonical) {
+        return generation + ":" + Hashing.murmur3_128().hashString(canonical, StandardCharsets.UTF_8);
+    }
+
+    Set<String> get(String key) {
+        return this.local.getIfPresent(key);
+    }
+
+    void put(String key, Set<String> page) {
+        this.local.put(key, ImmutableSet.copyOf(page));
+    }
+
+    void recordRemote(boolean hit) {
+        (hit ? this.remoteHits : this.remoteMisses).increment();
+    }
+
+    public Map<String, Long> stats() {
+        final CacheStats stats = this.local.stats();
+        return ImmutableMap.<String, Long>builder()
+                .put("localHits", stats.hitCount())
+                .put("localMisses", stats.missCount())
+                .put("localEvictions", stats.evictionCount())
+                .put("localSize", this.local.size())
+                .put("remoteHits", this.remoteHits.sum())
+                .put("remoteMisses", this.remoteMisses.sum())
+                .build();
+    }
+}
@@ -0,0 +1,54 @@
+package app.pooi.redissearch.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 游标状态, 编码后作为不透明的字符串交给调用方, 服务端不保存
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class QueryCursor {
+
+    private String index;
+
+    private String query;
+
+    private String sort;
+
+    /**
+     * 结果 key 的后缀, 每个分片各有一个结果 key
+     */
+    private String resultId;
+
+    /**
+     * 生成结果时的索引代数
+     */
+    private long generation;
+
+    /**
+     * 创建时间, epoch 毫秒
+     */
+    private long created;
+
+    private boolean snapshot;
+
+    /**
+     * 没有排序字段, 结果为按文档id字典序读取的集合
+     */
+    private boolean alpha;
+
+    /**
+     * 每个分片已读取的数量
+     */
+    private List<Long> offsets;
+
+    /**
+     * 每个分片的结果总数
+     */
+    private List<Long> totals;
+}
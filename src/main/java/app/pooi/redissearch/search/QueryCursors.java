@@ -0,0 +1,293 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static app.pooi.redissearch.search.SearchCore.Util.genCursorSecretName;
+import static app.pooi.redissearch.search.SearchCore.Util.genQueryIdxName;
+
+/**
+ * 游标分页
+ *
+ * 第一页执行查询并保存排好序的结果 key, 之后每页只对结果 key 做 ZRANGE 并延长其存活时间, 总存活时间不超过
+ * maxLifetime. 分片时游标记录每个分片已读取的位置, 各分片从该位置读取一页后归并
+ *
+ * 游标为 base64 编码的 json 加上 HMAC-SHA256 签名, 客户端修改创建时间、版本或结果id 后签名不再匹配
+ */
+@Slf4j
+@RestController
+@Service
+public class QueryCursors {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final SearchCore searchCore;
+    private final IndexShards indexShards;
+    private final ObjectMapper objectMapper;
+    private final SearchMetrics searchMetrics;
+    private final IndexAliases indexAliases;
+
+    /**
+     * 签名密钥, 首次使用时读取, 见 {@link #key()}
+     */
+    private volatile SecretKeySpec key;
+
+    public QueryCursors(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            SearchCore searchCore, IndexShards indexShards, ObjectMapper objectMapper, SearchMetrics searchMetrics,
+            IndexAliases indexAliases) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.searchCore = searchCore;
+        this.indexShards = indexShards;
+        this.objectMapper = objectMapper;
+        this.searchMetrics = searchMetrics;
+        this.indexAliases = indexAliases;
+    }
+
+    /**
+     * 执行查询并返回第一页及游标. 游标绑定创建时索引的当前版本, 重建切换后仍读取旧版本直到其被删除
+     *
+     * @param snapshot 为 true 时后续页始终读取本次的结果; 为 false 时索引变化后重新查询, 从相同位置继续读取.
+     *                 为空时使用配置 redis.search.cursor.snapshot
+     */
+    @GetMapping("/query/{index}/cursor")
+    public CursorPage open(@PathVariable("index") String index, @RequestParam("param") String query,
+            @RequestParam("sort") String sort, @RequestParam(value = "count", defaultValue = "10") int count,
+            @RequestParam(value = "snapshot", required = false) Boolean snapshot) {
+        final String version = this.indexAliases.read(index);
+        final int shards = this.indexShards.shards(version).size();
+        final List<Long> zeros = new ArrayList<>(Collections.nCopies(shards, 0L));
+        final QueryCursor cursor = new QueryCursor(version, query, sort, null, 0L, System.currentTimeMillis(),
+                snapshot != null ? snapshot : this.redisSearchConfiguration.getCursor().isSnapshot(),
+                Arrays.stream(sort.split(" ")).allMatch(String::isEmpty), zeros, new ArrayList<>(zeros));
+        return this.searchMetrics.trace("cursor", index, query, sort,
+                () -> this.page(cursor, this.materialize(cursor, count), count));
+    }
+
+    /**
+     * 读取游标的下一页
+     *
+     * @throws CursorExpiredException 游标超过最长存活时间, 或快照游标的结果 key 已过期
+     */
+    @GetMapping("/query/cursor")
+    public CursorPage next(@RequestParam("cursor") String token,
+            @RequestParam(value = "count", defaultValue = "10") int count) {
+        final QueryCursor cursor = this.decode(token);
+        if (this.remainingLifetime(cursor) <= 0L) {
+            throw new CursorExpiredException("cursor on " + cursor.getIndex() + " exceeded max lifetime");
+        }
+        return this.searchMetrics.trace("cursor", cursor.getIndex(), cursor.getQuery(), cursor.getSort(),
+                () -> this.next(cursor, count));
+    }
+
+    private CursorPage next(QueryCursor cursor, int count) {
+
+        if (!cursor.isSnapshot() && this.searchCore.generation(cursor.getIndex()) != cursor.getGeneration()) {
+            return this.page(cursor, this.materialize(cursor, count), count);
+        }
+
+        final List<String> keys = this.resultKeys(cursor);
+        final List<Integer> pending = IntStream.range(0, keys.size())
+                .filter(i -> cursor.getOffsets().get(i) < cursor.getTotals().get(i)).boxed()
+                .collect(Collectors.toList());
+        final List<Object> exists = QueryTrace.stage("reuse",
+                () -> this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                        pending.forEach(i -> ((StringRedisTemplate) operations).hasKey(keys.get(i)));
+                        return null;
+                    }
+                }));
+        if (exists.stream().anyMatch(Boolean.FALSE::equals)) {
+            if (cursor.isSnapshot()) {
+                throw new CursorExpiredException("snapshot of cursor on " + cursor.getIndex() + " expired");
+            }
+            return this.page(cursor, this.materialize(cursor, count), count);
+        }
+
+        final List<String> shards = this.indexShards.shards(cursor.getIndex());
+        final List<List<ZSetOperations.TypedTuple<String>>> pages = this.indexShards.scatter(cursor.getIndex(),
+                shard -> {
+                    final int i = shards.indexOf(shard);
+                    final long offset = cursor.getOffsets().get(i);
+                    return offset < cursor.getTotals().get(i)
+                            ? this.searchCore.range(keys.get(i), cursor.isAlpha(), offset, offset + count - 1,
+                                    this.indexShards.isSharded())
+                            : Collections.emptyList();
+                });
+        return this.page(cursor, pages, count);
+    }
+
+    /**
+     * 在所有分片上执行查询并保存结果 key, 同时读取从当前位置开始的一页
+     */
+    private List<List<ZSetOperations.TypedTuple<String>>> materialize(QueryCursor cursor, int count) {
+        final String index = cursor.getIndex();
+        final long generation = this.searchCore.generation(index);
+        cursor.setGeneration(generation);
+        cursor.setResultId(this.redisSearchConfiguration.getCache().isEnabled()
+                ? QueryCache.resultId(generation, this.searchCore.canonicalQuery(cursor.getQuery(), cursor.getSort()))
+                : generation + ":" + UUID.randomUUID());
+
+        final List<String> shards = this.indexShards.shards(index);
+        final List<String> keys = this.resultKeys(cursor);
+        final List<List<ZSetOperations.TypedTuple<String>>> pages = this.indexShards.scatter(index, shard -> {
+            final long offset = cursor.getOffsets().get(shards.indexOf(shard));
+            return this.searchCore.queryAndSort(index, shard, cursor.getQuery(),
+                    this.searchCore.sortWeights(index, shard, cursor.getSort()), (int) offset, (int) (offset + count - 1),
+                    this.indexShards.isSharded(), true, keys.get(shards.indexOf(shard)));
+        });
+
+        final List<Object> totals = QueryTrace.stage("card",
+                () -> this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                        final StringRedisTemplate template = (StringRedisTemplate) operations;
+                        keys.forEach(key -> {
+                            if (cursor.isAlpha()) {
+                                template.opsForSet().size(key);
+                            } else {
+                                template.opsForZSet().zCard(key);
+                            }
+                        });
+                        return null;
+                    }
+                }));
+        cursor.setTotals(totals.stream().map(t -> t == null ? 0L : (Long) t).collect(Collectors.toList()));
+        return pages;
+    }
+
+    /**
+     * 归并各分片的一页, 推进各分片的读取位置并延长结果 key 的存活时间
+     */
+    private CursorPage page(QueryCursor cursor, List<List<ZSetOperations.TypedTuple<String>>> pages, int count) {
+        // 分片序号 -> 结果
+        final List<List<AbstractMap.SimpleImmutableEntry<Integer, ZSetOperations.TypedTuple<String>>>> tagged =
+                IntStream.range(0, pages.size()).mapToObj(i -> pages.get(i).stream()
+                        .map(t -> new AbstractMap.SimpleImmutableEntry<>(i, t)).collect(Collectors.toList()))
+                        .collect(Collectors.toList());
+        final List<AbstractMap.SimpleImmutableEntry<Integer, ZSetOperations.TypedTuple<String>>> merged = PageMerger
+                .merge(tagged, Map.Entry.comparingByValue(SearchCore.pageOrder(!cursor.isAlpha())), 0, count - 1);
+
+        final List<Long> offsets = new ArrayList<>(cursor.getOffsets());
+        merged.forEach(e -> offsets.set(e.getKey(), offsets.get(e.getKey()) + 1));
+        cursor.setOffsets(offsets);
+
+        final boolean exhausted = IntStream.range(0, offsets.size())
+                .allMatch(i -> offsets.get(i) >= cursor.getTotals().get(i));
+        if (!exhausted) {
+            this.extend(cursor);
+        }
+        return new CursorPage(
+                merged.stream().map(e -> e.getValue().getValue()).collect(Collectors.toList()),
+                exhausted ? null : this.encode(cursor),
+                cursor.getTotals().stream().mapToLong(Long::longValue).sum(), cursor.isSnapshot());
+    }
+
+    /**
+     * 结果 key 延长 ttl 秒, 不超过游标剩余的存活时间
+     */
+    private void extend(QueryCursor cursor) {
+        final long ttl = Math.min(this.redisSearchConfiguration.getCursor().getTtl(),
+                TimeUnit.MILLISECONDS.toSeconds(this.remainingLifetime(cursor) + 999L));
+        final List<String> keys = this.resultKeys(cursor);
+        QueryTrace.stage("expire", () -> this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                keys.forEach(key -> ((StringRedisTemplate) operations).expire(key, ttl, TimeUnit.SECONDS));
+                return null;
+            }
+        }));
+    }
+
+    private long remainingLifetime(QueryCursor cursor) {
+        return cursor.getCreated()
+                + TimeUnit.SECONDS.toMillis(this.redisSearchConfiguration.getCursor().getMaxLifetime())
+                - System.currentTimeMillis();
+    }
+
+    private List<String> resultKeys(QueryCursor cursor) {
+        return this.indexShards.shards(cursor.getIndex()).stream()
+                .map(shard -> genQueryIdxName(this.redisSearchConfiguration.getPrefix(), shard, cursor.getResultId()))
+                .collect(Collectors.toList());
+    }
+
+    private String encode(QueryCursor cursor) {
+        try {
+            final byte[] json = this.objectMapper.writeValueAsBytes(cursor);
+            final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+            return encoder.encodeToString(json) + "." + encoder.encodeToString(this.sign(json));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException 游标格式错误或签名不匹配
+     */
+    private QueryCursor decode(String token) {
+        final int dot = token.lastIndexOf('.');
+        try {
+            final byte[] json = Base64.getUrlDecoder().decode(token.substring(0, Math.max(dot, 0)));
+            final byte[] signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+            if (dot < 0 || !MessageDigest.isEqual(signature, this.sign(json))) {
+                throw new IllegalArgumentException("invalid cursor signature");
+            }
+            return this.objectMapper.readValue(json, QueryCursor.class);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid cursor", e);
+        }
+    }
+
+    private byte[] sign(byte[] json) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(this.key());
+            return mac.doFinal(json);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("cannot sign cursor", e);
+        }
+    }
+
+    /**
+     * 配置 redis.search.cursor.secret 为空时, 第一个节点用 SETNX 写入随机密钥, 其余节点读取同一个密钥
+     */
+    private SecretKeySpec key() {
+        if (this.key == null) {
+            String secret = this.redisSearchConfiguration.getCursor().getSecret();
+            if (secret.isEmpty()) {
+                final byte[] random = new byte[32];
+                new SecureRandom().nextBytes(random);
+                final String name = genCursorSecretName(this.redisSearchConfiguration.getPrefix());
+                this.redisTemplate.opsForValue().setIfAbsent(name, Base64.getEncoder().encodeToString(random));
+                secret = this.redisTemplate.opsForValue().get(name);
+                if (secret == null) {
+                    throw new IllegalStateException("cursor secret " + name + " is missing");
+                }
+            }
+            this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        }
+        return this.key;
+    }
+}
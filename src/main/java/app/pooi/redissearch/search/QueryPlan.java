@@ -0,0 +1,143 @@
+package app.pooi.redissearch.search;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Value;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 查询计划, 由 union/intersect/diff 三组 key 和排序 zset 上的分数区间组成
+ *
+ * 最终结果为 (intersectIdx ∩ union(unionIdx) ∩ ranges) - diffIdx, intersectIdx 按集合大小升序排列.
+ * 前缀条件在编译后保存在 prefixes 中, 执行前展开为临时集合并加入 intersectIdx;
+ * 分词后有多个词的排除条件保存在 exclusions 中, 执行前求交集展开为临时集合并加入 diffIdx, 见 {@link QueryPlanner#expand}
+ */
+@Value
+public class QueryPlan {
+
+    static final QueryPlan EMPTY = new QueryPlan(Collections.emptyList(), Collections.emptyList(),
+            Collections.emptyList(), Collections.emptyList(), Collections.emptyList(), Collections.emptyList(),
+            Strategy.EMPTY, Collections.emptyMap(), 0L);
+
+    private List<String> unionIdx;
+
+    private List<String> intersectIdx;
+
+    private List<String> diffIdx;
+
+    /**
+     * 区间条件, 直接在排序 zset 上计算, 不需要每个值的 posting
+     */
+    private List<ScoreRange> ranges;
+
+    /**
+     * 尚未展开的前缀条件
+     */
+    private List<TermPrefix> prefixes;
+
+    /**
+     * 尚未展开的多词排除条件, 每组为一个条件所有词的 posting, 同时包含所有词的文档被排除
+     */
+    private List<List<String>> exclusions;
+
+    private Strategy strategy;
+
+    /**
+     * key -> 集合大小, 区间条件为 {@link ScoreRange#toString()} -> 区间内的成员数量
+     */
+    private Map<String, Long> cardinality;
+
+    /**
+     * 预估需要访问的集合元素数量
+     */
+    private long estimatedCost;
+
+    @JsonIgnore
+    public boolean isEmpty() {
+        return strategy == Strategy.EMPTY;
+    }
+
+    /**
+     * 排序 zset 上的分数区间, 边界为 ZRANGEBYSCORE 的参数形式
+     */
+    @Value
+    public static class ScoreRange {
+
+        private String key;
+
+        private String min;
+
+        private String max;
+
+        /**
+         * 下界数值, 开区间视为闭区间, 用于 ZCOUNT 估算区间大小
+         */
+        double lower() {
+            return value(min);
+        }
+
+        /**
+         * 上界数值, 开区间视为闭区间
+         */
+        double upper() {
+            return value(max);
+        }
+
+        private static double value(String bound) {
+            switch (bound) {
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+            case "+inf":
+                return Double.POSITIVE_INFINITY;
+            default:
+                return Double.parseDouble(bound.startsWith("(") ? bound.substring(1) : bound);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return key + " " + min + " " + max;
+        }
+    }
+
+    /**
+     * 前缀索引上的前缀条件, 见 {@link IndexKeys#terms}
+     */
+    @Value
+    public static class TermPrefix {
+
+        /**
+         * 词表 zset
+         */
+        private String key;
+
+        /**
+         * 词的 posting key 的公共前缀, 加上词即为 posting key
+         */
+        private String postingPrefix;
+
+        private String prefix;
+    }
+
+    public enum Strategy {
+        /**
+         * 没有必要条件或必要条件的集合为空, 无需访问 redis
+         */
+        EMPTY,
+        /**
+         * 取最小集合的成员逐个检查是否在其他集合中(SMISMEMBER)及分数是否在区间内(ZMSCORE), 不创建临时 key
+         */
+        MEMBERSHIP,
+        /**
+         * SUNIONSTORE/SINTERSTORE/SDIFFSTORE 生成临时 key
+         */
+        SET_ALGEBRA,
+        /**
+         * 与 SET_ALGEBRA 相同地生成过滤结果, 之后按排序 zset 的顺序分批检查成员(SMISMEMBER), 取满一页即停止,
+         * 不对整个过滤结果执行 ZINTERSTORE. 估算需要扫描的成员过多时在脚本内退回 ZINTERSTORE
+         */
+        TOP_K
+    }
+}
@@ -0,0 +1,384 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import app.pooi.redissearch.search.tokenizer.Tokenizers;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static app.pooi.redissearch.search.SearchCore.Util.genQueryIdxName;
+
+/**
+ * 查询计划
+ *
+ * 解析结果按查询语句缓存; 一次 pipeline 取回所有 key 的集合大小, 必要条件为空时直接返回,
+ * 交集从小集合开始, 最小集合足够小时改为逐个检查成员
+ */
+@Component
+public class QueryPlanner {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final IndexMetaRegistry indexMetaRegistry;
+    private final Tokenizers tokenizers;
+    private final KeyLayouts keyLayouts;
+
+    private final LoadingCache<String, ParsedQuery> parsed;
+
+    public QueryPlanner(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            IndexMetaRegistry indexMetaRegistry, Tokenizers tokenizers, KeyLayouts keyLayouts) {
+        this.redisTemplate = redisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.indexMetaRegistry = indexMetaRegistry;
+        this.tokenizers = tokenizers;
+        this.keyLayouts = keyLayouts;
+        this.parsed = CacheBuilder.newBuilder()
+                .maximumSize(redisSearchConfiguration.getPlanner().getParseCacheSize())
+                .build(CacheLoader.from(ParsedQuery::parse));
+    }
+
+    public ParsedQuery parse(String query) {
+        return this.parsed.getUnchecked(query);
+    }
+
+    /**
+     * 根据字段元信息生成 union/intersect/diff 三组 key 及区间条件
+     *
+     * @param index 文档名称
+     * @param shard 分片名称, 见 {@link IndexShards}
+     * @param query 查询语法树
+     * @return 查询计划, 没有必要条件或必要条件在未知字段上时返回空计划
+     */
+    QueryPlan compile(String index, String shard, ParsedQuery query) {
+        return query.getWant().isEmpty() ? QueryPlan.EMPTY
+                : this.compile(shard, query, this.indexMetaRegistry.get(index), this.keyLayouts.read(index));
+    }
+
+    /**
+     * 使用给定的字段元信息和 key 布局生成查询计划, 见 {@link #compile(String, String, ParsedQuery)}
+     */
+    QueryPlan compile(String shard, ParsedQuery query, Map<String, FieldMeta> entries, IndexKeys keys) {
+        // 未知字段上没有文档: 必要条件不会满足, 排除条件不需要排除
+        if (query.getWant().isEmpty() || query.getWant().stream().anyMatch(t -> !entries.containsKey(t.getField()))) {
+            return QueryPlan.EMPTY;
+        }
+
+        // range
+        final List<QueryPlan.ScoreRange> ranges = query.getWant().stream().filter(ParsedQuery.Term::isRange)
+                .map(t -> {
+                    if (!"true".equals(entries.get(t.getField()).getSort())) {
+                        throw new IllegalArgumentException("range on unsortable field " + t);
+                    }
+                    final String[] bounds = t.bounds();
+                    return new QueryPlan.ScoreRange(keys.sort(shard, t.getField()), bounds[0], bounds[1]);
+                })
+                .distinct().collect(Collectors.toList());
+        query.getUnwant().stream().filter(ParsedQuery.Term::isRange).findAny().ifPresent(t -> {
+            throw new IllegalArgumentException("range cannot be excluded " + t);
+        });
+
+        // prefix
+        final List<QueryPlan.TermPrefix> prefixes = query.getWant().stream().filter(t -> isPrefix(entries, t))
+                .map(t -> new QueryPlan.TermPrefix(keys.terms(shard, t.getField()),
+                        keys.termPosting(shard, t.getField(), ""), this.tokenizers.normalizePrefix(t.prefix())))
+                .distinct().collect(Collectors.toList());
+        query.getUnwant().stream().filter(t -> isPrefix(entries, t)).findAny().ifPresent(t -> {
+            throw new IllegalArgumentException("prefix cannot be excluded " + t);
+        });
+
+        // union
+        final List<ParsedQuery.Term> unionFields = query.getWant().stream()
+                .filter(w -> !w.isRange() && !isPrefix(entries, w))
+                .filter(w -> w.getValue().contains(","))
+                .filter(w -> "true".equals(entries.get(w.getField()).getSort())).collect(Collectors.toList());
+        final List<String> unionIdx = unionFields.stream()
+                .flatMap(w -> Arrays.stream(w.getValue().split(","))
+                        .map(value -> keys.posting(shard, w.getField(), value)))
+                .distinct().collect(Collectors.toList());
+
+        // intersect
+        final List<String> intersectIdx = query.getWant().stream()
+                .filter(t -> !t.isRange() && !isPrefix(entries, t) && !unionFields.contains(t))
+                .flatMap(t -> {
+                    final FieldMeta meta = entries.get(t.getField());
+                    final Stream<String> values = "true".equals(meta.getSort()) ? Stream.of(t.getValue())
+                            : this.tokenizers.forField(meta).tokenize(t.getValue()).stream();
+                    return values.map(value -> keys.posting(shard, t.getField(), value));
+                })
+                .distinct().collect(Collectors.toList());
+
+        // diff, 分词后有多个词时排除同时包含所有词的文档
+        final List<List<String>> excluded = query.getUnwant().stream()
+                .filter(w -> entries.containsKey(w.getField()))
+                .map(w -> {
+                    final FieldMeta meta = entries.get(w.getField());
+                    final Stream<String> values = "true".equals(meta.getSort())
+                            ? Stream.of(w.getValue()) : this.tokenizers.forField(meta).tokenize(w.getValue()).stream();
+                    return values.map(value -> keys.posting(shard, w.getField(), value)).distinct()
+                            .collect(Collectors.toList());
+                })
+                .filter(postings -> !postings.isEmpty())
+                .distinct().collect(Collectors.toList());
+        final List<String> diffIdx = excluded.stream().filter(postings -> postings.size() == 1)
+                .map(postings -> postings.get(0)).distinct().collect(Collectors.toList());
+        final List<List<String>> exclusions = excluded.stream().filter(postings -> postings.size() > 1)
+                .collect(Collectors.toList());
+
+        if (unionIdx.isEmpty() && intersectIdx.isEmpty() && ranges.isEmpty() && prefixes.isEmpty()) {
+            return QueryPlan.EMPTY;
+        }
+        return new QueryPlan(unionIdx, intersectIdx, diffIdx, ranges, prefixes, exclusions,
+                QueryPlan.Strategy.SET_ALGEBRA, Collections.emptyMap(), 0L);
+    }
+
+    /**
+     * 以 * 结尾且字段开启了前缀索引, 其他字段上的 * 仍作为普通的值
+     */
+    private static boolean isPrefix(Map<String, FieldMeta> entries, ParsedQuery.Term term) {
+        return term.isPrefix() && entries.get(term.getField()) != null
+                && "true".equals(entries.get(term.getField()).getPrefix());
+    }
+
+    /**
+     * 通过 {@link SearchScripts#PREFIX} 把前缀条件展开为临时集合, 每个前缀条件一次往返;
+     * 多词排除条件在一个 pipeline 中 SINTERSTORE 为临时集合
+     *
+     * @throws IllegalArgumentException 前缀匹配的词超过 redis.search.prefixes.max-expansions
+     * @return 没有前缀和多词排除条件时为原计划, 见 {@link #expanded(QueryPlan, List, List)}
+     */
+    QueryPlan expand(String shard, QueryPlan compiled) {
+        return this.expand(shard, compiled, new HashMap<>());
+    }
+
+    /**
+     * @param cardinality 已知的集合大小, 有 posting 为空的多词排除条件不需要展开; 展开的临时集合的大小写入其中
+     */
+    private QueryPlan expand(String shard, QueryPlan compiled, Map<String, Long> cardinality) {
+        if (compiled.getPrefixes().isEmpty() && compiled.getExclusions().isEmpty()) {
+            return compiled;
+        }
+        final List<String> expanded = new ArrayList<>();
+        for (QueryPlan.TermPrefix prefix : compiled.getPrefixes()) {
+            final String destKey = genQueryIdxName(this.redisSearchConfiguration.getPrefix(), shard);
+            final Long size = QueryTrace.stage("prefix", () -> this.redisTemplate.execute(SearchScripts.PREFIX,
+                    Arrays.asList(prefix.getKey(), destKey), this.prefixArgs(prefix).toArray()));
+            if (size != null && size < 0) {
+                throw this.tooManyTerms(prefix);
+            }
+            if (size == null || size == 0) {
+                return QueryPlan.EMPTY;
+            }
+            QueryTrace.tempKeys(1);
+            expanded.add(destKey);
+            cardinality.put(destKey, size);
+        }
+        return this.expanded(compiled, expanded, this.exclude(shard, compiled.getExclusions(), cardinality));
+    }
+
+    /**
+     * @return 与 exclusions 一一对应的临时集合, 交集为空时为 ""
+     */
+    private List<String> exclude(String shard, List<List<String>> exclusions, Map<String, Long> cardinality) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final List<String> expanded = exclusions.stream()
+                .map(postings -> postings.stream().map(cardinality::get).anyMatch(Long.valueOf(0L)::equals) ? ""
+                        : genQueryIdxName(prefix, shard))
+                .collect(Collectors.toList());
+        final List<Integer> stored = IntStream.range(0, expanded.size()).filter(i -> !expanded.get(i).isEmpty())
+                .boxed().collect(Collectors.toList());
+        if (stored.isEmpty()) {
+            return expanded;
+        }
+        final long ttl = this.redisSearchConfiguration.getQuery().getTtl();
+        final List<Object> sizes = QueryTrace.stage("exclude",
+                () -> this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                        final StringRedisTemplate template = (StringRedisTemplate) operations;
+                        for (int i : stored) {
+                            final List<String> postings = exclusions.get(i);
+                            template.opsForSet().intersectAndStore(postings.get(0),
+                                    postings.subList(1, postings.size()), expanded.get(i));
+                            template.expire(expanded.get(i), ttl, TimeUnit.SECONDS);
+                        }
+                        return null;
+                    }
+                }));
+        for (int j = 0; j < stored.size(); j++) {
+            final Object size = sizes.get(2 * j);
+            final int i = stored.get(j);
+            if (size == null || (Long) size == 0L) {
+                expanded.set(i, "");
+            } else {
+                cardinality.put(expanded.get(i), (Long) size);
+            }
+        }
+        QueryTrace.tempKeys((int) expanded.stream().filter(key -> !key.isEmpty()).count());
+        return expanded;
+    }
+
+    /**
+     * {@link SearchScripts#PREFIX} 返回 -1 时的异常, 展开不会截断匹配的词
+     */
+    IllegalArgumentException tooManyTerms(QueryPlan.TermPrefix prefix) {
+        return new IllegalArgumentException("prefix " + prefix.getPrefix() + "* matches more than "
+                + this.redisSearchConfiguration.getPrefixes().getMaxExpansions()
+                + " terms, use a longer prefix or raise redis.search.prefixes.max-expansions");
+    }
+
+    /**
+     * {@link SearchScripts#PREFIX} 展开时的 ARGV: 前缀, posting key 前缀, 最多展开的词数, ttl
+     */
+    List<String> prefixArgs(QueryPlan.TermPrefix prefix) {
+        return Arrays.asList(prefix.getPrefix(), prefix.getPostingPrefix(),
+                String.valueOf(this.redisSearchConfiguration.getPrefixes().getMaxExpansions()),
+                String.valueOf(this.redisSearchConfiguration.getQuery().getTtl()));
+    }
+
+    /**
+     * 前缀和多词排除条件展开后的计划, 前缀展开的临时集合作为 intersect 的 key, 排除条件的作为 diff 的 key
+     *
+     * @param keys       与 prefixes 一一对应的临时集合, "" 表示没有匹配的文档, 此时结果为空计划
+     * @param exclusions 与 exclusions 一一对应的临时集合, "" 表示交集为空, 不需要排除
+     */
+    QueryPlan expanded(QueryPlan compiled, List<String> keys, List<String> exclusions) {
+        if (keys.contains("")) {
+            return QueryPlan.EMPTY;
+        }
+        final List<String> intersectIdx = new ArrayList<>(compiled.getIntersectIdx());
+        intersectIdx.addAll(keys);
+        final List<String> diffIdx = new ArrayList<>(compiled.getDiffIdx());
+        exclusions.stream().filter(key -> !key.isEmpty()).forEach(diffIdx::add);
+        return new QueryPlan(compiled.getUnionIdx(), intersectIdx, diffIdx, compiled.getRanges(),
+                Collections.emptyList(), Collections.emptyList(), compiled.getStrategy(), compiled.getCardinality(),
+                compiled.getEstimatedCost());
+    }
+
+    /**
+     * 解析并生成查询计划, 需要一次 redis 往返获取集合大小和区间内的成员数量;
+     * 有前缀或多词排除条件时在取得集合大小之后再展开 (见 {@link #expand}), 有必要条件为空时不再展开
+     *
+     * @param index 文档名称
+     * @param shard 分片名称, 见 {@link IndexShards}
+     * @param query 查询语句
+     */
+    public QueryPlan plan(String index, String shard, String query) {
+        final QueryPlan compiled = this.compile(index, shard, this.parse(query));
+        if (compiled.isEmpty() || !this.redisSearchConfiguration.getPlanner().isEnabled()) {
+            return compiled.isEmpty() ? compiled : this.expand(shard, compiled);
+        }
+
+        final Map<String, Long> cardinality = this.cardinality(compiled);
+        final QueryPlan planned = this.plan(compiled, cardinality);
+        if (planned.isEmpty() || (compiled.getPrefixes().isEmpty() && compiled.getExclusions().isEmpty())) {
+            QueryTrace.postings(cardinality);
+            return planned;
+        }
+        final QueryPlan expanded = this.expand(shard, compiled, cardinality);
+        QueryTrace.postings(cardinality);
+        return expanded.isEmpty() ? expanded : this.plan(expanded, cardinality);
+    }
+
+    /**
+     * 一个 pipeline 读取 {@link #keys(QueryPlan)} 的集合大小和各区间内的成员数量
+     */
+    private Map<String, Long> cardinality(QueryPlan compiled) {
+        final List<String> keys = keys(compiled);
+        final List<Object> sizes = QueryTrace.stage("plan",
+                () -> this.redisTemplate.executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                        final StringRedisTemplate template = (StringRedisTemplate) operations;
+                        keys.forEach(key -> template.opsForSet().size(key));
+                        compiled.getRanges().forEach(range -> template.opsForZSet()
+                                .count(range.getKey(), range.lower(), range.upper()));
+                        return null;
+                    }
+                }));
+        final Map<String, Long> cardinality = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            cardinality.put(keys.get(i), sizes.get(i) == null ? 0L : (Long) sizes.get(i));
+        }
+        for (int i = 0; i < compiled.getRanges().size(); i++) {
+            final Object size = sizes.get(keys.size() + i);
+            cardinality.put(compiled.getRanges().get(i).toString(), size == null ? 0L : (Long) size);
+        }
+        return cardinality;
+    }
+
+    /**
+     * 计划中需要获取集合大小的 key, 包括尚未展开的多词排除条件的 posting
+     */
+    static List<String> keys(QueryPlan compiled) {
+        return Stream.concat(Stream.of(compiled.getUnionIdx(), compiled.getIntersectIdx(), compiled.getDiffIdx()),
+                compiled.getExclusions().stream())
+                .flatMap(List::stream).distinct().collect(Collectors.toList());
+    }
+
+    /**
+     * 根据集合大小排列交集和区间的顺序并选择执行策略
+     *
+     * 最小的是 intersect 集合时逐个检查成员 (区间通过 ZMSCORE 检查), 否则区间在服务端过滤中间结果或展开为临时集合
+     *
+     * @param compiled    {@link #compile(String, String, ParsedQuery)} 的结果
+     * @param cardinality key -> 集合大小, 包含 {@link #keys(QueryPlan)} 的所有 key 和所有区间
+     */
+    QueryPlan plan(QueryPlan compiled, Map<String, Long> cardinality) {
+
+        final List<String> intersectIdx = compiled.getIntersectIdx().stream()
+                .sorted(Comparator.comparingLong(cardinality::get)).collect(Collectors.toList());
+        final List<QueryPlan.ScoreRange> ranges = compiled.getRanges().stream()
+                .sorted(Comparator.comparingLong(range -> cardinality.get(range.toString())))
+                .collect(Collectors.toList());
+        final long unionSize = compiled.getUnionIdx().stream().mapToLong(cardinality::get).sum();
+        final long smallest = Math.min(Math.min(
+                intersectIdx.isEmpty() ? Long.MAX_VALUE : cardinality.get(intersectIdx.get(0)),
+                compiled.getUnionIdx().isEmpty() ? Long.MAX_VALUE : unionSize),
+                ranges.isEmpty() ? Long.MAX_VALUE : cardinality.get(ranges.get(0).toString()));
+
+        if (smallest == 0L) {
+            return new QueryPlan(compiled.getUnionIdx(), intersectIdx, compiled.getDiffIdx(), ranges,
+                    compiled.getPrefixes(), compiled.getExclusions(), QueryPlan.Strategy.EMPTY, cardinality, 0L);
+        }
+
+        final int others = intersectIdx.size() - 1 + compiled.getUnionIdx().size() + compiled.getDiffIdx().size()
+                + ranges.size();
+        final boolean membership = !intersectIdx.isEmpty() && smallest == cardinality.get(intersectIdx.get(0))
+                && smallest <= this.redisSearchConfiguration.getPlanner().getMembershipThreshold();
+        final long cost = membership ? smallest * (1 + others)
+                : unionSize + smallest * (intersectIdx.size() + compiled.getDiffIdx().size() + ranges.size()
+                        + (compiled.getUnionIdx().isEmpty() ? 0 : 1));
+
+        return new QueryPlan(compiled.getUnionIdx(), intersectIdx, compiled.getDiffIdx(), ranges,
+                compiled.getPrefixes(), compiled.getExclusions(),
+                membership ? QueryPlan.Strategy.MEMBERSHIP : QueryPlan.Strategy.SET_ALGEBRA, cardinality, cost);
+    }
+
+    /**
+     * 页较小且只按一个字段排序时, 把 {@link QueryPlan.Strategy#SET_ALGEBRA} 改为 {@link QueryPlan.Strategy#TOP_K}
+     *
+     * @param sortWeights 排序 zset -> 权重, 多个字段加权排序时需要完整的 ZINTERSTORE
+     * @param stop        页的结束位置, 为 null 或负数时需要读取全部结果
+     */
+    QueryPlan sorted(QueryPlan plan, Map<String, Integer> sortWeights, Integer start, Integer stop) {
+        final int topK = this.redisSearchConfiguration.getPlanner().getTopK();
+        if (plan.getStrategy() != QueryPlan.Strategy.SET_ALGEBRA || sortWeights.size() != 1 || stop == null
+                || stop < 0 || stop >= topK || (start != null && start < 0)) {
+            return plan;
+        }
+        return new QueryPlan(plan.getUnionIdx(), plan.getIntersectIdx(), plan.getDiffIdx(), plan.getRanges(),
+                plan.getPrefixes(), plan.getExclusions(), QueryPlan.Strategy.TOP_K, plan.getCardinality(),
+                plan.getEstimatedCost());
+    }
+}
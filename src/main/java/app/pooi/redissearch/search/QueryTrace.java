@@ -0,0 +1,149 @@
+package app.pooi.redissearch.search;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 一次查询请求的各阶段统计, 由 {@link SearchMetrics#trace} 绑定到当前线程
+ *
+ * 每个阶段是一次 redis 往返 (单条命令、pipeline 或脚本), 分片查询时由 {@link IndexShards#scatter} 传递到工作线程,
+ * 各分片的统计累加在一起. 当前线程没有绑定时所有方法都不做记录
+ */
+final class QueryTrace {
+
+    private static final ThreadLocal<QueryTrace> CURRENT = new ThreadLocal<>();
+
+    private final String index;
+
+    private final long started = System.nanoTime();
+
+    /**
+     * 阶段名称 -> 耗时(纳秒)
+     */
+    private final Map<String, LongAdder> stages = new ConcurrentHashMap<>();
+
+    private final LongAdder roundTrips = new LongAdder();
+
+    private final LongAdder tempKeys = new LongAdder();
+
+    private final LongAdder results = new LongAdder();
+
+    /**
+     * 查询涉及的 posting 集合大小
+     */
+    private final Queue<Long> postings = new ConcurrentLinkedQueue<>();
+
+    QueryTrace(String index) {
+        this.index = index;
+    }
+
+    static QueryTrace current() {
+        return CURRENT.get();
+    }
+
+    static void bind(QueryTrace trace) {
+        if (trace == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(trace);
+        }
+    }
+
+    /**
+     * 执行一次 redis 往返并记录到当前线程的统计
+     *
+     * @param stage 阶段名称, 如 meta, plan, union, intersect, diff, card, sort, range, script
+     */
+    static <T> T stage(String stage, Supplier<T> roundTrip) {
+        final QueryTrace trace = CURRENT.get();
+        if (trace == null) {
+            return roundTrip.get();
+        }
+        final long start = System.nanoTime();
+        try {
+            return roundTrip.get();
+        } finally {
+            trace.stages.computeIfAbsent(stage, s -> new LongAdder()).add(System.nanoTime() - start);
+            trace.roundTrips.increment();
+        }
+    }
+
+    static void tempKeys(int count) {
+        final QueryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.tempKeys.add(count);
+        }
+    }
+
+    static void results(long count) {
+        final QueryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.results.add(count);
+        }
+    }
+
+    static void postings(Map<String, Long> cardinality) {
+        final QueryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.postings.addAll(cardinality.values());
+        }
+    }
+
+    /**
+     * 在其他线程执行时沿用调用线程的统计
+     */
+    static <T, R> Function<T, R> propagate(Function<T, R> function) {
+        final QueryTrace trace = CURRENT.get();
+        if (trace == null) {
+            return function;
+        }
+        return t -> {
+            final QueryTrace previous = CURRENT.get();
+            CURRENT.set(trace);
+            try {
+                return function.apply(t);
+            } finally {
+                bind(previous);
+            }
+        };
+    }
+
+    String getIndex() {
+        return index;
+    }
+
+    long elapsed() {
+        return System.nanoTime() - this.started;
+    }
+
+    /**
+     * 阶段名称 -> 耗时(纳秒), 按名称排序
+     */
+    Map<String, Long> stages() {
+        final Map<String, Long> stages = new TreeMap<>();
+        this.stages.forEach((stage, nanos) -> stages.put(stage, nanos.sum()));
+        return stages;
+    }
+
+    long roundTrips() {
+        return this.roundTrips.sum();
+    }
+
+    long tempKeys() {
+        return this.tempKeys.sum();
+    }
+
+    long results() {
+        return this.results.sum();
+    }
+
+    Iterable<Long> postings() {
+        return this.postings;
+    }
+}
@@ -0,0 +1,533 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import app.pooi.redissearch.search.tokenizer.Tokenizers;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ArrayUtils;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static app.pooi.redissearch.search.SearchCore.Util.*;
+
+/**
+ * 基于 {@link ReactiveStringRedisTemplate} 的非阻塞索引和查询
+ *
+ * 与 {@link SearchCore} 共用 key 结构、查询计划、脚本和本地查询缓存; 相互独立的步骤 (字段元信息和索引代数、
+ * 各 key 的集合大小、各分片的查询) 并发执行, 等待 redis 时不占用线程
+ */
+@Slf4j
+@RestController
+@Service
+public class ReactiveSearchCore {
+
+    private final ReactiveStringRedisTemplate reactiveRedisTemplate;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final SearchCore searchCore;
+    private final QueryCache queryCache;
+    private final IndexMetaRegistry indexMetaRegistry;
+    private final Tokenizers tokenizers;
+    private final QueryPlanner queryPlanner;
+    private final IndexShards indexShards;
+    private final PostingCache postingCache;
+    private final KeyLayouts keyLayouts;
+    private final IndexAliases indexAliases;
+
+    public ReactiveSearchCore(ReactiveStringRedisTemplate reactiveRedisTemplate,
+            RedisSearchConfiguration redisSearchConfiguration, SearchCore searchCore, QueryCache queryCache,
+            IndexMetaRegistry indexMetaRegistry, Tokenizers tokenizers, QueryPlanner queryPlanner,
+            IndexShards indexShards, PostingCache postingCache, KeyLayouts keyLayouts, IndexAliases indexAliases) {
+        this.reactiveRedisTemplate = reactiveRedisTemplate;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.searchCore = searchCore;
+        this.queryCache = queryCache;
+        this.indexMetaRegistry = indexMetaRegistry;
+        this.tokenizers = tokenizers;
+        this.queryPlanner = queryPlanner;
+        this.indexShards = indexShards;
+        this.postingCache = postingCache;
+        this.keyLayouts = keyLayouts;
+        this.indexAliases = indexAliases;
+    }
+
+    /**
+     * 索引字段元信息, 本地没有缓存时异步读取 redis 并放入 {@link IndexMetaRegistry}
+     *
+     * @param index indexName
+     * @return field meta info map, 索引不存在时为空
+     */
+    public Mono<Map<String, FieldMeta>> fieldMeta(String index) {
+        final Map<String, FieldMeta> cached = this.indexMetaRegistry.getIfPresent(index);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        return this.reactiveRedisTemplate.<String, Object>opsForHash()
+                .entries(genIdxMetaName(this.redisSearchConfiguration.getPrefix(), index))
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .map(hash -> this.indexMetaRegistry.load(index, hash));
+    }
+
+    /**
+     * 查询使用的 key 布局, 本地没有缓存布局状态或字段id时在 elastic 线程读取, 见 {@link KeyLayouts#read(String)}
+     */
+    private Mono<IndexKeys> readLayout(String index) {
+        final IndexKeys cached = this.keyLayouts.readIfPresent(index);
+        return cached != null ? Mono.just(cached)
+                : Mono.fromCallable(() -> this.keyLayouts.read(index)).subscribeOn(Schedulers.elastic());
+    }
+
+    /**
+     * 查询使用的版本, 本地没有缓存时在 elastic 线程读取, 见 {@link IndexAliases#read(String)}
+     */
+    private Mono<String> readVersion(String index) {
+        final String cached = this.indexAliases.readIfPresent(index);
+        return cached != null ? Mono.just(cached)
+                : Mono.fromCallable(() -> this.indexAliases.read(index)).subscribeOn(Schedulers.elastic());
+    }
+
+    /**
+     * 写入使用的版本, 见 {@link IndexAliases#writes(String)}
+     */
+    private Flux<String> writeVersions(String index) {
+        final List<String> cached = this.indexAliases.writesIfPresent(index);
+        return cached != null ? Flux.fromIterable(cached)
+                : Mono.fromCallable(() -> this.indexAliases.writes(index)).subscribeOn(Schedulers.elastic())
+                        .flatMapIterable(Function.identity());
+    }
+
+    /**
+     * 写入使用的 key 布局, 见 {@link KeyLayouts#writes(String, Collection)}
+     */
+    private Mono<List<IndexKeys>> writeLayouts(String index, Collection<String> fields) {
+        final List<IndexKeys> cached = this.keyLayouts.writesIfPresent(index, fields);
+        return cached != null ? Mono.just(cached)
+                : Mono.fromCallable(() -> this.keyLayouts.writes(index, fields)).subscribeOn(Schedulers.elastic());
+    }
+
+    /**
+     * 为文档字段创建反向索引, 见 {@link SearchCore#indexDocument(String, String, String, String)}
+     *
+     * 各个 SADD 并发发出, 全部完成后索引代数自增
+     *
+     * @return 执行的命令数量
+     */
+    @PostMapping("/reactive/index")
+    public Mono<Long> indexDocument(final String index, final String field, final String documentId,
+            final String document) {
+        return this.writeVersions(index).flatMap(version -> this.writeDocument(version, field, documentId, document))
+                .reduce(0L, Long::sum);
+    }
+
+    private Mono<Long> writeDocument(final String index, final String field, final String documentId,
+            final String document) {
+        final String shard = this.indexShards.shardOf(index, documentId);
+
+        return this.fieldMeta(index).flatMap(meta -> {
+            final List<String> tokens = this.tokenizers.forField(meta.get(field)).tokenize(document);
+            if (tokens.isEmpty()) {
+                return Mono.just(0L);
+            }
+            final List<String> terms = this.tokenizers.prefixTerms(meta.get(field), document);
+            final List<String> fields = new ArrayList<>(Collections.singletonList(field));
+            if (!terms.isEmpty()) {
+                fields.addAll(IndexKeys.termFields(field));
+            }
+            final boolean scored = meta.get(field) != null && "true".equals(meta.get(field).getScored());
+            if (scored) {
+                fields.addAll(IndexKeys.scoredFields(field));
+            }
+            return this.writeLayouts(index, fields).flatMap(layouts -> this.writeDocument(layouts, shard, field,
+                    documentId, tokens, terms).flatMap(count -> !scored ? Mono.just(count)
+                            : this.writeScores(layouts, field, documentId,
+                                    this.tokenizers.frequencies(meta.get(field), document)).thenReturn(count)));
+        });
+    }
+
+    /**
+     * 写入评分 posting, 见 {@link SearchCore#writeScores}
+     */
+    private Mono<Void> writeScores(final List<IndexKeys> layouts, final String field, final String documentId,
+            final Map<String, Integer> frequencies) {
+        return Flux.fromIterable(layouts).concatMap(keys -> this.reactiveRedisTemplate.execute(SearchScripts.SCORED,
+                this.searchCore.scoredScriptKeys(keys, field, documentId, frequencies),
+                this.searchCore.scoredScriptArgs(keys, field, documentId, frequencies))).then();
+    }
+
+    /**
+     * 在写入的 key 布局上写入反向索引和前缀索引
+     */
+    private Mono<Long> writeDocument(final List<IndexKeys> layouts, final String shard, final String field,
+            final String documentId, final List<String> tokens, final List<String> terms) {
+        final List<String> idxs = new ArrayList<>();
+        final Flux<Long> writes = Flux.fromIterable(layouts).flatMap(keys -> {
+            final List<String> postings = tokens.stream().map(word -> keys.posting(shard, field, word))
+                    .collect(Collectors.toList());
+            idxs.addAll(postings);
+            return Flux.fromIterable(postings)
+                    .flatMap(idx -> this.reactiveRedisTemplate.opsForSet().add(idx, documentId))
+                    .mergeWith(this.reactiveRedisTemplate.opsForSet().add(keys.document(shard, documentId),
+                            postings.stream().map(idx -> keys.member(shard, idx)).toArray(String[]::new)))
+                    // 前缀索引的词, 见 SearchCore#writeTerms
+                    .mergeWith(terms.isEmpty() ? Flux.empty() : this.reactiveRedisTemplate.execute(SearchScripts.TERMS,
+                            this.searchCore.termsScriptKeys(keys, shard, field, documentId, terms),
+                            this.searchCore.termsScriptArgs(keys, shard, field, documentId, terms)));
+        });
+        return this.bumpGeneration(writes, shard).flatMap(count -> this.invalidate(idxs).thenReturn(count));
+    }
+
+    /**
+     * 为文档字段创建排序索引, 见 {@link SearchCore#indexSortField(String, String, String, Double)}
+     *
+     * @return 执行的命令数量
+     */
+    public Mono<Long> indexSortField(final String index, final String field, final String documentId,
+            final Double document) {
+        return this.writeVersions(index).flatMap(version -> this.writeSortField(version, field, documentId, document))
+                .reduce(0L, Long::sum);
+    }
+
+    private Mono<Long> writeSortField(final String index, final String field, final String documentId,
+            final Double document) {
+        final String shard = this.indexShards.shardOf(index, documentId);
+
+        return this.writeLayouts(index, Collections.singleton(field)).flatMap(layouts -> this.bumpGeneration(
+                Flux.fromIterable(layouts).flatMap(keys -> {
+                    final String idxName = keys.sort(shard, field);
+                    return Flux.<Object>merge(
+                            this.reactiveRedisTemplate.opsForZSet().add(idxName, documentId, document),
+                            this.reactiveRedisTemplate.opsForSet().add(keys.document(shard, documentId),
+                                    keys.member(shard, idxName)));
+                }), shard));
+    }
+
+    /**
+     * 写入全部完成后分片代数自增, 使已缓存的查询结果失效
+     */
+    private Mono<Long> bumpGeneration(Flux<?> writes, String shard) {
+        return writes.count().flatMap(count -> this.reactiveRedisTemplate.opsForValue()
+                .increment(genIdxGenName(this.redisSearchConfiguration.getPrefix(), shard)).thenReturn(count + 1));
+    }
+
+    /**
+     * 写入生效后失效本地位图缓存并通知其他节点, 见 {@link PostingCache#invalidate}
+     */
+    private Mono<Long> invalidate(List<String> keys) {
+        if (!this.postingCache.isEnabled()) {
+            return Mono.just(0L);
+        }
+        this.postingCache.invalidate(keys, Collections.emptyList());
+        return this.reactiveRedisTemplate.convertAndSend(
+                genPostingChannelName(this.redisSearchConfiguration.getPrefix()),
+                PostingCache.message(keys, Collections.emptyList()));
+    }
+
+    /**
+     * 索引当前代数, 各分片并发读取后求和, 见 {@link SearchCore#generation(String)}
+     */
+    public Mono<Long> generation(String index) {
+        return Flux.fromIterable(this.indexShards.shards(index))
+                .flatMap(shard -> this.reactiveRedisTemplate.opsForValue()
+                        .get(genIdxGenName(this.redisSearchConfiguration.getPrefix(), shard)))
+                .map(Long::parseLong).reduce(0L, Long::sum);
+    }
+
+    /**
+     * 解析并生成查询计划, 各 key 的集合大小并发获取, 见 {@link QueryPlanner#plan(String, String, String)}
+     */
+    public Mono<QueryPlan> plan(String index, String shard, String query) {
+        return this.fieldMeta(index)
+                .flatMap(meta -> this.readLayout(index).flatMap(keys -> this.plan(shard, meta, keys, query)));
+    }
+
+    private Mono<QueryPlan> plan(String shard, Map<String, FieldMeta> meta, IndexKeys layout, String query) {
+        final QueryPlan compiled = this.queryPlanner.compile(shard, this.queryPlanner.parse(query), meta, layout);
+        if (compiled.getPrefixes().isEmpty() && compiled.getExclusions().isEmpty()) {
+            return this.plan(compiled);
+        }
+        // 先取普通条件的集合大小, 有必要条件为空时不再展开, 见 QueryPlanner#plan
+        return this.plan(compiled).flatMap(planned -> planned.isEmpty() ? Mono.just(planned)
+                : this.expand(shard, compiled).flatMap(this::plan));
+    }
+
+    /**
+     * 前缀条件和多词排除条件并发展开为临时集合, 见 {@link QueryPlanner#expand(String, QueryPlan)}
+     */
+    private Mono<QueryPlan> expand(String shard, QueryPlan compiled) {
+        final Mono<List<String>> prefixes = Flux.fromIterable(compiled.getPrefixes()).flatMapSequential(prefix -> {
+            final String destKey = genQueryIdxName(this.redisSearchConfiguration.getPrefix(), shard);
+            return this.reactiveRedisTemplate.execute(SearchScripts.PREFIX, Arrays.asList(prefix.getKey(), destKey),
+                    this.queryPlanner.prefixArgs(prefix)).next().flatMap(size -> size < 0
+                            ? Mono.error(this.queryPlanner.tooManyTerms(prefix)) : Mono.just(size > 0 ? destKey : ""));
+        }).collectList();
+        final Mono<List<String>> exclusions = Flux.fromIterable(compiled.getExclusions()).flatMapSequential(
+                postings -> this.store(shard, postings, this.reactiveRedisTemplate.opsForSet()::intersectAndStore))
+                .collectList();
+        return Mono.zip(prefixes, exclusions)
+                .map(keys -> this.queryPlanner.expanded(compiled, keys.getT1(), keys.getT2()));
+    }
+
+    private Mono<QueryPlan> plan(QueryPlan compiled) {
+        if (compiled.isEmpty() || !this.redisSearchConfiguration.getPlanner().isEnabled()) {
+            return Mono.just(compiled);
+        }
+
+        final List<String> keys = QueryPlanner.keys(compiled);
+        return Flux.fromIterable(keys).flatMapSequential(key -> this.reactiveRedisTemplate.opsForSet().size(key))
+                .concatWith(Flux.fromIterable(compiled.getRanges()).flatMapSequential(range -> this
+                        .reactiveRedisTemplate.opsForZSet()
+                        .count(range.getKey(), new Range<>(range.lower(), range.upper()))))
+                .collectList().map(sizes -> {
+                    final Map<String, Long> cardinality = new LinkedHashMap<>();
+                    for (int i = 0; i < keys.size(); i++) {
+                        cardinality.put(keys.get(i), sizes.get(i));
+                    }
+                    for (int i = 0; i < compiled.getRanges().size(); i++) {
+                        cardinality.put(compiled.getRanges().get(i).toString(), sizes.get(keys.size() + i));
+                    }
+                    return this.queryPlanner.plan(compiled, cardinality);
+                });
+    }
+
+    /**
+     * 执行查询, 返回保存结果集合的临时 key, 见 {@link SearchCore#query(String, String)}
+     */
+    public Mono<String> query(String index, String query) {
+        if (this.indexShards.isSharded()) {
+            return Mono.error(
+                    new IllegalStateException("index " + index + " is sharded, query each shard by queryAndSort"));
+        }
+        return this.readVersion(index).flatMap(version -> this.fieldMeta(version)
+                .flatMap(meta -> this.readLayout(version).flatMap(keys -> this.query(version, meta, keys, query))));
+    }
+
+    private Mono<String> query(String shard, Map<String, FieldMeta> meta, IndexKeys layout, String query) {
+        return this.plan(shard, meta, layout, query).flatMap(plan -> {
+            if (plan.isEmpty()) {
+                return Mono.just("");
+            }
+
+            // union
+            final Mono<List<String>> intersectIdx = plan.getUnionIdx().isEmpty() ? Mono.just(plan.getIntersectIdx())
+                    : this.store(shard, plan.getUnionIdx(), this.reactiveRedisTemplate.opsForSet()::unionAndStore)
+                            .map(unionResultId -> Stream.concat(plan.getIntersectIdx().stream(),
+                                    Stream.of(unionResultId)).collect(Collectors.toList()));
+
+            // intersect, 只有区间条件时为 ""
+            Mono<String> intersectResult = intersectIdx.flatMap(keys -> keys.isEmpty() ? Mono.just("")
+                    : this.store(shard, keys, this.reactiveRedisTemplate.opsForSet()::intersectAndStore));
+
+            // range
+            for (QueryPlan.ScoreRange range : plan.getRanges()) {
+                intersectResult = intersectResult.flatMap(source -> this.scoreRange(shard, range, source));
+            }
+
+            // diff
+            return plan.getDiffIdx().isEmpty() ? intersectResult
+                    : intersectResult.flatMap(result -> this.store(shard,
+                            Stream.concat(Stream.of(result), plan.getDiffIdx().stream()).collect(Collectors.toList()),
+                            this.reactiveRedisTemplate.opsForSet()::differenceAndStore));
+        });
+    }
+
+    private Mono<String> store(String shard, List<String> keys, SetStore operation) {
+        final String destKey = genQueryIdxName(this.redisSearchConfiguration.getPrefix(), shard);
+        return operation.store(keys.get(0), keys.subList(1, keys.size()), destKey)
+                .then(this.reactiveRedisTemplate.expire(destKey,
+                        Duration.ofSeconds(this.redisSearchConfiguration.getQuery().getTtl())))
+                .thenReturn(destKey);
+    }
+
+    /**
+     * 按分数区间过滤, 见 {@link SearchCore#scoreRange}
+     *
+     * @param source 被过滤的集合, 为 "" 时取区间内的所有成员
+     */
+    private Mono<String> scoreRange(String shard, QueryPlan.ScoreRange range, String source) {
+        final String destKey = genQueryIdxName(this.redisSearchConfiguration.getPrefix(), shard);
+        final List<String> keys = source.isEmpty() ? Arrays.asList(destKey, range.getKey())
+                : Arrays.asList(destKey, range.getKey(), source);
+        return this.reactiveRedisTemplate.execute(SearchScripts.RANGE, keys, Arrays.asList(range.getMin(),
+                range.getMax(), String.valueOf(this.redisSearchConfiguration.getQuery().getTtl())))
+                .then(Mono.just(destKey));
+    }
+
+    @FunctionalInterface
+    private interface SetStore {
+        Mono<Long> store(String key, Collection<String> otherKeys, String destKey);
+    }
+
+    /**
+     * 查询并排序分页, 见 {@link SearchCore#queryAndSort(String, String, String, Integer, Integer)}
+     *
+     * 字段元信息与索引代数并发读取, 各分片的查询并发执行后归并
+     */
+    @GetMapping("/reactive/query/{index}")
+    public Mono<Set<String>> queryAndSort(@PathVariable("index") String index, @RequestParam("param") String query,
+            @RequestParam("sort") String sort, Integer start, Integer stop) {
+        return this.readVersion(index).flatMap(version -> this.queryVersion(version, query, sort, start, stop));
+    }
+
+    private Mono<Set<String>> queryVersion(String index, String query, String sort, Integer start, Integer stop) {
+        final boolean cached = this.redisSearchConfiguration.getCache().isEnabled();
+
+        final Mono<Tuple2<Map<String, FieldMeta>, IndexKeys>> meta = this.fieldMeta(index)
+                .flatMap(fields -> this.readLayout(index).map(keys -> Tuples.of(fields, keys)));
+        return Mono.zip(meta, cached ? this.generation(index) : Mono.just(0L)).flatMap(t -> {
+            if (!cached) {
+                return this.scatterQuery(index, t.getT1().getT1(), t.getT1().getT2(), query, sort, start, stop, null);
+            }
+
+            final String resultId = QueryCache.resultId(t.getT2(), this.searchCore.canonicalQuery(query, sort));
+            final String pageKey = genQueryIdxName(this.redisSearchConfiguration.getPrefix(), index, resultId) + ":"
+                    + start + ":" + stop;
+            final Set<String> page = this.queryCache.get(pageKey);
+            if (page != null) {
+                return Mono.just(page);
+            }
+            return this.scatterQuery(index, t.getT1().getT1(), t.getT1().getT2(), query, sort, start, stop, resultId)
+                    .doOnNext(result -> this.queryCache.put(pageKey, result));
+        });
+    }
+
+    private Mono<Set<String>> scatterQuery(String index, Map<String, FieldMeta> meta, IndexKeys layout, String query,
+            String sort, Integer start, Integer stop, String resultId) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final Function<String, String> resultKey = shard -> resultId == null ? genQueryIdxName(prefix, shard)
+                : genQueryIdxName(prefix, shard, resultId);
+
+        if (!this.indexShards.isSharded()) {
+            return this.queryAndSort(index, meta, layout, query, this.searchCore.sortWeights(layout, index, sort), start,
+                    stop, false, resultKey.apply(index)).map(ZSetOperations.TypedTuple::getValue)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+        }
+
+        final long offset = start == null ? 0 : start;
+        final long end = stop == null ? -1 : stop;
+        final boolean sorted = Arrays.stream(sort.split(" ")).anyMatch(f -> !f.isEmpty());
+        return Flux.fromIterable(this.indexShards.shards(index))
+                .flatMapSequential(shard -> this.queryAndSort(shard, meta, layout, query,
+                        this.searchCore.sortWeights(layout, shard, sort), 0, (int) end, true, resultKey.apply(shard))
+                        .collectList(), this.redisSearchConfiguration.getCluster().getParallelism())
+                .collectList()
+                .map(pages -> PageMerger.merge(pages, SearchCore.pageOrder(sorted), offset, end).stream()
+                        .map(ZSetOperations.TypedTuple::getValue)
+                        .collect(Collectors.toCollection(LinkedHashSet::new)));
+    }
+
+    private Flux<ZSetOperations.TypedTuple<String>> queryAndSort(String shard, Map<String, FieldMeta> meta,
+            IndexKeys layout, String query, Map<String, Integer> map, Integer start, Integer stop, boolean withScores,
+            String resultId) {
+        if (this.redisSearchConfiguration.getQuery().isScript()) {
+            return this.queryAndSortByScript(shard, meta, layout, query, map, start, stop, withScores, resultId)
+                    .onErrorResume(DataAccessException.class, e -> {
+                        log.warn("script query on {} failed, fallback to commands", shard, e);
+                        return this.queryAndSortByCommands(shard, meta, layout, query, map, start, stop, withScores,
+                                resultId);
+                    });
+        }
+        return this.queryAndSortByCommands(shard, meta, layout, query, map, start, stop, withScores, resultId);
+    }
+
+    /**
+     * 与 {@link SearchCore} 相同, 按计划选择 {@link SearchScripts#QUERY} 或 {@link SearchScripts#QUERY_MEMBERS}
+     */
+    private Flux<ZSetOperations.TypedTuple<String>> queryAndSortByScript(String shard, Map<String, FieldMeta> meta,
+            IndexKeys layout, String query, Map<String, Integer> sortWeights, Integer start, Integer stop,
+            boolean withScores, String resultId) {
+        return this.plan(shard, meta, layout, query).flatMapMany(planned -> {
+            if (planned.isEmpty()) {
+                return Flux.empty();
+            }
+            final QueryPlan plan = this.queryPlanner.sorted(planned, sortWeights, start, stop);
+            final boolean membership = plan.getStrategy() == QueryPlan.Strategy.MEMBERSHIP;
+            final Flux<List<Object>> result = membership
+                    ? this.reactiveRedisTemplate.execute(SearchScripts.QUERY_MEMBERS,
+                            SearchCore.membershipScriptKeys(plan, sortWeights),
+                            SearchCore.membershipScriptArgs(plan, sortWeights, start, stop, withScores))
+                    : this.reactiveRedisTemplate.execute(SearchScripts.QUERY,
+                            this.searchCore.queryScriptKeys(shard, plan, sortWeights, resultId),
+                            this.searchCore.queryScriptArgs(plan, sortWeights, start, stop, withScores));
+
+            return result.flatMapIterable(values -> {
+                if (values.size() < 2) {
+                    return Collections.<ZSetOperations.TypedTuple<String>>emptyList();
+                }
+                if (!membership && this.redisSearchConfiguration.getCache().isEnabled()) {
+                    this.queryCache.recordRemote(Long.valueOf(1L).equals(values.get(1)));
+                }
+                return SearchCore.tuples(values, withScores && !sortWeights.isEmpty());
+            });
+        });
+    }
+
+    /**
+     * 不使用脚本时逐条发出命令: 集合运算, ZINTERSTORE 排序, 读取一页
+     */
+    private Flux<ZSetOperations.TypedTuple<String>> queryAndSortByCommands(String shard,
+            Map<String, FieldMeta> meta, IndexKeys layout, String query, Map<String, Integer> map, Integer start,
+            Integer stop, boolean withScores, String resultId) {
+        final long offset = start == null ? 0 : start;
+        final long end = stop == null ? -1 : stop;
+
+        final Mono<Boolean> reuse = this.redisSearchConfiguration.getCache().isEnabled()
+                ? this.reactiveRedisTemplate.hasKey(resultId).doOnNext(this.queryCache::recordRemote)
+                : Mono.just(false);
+
+        return reuse.flatMapMany(reused -> {
+            if (reused) {
+                return this.range(resultId, map.isEmpty(), offset, end, withScores);
+            }
+            return this.query(shard, meta, layout, query)
+                    .filterWhen(queryId -> queryId.isEmpty() ? Mono.just(false)
+                            : this.reactiveRedisTemplate.opsForSet().size(queryId).map(size -> size > 0))
+                    .flatMapMany(queryId -> {
+                        if (map.isEmpty()) {
+                            return this.reactiveRedisTemplate.rename(queryId, resultId)
+                                    .thenMany(this.range(resultId, true, offset, end, withScores));
+                        }
+
+                        final List<String> sortIdx = new ArrayList<>(map.keySet());
+                        final int[] weights = map.values().stream().mapToInt(Integer::intValue).toArray();
+                        return this.reactiveRedisTemplate.opsForZSet()
+                                .intersectAndStore(sortIdx.get(0),
+                                        Stream.concat(sortIdx.stream().skip(1L), Stream.of(queryId))
+                                                .collect(Collectors.toList()),
+                                        resultId, RedisZSetCommands.Aggregate.SUM,
+                                        RedisZSetCommands.Weights.of(ArrayUtils.add(weights, 0)))
+                                .then(this.reactiveRedisTemplate.expire(resultId,
+                                        Duration.ofSeconds(this.redisSearchConfiguration.getQuery().getTtl())))
+                                .thenMany(this.range(resultId, false, offset, end, withScores));
+                    });
+        });
+    }
+
+    /**
+     * 读取结果 key 的一页, 集合按字典序排序, zset 按分值排序
+     */
+    private Flux<ZSetOperations.TypedTuple<String>> range(String key, boolean alpha, long start, long stop,
+            boolean withScores) {
+        if (alpha) {
+            final Flux<String> members = this.reactiveRedisTemplate.opsForSet().members(key).sort().skip(start);
+            return (stop < 0 ? members : members.take(stop - start + 1)).map(m -> new DefaultTypedTuple<>(m, null));
+        }
+        final Range<Long> range = new Range<>(start, stop);
+        return withScores ? this.reactiveRedisTemplate.opsForZSet().rangeWithScores(key, range)
+                : this.reactiveRedisTemplate.opsForZSet().range(key, range).map(m -> new DefaultTypedTuple<>(m, null));
+    }
+}
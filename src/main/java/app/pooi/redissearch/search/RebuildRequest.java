@@ -0,0 +1,38 @@
+package app.pooi.redissearch.search;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 索引重建参数
+ */
+@Data
+public class RebuildRequest {
+
+    /**
+     * 源文档 hash 的 key 模式, 如 user:*. key 最后一个 : 之后为文档id, hash 的字段和值为文档字段
+     */
+    private String source;
+
+    /**
+     * 直接提供的文档, 与 source 二选一
+     */
+    private List<Document> documents;
+
+    /**
+     * 新版本的字段元信息, 覆盖当前版本的同名字段
+     */
+    private Map<String, FieldMeta> fields;
+
+    /**
+     * 每秒最多索引的文档数, 为空时使用配置 redis.search.rebuild.rate
+     */
+    private Double rate;
+
+    /**
+     * 并行提交的 pipeline 数, 为空时使用配置 redis.search.rebuild.parallelism
+     */
+    private Integer parallelism;
+}
@@ -0,0 +1,56 @@
+package app.pooi.redissearch.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 索引重建进度
+ */
+@Data
+@AllArgsConstructor
+public class RebuildStatus {
+
+    private String index;
+
+    /**
+     * 重建的版本号
+     */
+    private long version;
+
+    private State state;
+
+    /**
+     * 已读取的文档数
+     */
+    private long total;
+
+    private long indexed;
+
+    private long failed;
+
+    /**
+     * 已删除的旧版本 (失败时为新版本) key 数
+     */
+    private long deleted;
+
+    /**
+     * 失败原因
+     */
+    private String message;
+
+    public enum State {
+        /**
+         * 等待其他节点开始双写, 或正在写入新版本
+         */
+        BUILDING,
+        /**
+         * 别名已切换, 正在删除旧版本
+         */
+        DELETING,
+        DONE,
+        /**
+         * 别名未切换, 新版本已删除
+         */
+        FAILED
+    }
+}
@@ -3,27 +3,25 @@ package app.pooi.redissearch.search;
 import app.pooi.redissearch.configuration.RedisSearchConfiguration;
 import app.pooi.redissearch.search.anno.CreateIndex;
 import app.pooi.redissearch.search.anno.Field;
+import app.pooi.redissearch.search.tokenizer.Tokenizer;
+import app.pooi.redissearch.search.tokenizer.Tokenizers;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
 import org.apache.commons.lang3.ArrayUtils;
+import org.roaringbitmap.RoaringBitmap;
 import org.springframework.dao.DataAccessException;
 import org.springframework.data.redis.connection.RedisZSetCommands;
 import org.springframework.data.redis.core.*;
-import org.springframework.data.redis.hash.Jackson2HashMapper;
+import org.springframework.data.redis.core.query.SortQueryBuilder;
 import org.springframework.stereotype.Service;
 import org.springframework.web.bind.annotation.*;
-import reactor.util.function.Tuple2;
-import reactor.util.function.Tuples;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -36,7 +34,16 @@ public class SearchCore {
 
     private StringRedisTemplate redisTemplate;
     private RedisSearchConfiguration redisSearchConfiguration;
-    private Jackson2HashMapper hashMapper = new Jackson2HashMapper(true);
+    private QueryCache queryCache;
+    private IndexMetaRegistry indexMetaRegistry;
+    private Tokenizers tokenizers;
+    private QueryPlanner queryPlanner;
+    private IndexShards indexShards;
+    private PostingCache postingCache;
+    private SearchMetrics searchMetrics;
+    private KeyLayouts keyLayouts;
+    private IndexAliases indexAliases;
+
 
     @Data
     private static class Person {
@@ -47,35 +54,119 @@ public class SearchCore {
     }
 
     @PostMapping("/person")
-    @CreateIndex(index = "person", documentId = "#p0.id", fields = { @Field(propertyName = "name", value = "#p0.name"),
+    @CreateIndex(index = "person", documentId = "#p0.id", fields = {
+            @Field(propertyName = "name", value = "#p0.name", prefix = true, scored = true),
             @Field(propertyName = "age", value = "#p0.age", sort = true),
             @Field(propertyName = "ctime", value = "#p0.ctime", sort = true) })
     Person addPerson(Person person) {
         return person;
     }
 
-    public SearchCore(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration) {
+    public SearchCore(StringRedisTemplate redisTemplate, RedisSearchConfiguration redisSearchConfiguration,
+            QueryCache queryCache, IndexMetaRegistry indexMetaRegistry, Tokenizers tokenizers,
+            QueryPlanner queryPlanner, IndexShards indexShards, PostingCache postingCache,
+            SearchMetrics searchMetrics, KeyLayouts keyLayouts, IndexAliases indexAliases) {
         this.redisTemplate = redisTemplate;
         this.redisSearchConfiguration = redisSearchConfiguration;
+        this.queryCache = queryCache;
+        this.indexMetaRegistry = indexMetaRegistry;
+        this.tokenizers = tokenizers;
+        this.queryPlanner = queryPlanner;
+        this.indexShards = indexShards;
+        this.postingCache = postingCache;
+        this.searchMetrics = searchMetrics;
+        this.keyLayouts = keyLayouts;
+        this.indexAliases = indexAliases;
     }
 
     /**
      * 
-     * write index field meta infos
+     * write index field meta infos, see {@link IndexMetaRegistry#register(String, Map)}
      * 
      * @param index indexName
      * @param fieldMeta field meta info map
      */
     public void indexMeta(String index, Map<String, FieldMeta> fieldMeta) {
-        String idxMetaName = genIdxMetaName(this.redisSearchConfiguration.getPrefix(), index);
-        log.info("writing {} meta info...", idxMetaName);
-        this.redisTemplate.opsForHash().putAll(idxMetaName,
-                hashMapper.toHash(fieldMeta));
+        this.versionMeta(this.indexAliases.read(index), fieldMeta);
+    }
+
+    /**
+     * 写入索引某个版本的字段元信息, 新版本按配置创建 key 布局
+     *
+     * @param version 版本名称, 见 {@link IndexAliases}
+     */
+    void versionMeta(String version, Map<String, FieldMeta> fieldMeta) {
+        if (this.indexMetaRegistry.get(version).isEmpty()) {
+            this.keyLayouts.create(version);
+        }
+        this.indexMetaRegistry.register(version, fieldMeta);
+    }
+
+    /**
+     * read index field meta infos, see {@link IndexMetaRegistry#get(String)}
+     *
+     * @param index 版本名称, 见 {@link IndexAliases#read(String)}
+     * @return field meta info map
+     */
+    public Map<String, FieldMeta> fieldMeta(String index) {
+        return this.indexMetaRegistry.get(index);
     }
 
     @PostMapping("/index")
     public int indexDocument(final String index, final String field, final String documentId, final String document) {
-        return this.indexDocument(index, field, documentId, document, doc -> Lists.newArrayList(doc.split("")));
+        return this.searchMetrics.index("index", index, field, () -> this.indexAliases.writes(index).stream()
+                .mapToInt(version -> this.indexDocument(version, field, documentId,
+                        this.tokenizer(version, field).tokenize(document),
+                        this.prefixTerms(version, field, document), this.frequencies(version, field, document)))
+                .sum());
+    }
+
+    /**
+     * 字段使用的分词器, 由字段元信息中的 splitFun 决定, 索引和查询共用
+     *
+     * @param index 版本名称, 见 {@link IndexAliases}
+     * @param field 文档字段名称
+     */
+    public Tokenizer tokenizer(String index, String field) {
+        return this.tokenizers.forField(this.fieldMeta(index).get(field));
+    }
+
+    /**
+     * 字段是否开启了前缀索引, 见 {@link Field#prefix()}
+     *
+     * @param index 版本名称, 见 {@link IndexAliases}
+     */
+    boolean isPrefix(String index, String field) {
+        final FieldMeta meta = this.fieldMeta(index).get(field);
+        return meta != null && "true".equals(meta.getPrefix());
+    }
+
+    /**
+     * 文档字段写入前缀索引的词, 未开启前缀索引时为空
+     *
+     * @param index 版本名称, 见 {@link IndexAliases}
+     */
+    List<String> prefixTerms(String index, String field, String document) {
+        return this.tokenizers.prefixTerms(this.fieldMeta(index).get(field), document);
+    }
+
+    /**
+     * 字段是否开启了评分 posting, 见 {@link Field#scored()}
+     *
+     * @param index 版本名称, 见 {@link IndexAliases}
+     */
+    boolean isScored(String index, String field) {
+        final FieldMeta meta = this.fieldMeta(index).get(field);
+        return meta != null && "true".equals(meta.getScored());
+    }
+
+    /**
+     * 文档字段写入评分 posting 的词频, 未开启评分时为空
+     *
+     * @param index 版本名称, 见 {@link IndexAliases}
+     */
+    Map<String, Integer> frequencies(String index, String field, String document) {
+        return this.tokenizers.frequencies(this.fieldMeta(index).get(field), document);
     }
 
     /**
@@ -86,7 +177,7 @@ public class SearchCore {
      * 为了方便删除文档时清理反向索引增加第二个结构 <br>
      * 2. 该文档拥有哪些反向索引 documentId -> tokens(index)
      * 
-     * 
+     * 索引重建中时同时写入当前版本和重建版本, 见 {@link IndexAliases#writes(String)}
      * 
      * @param index      文档名称
      * @param field      文档字段名称
@@ -99,26 +190,163 @@ public class SearchCore {
             final Function<String, List<String>> tokenizer) {
 
         final List<String> tokens = tokenizer != null ? tokenizer.apply(document) : Collections.singletonList(document);
+        return this.searchMetrics.index("index", index, field, () -> this.indexAliases.writes(index).stream()
+                .mapToInt(version -> this.indexDocument(version, field, documentId, tokens,
+                        this.prefixTerms(version, field, document), this.frequencies(version, field, document)))
+                .sum());
+    }
 
-        final String docKey = genDocIdxName(this.redisSearchConfiguration.getPrefix(), index, documentId);
+    /**
+     * 在索引的一个版本上写入文档字段的反向索引和前缀索引, 开启评分时再写入评分 posting
+     */
+    private int indexDocument(final String index, final String field, final String documentId,
+            final List<String> tokens, final List<String> terms, final Map<String, Integer> frequencies) {
+        final List<IndexKeys> layouts = this.writeLayouts(index, Collections.singleton(field));
 
         final List<Object> results = redisTemplate.executePipelined(new SessionCallback<Integer>() {
             @Override
-            public Integer execute(RedisOperations operations) throws DataAccessException {
+            public <K, V> Integer execute(RedisOperations<K, V> operations) throws DataAccessException {
                 final StringRedisTemplate template = (StringRedisTemplate) operations;
-
-                final String[] idxs = tokens.stream()
-                        .map(word -> genIdxName(redisSearchConfiguration.getPrefix(), index, field, word))
-                        .peek(idx -> template.opsForSet().add(idx, documentId))
-                        .toArray(String[]::new);
-
-                template.opsForSet().add(docKey, idxs);
+                writeDocument(template, layouts, field, documentId, tokens);
+                writeTerms(template, layouts, field, documentId, terms);
+                bumpGeneration(template, index, documentId);
                 return null;
             }
         });
+        if (this.isScored(index, field)) {
+            this.writeScores(layouts, field, documentId, frequencies);
+        }
         return results.size();
     }
 
+    /**
+     * 写入索引使用的 key 布局, 需要在打开 pipeline 前获取, 见 {@link KeyLayouts#writes(String, Collection)}
+     *
+     * @param fields 将要写入的字段, 开启前缀索引或评分的字段同时包括其伪字段
+     */
+    List<IndexKeys> writeLayouts(String index, Collection<String> fields) {
+        final List<String> names = new ArrayList<>(fields);
+        fields.stream().filter(field -> this.isPrefix(index, field)).map(IndexKeys::termFields)
+                .forEach(names::addAll);
+        fields.stream().filter(field -> this.isScored(index, field)).map(IndexKeys::scoredFields)
+                .forEach(names::addAll);
+        return this.keyLayouts.writes(index, names);
+    }
+
+    /**
+     * 在当前 pipeline 中写入文档字段的反向索引, 见 {@link #indexDocument(String, String, String, String, Function)}
+     *
+     * @param layouts 见 {@link #writeLayouts(String, Collection)}
+     */
+    void writeDocument(final StringRedisTemplate template, final List<IndexKeys> layouts, final String field,
+            final String documentId, final List<String> tokens) {
+        for (IndexKeys keys : layouts) {
+            final String shard = this.indexShards.shardOf(keys.getIndex(), documentId);
+            final String[] idxs = tokens.stream()
+                    .map(word -> keys.posting(shard, field, word))
+                    .peek(idx -> template.opsForSet().add(idx, documentId))
+                    .toArray(String[]::new);
+
+            template.opsForSet().add(keys.document(shard, documentId),
+                    Arrays.stream(idxs).map(idx -> keys.member(shard, idx)).toArray(String[]::new));
+            this.postingCache.invalidate(template, Arrays.asList(idxs), Collections.emptyList());
+        }
+    }
+
+    /**
+     * 在当前 pipeline 中通过 {@link SearchScripts#TERMS} 写入文档字段的前缀索引: 词加入词表, 文档加入词的 posting
+     * 并记录在文档反向索引中, 新加入时词的文档数加一
+     *
+     * 词表只增不减, 文档删除后 posting 已为空的词在读取时移除 (见 {@link QueryPlanner#expand}) 或由 {@link IndexSweeper} 清理
+     *
+     * @param terms 见 {@link #prefixTerms(String, String, String)}, 为空时不写入
+     */
+    void writeTerms(final StringRedisTemplate template, final List<IndexKeys> layouts, final String field,
+            final String documentId, final List<String> terms) {
+        if (terms.isEmpty()) {
+            return;
+        }
+        for (IndexKeys keys : layouts) {
+            final String shard = this.indexShards.shardOf(keys.getIndex(), documentId);
+            template.execute((RedisCallback<Object>) connection -> {
+                SearchScripts.eval(connection, SearchScripts.TERMS, this.termsScriptKeys(keys, shard, field,
+                        documentId, terms), this.termsScriptArgs(keys, shard, field, documentId, terms));
+                return null;
+            });
+        }
+    }
+
+    /**
+     * {@link SearchScripts#TERMS} 的 KEYS: 词表, 词的文档数, 文档反向索引, 每个词的 posting
+     */
+    List<String> termsScriptKeys(IndexKeys keys, String shard, String field, String documentId, List<String> terms) {
+        final List<String> scriptKeys = Lists.newArrayList(keys.terms(shard, field), keys.termCounts(shard, field),
+                keys.document(shard, documentId));
+        terms.forEach(term -> scriptKeys.add(keys.termPosting(shard, field, term)));
+        return scriptKeys;
+    }
+
+    /**
+     * {@link SearchScripts#TERMS} 的 ARGV: 文档id, 每个词, 每个 posting 在反向索引中的成员
+     */
+    List<String> termsScriptArgs(IndexKeys keys, String shard, String field, String documentId, List<String> terms) {
+        final List<String> args = Lists.newArrayList(documentId);
+        args.addAll(terms);
+        terms.forEach(term -> args.add(keys.member(shard, keys.termPosting(shard, field, term))));
+        return args;
+    }
+
+    /**
+     * 词表 zset 的成员, 分值均为 0 以便按字典序查找
+     */
+    static Set<ZSetOperations.TypedTuple<String>> termTuples(Collection<String> terms) {
+        return terms.stream().<ZSetOperations.TypedTuple<String>>map(term -> new DefaultTypedTuple<>(term, 0D))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * 通过 {@link SearchScripts#SCORED} 写入文档字段的评分 posting, 字段值整体替换;
+     * 每种 key 布局一次往返, 不能在 pipeline 中执行
+     *
+     * 词频分量按写入时字段的平均长度计算, 之后平均长度的变化不会改写已有文档的分量
+     *
+     * @param frequencies 见 {@link #frequencies(String, String, String)}, 为空时移除文档在该字段上的评分 posting
+     */
+    void writeScores(final List<IndexKeys> layouts, final String field, final String documentId,
+            final Map<String, Integer> frequencies) {
+        for (IndexKeys keys : layouts) {
+            redisTemplate.execute(SearchScripts.SCORED, this.scoredScriptKeys(keys, field, documentId, frequencies),
+                    this.scoredScriptArgs(keys, field, documentId, frequencies).toArray());
+        }
+    }
+
+    /**
+     * {@link SearchScripts#SCORED} 的 KEYS: 文档反向索引, 代数, 文档长度 zset, 评分统计 hash, 每个词的评分 posting
+     */
+    List<String> scoredScriptKeys(IndexKeys keys, String field, String documentId,
+            Map<String, Integer> frequencies) {
+        final String shard = this.indexShards.shardOf(keys.getIndex(), documentId);
+        final List<String> scriptKeys = Lists.newArrayList(keys.document(shard, documentId),
+                genIdxGenName(this.redisSearchConfiguration.getPrefix(), shard), keys.lengths(shard, field),
+                keys.stats(shard, field));
+        frequencies.keySet().forEach(token -> scriptKeys.add(keys.scoredPosting(shard, field, token)));
+        return scriptKeys;
+    }
+
+    /**
+     * {@link SearchScripts#SCORED} 的 ARGV: 文档id, 反向索引成员省略的前缀, 评分 posting 的成员前缀, k1, b, 每个词的词频
+     */
+    List<String> scoredScriptArgs(IndexKeys keys, String field, String documentId,
+            Map<String, Integer> frequencies) {
+        final String shard = this.indexShards.shardOf(keys.getIndex(), documentId);
+        final RedisSearchConfiguration.Ranking conf = this.redisSearchConfiguration.getRanking();
+        final List<String> args = Lists.newArrayList(documentId, keys.base(shard),
+                keys.member(shard, keys.postingPrefix(shard, IndexKeys.scoredField(field))),
+                String.valueOf(conf.getK1()), String.valueOf(conf.getB()));
+        frequencies.values().forEach(tf -> args.add(String.valueOf(tf)));
+        return args;
+    }
+
     /**
      * 为文档字段创建排序索引
      * 
@@ -131,52 +359,246 @@ public class SearchCore {
      * @return
      */
     public int indexSortField(final String index, final String field, final String documentId, final Double document) {
+        return this.searchMetrics.index("sort", index, field, () -> this.indexAliases.writes(index).stream()
+                .mapToInt(version -> this.writeSortField(version, field, documentId, document)).sum());
+    }
 
-        final String docKey = genDocIdxName(this.redisSearchConfiguration.getPrefix(), index, documentId);
+    private int writeSortField(final String index, final String field, final String documentId,
+            final Double document) {
+        final List<IndexKeys> layouts = this.writeLayouts(index, Collections.singleton(field));
 
         final List<Object> results = redisTemplate.executePipelined(new SessionCallback<Integer>() {
             @Override
-            public Integer execute(RedisOperations operations) throws DataAccessException {
+            public <K, V> Integer execute(RedisOperations<K, V> operations) throws DataAccessException {
                 final StringRedisTemplate template = (StringRedisTemplate) operations;
-                final String idxName = genSortIdxName(redisSearchConfiguration.getPrefix(), index, field);
-                template.opsForZSet().add(idxName, documentId, document);
-                template.opsForSet().add(docKey, idxName);
+                writeSortField(template, layouts, field, documentId, document);
+                bumpGeneration(template, index, documentId);
                 return null;
             }
         });
         return results.size();
     }
 
+    /**
+     * 在当前 pipeline 中写入文档字段的排序索引, 见 {@link #indexSortField(String, String, String, Double)}
+     */
+    void writeSortField(final StringRedisTemplate template, final List<IndexKeys> layouts, final String field,
+            final String documentId, final Double document) {
+        for (IndexKeys keys : layouts) {
+            final String shard = this.indexShards.shardOf(keys.getIndex(), documentId);
+            final String idxName = keys.sort(shard, field);
+            template.opsForZSet().add(idxName, documentId, document);
+            template.opsForSet().add(keys.document(shard, documentId), keys.member(shard, idxName));
+        }
+    }
+
+    /**
+     * 索引所有分片的代数自增, 使该索引已缓存的查询结果失效
+     */
+    void bumpGeneration(final StringRedisTemplate template, final String index) {
+        this.indexShards.shards(index).forEach(shard -> template.opsForValue()
+                .increment(genIdxGenName(this.redisSearchConfiguration.getPrefix(), shard)));
+    }
+
+    /**
+     * 文档所在分片的代数自增
+     */
+    void bumpGeneration(final StringRedisTemplate template, final String index, final String documentId) {
+        template.opsForValue().increment(genIdxGenName(this.redisSearchConfiguration.getPrefix(),
+                this.indexShards.shardOf(index, documentId)));
+    }
+
     @DeleteMapping("/index")
     public int deleteDocumentIndex(final String index, final String documentId) {
-        final String docKey = genDocIdxName(this.redisSearchConfiguration.getPrefix(), index, documentId);
-        final Boolean hasKey = redisTemplate.hasKey(docKey);
-        if (!hasKey) {
-            return 0;
+        return this.deleteDocumentIndexes(index, Collections.singletonList(documentId));
+    }
+
+    /**
+     * 批量删除文档索引, 索引重建中时同时删除当前版本和重建版本
+     *
+     * @param index       文档名称
+     * @param documentIds 文档id
+     * @return 删除的文档数, 没有索引的文档不计入
+     */
+    @PostMapping("/index/{index}/delete")
+    public int deleteDocumentIndexes(@PathVariable("index") final String index,
+            @RequestBody final List<String> documentIds) {
+        return this.searchMetrics.index("delete", index, "*", () -> this.indexAliases.writes(index).stream()
+                .mapToInt(version -> this.deleteDocuments(version, documentIds)).max().orElse(0));
+    }
+
+    /**
+     * 在索引的一个版本上删除文档, 按分片分组后每 redis.search.delete.batch-size 个文档一次 {@link SearchScripts#DELETE}
+     */
+    private int deleteDocuments(final String index, final List<String> documentIds) {
+        final Map<String, FieldMeta> meta = this.fieldMeta(index);
+        final List<IndexKeys> layouts = this.writeLayouts(index, meta.keySet());
+        final List<String> scored = meta.keySet().stream().filter(field -> this.isScored(index, field))
+                .collect(Collectors.toList());
+        final List<String> prefixed = meta.keySet().stream().filter(field -> this.isPrefix(index, field))
+                .collect(Collectors.toList());
+        final Map<String, List<String>> shards = documentIds.stream().distinct().collect(Collectors
+                .groupingBy(documentId -> this.indexShards.shardOf(index, documentId), LinkedHashMap::new,
+                        Collectors.toList()));
+        final int batchSize = Math.max(1, this.redisSearchConfiguration.getDelete().getBatchSize());
+
+        int deleted = 0;
+        for (Map.Entry<String, List<String>> shard : shards.entrySet()) {
+            for (List<String> batch : Lists.partition(shard.getValue(), batchSize)) {
+                // 转换 key 布局期间文档在两种布局中各有一份
+                deleted += layouts.stream()
+                        .mapToInt(keys -> this.deleteDocuments(keys, shard.getKey(), scored, prefixed, batch))
+                        .max().orElse(0);
+            }
         }
+        return deleted;
+    }
 
-        final List<Object> results = redisTemplate.executePipelined(new SessionCallback<Integer>() {
-            @Override
-            public Integer execute(RedisOperations operations) throws DataAccessException {
-                final Set<String> idx = redisTemplate.opsForSet().members(docKey);
-                ((StringRedisTemplate) operations).delete(idx);
-                ((StringRedisTemplate) operations).delete(docKey);
-                return null;
+    /**
+     * 在一种 key 布局上删除一个分片的文档, 同时释放文档在 posting 缓存字典中的整数id;
+     * 开启 posting 缓存时失效脚本返回的 key 和释放的字典条目
+     *
+     * @param scored   开启评分的字段, 删除时从其评分统计中减去文档长度
+     * @param prefixed 开启前缀索引的字段, 删除时减少词的文档数
+     */
+    private int deleteDocuments(final IndexKeys layout, final String shard, final List<String> scored,
+            final List<String> prefixed, final List<String> documentIds) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final List<String> keys = Lists.newArrayList(genIdxGenName(prefix, shard), genDictName(prefix, shard),
+                genDictReverseName(prefix, shard), genDictFreeName(prefix, shard));
+        documentIds.forEach(documentId -> keys.add(layout.document(shard, documentId)));
+        scored.forEach(field -> keys.add(layout.stats(shard, field)));
+        prefixed.forEach(field -> keys.add(layout.termCounts(shard, field)));
+        final List<String> args = Lists.newArrayList(layout.base(shard), String.valueOf(documentIds.size()),
+                this.postingCache.isEnabled() ? "1" : "0",
+                String.valueOf(this.redisSearchConfiguration.getBitmap().getExpireAfterWrite()),
+                String.valueOf(scored.size()));
+        args.addAll(documentIds);
+        scored.forEach(field -> args.add(layout.member(shard, layout.lengths(shard, field))));
+        prefixed.forEach(field -> args.add(layout.member(shard, layout.termPosting(shard, field, ""))));
+
+        final List<Object> result = redisTemplate.execute(SearchScripts.DELETE, keys, args.toArray());
+        if (result == null || result.size() < 3) {
+            return 0;
+        }
+        final List<?> touched = (List<?>) result.get(1);
+        final List<?> freed = (List<?>) result.get(2);
+        if (!touched.isEmpty() || !freed.isEmpty()) {
+            final Map<String, String> released = new LinkedHashMap<>();
+            for (int i = 0; i + 1 < freed.size(); i += 2) {
+                released.put(String.valueOf(freed.get(i)), String.valueOf(freed.get(i + 1)));
             }
-        });
-        return results.size();
+            this.postingCache.invalidate(redisTemplate,
+                    touched.stream().map(String::valueOf).collect(Collectors.toSet()), Collections.emptyList(),
+                    shard, released);
+        }
+        return ((Number) result.get(0)).intValue();
     }
 
     @PatchMapping("/index")
     public int updateDocumentIndex(final String index, final String field, final String documentId,
             final String document) {
-        this.deleteDocumentIndex(index, documentId);
-        return this.indexDocument(index, field, documentId, document);
+        return this.updateDocument(index, documentId, Collections.singletonMap(field, document),
+                Collections.emptyMap());
     }
 
     public int updateSortField(final String index, final String field, final String documentId, final Double document) {
-        this.deleteDocumentIndex(index, documentId);
-        return this.indexSortField(index, field, documentId, document);
+        return this.updateDocument(index, documentId, Collections.emptyMap(),
+                Collections.singletonMap(field, document));
+    }
+
+    /**
+     * 增量更新文档索引
+     * 
+     * 从文档的反向索引读出字段当前的分词, 只删除不再出现的、添加新出现的, 排序值不变时不写入;
+     * 通过 {@link SearchScripts#UPDATE} 在服务端原子执行. 未出现在参数中的字段保持不变;
+     * 开启评分的字段之后再替换评分 posting, 见 {@link #writeScores}
+     * 
+     * @param index      文档名称
+     * @param documentId 文档id
+     * @param values     字段名称 -> 字段值
+     * @param scores     排序字段名称 -> 排序值
+     * @return 执行的修改数量, 没有变化时为 0
+     */
+    public int updateDocument(final String index, final String documentId, final Map<String, String> values,
+            final Map<String, Double> scores) {
+        final Set<String> fields = new LinkedHashSet<>(values.keySet());
+        fields.addAll(scores.keySet());
+
+        return this.searchMetrics.index("update", index, fields.size() == 1 ? fields.iterator().next() : "*",
+                () -> this.indexAliases.writes(index).stream().mapToInt(version -> {
+                    final Set<String> versionFields = new LinkedHashSet<>(fields);
+                    final Map<String, List<String>> tokens = new HashMap<>();
+                    values.forEach((field, document) -> {
+                        if (document != null) {
+                            tokens.put(field, this.tokenizer(version, field).tokenize(document));
+                            if (this.isPrefix(version, field)) {
+                                versionFields.add(IndexKeys.termField(field));
+                                tokens.put(IndexKeys.termField(field), this.prefixTerms(version, field, document));
+                            }
+                        }
+                    });
+                    final List<IndexKeys> layouts = this.writeLayouts(version, fields);
+                    final int changed = layouts.stream().mapToInt(
+                            keys -> this.updateDocument(keys, documentId, versionFields, tokens, scores)).sum();
+                    values.forEach((field, document) -> {
+                        if (document != null && this.isScored(version, field)) {
+                            this.writeScores(layouts, field, documentId, this.frequencies(version, field, document));
+                        }
+                    });
+                    return changed;
+                }).sum());
+    }
+
+    /**
+     * 在一种 key 布局上执行 {@link SearchScripts#UPDATE}, 前缀索引的伪字段与普通字段相同地更新 posting 并维护词的文档数,
+     * 新的词再加入词表
+     *
+     * @param tokens 字段名称 -> 新的分词, 不更新反向索引的字段不在其中
+     */
+    private int updateDocument(final IndexKeys layout, final String documentId, final Set<String> fields,
+            final Map<String, List<String>> tokens, final Map<String, Double> scores) {
+        final String shard = this.indexShards.shardOf(layout.getIndex(), documentId);
+        final List<String> keys = Lists.newArrayList(layout.document(shard, documentId),
+                genIdxGenName(this.redisSearchConfiguration.getPrefix(), shard));
+        final List<String> args = Lists.newArrayList(documentId, String.valueOf(fields.size()), layout.base(shard));
+
+        for (String field : fields) {
+            final Double score = scores.get(field);
+
+            args.add(layout.member(shard, layout.postingPrefix(shard, field)));
+            if (tokens.containsKey(field)) {
+                final List<String> idxs = tokens.get(field).stream()
+                        .map(word -> layout.posting(shard, field, word)).collect(Collectors.toList());
+                keys.addAll(idxs);
+                args.add(String.valueOf(idxs.size()));
+            } else {
+                args.add("-1");
+            }
+            final boolean counted = tokens.containsKey(field) && field.endsWith(IndexKeys.TERMS);
+            if (counted) {
+                keys.add(layout.termCounts(shard, field.substring(0, field.length() - IndexKeys.TERMS.length())));
+            }
+            if (score != null) {
+                keys.add(layout.sort(shard, field));
+                args.add(String.valueOf(score));
+            } else {
+                args.add("");
+            }
+            args.add(counted ? "1" : "0");
+        }
+
+        final Long changed = redisTemplate.execute(SearchScripts.UPDATE, keys, args.toArray());
+        if (changed != null && changed > 0) {
+            this.postingCache.invalidate(redisTemplate, Collections.emptyList(), tokens.keySet().stream()
+                    .map(field -> layout.postingPrefix(shard, field)).collect(Collectors.toList()));
+            tokens.forEach((field, terms) -> {
+                if (field.endsWith(IndexKeys.TERMS) && !terms.isEmpty()) {
+                    redisTemplate.opsForZSet().add(layout.sort(shard, field), termTuples(terms));
+                }
+            });
+        }
+        return changed == null ? 0 : changed.intValue();
     }
 
     private Consumer<SetOperations<String, String>> operateAndStore(String method, String key, Collection<String> keys,
@@ -207,10 +629,10 @@ public class SearchCore {
         }
     }
 
-    private String common(String index, String method, List<String> keys, long ttl) {
+    private String common(String index, String stage, String method, List<String> keys, long ttl) {
         final String destKey = Util.genQueryIdxName(this.redisSearchConfiguration.getPrefix(), index);
 
-        redisTemplate.executePipelined(new SessionCallback<String>() {
+        QueryTrace.stage(stage, () -> redisTemplate.executePipelined(new SessionCallback<String>() {
             @Override
             public <K, V> String execute(RedisOperations<K, V> operations) throws DataAccessException {
                 operateAndStore(method, keys.stream().limit(1L).findFirst().get(),
@@ -219,180 +641,930 @@ public class SearchCore {
                 ((StringRedisTemplate) operations).expire(destKey, ttl, TimeUnit.SECONDS);
                 return null;
             }
-        });
+        }));
+        QueryTrace.tempKeys(1);
         return destKey;
     }
 
     public String intersect(String index, List<String> keys, long ttl) {
-        return common(index, "intersectAndStore", keys, ttl);
+        return common(index, "intersect", "intersectAndStore", keys, ttl);
     }
 
     public String union(String index, List<String> keys, long ttl) {
-        return common(index, "unionAndStore", keys, ttl);
+        return common(index, "union", "unionAndStore", keys, ttl);
     }
 
     public String diff(String index, List<String> keys, long ttl) {
-        return common(index, "differenceAndStore", keys, ttl);
+        return common(index, "diff", "differenceAndStore", keys, ttl);
     }
 
-    private static Tuple2<Set<Tuple2<String, String>>, Set<Tuple2<String, String>>> parse(String query) {
-
-        final Pattern pattern = Pattern.compile("[+-]?([\\w\\d]+):(\\S+)");
+    /**
+     * 通过 {@link SearchScripts#RANGE} 按排序 zset 的分数区间过滤
+     *
+     * @param source 被过滤的集合, 为 null 时取区间内的所有成员
+     * @return 保存结果集合的临时 key
+     */
+    public String scoreRange(String index, QueryPlan.ScoreRange range, String source, long ttl) {
+        final String destKey = Util.genQueryIdxName(this.redisSearchConfiguration.getPrefix(), index);
+        final List<String> keys = source == null ? Arrays.asList(destKey, range.getKey())
+                : Arrays.asList(destKey, range.getKey(), source);
+        QueryTrace.stage("filter", () -> redisTemplate.execute(SearchScripts.RANGE, keys, range.getMin(),
+                range.getMax(), String.valueOf(ttl)));
+        QueryTrace.tempKeys(1);
+        return destKey;
+    }
 
-        final Matcher matcher = pattern.matcher(query);
+    /**
+     * 执行查询, 返回保存结果集合的临时 key. 仅用于未分片的索引, 分片后请使用 {@link #queryAndSort}
+     */
+    public String query(String index, String query) {
+        if (this.indexShards.isSharded()) {
+            throw new IllegalStateException("index " + index + " is sharded, query each shard by queryAndSort");
+        }
+        return this.searchMetrics.trace("query", index, query, null, () -> {
+            final String version = this.indexAliases.read(index);
+            final String local = this.postingCache.isEnabled() ? this.queryLocally(version, version, query) : null;
+            return local != null ? local : this.query(version, version, query);
+        });
+    }
 
-        Set<Tuple2<String, String>> unwant = Sets.newHashSet();
-        Set<Tuple2<String, String>> want = Sets.newHashSet();
+    /**
+     * 查询涉及的 posting 都在 {@link PostingCache} 中时在 jvm 中计算
+     *
+     * @return 结果位图; 有 posting 不在本地时为 null
+     */
+    private RoaringBitmap evaluateLocally(String index, String shard, String query) {
+        final QueryPlan plan = this.queryPlanner.compile(index, shard, this.queryPlanner.parse(query));
+        return plan.isEmpty() ? new RoaringBitmap() : this.postingCache.evaluate(shard, plan);
+    }
 
-        while (matcher.find()) {
-            String word = matcher.group();
+    /**
+     * 在 jvm 中计算, 结果写入临时 key
+     *
+     * @return 临时 key, 结果为空时为 ""; 有 posting 不在本地或结果超过 redis.search.bitmap.write-back-limit 时为 null
+     */
+    private String queryLocally(String index, String shard, String query) {
+        final RoaringBitmap result = this.evaluateLocally(index, shard, query);
+        if (result == null) {
+            return null;
+        }
+        if (result.isEmpty()) {
+            return "";
+        }
+        return result.getCardinality() <= this.redisSearchConfiguration.getBitmap().getWriteBackLimit()
+                ? this.writeBack(shard, result) : null;
+    }
 
-            String prefix = null;
-            if (word.length() > 1) {
-                prefix = word.substring(0, 1);
+    private String writeBack(String shard, RoaringBitmap result) {
+        final String destKey = genQueryIdxName(this.redisSearchConfiguration.getPrefix(), shard);
+        final List<String> members = this.postingCache.documentIds(shard, result);
+        QueryTrace.stage("local", () -> redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                final StringRedisTemplate template = (StringRedisTemplate) operations;
+                Lists.partition(members, 1_000)
+                        .forEach(chunk -> template.opsForSet().add(destKey, chunk.toArray(new String[0])));
+                template.expire(destKey, redisSearchConfiguration.getQuery().getTtl(), TimeUnit.SECONDS);
+                return null;
             }
+        }));
+        QueryTrace.tempKeys(1);
+        return destKey;
+    }
 
-            final Tuple2<String, String> t = Tuples.of(matcher.group(1), matcher.group(2));
-            if ("-".equals(prefix)) {
-                unwant.add(t);
-            } else {
-                want.add(t);
+    /**
+     * 在 jvm 中计算并读取一页. 不排序, 或结果不超过 redis.search.planner.membership-threshold 时
+     * 直接读取排序值在 jvm 中排序, 不写回 redis; 需要保存结果 key 或结果较大时, 不超过
+     * redis.search.bitmap.write-back-limit 的结果写回后按 {@link #sortAndRange} 排序
+     *
+     * @return 有 posting 不在本地或结果过大时为 null
+     */
+    private ShardPage queryAndSortLocally(String index, String shard, String query,
+            Map<String, Integer> map, long offset, long end, boolean withScores, boolean materialize,
+            String resultId) {
+        final RoaringBitmap result = this.evaluateLocally(index, shard, query);
+        if (result == null) {
+            return null;
+        }
+        if (result.isEmpty()) {
+            return ShardPage.EMPTY;
+        }
+        final int size = result.getCardinality();
+        if (!materialize && map.isEmpty()) {
+            final List<String> members = this.postingCache.documentIds(shard, result).stream()
+                    .filter(Objects::nonNull).sorted().collect(Collectors.toList());
+            QueryTrace.results(members.size());
+            return new ShardPage(page(members.stream().map(m -> new DefaultTypedTuple<>(m, null)), offset, end),
+                    members.size());
+        }
+        if (!materialize && size <= this.redisSearchConfiguration.getPlanner().getMembershipThreshold()) {
+            return this.sortLocally(this.postingCache.documentIds(shard, result), map, offset, end, withScores);
+        }
+        if (size > this.redisSearchConfiguration.getBitmap().getWriteBackLimit()) {
+            return null;
+        }
+        return this.sortAndRange(this.writeBack(shard, result), map, offset, end, withScores, resultId);
+    }
+
+    /**
+     * 逐个读取成员在排序 zset 中的分值, 与 ZINTERSTORE 相同地加权求和, 缺少任一分值的成员被排除
+     */
+    private ShardPage sortLocally(List<String> documentIds, Map<String, Integer> map,
+            long offset, long end, boolean withScores) {
+        final List<String> members = documentIds.stream().filter(Objects::nonNull).collect(Collectors.toList());
+        final List<String> sortKeys = new ArrayList<>(map.keySet());
+        final List<Object> scores = QueryTrace.stage("sort", () -> redisTemplate.executePipelined(
+                new SessionCallback<Object>() {
+                    @Override
+                    public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                        final StringRedisTemplate template = (StringRedisTemplate) operations;
+                        sortKeys.forEach(key -> members.forEach(member -> template.opsForZSet().score(key, member)));
+                        return null;
+                    }
+                }));
+
+        final List<ZSetOperations.TypedTuple<String>> sorted = new ArrayList<>();
+        for (int i = 0; i < members.size(); i++) {
+            double score = 0;
+            boolean present = true;
+            for (int k = 0; k < sortKeys.size() && present; k++) {
+                final Object value = scores.get(k * members.size() + i);
+                present = value != null;
+                score += present ? map.get(sortKeys.get(k)) * (Double) value : 0;
+            }
+            if (present) {
+                sorted.add(new DefaultTypedTuple<>(members.get(i), score));
             }
         }
-        return Tuples.of(want, unwant);
+        sorted.sort(pageOrder(true));
+        QueryTrace.results(sorted.size());
+        return new ShardPage(page(sorted.stream().map(t -> withScores ? t : new DefaultTypedTuple<>(t.getValue(), null)),
+                offset, end), sorted.size());
     }
 
-    public String query(String index, String query) {
+    /**
+     * 截取已排序结果的 [offset, end], end 为 -1 时取到末尾
+     */
+    private static <T> List<T> page(Stream<T> sorted, long offset, long end) {
+        final Stream<T> skipped = sorted.skip(offset);
+        return (end < 0 ? skipped : skipped.limit(Math.max(0L, end - offset + 1))).collect(Collectors.toList());
+    }
 
-        final Tuple2<Set<Tuple2<String, String>>, Set<Tuple2<String, String>>> parseResult = parse(query);
-        final Set<Tuple2<String, String>> want = parseResult.getT1();
-        final Set<Tuple2<String, String>> unwant = parseResult.getT2();
+    private String query(String index, String shard, String query) {
 
-        if (want.isEmpty()) {
+        final QueryPlan plan = this.queryPlanner.plan(index, shard, query);
+        if (plan.isEmpty()) {
             return "";
         }
-
-        final Map<String, FieldMeta> entries = (Map<String, FieldMeta>) hashMapper
-                .fromHash(redisTemplate.<String, Object>opsForHash()
-                        .entries(genIdxMetaName(this.redisSearchConfiguration.getPrefix(), index)));
+        final long ttl = this.redisSearchConfiguration.getQuery().getTtl();
 
         // union
-        final List<Tuple2<String, String>> unionFields = want.stream().filter(w -> w.getT2().contains(","))
-                .filter(w -> "true".equals(entries.get(w.getT1()).getSort())).collect(Collectors.toList());
-        final List<String> unionIdx = unionFields.stream()
-                .flatMap(w -> Arrays.stream(w.getT2().split(",")).map(value -> Tuples.of(w.getT1(), value)))
-                .map(w -> genIdxName(this.redisSearchConfiguration.getPrefix(), index, w.getT1(), w.getT2()))
-                .collect(Collectors.toList());
-
-        final String unionResultId = unionIdx.isEmpty() ? "" : this.union(index, unionIdx, 30L);
-
-        want.removeAll(unionFields);
+        final String unionResultId = plan.getUnionIdx().isEmpty() ? "" : this.union(shard, plan.getUnionIdx(), ttl);
 
         // intersect
-        final List<String> intersectIdx = want.stream().flatMap(t -> {
-            if ("true".equals(entries.get(t.getT1()).getSort()))
-                return Stream.of(t);
-            return Arrays.stream(t.getT2().split("")).map(value -> Tuples.of(t.getT1(), value));
-        }).map(w -> genIdxName(this.redisSearchConfiguration.getPrefix(), index, w.getT1(), w.getT2()))
-                .collect(Collectors.toList());
-
+        final List<String> intersectIdx = Lists.newArrayList(plan.getIntersectIdx());
         if (!unionResultId.isEmpty())
             intersectIdx.add(unionResultId);
 
-        String intersectResult = this.intersect(index, intersectIdx, 30L);
+        String intersectResult = intersectIdx.isEmpty() ? null : this.intersect(shard, intersectIdx, ttl);
+
+        // range
+        for (QueryPlan.ScoreRange range : plan.getRanges()) {
+            intersectResult = this.scoreRange(shard, range, intersectResult, ttl);
+        }
 
         // diff
-        return unwant
-                .isEmpty()
-                        ? intersectResult
-                        : this.diff(
-                                index, Stream
-                                        .concat(Stream.of(intersectResult),
-                                                unwant.stream()
-                                                        .map(w -> genIdxName(this.redisSearchConfiguration.getPrefix(),
-                                                                index, w.getT1(), w.getT2())))
-                                        .collect(Collectors.toList()),
-                                30L);
+        return plan.getDiffIdx().isEmpty() ? intersectResult
+                : this.diff(shard, Stream.concat(Stream.of(intersectResult), plan.getDiffIdx().stream())
+                        .collect(Collectors.toList()), ttl);
+    }
+
+    /**
+     * 解析排序参数, +field 升序, -field 降序
+     *
+     * @return 排序 zset -> 权重
+     */
+    Map<String, Integer> sortWeights(String index, String shard, String sort) {
+        return this.sortWeights(this.keyLayouts.read(index), shard, sort);
+    }
+
+    Map<String, Integer> sortWeights(IndexKeys keys, String shard, String sort) {
+        return Arrays.stream(sort.split(" ")).filter(f -> !f.isEmpty()).collect(Collectors.toMap(f -> {
+            if (f.startsWith("+") || f.startsWith("-")) {
+                f = f.substring(1);
+            }
+            return keys.sort(shard, f);
+        }, field -> field.startsWith("-") ? -1 : 1, (w1, w2) -> w2, LinkedHashMap::new));
+    }
+
+    /**
+     * 查询的规范化形式: 排序后的 want/unwant 条件及排序参数, 语义相同的查询得到相同的字符串
+     */
+    String canonicalQuery(String query, String sort) {
+        final ParsedQuery parsed = this.queryPlanner.parse(query);
+        final Function<ParsedQuery.Term, String> term = t -> t.getField() + ":"
+                + Arrays.stream(t.getValue().split(",")).sorted().distinct().collect(Collectors.joining(","));
+        return Stream.concat(
+                parsed.getWant().stream().map(term).sorted().map(t -> "+" + t),
+                parsed.getUnwant().stream().map(term).sorted().map(t -> "-" + t))
+                .collect(Collectors.joining(" "))
+                + "|" + Arrays.stream(sort.split(" ")).filter(f -> !f.isEmpty())
+                        .map(f -> f.startsWith("+") || f.startsWith("-") ? f : "+" + f).sorted()
+                        .collect(Collectors.joining(" "));
+    }
+
+    /**
+     * 索引当前代数, 每次写入索引自增; 分片时为所有分片代数之和
+     */
+    public long generation(String index) {
+        final List<String> keys = this.indexShards.shards(index).stream()
+                .map(shard -> genIdxGenName(this.redisSearchConfiguration.getPrefix(), shard))
+                .collect(Collectors.toList());
+        final List<Object> gens = QueryTrace.stage("generation",
+                () -> redisTemplate.executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                        keys.forEach(((StringRedisTemplate) operations).opsForValue()::get);
+                        return null;
+                    }
+                }));
+        return gens.stream().filter(Objects::nonNull).map(String::valueOf).mapToLong(Long::parseLong).sum();
+    }
+
+    @GetMapping("/query/cache/stats")
+    public Map<String, Long> queryCacheStats() {
+        return this.queryCache.stats();
+    }
+
+    @GetMapping("/query/posting/stats")
+    public Map<String, Long> postingCacheStats() {
+        return this.postingCache.stats();
     }
 
     @GetMapping("/query/{index}")
     public Set<String> queryAndSort(@PathVariable("index") String index, @RequestParam("param") String query,
             @RequestParam("sort") String sort, Integer start, Integer stop) {
-        final String[] sorts = sort.split(" ");
+        return this.searchMetrics.trace("queryAndSort", index, query, sort,
+                () -> this.cachedQuery(this.indexAliases.read(index), query, sort, start, stop));
+    }
 
-        final Map<String, Integer> map = Arrays.stream(sorts).collect(Collectors.toMap(f -> {
-            if (f.startsWith("+") || f.startsWith("-")) {
-                f = f.substring(1);
+    private Set<String> cachedQuery(String index, String query, String sort, Integer start, Integer stop) {
+        if (!this.redisSearchConfiguration.getCache().isEnabled()) {
+            return this.scatterQuery(index, query, sort, start, stop, null);
+        }
+
+        final String resultId = QueryCache.resultId(this.generation(index), canonicalQuery(query, sort));
+        final String pageKey = genQueryIdxName(this.redisSearchConfiguration.getPrefix(), index, resultId) + ":"
+                + start + ":" + stop;
+
+        final Set<String> cached = this.queryCache.get(pageKey);
+        if (cached != null) {
+            return cached;
+        }
+        final Set<String> page = this.scatterQuery(index, query, sort, start, stop, resultId);
+        this.queryCache.put(pageKey, page);
+        return page;
+    }
+
+    /**
+     * 在所有分片上并行查询后合并
+     *
+     * 每个分片按相同规则排序并返回前 stop + 1 条 (带分值), 再按 (分值, 文档id) 做 k 路归并后截取 start..stop;
+     * 不排序时按文档id字典序归并. 未分片时直接在唯一的分片上分页
+     *
+     * @param resultId 缓存开启时结果 key 的后缀, 每个分片各自保存; 为 null 时使用随机 key
+     */
+    private Set<String> scatterQuery(String index, String query, String sort, Integer start, Integer stop,
+            String resultId) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final Function<String, String> resultKey = shard -> resultId == null ? genQueryIdxName(prefix, shard)
+                : genQueryIdxName(prefix, shard, resultId);
+
+        if (!this.indexShards.isSharded()) {
+            return this.queryAndSort(index, index, query, this.sortWeights(index, index, sort), start, stop, false, false,
+                    resultKey.apply(index)).stream().map(ZSetOperations.TypedTuple::getValue)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+        }
+
+        final long offset = start == null ? 0 : start;
+        final long end = stop == null ? -1 : stop;
+        final boolean sorted = Arrays.stream(sort.split(" ")).anyMatch(f -> !f.isEmpty());
+        final List<List<ZSetOperations.TypedTuple<String>>> pages = this.indexShards.scatter(index,
+                shard -> this.queryAndSort(index, shard, query, this.sortWeights(index, shard, sort), 0, (int) end, true,
+                        false, resultKey.apply(shard)));
+
+        return PageMerger.merge(pages, pageOrder(sorted), offset, end).stream().map(ZSetOperations.TypedTuple::getValue)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * 在一个分片上查询并读取一页
+     *
+     * @param withScores  是否返回分值, 用于分片结果归并
+     * @param materialize 是否必须保存结果 key, 为 true 时不使用 {@link QueryPlan.Strategy#MEMBERSHIP}
+     * @param resultId    结果 key
+     */
+    List<ZSetOperations.TypedTuple<String>> queryAndSort(String index, String shard, String query,
+            Map<String, Integer> map, Integer start, Integer stop, boolean withScores, boolean materialize,
+            String resultId) {
+        return this.queryPage(index, shard, query, map, start, stop, withScores, materialize, resultId).getTuples();
+    }
+
+    /**
+     * 与 {@link #queryAndSort(String, String, String, Map, Integer, Integer, boolean, boolean, String)} 相同,
+     * 同时返回该分片的结果总数
+     */
+    ShardPage queryPage(String index, String shard, String query, Map<String, Integer> map, Integer start,
+            Integer stop, boolean withScores, boolean materialize, String resultId) {
+
+        final long offset = start == null ? 0 : start;
+        final long end = stop == null ? -1 : stop;
+
+        final boolean local = this.postingCache.isEnabled();
+        final boolean cached = this.redisSearchConfiguration.getCache().isEnabled();
+        if (local && cached) {
+            // 先复用结果 key, 未命中时再在本地计算
+            final ShardPage reused = this.reused(map, offset, end, withScores, resultId);
+            if (reused != null) {
+                this.queryCache.recordRemote(true);
+                return reused;
             }
-            return genSortIdxName(this.redisSearchConfiguration.getPrefix(), "person", f);
-        }, field -> field.startsWith("-") ? -1 : 1));
+        }
 
-        final int[] weights = map.values().stream().mapToInt(Integer::intValue).toArray();
+        if (local) {
+            final ShardPage page = this.queryAndSortLocally(index, shard, query, map, offset, end, withScores,
+                    materialize, resultId);
+            if (page != null) {
+                if (cached) {
+                    this.queryCache.recordRemote(false);
+                }
+                return page;
+            }
+        }
 
-        // if (!sort.startsWith("+") && !sort.startsWith("-")) {
-        // sort = "+" + sort;
-        // }
-        // boolean desc = sort.startsWith("-");
-        // sort = sort.substring(1);
+        if (this.redisSearchConfiguration.getQuery().isScript()) {
+            try {
+                return this.queryAndSortByScript(index, shard, query, map, start, stop, withScores, materialize,
+                        resultId);
+            } catch (DataAccessException e) {
+                log.warn("script query on {} failed, fallback to pipeline", shard, e);
+            }
+        }
 
-        String queryId = this.query(index, query);
-        Long size;
-        if (queryId.length() == 0 || (size = redisTemplate.opsForSet().size(queryId)) == null || size == 0) {
-            return Collections.emptySet();
+        if (cached) {
+            final ShardPage reused = local ? null : this.reused(map, offset, end, withScores, resultId);
+            this.queryCache.recordRemote(reused != null);
+            if (reused != null) {
+                return reused;
+            }
         }
 
-        final String resultId = genQueryIdxName(this.redisSearchConfiguration.getPrefix(), index);
+        return this.sortAndRange(this.query(index, shard, query), map, offset, end, withScores, resultId);
+    }
 
-        // String sortField = sort;
+    /**
+     * 结果 key 仍存活时读取一页
+     *
+     * @return 结果 key 不存在时为 null
+     */
+    private ShardPage reused(Map<String, Integer> map, long offset, long end, boolean withScores,
+            String resultId) {
+        // 结果为空时不会保存结果 key, 读取大小同时判断是否存在
+        final Long reused = QueryTrace.stage("reuse", () -> map.isEmpty()
+                ? redisTemplate.opsForSet().size(resultId) : redisTemplate.opsForZSet().zCard(resultId));
+        if (reused == null || reused == 0) {
+            return null;
+        }
+        QueryTrace.results(reused);
+        return new ShardPage(this.range(resultId, map.isEmpty(), offset, end, withScores), reused);
+    }
 
-        redisTemplate.executePipelined(new SessionCallback<Object>() {
+    /**
+     * 用排序 zset 对过滤结果排序后保存为结果 key, 并读取一页
+     *
+     * @param queryId 过滤结果集合的 key, 为 "" 表示结果为空
+     */
+    private ShardPage sortAndRange(String queryId, Map<String, Integer> map, long offset, long end,
+            boolean withScores, String resultId) {
+        final int[] weights = map.values().stream().mapToInt(Integer::intValue).toArray();
+
+        Long size;
+        if (queryId.length() == 0
+                || (size = QueryTrace.stage("card", () -> redisTemplate.opsForSet().size(queryId))) == null
+                || size == 0) {
+            return ShardPage.EMPTY;
+        }
+        final long total = size;
+        QueryTrace.results(total);
+
+        if (map.isEmpty()) {
+            QueryTrace.stage("sort", () -> {
+                redisTemplate.rename(queryId, resultId);
+                return null;
+            });
+            return new ShardPage(this.range(resultId, true, offset, end, withScores), total);
+        }
+
+        QueryTrace.tempKeys(1);
+        QueryTrace.stage("sort", () -> redisTemplate.executePipelined(new SessionCallback<Object>() {
             @Override
             public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
                 final StringRedisTemplate template = (StringRedisTemplate) operations;
 
-                // template.opsForZSet().intersectAndStore(genSortIdxName(index, sortField),
-                // queryId, resultId);
-
                 SearchCore.this.zOperateAndStore("intersectAndStore", map.keySet().stream().limit(1L).findFirst().get(),
                         Stream.concat(map.keySet().stream().skip(1L), Stream.of(queryId)).collect(Collectors.toList()),
                         resultId, RedisZSetCommands.Weights.of(ArrayUtils.add(weights, 0)))
                         .accept(template.opsForZSet());
 
-                // template.opsForZSet().size(resultId);
-                template.expire(resultId, 30L, TimeUnit.SECONDS);
+                template.expire(resultId, redisSearchConfiguration.getQuery().getTtl(), TimeUnit.SECONDS);
 
                 return null;
             }
-        });
+        }));
 
         // sort
-        return redisTemplate.opsForZSet().range(resultId, start, stop);
+        return new ShardPage(this.range(resultId, false, offset, end, withScores), total);
 
     }
 
+    /**
+     * 读取结果 key 的一页, 集合按字典序排序, zset 按分值排序
+     */
+    List<ZSetOperations.TypedTuple<String>> range(String key, boolean alpha, long start, long stop,
+            boolean withScores) {
+        return QueryTrace.stage("range", () -> {
+            if (alpha) {
+                return this.sortAlpha(key, start, stop).stream().map(m -> new DefaultTypedTuple<>(m, null))
+                        .collect(Collectors.toList());
+            }
+            if (withScores) {
+                return new ArrayList<>(redisTemplate.opsForZSet().rangeWithScores(key, start, stop));
+            }
+            return redisTemplate.opsForZSet().range(key, start, stop).stream()
+                    .map(m -> new DefaultTypedTuple<>(m, null)).collect(Collectors.toList());
+        });
+    }
+
+    private Set<String> sortAlpha(String key, long start, long stop) {
+        final long count = stop < 0 ? -1 : stop - start + 1;
+        return new LinkedHashSet<>(
+                redisTemplate.sort(SortQueryBuilder.sort(key).alphabetical(true).limit(start, count).build()));
+    }
+
+    /**
+     * 通过 {@link SearchScripts#QUERY} 在服务端一次完成过滤、排序和分页
+     *
+     * 结果 key 仍存活时直接复用, 其余临时 key 在脚本内删除.
+     * 计划为 {@link QueryPlan.Strategy#MEMBERSHIP} 时改用 {@link SearchScripts#QUERY_MEMBERS};
+     * 不需要保存结果 key 时可以使用 {@link QueryPlan.Strategy#TOP_K}, 见 {@link QueryPlanner#sorted}
+     */
+    private ShardPage queryAndSortByScript(String index, String shard, String query,
+            Map<String, Integer> sortWeights, Integer start, Integer stop, boolean withScores, boolean materialize,
+            String resultId) {
+        final QueryPlan planned = this.queryPlanner.plan(index, shard, query);
+        if (planned.isEmpty()) {
+            return ShardPage.EMPTY;
+        }
+        final QueryPlan plan = materialize ? planned : this.queryPlanner.sorted(planned, sortWeights, start, stop);
+        if (plan.getStrategy() == QueryPlan.Strategy.MEMBERSHIP && !materialize) {
+            return this.queryAndSortByMembership(plan, sortWeights, start, stop, withScores);
+        }
+
+        final List<Object> result = QueryTrace.stage("script", () -> redisTemplate.execute(SearchScripts.QUERY,
+                this.queryScriptKeys(shard, plan, sortWeights, resultId),
+                this.queryScriptArgs(plan, sortWeights, start, stop, withScores).toArray()));
+        if (result == null || result.size() < 2) {
+            return ShardPage.EMPTY;
+        }
+        QueryTrace.results((Long) result.get(0));
+        if (!Long.valueOf(1L).equals(result.get(1)) && (Long) result.get(0) > 0) {
+            QueryTrace.tempKeys(1);
+        }
+        if (this.redisSearchConfiguration.getCache().isEnabled()) {
+            this.queryCache.recordRemote(Long.valueOf(1L).equals(result.get(1)));
+        }
+        return new ShardPage(tuples(result, withScores && !sortWeights.isEmpty()), (Long) result.get(0));
+    }
+
+    private ShardPage queryAndSortByMembership(QueryPlan plan,
+            Map<String, Integer> sortWeights, Integer start, Integer stop, boolean withScores) {
+        final List<Object> result = QueryTrace.stage("membership", () -> redisTemplate.execute(
+                SearchScripts.QUERY_MEMBERS, membershipScriptKeys(plan, sortWeights),
+                membershipScriptArgs(plan, sortWeights, start, stop, withScores).toArray()));
+        if (result == null || result.size() < 2) {
+            return ShardPage.EMPTY;
+        }
+        QueryTrace.results((Long) result.get(0));
+        return new ShardPage(tuples(result, withScores && !sortWeights.isEmpty()), (Long) result.get(0));
+    }
+
+    /**
+     * {@link SearchScripts#QUERY} 的 KEYS: 3 个临时 key, 结果 key, union/intersect/diff key, 排序 zset, 区间的 zset
+     */
+    List<String> queryScriptKeys(String shard, QueryPlan plan, Map<String, Integer> sortWeights, String resultId) {
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final List<String> keys = Lists.newArrayList(genQueryIdxName(prefix, shard), genQueryIdxName(prefix, shard),
+                genQueryIdxName(prefix, shard), resultId);
+        keys.addAll(plan.getUnionIdx());
+        keys.addAll(plan.getIntersectIdx());
+        keys.addAll(plan.getDiffIdx());
+        keys.addAll(sortWeights.keySet());
+        plan.getRanges().forEach(range -> keys.add(range.getKey()));
+        return keys;
+    }
+
+    /**
+     * {@link SearchScripts#QUERY} 的 ARGV: ttl, 分页, 各组 key 数量, 是否返回分值, 排序权重, 区间, top-K 每批数量
+     */
+    List<String> queryScriptArgs(QueryPlan plan, Map<String, Integer> sortWeights, Integer start, Integer stop,
+            boolean withScores) {
+        final List<String> args = Lists.newArrayList(
+                String.valueOf(this.redisSearchConfiguration.getQuery().getTtl()),
+                String.valueOf(start == null ? 0 : start), String.valueOf(stop == null ? -1 : stop),
+                String.valueOf(plan.getUnionIdx().size()), String.valueOf(plan.getIntersectIdx().size()),
+                String.valueOf(plan.getDiffIdx().size()), String.valueOf(sortWeights.size()),
+                withScores ? "1" : "0");
+        sortWeights.values().forEach(w -> args.add(String.valueOf(w)));
+        rangeArgs(plan, args);
+        args.add(String.valueOf(plan.getStrategy() == QueryPlan.Strategy.TOP_K
+                ? this.redisSearchConfiguration.getPlanner().getTopKBatch() : 0));
+        return args;
+    }
+
+    /**
+     * 区间数量及每个区间的 min max
+     */
+    private static void rangeArgs(QueryPlan plan, List<String> args) {
+        args.add(String.valueOf(plan.getRanges().size()));
+        plan.getRanges().forEach(range -> {
+            args.add(range.getMin());
+            args.add(range.getMax());
+        });
+    }
+
+    /**
+     * {@link SearchScripts#QUERY_MEMBERS} 的 KEYS: intersect(最小集合在前)/union/diff key, 排序 zset, 区间的 zset
+     */
+    static List<String> membershipScriptKeys(QueryPlan plan, Map<String, Integer> sortWeights) {
+        final List<String> keys = Lists.newArrayList(plan.getIntersectIdx());
+        keys.addAll(plan.getUnionIdx());
+        keys.addAll(plan.getDiffIdx());
+        keys.addAll(sortWeights.keySet());
+        plan.getRanges().forEach(range -> keys.add(range.getKey()));
+        return keys;
+    }
+
+    /**
+     * {@link SearchScripts#QUERY_MEMBERS} 的 ARGV: 分页, 各组 key 数量, 是否返回分值, 排序权重, 区间
+     */
+    static List<String> membershipScriptArgs(QueryPlan plan, Map<String, Integer> sortWeights, Integer start,
+            Integer stop, boolean withScores) {
+        final List<String> args = Lists.newArrayList(
+                String.valueOf(start == null ? 0 : start), String.valueOf(stop == null ? -1 : stop),
+                String.valueOf(plan.getIntersectIdx().size() - 1), String.valueOf(plan.getUnionIdx().size()),
+                String.valueOf(plan.getDiffIdx().size()), String.valueOf(sortWeights.size()),
+                withScores ? "1" : "0");
+        sortWeights.values().forEach(w -> args.add(String.valueOf(w)));
+        rangeArgs(plan, args);
+        return args;
+    }
+
+    /**
+     * 分片结果的归并顺序: 排序时按 (分值, 文档id), 否则按文档id
+     */
+    static Comparator<ZSetOperations.TypedTuple<String>> pageOrder(boolean sorted) {
+        final Comparator<ZSetOperations.TypedTuple<String>> byValue = Comparator
+                .comparing(ZSetOperations.TypedTuple::getValue);
+        return sorted
+                ? Comparator.<ZSetOperations.TypedTuple<String>, Double>comparing(ZSetOperations.TypedTuple::getScore)
+                        .thenComparing(byValue)
+                : byValue;
+    }
+
+    /**
+     * 脚本返回值 {total, reused, member [, score], ...} 转为 (文档id, 分值)
+     */
+    static List<ZSetOperations.TypedTuple<String>> tuples(List<Object> result, boolean withScores) {
+        final List<ZSetOperations.TypedTuple<String>> tuples = new ArrayList<>();
+        for (int i = 2; i < result.size(); i += withScores ? 2 : 1) {
+            tuples.add(new DefaultTypedTuple<>(String.valueOf(result.get(i)),
+                    withScores ? Double.valueOf(String.valueOf(result.get(i + 1))) : null));
+        }
+        return tuples;
+    }
+
+    @GetMapping("/query/{index}/explain")
+    public Map<String, QueryPlan> explain(@PathVariable("index") String index, @RequestParam("param") String query) {
+        final String version = this.indexAliases.read(index);
+        final List<String> shards = this.indexShards.shards(version);
+        final List<QueryPlan> plans = this.indexShards.scatter(version,
+                shard -> this.queryPlanner.plan(version, shard, query));
+        final Map<String, QueryPlan> explain = new LinkedHashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            explain.put(shards.get(i), plans.get(i));
+        }
+        return explain;
+    }
+
+    /**
+     * 前缀联想: 字段前缀索引中以 prefix 开头的词, 按文档数降序
+     *
+     * 文档数来自写入和删除时维护的词的文档数 zset, 每个分片通过 {@link SearchScripts#SUGGEST} 一次往返取得前 limit 个词;
+     * 以前缀开头的词超过 redis.search.prefixes.max-expansions 时改为按文档数从高到低遍历, 结果不变.
+     * 分片后按阈值归并: 各分片前 limit 个词的文档数之和中第 limit 大的为 t, 全局前 limit 个词至少在一个分片上
+     * 文档数不低于 t / 分片数, 再从各分片取出这些词并读取所有候选词在每个分片上的文档数求和.
+     * 维护文档数之前写入的词在 {@link IndexSweeper} 清理后才有文档数
+     *
+     * @param limit 返回的词数, 为空时使用配置 redis.search.prefixes.suggest-limit
+     * @return 词 -> 文档数
+     */
+    @GetMapping("/query/{index}/suggest")
+    public Map<String, Long> suggest(@PathVariable("index") String index, @RequestParam("field") String field,
+            @RequestParam("prefix") String prefix, Integer limit) {
+        final int size = limit == null ? this.redisSearchConfiguration.getPrefixes().getSuggestLimit() : limit;
+        return this.searchMetrics.trace("suggest", index, field + ":" + prefix + "*", null, () -> {
+            final String version = this.indexAliases.read(index);
+            if (!this.isPrefix(version, field)) {
+                throw new IllegalArgumentException("field " + field + " of " + index + " has no prefix index");
+            }
+            final IndexKeys keys = this.keyLayouts.read(version);
+            final String normalized = this.tokenizers.normalizePrefix(prefix);
+            final Map<String, Long> counts = this.suggest(version, keys, field, normalized, size, 0L);
+
+            final int shards = this.indexShards.shards(version).size();
+            if (shards > 1 && !counts.isEmpty()) {
+                if (size > 0 && counts.size() >= size) {
+                    final long threshold = counts.values().stream().sorted(Comparator.reverseOrder()).skip(size - 1L)
+                            .findFirst().orElse(0L);
+                    this.suggest(version, keys, field, normalized, 0, (threshold + shards - 1) / shards).keySet()
+                            .forEach(term -> counts.put(term, 0L));
+                }
+                this.termCounts(version, keys, field, counts);
+            }
+            return counts.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed()
+                            .thenComparing(Map.Entry.comparingByKey()))
+                    .limit(size)
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (c1, c2) -> c1,
+                            LinkedHashMap::new));
+        });
+    }
+
+    /**
+     * 每个分片执行一次 {@link SearchScripts#SUGGEST}
+     *
+     * @param limit    每个分片返回的词数, 为 0 时不限
+     * @param minCount 分片上的最小文档数
+     * @return 词 -> 返回该词的分片上的文档数之和
+     */
+    private Map<String, Long> suggest(String version, IndexKeys keys, String field, String prefix, int limit,
+            long minCount) {
+        final String expansions = String.valueOf(this.redisSearchConfiguration.getPrefixes().getMaxExpansions());
+        final List<List<Object>> pages = this.indexShards.scatter(version, shard -> QueryTrace.stage("suggest",
+                () -> redisTemplate.execute(SearchScripts.SUGGEST,
+                        Arrays.asList(keys.terms(shard, field), keys.termCounts(shard, field)), prefix, expansions,
+                        String.valueOf(limit), String.valueOf(minCount))));
+
+        final Map<String, Long> counts = new HashMap<>();
+        pages.stream().filter(Objects::nonNull).forEach(page -> {
+            for (int i = 0; i + 1 < page.size(); i += 2) {
+                counts.merge(String.valueOf(page.get(i)), ((Number) page.get(i + 1)).longValue(), Long::sum);
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * 一个 pipeline 读取候选词在每个分片上的文档数, 求和后写回 counts
+     */
+    private void termCounts(String version, IndexKeys keys, String field, Map<String, Long> counts) {
+        final List<String> terms = new ArrayList<>(counts.keySet());
+        final List<List<Object>> scores = this.indexShards.scatter(version, shard -> QueryTrace.stage("suggest",
+                () -> redisTemplate.executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                        final StringRedisTemplate template = (StringRedisTemplate) operations;
+                        terms.forEach(term -> template.opsForZSet().score(keys.termCounts(shard, field), term));
+                        return null;
+                    }
+                })));
+        for (int i = 0; i < terms.size(); i++) {
+            long count = 0L;
+            for (List<Object> shard : scores) {
+                final Object score = shard.get(i);
+                count += score == null ? 0L : ((Number) score).longValue();
+            }
+            counts.put(terms.get(i), count);
+        }
+    }
+
+    /**
+     * 相关性排序查询: param 中开启评分的字段 (见 {@link Field#scored()}) 上的查询词按 BM25 打分, 按分数降序返回一页
+     *
+     * 过滤与 {@link #queryAndSort} 相同, 过滤结果再通过 {@link SearchScripts#RANK} 与各词评分 posting 按 idf 加权的并集
+     * 求交集, 在服务端打分并只读取一页. sort 不为空时叠加排序 zset, 排序值乘以 redis.search.ranking.sort-weight,
+     * 升序字段的值越小分数越高. 分片后各分片按本分片的统计打分, 各取前 stop + 1 条按分数归并. 结果不经过查询缓存
+     *
+     * @param sort 可以为空, 语法同 {@link #queryAndSort}
+     * @return 文档id -> 分数, 按分数降序
+     */
+    @GetMapping("/query/{index}/ranked")
+    public Map<String, Double> ranked(@PathVariable("index") String index, @RequestParam("param") String query,
+            @RequestParam(value = "sort", defaultValue = "") String sort, Integer start, Integer stop) {
+        return this.searchMetrics.trace("ranked", index, query, sort, () -> {
+            final String version = this.indexAliases.read(index);
+            final Map<String, List<String>> terms = this.rankedTerms(version, query);
+            if (terms.isEmpty()) {
+                throw new IllegalArgumentException("query " + query + " has no term on scored fields of " + index);
+            }
+            final long offset = start == null ? 0 : start;
+            final long end = stop == null ? -1 : stop;
+
+            final List<ZSetOperations.TypedTuple<String>> page = !this.indexShards.isSharded()
+                    ? this.rank(version, version, query, terms, sort, offset, end)
+                    : PageMerger.merge(this.indexShards.scatter(version,
+                            shard -> this.rank(version, shard, query, terms, sort, 0, end)), rankOrder(), offset, end);
+            return page.stream().collect(Collectors.toMap(ZSetOperations.TypedTuple::getValue,
+                    ZSetOperations.TypedTuple::getScore, (s1, s2) -> s1, LinkedHashMap::new));
+        });
+    }
+
+    /**
+     * 查询中开启评分的字段上的查询词, 按字段的分词器切分; 区间和前缀条件不参与打分
+     *
+     * @return 字段 -> 去重后的词
+     */
+    private Map<String, List<String>> rankedTerms(String index, String query) {
+        final Map<String, List<String>> terms = new LinkedHashMap<>();
+        this.queryPlanner.parse(query).getWant().stream()
+                .filter(t -> !t.isRange() && !(t.isPrefix() && this.isPrefix(index, t.getField())))
+                .filter(t -> this.isScored(index, t.getField()))
+                .forEach(t -> terms.computeIfAbsent(t.getField(), field -> new ArrayList<>())
+                        .addAll(this.tokenizer(index, t.getField()).tokenize(t.getValue())));
+        terms.replaceAll((field, tokens) -> tokens.stream().distinct().collect(Collectors.toList()));
+        terms.values().removeIf(List::isEmpty);
+        return terms;
+    }
+
+    /**
+     * 在一个分片上过滤后通过 {@link SearchScripts#RANK} 打分并读取一页
+     *
+     * @param terms 见 {@link #rankedTerms(String, String)}
+     */
+    private List<ZSetOperations.TypedTuple<String>> rank(String index, String shard, String query,
+            Map<String, List<String>> terms, String sort, long offset, long end) {
+        final String filter = this.query(index, shard, query);
+        if (filter == null || filter.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final String prefix = this.redisSearchConfiguration.getPrefix();
+        final IndexKeys keys = this.keyLayouts.read(index);
+        final List<String> scriptKeys = Lists.newArrayList(genQueryIdxName(prefix, shard),
+                genQueryIdxName(prefix, shard), filter);
+        terms.forEach((field, tokens) -> tokens.forEach(token -> {
+            scriptKeys.add(keys.scoredPosting(shard, field, token));
+            scriptKeys.add(keys.lengths(shard, field));
+        }));
+        final Map<String, Integer> sortWeights = this.sortWeights(keys, shard, sort);
+        scriptKeys.addAll(sortWeights.keySet());
+
+        final double sortWeight = this.redisSearchConfiguration.getRanking().getSortWeight();
+        final List<String> args = Lists.newArrayList(String.valueOf(this.redisSearchConfiguration.getQuery().getTtl()),
+                String.valueOf(offset), String.valueOf(end),
+                String.valueOf(terms.values().stream().mapToInt(List::size).sum()));
+        sortWeights.values().forEach(w -> args.add(String.valueOf(-w * sortWeight)));
+
+        final List<Object> result = QueryTrace.stage("rank",
+                () -> redisTemplate.execute(SearchScripts.RANK, scriptKeys, args.toArray()));
+        if (result == null || result.size() < 2) {
+            return Collections.emptyList();
+        }
+        QueryTrace.results((Long) result.get(0));
+        if ((Long) result.get(0) > 0) {
+            QueryTrace.tempKeys(1);
+        }
+        return tuples(result, true);
+    }
+
+    /**
+     * 相关性排序分片结果的归并顺序: 按 (分值, 文档id) 降序, 与 ZREVRANGE 相同
+     */
+    static Comparator<ZSetOperations.TypedTuple<String>> rankOrder() {
+        return pageOrder(true).reversed();
+    }
+
+    /**
+     * key 生成, 使用字符串拼接, 不经过 String.format 的格式解析
+     */
     static class Util {
 
         private Util() {
         }
 
         static String genIdxMetaName(String prefix, String index) {
-            return String.format("rs:%s:meta:idx:%s", prefix, index);
+            return "rs:" + prefix + ":meta:idx:" + index;
         }
 
         static String genIdxName(String prefix, String index, String field, String value) {
-            return String.format("rs:%s:idx:%s:%s:%s", prefix, index, field, value);
+            return "rs:" + prefix + ":idx:" + index + ":" + field + ":" + value;
         }
 
         static String genSortIdxName(String prefix, String index, String field) {
-            return String.format("rs:%s:idx:%s:%s", prefix, index, field);
+            return "rs:" + prefix + ":idx:" + index + ":" + field;
         }
 
         static String genQueryIdxName(String prefix, String index) {
-            return String.format("rs:%s:idx:%s:q:%s", prefix, index, UUID.randomUUID().toString());
+            return genQueryIdxName(prefix, index, UUID.randomUUID().toString());
+        }
+
+        static String genQueryIdxName(String prefix, String index, String queryId) {
+            return "rs:" + prefix + ":idx:" + index + ":q:" + queryId;
+        }
+
+        static String genIdxMetaChannelName(String prefix) {
+            return "rs:" + prefix + ":meta:channel";
+        }
+
+        static String genIdxGenName(String prefix, String index) {
+            return "rs:" + prefix + ":gen:idx:" + index;
         }
 
         static String genDocIdxName(String prefix, String index, String documentId) {
-            return String.format("rs:%s:doc:%s:%s", prefix, index, documentId);
+            return "rs:" + prefix + ":doc:" + index + ":" + documentId;
+        }
+
+        static String genDictName(String prefix, String index) {
+            return "rs:" + prefix + ":dict:" + index;
+        }
+
+        static String genDictReverseName(String prefix, String index) {
+            return "rs:" + prefix + ":dict:" + index + ":ids";
+        }
+
+        static String genDictSeqName(String prefix, String index) {
+            return "rs:" + prefix + ":dict:" + index + ":seq";
+        }
+
+        static String genDictFreeName(String prefix, String index) {
+            return "rs:" + prefix + ":dict:" + index + ":free";
+        }
+
+        static String genPostingChannelName(String prefix) {
+            return "rs:" + prefix + ":posting:channel";
+        }
+
+        static String genShardName(String index, int shard) {
+            return "{" + index + "." + shard + "}";
+        }
+
+        /**
+         * 紧凑布局下分片内 posting 和排序 zset 的公共前缀, 见 {@link IndexKeys}
+         */
+        static String genCompactIdxName(String prefix, String token) {
+            return "rs:" + prefix + ":c:" + token + ":";
+        }
+
+        static String genCompactDocName(String prefix, String token, String documentId) {
+            return "rs:" + prefix + ":r:" + token + ":" + documentId;
+        }
+
+        static String genCursorSecretName(String prefix) {
+            return "rs:" + prefix + ":cursor:secret";
+        }
+
+        static String genLayoutName(String prefix) {
+            return "rs:" + prefix + ":layout";
+        }
+
+        static String genNamesName(String prefix) {
+            return "rs:" + prefix + ":names";
+        }
+
+        static String genNamesReverseName(String prefix) {
+            return "rs:" + prefix + ":names:ids";
+        }
+
+        static String genNamesSeqName(String prefix) {
+            return "rs:" + prefix + ":names:seq";
+        }
+
+        /**
+         * 索引的某个版本, 代替索引名称生成 key; 版本 0 为索引名称本身, 见 {@link IndexAliases}
+         */
+        static String genVersionName(String index, long version) {
+            return version == 0 ? index : index + "@" + version;
+        }
+
+        static String genAliasName(String prefix) {
+            return "rs:" + prefix + ":alias";
+        }
+
+        static String genRebuildName(String prefix) {
+            return "rs:" + prefix + ":rebuild";
+        }
+
+        static String genVersionSeqName(String prefix) {
+            return "rs:" + prefix + ":alias:seq";
         }
     }
 }
@@ -0,0 +1,115 @@
+package app.pooi.redissearch.search;
+
+import app.pooi.redissearch.configuration.RedisSearchConfiguration;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 查询和写入的 micrometer 指标, 按索引打标签, 通过 actuator 的 /actuator/metrics 查看
+ *
+ * <ul>
+ * <li>redis.search.query: 查询总耗时, 标签 operation</li>
+ * <li>redis.search.query.stage: 每个阶段在一次查询中的耗时, 标签 stage</li>
+ * <li>redis.search.query.round.trips: 每次查询的 redis 往返次数</li>
+ * <li>redis.search.query.postings: 查询涉及的 posting 集合大小</li>
+ * <li>redis.search.query.results: 每次查询过滤后的结果数量</li>
+ * <li>redis.search.query.temp.keys: 创建的临时 key 数量</li>
+ * <li>redis.search.index: 写入耗时, 标签 field, operation</li>
+ * </ul>
+ *
+ * 开启 redis.search.metrics.slow-query 后, 超过阈值的查询以 WARN 级别写入 redis.search.slow-query 日志
+ */
+@Component
+public class SearchMetrics {
+
+    private static final Logger SLOW_QUERY = LoggerFactory.getLogger("redis.search.slow-query");
+
+    private final MeterRegistry meterRegistry;
+    private final RedisSearchConfiguration redisSearchConfiguration;
+    private final QueryPlanner queryPlanner;
+
+    public SearchMetrics(MeterRegistry meterRegistry, RedisSearchConfiguration redisSearchConfiguration,
+            QueryPlanner queryPlanner) {
+        this.meterRegistry = meterRegistry;
+        this.redisSearchConfiguration = redisSearchConfiguration;
+        this.queryPlanner = queryPlanner;
+    }
+
+    /**
+     * 统计一次查询请求, 已在统计中的嵌套调用只计入外层
+     *
+     * @param operation 查询方式, 如 query, queryAndSort, cursor
+     */
+    public <T> T trace(String operation, String index, String query, String sort, Supplier<T> body) {
+        if (!this.redisSearchConfiguration.getMetrics().isEnabled() || QueryTrace.current() != null) {
+            return body.get();
+        }
+        final QueryTrace trace = new QueryTrace(index);
+        QueryTrace.bind(trace);
+        try {
+            return body.get();
+        } finally {
+            QueryTrace.bind(null);
+            this.record(operation, query, sort, trace);
+        }
+    }
+
+    private void record(String operation, String query, String sort, QueryTrace trace) {
+        final String index = trace.getIndex();
+        final long elapsed = trace.elapsed();
+        Timer.builder("redis.search.query").tag("index", index).tag("operation", operation)
+                .register(this.meterRegistry).record(elapsed, TimeUnit.NANOSECONDS);
+
+        final Map<String, Long> stages = trace.stages();
+        stages.forEach((stage, nanos) -> Timer.builder("redis.search.query.stage").tag("index", index)
+                .tag("stage", stage).register(this.meterRegistry).record(nanos, TimeUnit.NANOSECONDS));
+
+        DistributionSummary.builder("redis.search.query.round.trips").tag("index", index)
+                .register(this.meterRegistry).record(trace.roundTrips());
+        final DistributionSummary postings = DistributionSummary.builder("redis.search.query.postings")
+                .tag("index", index).register(this.meterRegistry);
+        trace.postings().forEach(postings::record);
+        DistributionSummary.builder("redis.search.query.results").tag("index", index)
+                .register(this.meterRegistry).record(trace.results());
+        this.meterRegistry.counter("redis.search.query.temp.keys", "index", index).increment(trace.tempKeys());
+
+        final long slowQuery = this.redisSearchConfiguration.getMetrics().getSlowQuery();
+        if (slowQuery > 0 && elapsed >= TimeUnit.MILLISECONDS.toNanos(slowQuery)) {
+            final Map<String, Double> millis = new LinkedHashMap<>();
+            stages.forEach((stage, nanos) -> millis.put(stage, nanos / 1_000_000D));
+            SLOW_QUERY.warn("{} on {} took {} ms, query {}, sort '{}', round trips {}, temp keys {}, results {}, "
+                            + "stages(ms) {}", operation, index, elapsed / 1_000_000D,
+                    query == null ? null : this.queryPlanner.parse(query), sort, trace.roundTrips(),
+                    trace.tempKeys(), trace.results(), millis);
+        }
+    }
+
+    /**
+     * 统计一次写入
+     *
+     * @param operation 写入方式, 如 index, sort, update, delete, bulk
+     * @param field     字段名称, 涉及多个字段时为 *
+     */
+    public <T> T index(String operation, String index, String field, Supplier<T> write) {
+        if (!this.redisSearchConfiguration.getMetrics().isEnabled()) {
+            return write.get();
+        }
+        final long start = System.nanoTime();
+        try {
+            return write.get();
+        } finally {
+            Timer.builder("redis.search.index").tag("index", index).tag("field", field)
+                    .tag("operation", operation).register(this.meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package app.pooi.redissearch.search;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * 服务端 lua 脚本
+ *
+ * sha1 只计算一次, 执行时先 EVALSHA, 服务端未缓存(NOSCRIPT)时才退回 EVAL; pipeline 中见 {@link #eval}
+ */
+final class SearchScripts {
+
+    /**
+     * 脚本内容, pipeline 中执行时使用
+     */
+    private static final Map<RedisScript<?>, byte[]> BODIES = new ConcurrentHashMap<>();
+
+    private SearchScripts() {
+    }
+
+    static final RedisScript<List<Object>> QUERY = list("scripts/query.lua");
+
+    static final RedisScript<List<Object>> QUERY_MEMBERS = list("scripts/query_members.lua");
+
+    static final RedisScript<Long> RANGE = load("scripts/range.lua", Long.class);
+
+    static final RedisScript<Long> UPDATE = load("scripts/update.lua", Long.class);
+
+    static final RedisScript<Long> PREFIX = load("scripts/prefix.lua", Long.class);
+
+    static final RedisScript<List<Object>> SUGGEST = list("scripts/suggest.lua");
+
+    static final RedisScript<List<Object>> DELETE = list("scripts/delete.lua");
+
+    static final RedisScript<List<Object>> SWEEP = list("scripts/sweep.lua");
+
+    static final RedisScript<Long> SCORED = load("scripts/scored.lua", Long.class);
+
+    static final RedisScript<List<Object>> RANK = list("scripts/rank.lua");
+
+    static final RedisScript<Long> ALIAS = load("scripts/alias.lua", Long.class);
+
+    static final RedisScript<String> CLAIM = load("scripts/claim.lua", String.class);
+
+    static final RedisScript<Long> MEMORY = load("scripts/memory.lua", Long.class);
+
+    static final RedisScript<List<Object>> DOCUMENT_IDS = list("scripts/docid.lua");
+
+    static final RedisScript<Long> TERMS = load("scripts/terms.lua", Long.class);
+
+    /**
+     * 在 pipeline 中执行脚本. pipeline 中的 NOSCRIPT 要到读取结果时才出现, 无法退回, 因此直接 EVAL 脚本内容
+     */
+    static void eval(RedisConnection connection, RedisScript<?> script, List<String> keys, List<String> args) {
+        final byte[] body = BODIES.computeIfAbsent(script,
+                s -> s.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+        connection.eval(body, ReturnType.fromJavaType(script.getResultType()), keys.size(),
+                Stream.concat(keys.stream(), args.stream()).map(value -> value.getBytes(StandardCharsets.UTF_8))
+                        .toArray(byte[][]::new));
+    }
+
+    /**
+     * 返回数组的脚本, 元素为 Long、String 或嵌套的数组
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static RedisScript<List<Object>> list(String path) {
+        return (RedisScript) load(path, List.class);
+    }
+
+    private static <T> RedisScript<T> load(String path, Class<T> resultType) {
+        final DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(resultType);
+        return script;
+    }
+}
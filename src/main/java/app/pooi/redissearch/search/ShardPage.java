@@ -0,0 +1,31 @@
+package app.pooi.redissearch.search;
+
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一个分片的一页结果及该分片的结果总数
+ */
+final class ShardPage {
+
+    static final ShardPage EMPTY = new ShardPage(Collections.emptyList(), 0L);
+
+    private final List<ZSetOperations.TypedTuple<String>> tuples;
+
+    private final long total;
+
+    ShardPage(List<ZSetOperations.TypedTuple<String>> tuples, long total) {
+        this.tuples = tuples;
+        this.total = total;
+    }
+
+    List<ZSetOperations.TypedTuple<String>> getTuples() {
+        return tuples;
+    }
+
+    long getTotal() {
+        return total;
+    }
+}
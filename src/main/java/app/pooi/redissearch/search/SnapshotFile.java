@@ -0,0 +1,375 @@
+package app.pooi.redissearch.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 索引快照文件, 见 {@link IndexSnapshots}
+ *
+ * <pre>
+ * 文件头  长度 int, magic "RSNP", 格式版本, 来源前缀, 索引, 版本名称, key 布局状态, 分片数, 名称字典 (名称 -> id)
+ * 分块    原始长度 int, 压缩后长度 int, 原始内容的 CRC32 long, deflate 压缩的条目
+ * 结尾    原始长度 0, 压缩后长度 0, 条目总数 long
+ * 条目    类型 byte, key, pttl long, DUMP 的值或集合成员
+ * </pre>
+ * 字符串和字节数组均为 int 长度加内容. 读取时逐块校验 CRC32, 结尾的条目总数与读到的不一致时视为文件不完整;
+ * 长度前缀在分配缓冲区前校验, 超过文件剩余长度或分块上限 {@link #MAX_CHUNK} 时视为文件损坏
+ */
+final class SnapshotFile {
+
+    private static final int MAGIC = 0x52534E50;
+
+    private static final int FORMAT = 1;
+
+    /**
+     * 分块原始内容的最大长度
+     */
+    static final int MAX_CHUNK = 1 << 30;
+
+    /**
+     * 条目保存 DUMP 的值, 导入时 RESTORE
+     */
+    static final byte DUMP = 'D';
+
+    /**
+     * 条目保存集合成员, 导入时改写成员中的前缀后 SADD
+     */
+    static final byte MEMBERS = 'M';
+
+    private SnapshotFile() {
+    }
+
+    @Data
+    @AllArgsConstructor
+    static class Header {
+
+        private String prefix;
+
+        private String index;
+
+        /**
+         * 版本名称, 见 {@link IndexAliases}
+         */
+        private String version;
+
+        /**
+         * key 布局状态, 默认布局为 "", 见 {@link KeyLayouts}
+         */
+        private String layout;
+
+        private int shards;
+
+        /**
+         * 紧凑布局的索引和字段名称 -> 字典id, 默认布局为空
+         */
+        private Map<String, Long> names;
+    }
+
+    @Data
+    @AllArgsConstructor
+    static class Entry {
+
+        private byte type;
+
+        private byte[] key;
+
+        /**
+         * 剩余存活时间(毫秒), 没有过期时间时为 -1
+         */
+        private long ttl;
+
+        /**
+         * {@link #DUMP} 的值
+         */
+        private byte[] value;
+
+        /**
+         * {@link #MEMBERS} 的成员
+         */
+        private List<byte[]> members;
+    }
+
+    static class Writer implements Closeable {
+
+        private final FileChannel channel;
+
+        private long entries;
+
+        private long chunks;
+
+        private long bytes;
+
+        Writer(Path path, Header header) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            try {
+                this.header(header);
+            } catch (IOException | RuntimeException e) {
+                this.channel.close();
+                throw e;
+            }
+        }
+
+        private void header(Header header) throws IOException {
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            writeString(out, header.getPrefix());
+            writeString(out, header.getIndex());
+            writeString(out, header.getVersion());
+            writeString(out, header.getLayout());
+            out.writeInt(header.getShards());
+            out.writeInt(header.getNames().size());
+            for (Map.Entry<String, Long> name : header.getNames().entrySet()) {
+                writeString(out, name.getKey());
+                out.writeLong(name.getValue());
+            }
+            final byte[] encoded = buffer.toByteArray();
+            this.write(ByteBuffer.allocate(4 + encoded.length).putInt(encoded.length).put(encoded));
+        }
+
+        /**
+         * 写入一个分块
+         */
+        void write(List<Entry> chunk) throws IOException {
+            if (chunk.isEmpty()) {
+                return;
+            }
+            final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(raw);
+            out.writeInt(chunk.size());
+            for (Entry entry : chunk) {
+                out.writeByte(entry.getType());
+                writeBytes(out, entry.getKey());
+                out.writeLong(entry.getTtl());
+                if (entry.getType() == DUMP) {
+                    writeBytes(out, entry.getValue());
+                } else {
+                    out.writeInt(entry.getMembers().size());
+                    for (byte[] member : entry.getMembers()) {
+                        writeBytes(out, member);
+                    }
+                }
+            }
+            final byte[] content = raw.toByteArray();
+            if (content.length > MAX_CHUNK) {
+                throw new IOException("chunk of " + content.length + " bytes exceeds " + MAX_CHUNK
+                        + ", use a smaller redis.search.snapshot.chunk-size");
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(content);
+
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 16);
+            try (DeflaterOutputStream deflater = new DeflaterOutputStream(compressed,
+                    new Deflater(Deflater.BEST_SPEED))) {
+                deflater.write(content);
+            }
+            final byte[] body = compressed.toByteArray();
+            this.write(ByteBuffer.allocate(16 + body.length).putInt(content.length).putInt(body.length)
+                    .putLong(crc.getValue()).put(body));
+            this.entries += chunk.size();
+            this.chunks++;
+        }
+
+        long getEntries() {
+            return entries;
+        }
+
+        long getChunks() {
+            return chunks;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                this.bytes += this.channel.write(buffer);
+            }
+        }
+
+        /**
+         * 写入结尾并刷盘
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                this.write(ByteBuffer.allocate(16).putInt(0).putInt(0).putLong(this.entries));
+                this.channel.force(true);
+            } finally {
+                this.channel.close();
+            }
+        }
+    }
+
+    static class Reader implements Closeable {
+
+        private final Path path;
+
+        private final FileChannel channel;
+
+        private final Header header;
+
+        private long entries;
+
+        private long chunks;
+
+        Reader(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                final DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(this.read(this.read(4).getInt()).array()));
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(path + " is not an index snapshot");
+                }
+                final int format = in.readInt();
+                if (format != FORMAT) {
+                    throw new IOException("unsupported snapshot format " + format + " of " + path);
+                }
+                final String prefix = readString(in);
+                final String index = readString(in);
+                final String version = readString(in);
+                final String layout = readString(in);
+                final int shards = in.readInt();
+                final Map<String, Long> names = new LinkedHashMap<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    names.put(readString(in), in.readLong());
+                }
+                this.header = new Header(prefix, index, version, layout, shards, names);
+            } catch (IOException | RuntimeException e) {
+                this.channel.close();
+                throw e;
+            }
+        }
+
+        Header header() {
+            return header;
+        }
+
+        /**
+         * 读取并校验下一个分块
+         *
+         * @return 读到结尾时为 null
+         * @throws IOException 校验失败或文件不完整
+         */
+        List<Entry> next() throws IOException {
+            final ByteBuffer head = this.read(8);
+            final int length = head.getInt();
+            final int compressedLength = head.getInt();
+            if (length == 0) {
+                final long total = this.read(8).getLong();
+                if (total != this.entries) {
+                    throw new IOException(path + " has " + this.entries + " entries, expected " + total);
+                }
+                return null;
+            }
+            if (length < 0 || length > MAX_CHUNK) {
+                throw new IOException("invalid chunk length " + length + " in chunk " + this.chunks + " of " + path);
+            }
+            final long checksum = this.read(8).getLong();
+            final byte[] content = new byte[length];
+            try (DataInputStream inflater = new DataInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(this.read(compressedLength).array())))) {
+                inflater.readFully(content);
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(content);
+            if (crc.getValue() != checksum) {
+                throw new IOException("checksum mismatch in chunk " + this.chunks + " of " + path);
+            }
+            this.chunks++;
+
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+            final int size = in.readInt();
+            final List<Entry> chunk = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                final byte type = in.readByte();
+                final byte[] key = readBytes(in);
+                final long ttl = in.readLong();
+                if (type == DUMP) {
+                    chunk.add(new Entry(type, key, ttl, readBytes(in), null));
+                } else {
+                    final int count = in.readInt();
+                    final List<byte[]> members = new ArrayList<>(count);
+                    for (int j = 0; j < count; j++) {
+                        members.add(readBytes(in));
+                    }
+                    chunk.add(new Entry(type, key, ttl, null, members));
+                }
+            }
+            this.entries += size;
+            return chunk;
+        }
+
+        /**
+         * @throws IOException 长度为负数或超过文件剩余长度
+         */
+        private ByteBuffer read(int length) throws IOException {
+            final long remaining = this.channel.size() - this.channel.position();
+            if (length < 0) {
+                throw new IOException("invalid length " + length + " in " + path);
+            }
+            if (length > remaining) {
+                throw new EOFException(path + " is truncated");
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (this.channel.read(buffer) < 0) {
+                    throw new EOFException(path + " is truncated");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * in 读取内存中的头部或分块, available 为剩余长度
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("invalid length " + length);
+        }
+        final byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+}
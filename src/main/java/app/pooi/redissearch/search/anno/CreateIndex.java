@@ -28,5 +28,12 @@ public @interface CreateIndex {
      * @return
      */
     Field[] fields() default {};
+
+    /**
+     * 是否异步写入索引, 见 {@link app.pooi.redissearch.search.IndexWriteQueue}
+     *
+     * @return
+     */
+    boolean async() default false;
 }
 
@@ -13,4 +13,10 @@ public @interface DeleteDocument {
 
     String documentId() default "";
 
+    /**
+     * 是否异步删除索引, 见 {@link app.pooi.redissearch.search.IndexWriteQueue}
+     *
+     * @return
+     */
+    boolean async() default false;
 }
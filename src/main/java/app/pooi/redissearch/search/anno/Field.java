@@ -7,4 +7,26 @@ public @interface Field {
     String value() default "";
 
     boolean sort() default false;
+
+    /**
+     * 分词器名称, 保存在 FieldMeta.splitFun 中, 见 {@link app.pooi.redissearch.search.tokenizer.Tokenizers}
+     *
+     * 为空时排序字段整体作为一个词, 文本字段按单字切分
+     */
+    String tokenizer() default "";
+
+    /**
+     * 是否建立前缀索引, 保存在 FieldMeta.prefix 中, 支持 field:abc* 查询和联想
+     *
+     * 字段值按 {@link app.pooi.redissearch.search.tokenizer.WordTokenizer} 切分为小写单词后写入, 与分词器无关
+     */
+    boolean prefix() default false;
+
+    /**
+     * 是否建立评分 posting, 保存在 FieldMeta.scored 中, 支持按相关性排序查询
+     *
+     * 除普通 posting 外, 每个词另存一个 zset 保存其在文档中的词频分量, 并维护字段的文档长度,
+     * 见 {@link app.pooi.redissearch.search.SearchCore#ranked}
+     */
+    boolean scored() default false;
 }
@@ -0,0 +1,123 @@
+package app.pooi.redissearch.search.anno;
+
+import app.pooi.redissearch.search.FieldMeta;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.aspectj.lang.JoinPoint;
+import org.springframework.core.LocalVariableTableParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.core.convert.ConversionService;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 被注解方法的预编译信息, 每个 {@link Method} 只解析一次
+ *
+ * 包括编译后的 SpEL 表达式(可编译时使用 SpEL 编译模式)、参数名称和字段列表
+ */
+@Getter
+class MethodDescriptor {
+
+    private static final SpelExpressionParser PARSER = new SpelExpressionParser(
+            new SpelParserConfiguration(SpelCompilerMode.MIXED, MethodDescriptor.class.getClassLoader()));
+
+    private static final ParameterNameDiscoverer DISCOVERER = new LocalVariableTableParameterNameDiscoverer();
+
+    private static final ConversionService CONVERSION = DefaultConversionService.getSharedInstance();
+
+    /**
+     * 每个参数可用的变量名: #p0, #a0 以及参数名称
+     */
+    private final String[][] variables;
+
+    private final Expression documentId;
+
+    private final List<FieldExpression> fields;
+
+    private final Map<String, FieldMeta> meta;
+
+    private MethodDescriptor(Method method, String documentId, Field[] fields) {
+        final String[] names = DISCOVERER.getParameterNames(method);
+        this.variables = new String[method.getParameterCount()][];
+        for (int i = 0; i < this.variables.length; i++) {
+            this.variables[i] = names != null && names[i] != null
+                    ? new String[] { "p" + i, "a" + i, names[i] }
+                    : new String[] { "p" + i, "a" + i };
+        }
+        this.documentId = PARSER.parseExpression(documentId);
+        this.fields = Arrays.stream(fields)
+                .map(f -> new FieldExpression(f.propertyName(), f.sort(), PARSER.parseExpression(f.value())))
+                .collect(Collectors.toList());
+        this.meta = Arrays.stream(fields).collect(Collectors.toMap(Field::propertyName,
+                f -> new FieldMeta(f.sort(), f.tokenizer(), f.prefix(), f.scored()), (m1, m2) -> m2,
+                LinkedHashMap::new));
+    }
+
+    static MethodDescriptor of(Method method, CreateIndex annotation) {
+        return new MethodDescriptor(method, annotation.documentId(), annotation.fields());
+    }
+
+    static MethodDescriptor of(Method method, UpdateDocument annotation) {
+        return new MethodDescriptor(method, annotation.documentId(), annotation.fields());
+    }
+
+    static MethodDescriptor of(Method method, DeleteDocument annotation) {
+        return new MethodDescriptor(method, annotation.documentId(), new Field[0]);
+    }
+
+    /**
+     * 本次调用的 SpEL 上下文, 同一次调用的所有表达式共用
+     */
+    EvaluationContext context(JoinPoint jp) {
+        final StandardEvaluationContext context = new StandardEvaluationContext(jp.getTarget());
+        final Object[] args = jp.getArgs();
+        for (int i = 0; i < args.length && i < variables.length; i++) {
+            for (String variable : variables[i]) {
+                context.setVariable(variable, args[i]);
+            }
+        }
+        return context;
+    }
+
+    /**
+     * 每个字段只求值一次, 排序字段的值同时转换为 Double
+     *
+     * @param values 字段名称 -> 字段值, 值为 null 的字段被忽略
+     * @param scores 排序字段名称 -> 排序值
+     */
+    void evaluate(EvaluationContext context, Map<String, String> values, Map<String, Double> scores) {
+        for (FieldExpression field : fields) {
+            final Object value = field.getValue().getValue(context);
+            if (value == null) {
+                continue;
+            }
+            values.put(field.getPropertyName(), CONVERSION.convert(value, String.class));
+            if (field.isSort()) {
+                scores.put(field.getPropertyName(), CONVERSION.convert(value, Double.class));
+            }
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class FieldExpression {
+
+        private final String propertyName;
+
+        private final boolean sort;
+
+        private final Expression value;
+    }
+}
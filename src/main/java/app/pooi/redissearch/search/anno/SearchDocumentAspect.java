@@ -1,24 +1,20 @@
 package app.pooi.redissearch.search.anno;
 
-import app.pooi.redissearch.search.FieldMeta;
+import app.pooi.redissearch.search.IndexWriteQueue;
 import app.pooi.redissearch.search.SearchCore;
-import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
 import org.aspectj.lang.reflect.MethodSignature;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.expression.MethodBasedEvaluationContext;
-import org.springframework.core.LocalVariableTableParameterNameDiscoverer;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
-import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.expression.EvaluationContext;
 import org.springframework.stereotype.Component;
 
-import java.util.Arrays;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Aspect
 @Component
@@ -27,6 +23,15 @@ public class SearchDocumentAspect {
     @Autowired
     private SearchCore searchCore;
 
+    @Autowired
+    private IndexWriteQueue indexWriteQueue;
+
+    private final Map<Method, MethodDescriptor> createDescriptors = new ConcurrentHashMap<>();
+
+    private final Map<Method, MethodDescriptor> updateDescriptors = new ConcurrentHashMap<>();
+
+    private final Map<Method, MethodDescriptor> deleteDescriptors = new ConcurrentHashMap<>();
+
     @Pointcut("@annotation(CreateIndex)")
     void saveDocumentAnnotationPointCut() {
     }
@@ -43,22 +48,28 @@ public class SearchDocumentAspect {
     public Object saveDocument(ProceedingJoinPoint joinPoint) throws Throwable {
         Object retVal = joinPoint.proceed();
 
-        final MethodSignature methodSignature = (MethodSignature) joinPoint.getSignature();
-        final CreateIndex annotation = methodSignature.getMethod().getAnnotation(CreateIndex.class);
+        final Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        final CreateIndex annotation = method.getAnnotation(CreateIndex.class);
+        final MethodDescriptor descriptor = this.createDescriptors.computeIfAbsent(method,
+                m -> MethodDescriptor.of(m, annotation));
+
+        final EvaluationContext context = descriptor.context(joinPoint);
+        final String documentId = descriptor.getDocumentId().getValue(context, String.class);
+
+        this.searchCore.indexMeta(annotation.index(), descriptor.getMeta());
 
-        final String documentId = parse(annotation.documentId(), joinPoint, String.class);
-        final Field[] fields = annotation.fields();
+        final Map<String, String> values = new LinkedHashMap<>();
+        final Map<String, Double> scores = new LinkedHashMap<>();
+        descriptor.evaluate(context, values, scores);
 
-        final Map<String, FieldMeta> meta = Arrays.stream(fields).collect(Collectors.toMap(Field::propertyName, f -> new FieldMeta(f.sort())));
-        this.searchCore.indexMeta(annotation.index(), meta);
-        
-        for(Field field : fields) {
-            this.searchCore.indexDocument(annotation.index(), field.propertyName(), documentId, parse(field.value(), joinPoint, String.class));
-            if (field.sort()) {
-                this.searchCore.indexSortField(annotation.index(), field.propertyName(), documentId, parse(field.value(), joinPoint, Double.class));
-            }
+        if (annotation.async()) {
+            this.indexWriteQueue.index(annotation.index(), documentId, values, scores);
+            return retVal;
         }
 
+        values.forEach((field, value) -> this.searchCore.indexDocument(annotation.index(), field, documentId, value));
+        scores.forEach((field, score) -> this.searchCore.indexSortField(annotation.index(), field, documentId, score));
+
         return retVal;
     }
 
@@ -66,15 +77,23 @@ public class SearchDocumentAspect {
     public Object updateDocument(ProceedingJoinPoint joinPoint) throws Throwable {
         Object retVal = joinPoint.proceed();
 
-        final MethodSignature methodSignature = (MethodSignature) joinPoint.getSignature();
-        final UpdateDocument annotation = methodSignature.getMethod().getAnnotation(UpdateDocument.class);
+        final Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        final UpdateDocument annotation = method.getAnnotation(UpdateDocument.class);
+        final MethodDescriptor descriptor = this.updateDescriptors.computeIfAbsent(method,
+                m -> MethodDescriptor.of(m, annotation));
+
+        final EvaluationContext context = descriptor.context(joinPoint);
+        final String documentId = descriptor.getDocumentId().getValue(context, String.class);
 
-        final String documentId = parse(annotation.documentId(), joinPoint, String.class);
-        final String document = parse(annotation.document(), joinPoint, String.class);
-        // final Field[] fields = annotation.fields();
+        if (descriptor.getFields().isEmpty()) {
+            return retVal;
+        }
+        this.searchCore.indexMeta(annotation.index(), descriptor.getMeta());
 
-        // this.searchCore.updateDocumentIndex(annotation.index(), ,documentId,
-        // document);
+        final Map<String, String> values = new LinkedHashMap<>();
+        final Map<String, Double> scores = new LinkedHashMap<>();
+        descriptor.evaluate(context, values, scores);
+        this.searchCore.updateDocument(annotation.index(), documentId, values, scores);
 
         return retVal;
     }
@@ -82,27 +101,16 @@ public class SearchDocumentAspect {
     @Around("deleteDocumentAnnotationPointCut()")
     public Object delteDocuemnt(ProceedingJoinPoint joinPoint) throws Throwable {
         Object retVal = joinPoint.proceed();
-        final MethodSignature methodSignature = (MethodSignature) joinPoint.getSignature();
-        final DeleteDocument annotation = methodSignature.getMethod().getAnnotation(DeleteDocument.class);
-        final String documentId = parse(annotation.documentId(), joinPoint, String.class);
-        this.searchCore.deleteDocumentIndex(annotation.index(), documentId);
+        final Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        final DeleteDocument annotation = method.getAnnotation(DeleteDocument.class);
+        final MethodDescriptor descriptor = this.deleteDescriptors.computeIfAbsent(method,
+                m -> MethodDescriptor.of(m, annotation));
+        final String documentId = descriptor.getDocumentId().getValue(descriptor.context(joinPoint), String.class);
+        if (annotation.async()) {
+            this.indexWriteQueue.delete(annotation.index(), documentId);
+        } else {
+            this.searchCore.deleteDocumentIndex(annotation.index(), documentId);
+        }
         return retVal;
     }
-
-    /**
-     * 支持 #p0 参数索引的表达式解析
-     *
-     * @param spel 表达式
-     * @return 解析后的字符串
-     */
-    private static <T> T parse(String spel, JoinPoint jp, Class<T> clazz) {
-        // 获取被拦截方法参数名列表(使用Spring支持类库)
-        LocalVariableTableParameterNameDiscoverer u = new LocalVariableTableParameterNameDiscoverer();
-        // 使用SPEL进行key的解析
-        ExpressionParser parser = new SpelExpressionParser();
-        // SPEL上下文
-        StandardEvaluationContext context = new MethodBasedEvaluationContext(jp.getTarget(),
-                ((MethodSignature) jp.getSignature()).getMethod(), jp.getArgs(), u);
-        return parser.parseExpression(spel).getValue(context, clazz);
-    }
 }
@@ -14,4 +14,11 @@ public @interface UpdateDocument {
     String documentId() default "";
 
     String document() default "";
+
+    /**
+     * 需要更新的索引字段, 未列出的字段保持不变
+     *
+     * @return
+     */
+    Field[] fields() default {};
 }
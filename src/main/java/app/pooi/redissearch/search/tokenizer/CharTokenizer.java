@@ -0,0 +1,33 @@
+package app.pooi.redissearch.search.tokenizer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 单字切分, 未指定分词器的文本字段默认使用
+ */
+public class CharTokenizer implements Tokenizer {
+
+    public static final String NAME = "char";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public List<String> tokenize(String text) {
+        return chars(text).distinct().collect(Collectors.toList());
+    }
+
+    @Override
+    public Map<String, Integer> frequencies(String text) {
+        return Tokenizer.count(chars(text));
+    }
+
+    private static Stream<String> chars(String text) {
+        return text.codePoints().mapToObj(cp -> new String(Character.toChars(cp)));
+    }
+}
@@ -0,0 +1,69 @@
+package app.pooi.redissearch.search.tokenizer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 中日韩文字按相邻两个字切分, 其余文字按单词切分
+ */
+public class CjkBigramTokenizer implements Tokenizer {
+
+    public static final String NAME = "cjk";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public List<String> tokenize(String text) {
+        return new ArrayList<>(new LinkedHashSet<>(this.tokens(text)));
+    }
+
+    @Override
+    public Map<String, Integer> frequencies(String text) {
+        return Tokenizer.count(this.tokens(text).stream());
+    }
+
+    /**
+     * 未去重的分词结果
+     */
+    private List<String> tokens(String text) {
+        final List<String> tokens = new ArrayList<>();
+        final int[] cps = text.toLowerCase(Locale.ROOT).codePoints().toArray();
+
+        int i = 0;
+        while (i < cps.length) {
+            int j = i;
+            if (isCjk(cps[i])) {
+                while (j < cps.length && isCjk(cps[j])) {
+                    j++;
+                }
+                if (j - i == 1) {
+                    tokens.add(new String(cps, i, 1));
+                }
+                for (int k = i; k + 1 < j; k++) {
+                    tokens.add(new String(cps, k, 2));
+                }
+            } else if (Character.isLetterOrDigit(cps[i])) {
+                while (j < cps.length && Character.isLetterOrDigit(cps[j]) && !isCjk(cps[j])) {
+                    j++;
+                }
+                tokens.add(new String(cps, i, j - i));
+            } else {
+                j++;
+            }
+            i = j;
+        }
+        return tokens;
+    }
+
+    private static boolean isCjk(int codePoint) {
+        final Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+}
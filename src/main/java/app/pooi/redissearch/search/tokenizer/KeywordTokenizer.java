@@ -0,0 +1,22 @@
+package app.pooi.redissearch.search.tokenizer;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 整个值作为一个词, 排序字段默认使用
+ */
+public class KeywordTokenizer implements Tokenizer {
+
+    public static final String NAME = "keyword";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public List<String> tokenize(String text) {
+        return text.isEmpty() ? Collections.emptyList() : Collections.singletonList(text);
+    }
+}
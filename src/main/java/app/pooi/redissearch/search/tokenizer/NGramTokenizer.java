@@ -0,0 +1,51 @@
+package app.pooi.redissearch.search.tokenizer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * 按单词切分后, 每个单词内按 n 个字符滑动切分, 不足 n 个字符的单词整体作为一个词
+ *
+ * 查询值同样切分, 因此查询值至少需要 n 个字符才能命中更长的文档值
+ */
+public class NGramTokenizer implements Tokenizer {
+
+    public static final String BIGRAM = "bigram";
+
+    public static final String TRIGRAM = "trigram";
+
+    private final String name;
+
+    private final int n;
+
+    public NGramTokenizer(String name, int n) {
+        this.name = name;
+        this.n = n;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public List<String> tokenize(String text) {
+        return WordTokenizer.words(text).flatMap(this::grams).distinct().collect(Collectors.toList());
+    }
+
+    @Override
+    public Map<String, Integer> frequencies(String text) {
+        return Tokenizer.count(WordTokenizer.words(text).flatMap(this::grams));
+    }
+
+    private Stream<String> grams(String word) {
+        final int[] cps = word.codePoints().toArray();
+        if (cps.length <= n) {
+            return Stream.of(word);
+        }
+        return IntStream.rangeClosed(0, cps.length - n).mapToObj(i -> new String(cps, i, n));
+    }
+}
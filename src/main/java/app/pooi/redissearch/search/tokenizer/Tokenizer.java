@@ -0,0 +1,49 @@
+package app.pooi.redissearch.search.tokenizer;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * 分词器
+ *
+ * 通过 {@code @Field(tokenizer = "...")} 按字段选择, 名称保存在 {@code FieldMeta.splitFun} 中,
+ * 索引和查询使用同一个分词器. 注册为 spring bean 即可增加自定义分词器
+ */
+public interface Tokenizer {
+
+    /**
+     * 分词器名称, 同名时自定义分词器覆盖内置分词器
+     *
+     * @return
+     */
+    String name();
+
+    /**
+     * 分词, 结果已去重
+     *
+     * @param text 文档值或查询值
+     * @return
+     */
+    List<String> tokenize(String text);
+
+    /**
+     * 词频, 用于评分 posting; 默认每个词计为出现一次, 内置分词器按实际出现次数计算
+     *
+     * @param text 文档值
+     * @return 词 -> 出现次数, 按首次出现的顺序
+     */
+    default Map<String, Integer> frequencies(String text) {
+        return count(this.tokenize(text).stream());
+    }
+
+    /**
+     * 统计未去重的分词结果中每个词的出现次数
+     */
+    static Map<String, Integer> count(Stream<String> tokens) {
+        final Map<String, Integer> frequencies = new LinkedHashMap<>();
+        tokens.forEach(token -> frequencies.merge(token, 1, Integer::sum));
+        return frequencies;
+    }
+}
@@ -0,0 +1,82 @@
+package app.pooi.redissearch.search.tokenizer;
+
+import app.pooi.redissearch.search.FieldMeta;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * 分词器注册表: 内置分词器加上容器中所有 {@link Tokenizer} bean
+ */
+@Component
+public class Tokenizers {
+
+    private final Map<String, Tokenizer> tokenizers = new ConcurrentHashMap<>();
+
+    public Tokenizers(ObjectProvider<Tokenizer> custom) {
+        Stream.of(new CharTokenizer(), new KeywordTokenizer(), new WordTokenizer(),
+                new NGramTokenizer(NGramTokenizer.BIGRAM, 2), new NGramTokenizer(NGramTokenizer.TRIGRAM, 3),
+                new CjkBigramTokenizer()).forEach(t -> tokenizers.put(t.name(), t));
+        custom.orderedStream().forEach(t -> tokenizers.put(t.name(), t));
+    }
+
+    /**
+     * @param name 分词器名称
+     * @throws IllegalArgumentException 没有该名称的分词器
+     */
+    public Tokenizer get(String name) {
+        final Tokenizer tokenizer = tokenizers.get(name);
+        if (tokenizer == null) {
+            throw new IllegalArgumentException("unknown tokenizer: " + name);
+        }
+        return tokenizer;
+    }
+
+    /**
+     * 字段使用的分词器: 指定了 splitFun 时使用指定的分词器, 否则排序字段整体作为一个词, 文本字段按单字切分
+     *
+     * @param meta 字段元信息, 可以为 null
+     */
+    public Tokenizer forField(FieldMeta meta) {
+        if (meta == null) {
+            return get(CharTokenizer.NAME);
+        }
+        if (meta.getSplitFun() != null && !meta.getSplitFun().isEmpty()) {
+            return get(meta.getSplitFun());
+        }
+        return get("true".equals(meta.getSort()) ? KeywordTokenizer.NAME : CharTokenizer.NAME);
+    }
+
+    /**
+     * 字段前缀索引的词: 开启前缀索引时按 {@link WordTokenizer} 切分为小写单词, 否则为空
+     *
+     * @param meta 字段元信息, 可以为 null
+     */
+    public List<String> prefixTerms(FieldMeta meta, String text) {
+        return meta != null && "true".equals(meta.getPrefix()) ? get(WordTokenizer.NAME).tokenize(text)
+                : Collections.emptyList();
+    }
+
+    /**
+     * 文档字段写入评分 posting 的词频: 开启评分时按字段的分词器统计, 否则为空
+     *
+     * @param meta 字段元信息, 可以为 null
+     */
+    public Map<String, Integer> frequencies(FieldMeta meta, String text) {
+        return meta != null && "true".equals(meta.getScored()) ? this.forField(meta).frequencies(text)
+                : Collections.emptyMap();
+    }
+
+    /**
+     * 查询或联想的前缀, 与前缀索引的词相同地转为小写
+     */
+    public String normalizePrefix(String prefix) {
+        return prefix.toLowerCase(Locale.ROOT);
+    }
+}
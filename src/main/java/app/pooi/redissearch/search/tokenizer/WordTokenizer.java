@@ -0,0 +1,41 @@
+package app.pooi.redissearch.search.tokenizer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 按非字母数字字符切分为小写单词
+ */
+public class WordTokenizer implements Tokenizer {
+
+    public static final String NAME = "word";
+
+    private static final Pattern SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public List<String> tokenize(String text) {
+        return words(text).distinct().collect(Collectors.toList());
+    }
+
+    @Override
+    public Map<String, Integer> frequencies(String text) {
+        return Tokenizer.count(words(text));
+    }
+
+    /**
+     * 未去重的单词
+     */
+    static Stream<String> words(String text) {
+        return Arrays.stream(SEPARATOR.split(text.toLowerCase(Locale.ROOT))).filter(w -> !w.isEmpty());
+    }
+}
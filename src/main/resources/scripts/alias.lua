@@ -0,0 +1,20 @@
+-- 结束索引重建: 重建版本仍是 ARGV[2] 时清除重建标记, 切换时同时把别名指向该版本
+--
+-- KEYS[1]    别名 hash, 索引 -> 当前版本
+-- KEYS[2]    重建 hash, 索引 -> 重建中的版本
+-- ARGV[1]    索引名称
+-- ARGV[2]    重建版本
+-- ARGV[3]    1 切换别名, 0 放弃重建
+--
+-- 返回切换前的版本 (没有别名时为 0), 重建版本不是 ARGV[2] 时返回 -1
+
+if redis.call('HGET', KEYS[2], ARGV[1]) ~= ARGV[2] then
+    return -1
+end
+redis.call('HDEL', KEYS[2], ARGV[1])
+
+local previous = tonumber(redis.call('HGET', KEYS[1], ARGV[1]) or '0')
+if ARGV[3] == '1' then
+    redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])
+end
+return previous
@@ -0,0 +1,25 @@
+-- 按给定的id登记名称字典, 用于导入快照时保留紧凑布局 key 中的id
+--
+-- KEYS[1]  名称 -> id 的 hash
+-- KEYS[2]  id -> 名称 的 hash
+-- KEYS[3]  已分配的id数量, 之后分配的id从中递增
+-- ARGV     名称和id交替出现
+--
+-- 名称已登记为其他id或id已分配给其他名称时不做任何修改, 返回冲突的名称; 全部登记后返回 ""
+
+for i = 1, #ARGV, 2 do
+    local id = redis.call('HGET', KEYS[1], ARGV[i])
+    local name = redis.call('HGET', KEYS[2], ARGV[i + 1])
+    if (id and id ~= ARGV[i + 1]) or (name and name ~= ARGV[i]) then
+        return ARGV[i]
+    end
+end
+
+local count = tonumber(redis.call('GET', KEYS[3]) or '0')
+for i = 1, #ARGV, 2 do
+    redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])
+    redis.call('HSET', KEYS[2], ARGV[i + 1], ARGV[i])
+    count = math.max(count, tonumber(ARGV[i + 1]) + 1)
+end
+redis.call('SET', KEYS[3], count)
+return ''
@@ -0,0 +1,98 @@
+-- 删除文档索引: 从文档反向索引记录的每个 key 中移除文档, 再删除反向索引; 同一分片的多个文档一次删除
+--
+-- KEYS[1]         索引代数 key, 有文档被删除时自增
+-- KEYS[2]         文档id字典: 文档id -> 整数id 的 hash, 见 docid.lua
+-- KEYS[3]         文档id字典: 整数id -> 文档id 的 hash
+-- KEYS[4]         释放的整数id zset, 分值为可以重新分配的时间(秒)
+-- KEYS[5..n+4]        每个文档的反向索引 key
+-- KEYS[n+5..n+s+4]    开启评分的字段的评分统计 hash
+-- KEYS[n+s+5..]       开启前缀索引的字段的词的文档数 zset
+-- ARGV[1]             反向索引成员省略的 key 前缀, 成员加上该前缀为 key (默认布局为空)
+-- ARGV[2]             文档数量 n
+-- ARGV[3]             为 1 时同时返回被修改的 key, 用于失效 posting 缓存
+-- ARGV[4]             释放的整数id 在多少秒后才能重新分配
+-- ARGV[5]             开启评分的字段数量 s
+-- ARGV[6..n+5]        文档id, 与反向索引 key 一一对应
+-- ARGV[n+6..n+s+5]    开启评分的字段的文档长度 zset 的反向索引成员, 与评分统计 hash 一一对应
+-- ARGV[n+s+6..]       开启前缀索引的字段的词 posting 在反向索引中的成员前缀, 与词的文档数 zset 一一对应
+--
+-- posting 和前缀索引 posting 为 set, 排序 zset、评分 posting 和文档长度为 zset, 按类型 SREM / ZREM,
+-- 移除最后一个成员后 redis 删除空 key. 文档长度同时从评分统计的总长度中减去, 总长度归零时删除统计 hash;
+-- 文档从词 posting 中移除时词的文档数减一, 减到 0 时移除该词.
+-- 文档在字典中的整数id 一并释放, 使字典和位图保持稠密
+--
+-- 返回 {删除的文档数, {被修改的 key ...}, {释放的文档id, 整数id ...}}
+
+local base = ARGV[1]
+local n = tonumber(ARGV[2])
+local collect = ARGV[3] == '1'
+local released = tonumber(redis.call('TIME')[1]) + tonumber(ARGV[4])
+local s = tonumber(ARGV[5])
+
+local stats = {}
+for i = n + 5, n + s + 4 do
+    stats[ARGV[i + 1]] = KEYS[i]
+end
+local counts = {}
+for i = n + s + 5, #KEYS do
+    table.insert(counts, {ARGV[i + 1], KEYS[i]})
+end
+
+-- 成员为词 posting 时返回词的文档数 zset 和词
+local function term(member)
+    for _, count in ipairs(counts) do
+        if string.sub(member, 1, #count[1]) == count[1] then
+            return count[2], string.sub(member, #count[1] + 1)
+        end
+    end
+end
+
+local deleted = 0
+local touched = {}
+local freed = {}
+for d = 1, n do
+    local docKey = KEYS[d + 4]
+    local documentId = ARGV[d + 5]
+    local members = redis.call('SMEMBERS', docKey)
+    if #members > 0 then
+        deleted = deleted + 1
+        for _, member in ipairs(members) do
+            local key = base .. member
+            local statsKey = stats[member]
+            if statsKey then
+                local length = redis.call('ZSCORE', key, documentId)
+                if length and redis.call('HINCRBY', statsKey, 'length', -tonumber(length)) <= 0 then
+                    redis.call('DEL', statsKey)
+                end
+            end
+            local kind = redis.call('TYPE', key)['ok']
+            if kind == 'set' then
+                local countKey, word = term(member)
+                if redis.call('SREM', key, documentId) == 1 and countKey
+                        and tonumber(redis.call('ZINCRBY', countKey, -1, word)) <= 0 then
+                    redis.call('ZREM', countKey, word)
+                end
+            elseif kind == 'zset' then
+                redis.call('ZREM', key, documentId)
+            end
+            if collect then
+                table.insert(touched, key)
+            end
+        end
+        redis.call('DEL', docKey)
+    end
+    local id = redis.call('HGET', KEYS[2], documentId)
+    if id then
+        redis.call('HDEL', KEYS[2], documentId)
+        redis.call('HDEL', KEYS[3], id)
+        redis.call('ZADD', KEYS[4], released, id)
+        table.insert(freed, documentId)
+        table.insert(freed, id)
+    end
+end
+
+if deleted > 0 then
+    redis.call('INCR', KEYS[1])
+end
+
+return {deleted, touched, freed}
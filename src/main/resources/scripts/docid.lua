@@ -0,0 +1,31 @@
+-- 文档id字典: 为文档id分配从 0 开始的稠密整数id, 已分配时直接返回
+--
+-- KEYS[1]  文档id -> 整数id 的 hash
+-- KEYS[2]  整数id -> 文档id 的 hash
+-- KEYS[3]  已分配的整数id数量
+-- KEYS[4]  可选, 删除文档时释放的整数id zset, 分值为可以重新分配的时间(秒), 见 delete.lua;
+--          优先复用已到时间的整数id, 没有时再分配新的
+-- ARGV     文档id
+--
+-- 返回与 ARGV 顺序相同的整数id
+
+local free = KEYS[4]
+local now = free and tonumber(redis.call('TIME')[1])
+
+local ids = {}
+for i, documentId in ipairs(ARGV) do
+    local id = redis.call('HGET', KEYS[1], documentId)
+    if not id then
+        local reused = free and redis.call('ZRANGEBYSCORE', free, '-inf', now, 'LIMIT', 0, 1)[1]
+        if reused then
+            redis.call('ZREM', free, reused)
+            id = reused
+        else
+            id = redis.call('INCR', KEYS[3]) - 1
+        end
+        redis.call('HSET', KEYS[1], documentId, id)
+        redis.call('HSET', KEYS[2], id, documentId)
+    end
+    ids[i] = tonumber(id)
+end
+return ids
@@ -0,0 +1,7 @@
+-- 读取 key 的 MEMORY USAGE, 客户端不支持 MEMORY 命令时通过脚本在 pipeline 中调用
+--
+-- KEYS[1]  key
+--
+-- 集合类 key 按 redis 默认的元素抽样数估算, key 不存在时返回 0
+
+return redis.call('MEMORY', 'USAGE', KEYS[1]) or 0
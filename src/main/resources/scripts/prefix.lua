@@ -0,0 +1,56 @@
+-- 前缀索引: 用 ZRANGEBYLEX 分批取出所有以前缀开头的词, 把词的 posting 并集保存为结果 key
+--
+-- KEYS[1]  词表 zset, 所有分值为 0
+-- KEYS[2]  结果 key
+-- ARGV     前缀, posting key 前缀(加上词即为 posting key), 最多展开的词数, ttl
+--
+-- 文档删除后 posting 已为空的词在读取时从词表中移除, 不计入展开的词数
+-- 返回结果集合的大小; 有文档的词超过最多展开的词数时不写入结果 key, 返回 -1
+
+local prefix = ARGV[1]
+local postingPrefix = ARGV[2]
+local limit = tonumber(ARGV[3])
+local ttl = tonumber(ARGV[4])
+
+local min, max = '-', '+'
+if prefix ~= '' then
+    min = '[' .. prefix
+    max = '[' .. prefix .. '\255'
+end
+
+local found = {}
+local stale = {}
+local batch = 1000
+repeat
+    local terms = redis.call('ZRANGEBYLEX', KEYS[1], min, max, 'LIMIT', 0, batch)
+    for _, term in ipairs(terms) do
+        if redis.call('EXISTS', postingPrefix .. term) == 1 then
+            table.insert(found, term)
+        else
+            table.insert(stale, term)
+        end
+    end
+    if #terms > 0 then
+        min = '(' .. terms[#terms]
+    end
+until #terms < batch or #found > limit
+for i = 1, #stale, 1000 do
+    redis.call('ZREM', KEYS[1], unpack(stale, i, math.min(i + 999, #stale)))
+end
+
+redis.call('DEL', KEYS[2])
+if #found > limit then
+    return -1
+end
+for i = 1, #found, 1000 do
+    local keys = {KEYS[2]}
+    for j = i, math.min(i + 999, #found) do
+        table.insert(keys, postingPrefix .. found[j])
+    end
+    redis.call('SUNIONSTORE', KEYS[2], unpack(keys))
+end
+local total = redis.call('SCARD', KEYS[2])
+if total > 0 then
+    redis.call('EXPIRE', KEYS[2], ttl)
+end
+return total
@@ -0,0 +1,222 @@
+-- 单次往返完成 union -> intersect -> range -> diff -> zinterstore -> zrange
+--
+-- KEYS[1..4] 临时 key: union, intersect, diff, 结果
+-- KEYS[5..]  依次为 union 的 key, intersect 的 key, diff 的 key, 排序 zset, 区间条件的 zset
+-- ARGV       ttl, start, stop, union 数量, intersect 数量, diff 数量, 排序数量, 是否返回分数(0/1), 排序权重...,
+--            区间数量, 每个区间的 min max, top-K 每批读取数量(0 为不使用)
+--
+-- 区间条件见 range.lua: 中间结果不大于区间时逐个检查分数, 否则展开区间后求交集
+--
+-- top-K: 只有一个排序 zset 时按其顺序分批读取并检查成员是否在过滤结果中, 取满 stop + 1 条即停止, 不创建结果 key;
+-- 预计扫描的成员数 (stop + 1) * ZCARD / 总数 或实际扫描数超过总数时退回 ZINTERSTORE
+--
+-- 结果 key 仍存活时直接复用, 不再重新计算
+-- 返回 {总数, 是否复用结果(0/1), 第 start..stop 条文档id...}, 返回分数时每个文档id后跟其分数
+
+local ttl = tonumber(ARGV[1])
+local start = tonumber(ARGV[2])
+local stop = tonumber(ARGV[3])
+local nUnion = tonumber(ARGV[4])
+local nIntersect = tonumber(ARGV[5])
+local nDiff = tonumber(ARGV[6])
+local nSort = tonumber(ARGV[7])
+local withScores = ARGV[8] == '1'
+local nRange = tonumber(ARGV[9 + nSort])
+local topKBatch = tonumber(ARGV[10 + nSort + 2 * nRange])
+
+local function range(key)
+    if nSort > 0 then
+        if withScores then
+            return redis.call('ZRANGE', key, start, stop, 'WITHSCORES')
+        end
+        return redis.call('ZRANGE', key, start, stop)
+    end
+    local count = stop < 0 and -1 or stop - start + 1
+    return redis.call('SORT', key, 'ALPHA', 'LIMIT', start, count)
+end
+
+local function reply(total, reused, page)
+    local result = {total, reused}
+    for i = 1, #page do
+        result[i + 2] = page[i]
+    end
+    return result
+end
+
+if redis.call('EXISTS', KEYS[4]) == 1 then
+    local total
+    if nSort > 0 then
+        total = redis.call('ZCARD', KEYS[4])
+    else
+        total = redis.call('SCARD', KEYS[4])
+    end
+    return reply(total, 1, range(KEYS[4]))
+end
+
+local cursor = 5
+local function slice(n)
+    local keys = {}
+    for i = 1, n do
+        keys[i] = KEYS[cursor]
+        cursor = cursor + 1
+    end
+    return keys
+end
+
+local unionKeys = slice(nUnion)
+local intersectKeys = slice(nIntersect)
+local diffKeys = slice(nDiff)
+local sortKeys = slice(nSort)
+local rangeKeys = slice(nRange)
+
+local function bound(arg, unbounded)
+    if arg == '-inf' or arg == '+inf' then
+        return unbounded, false
+    end
+    if string.sub(arg, 1, 1) == '(' then
+        return tonumber(string.sub(arg, 2)), true
+    end
+    return tonumber(arg), false
+end
+
+local function addAll(key, members)
+    for i = 1, #members, 1000 do
+        redis.call('SADD', key, unpack(members, i, math.min(i + 999, #members)))
+    end
+end
+
+-- dest = source ∩ 区间, 没有 source 时为区间内的所有成员; dest 可以与 source 相同, scratch 用于展开区间
+local function filterRange(dest, scratch, zset, min, max, source)
+    if source and redis.call('SCARD', source) <= redis.call('ZCOUNT', zset, min, max) then
+        local lower, lowerOpen = bound(min, -math.huge)
+        local upper, upperOpen = bound(max, math.huge)
+        local members = redis.call('SMEMBERS', source)
+        local kept = {}
+        for i = 1, #members, 1000 do
+            local chunk = {unpack(members, i, math.min(i + 999, #members))}
+            local scores = redis.call('ZMSCORE', zset, unpack(chunk))
+            for j = 1, #chunk do
+                local score = scores[j] and tonumber(scores[j])
+                if score and not (score < lower or (lowerOpen and score == lower))
+                        and not (score > upper or (upperOpen and score == upper)) then
+                    table.insert(kept, chunk[j])
+                end
+            end
+        end
+        redis.call('DEL', dest)
+        addAll(dest, kept)
+    elseif source then
+        addAll(scratch, redis.call('ZRANGEBYSCORE', zset, min, max))
+        redis.call('SINTERSTORE', dest, scratch, source)
+        redis.call('DEL', scratch)
+    else
+        addAll(dest, redis.call('ZRANGEBYSCORE', zset, min, max))
+    end
+end
+
+if nUnion > 0 then
+    redis.call('SUNIONSTORE', KEYS[1], unpack(unionKeys))
+    table.insert(intersectKeys, KEYS[1])
+end
+
+local source = nil
+if #intersectKeys > 0 then
+    redis.call('SINTERSTORE', KEYS[2], unpack(intersectKeys))
+    source = KEYS[2]
+end
+for i = 1, nRange do
+    filterRange(KEYS[2], KEYS[3], rangeKeys[i], ARGV[9 + nSort + 2 * i - 1], ARGV[9 + nSort + 2 * i], source)
+    source = KEYS[2]
+end
+local filtered = KEYS[2]
+
+if nDiff > 0 then
+    redis.call('SDIFFSTORE', KEYS[3], KEYS[2], unpack(diffKeys))
+    filtered = KEYS[3]
+end
+
+-- 按排序 zset 的顺序取前 need 条在过滤结果中的成员, 与第 need 条分数相同的成员也全部取出以便按文档id排序;
+-- 扫描超过 limit 个成员仍未取满时返回 nil
+local function topK(sortKey, weight, need, limit)
+    local hits = {}
+    local boundary = nil
+    local offset = 0
+    while true do
+        local rows
+        if weight < 0 then
+            rows = redis.call('ZREVRANGE', sortKey, offset, offset + topKBatch - 1, 'WITHSCORES')
+        else
+            rows = redis.call('ZRANGE', sortKey, offset, offset + topKBatch - 1, 'WITHSCORES')
+        end
+        local n = #rows / 2
+        if n == 0 then
+            return hits
+        end
+        local members = {}
+        for i = 1, n do
+            members[i] = rows[2 * i - 1]
+        end
+        local flags = redis.call('SMISMEMBER', filtered, unpack(members))
+        for i = 1, n do
+            local score = tonumber(rows[2 * i])
+            if boundary and score ~= boundary then
+                return hits
+            end
+            if flags[i] == 1 then
+                table.insert(hits, {members[i], weight * score})
+                if #hits == need then
+                    boundary = score
+                end
+            end
+        end
+        offset = offset + n
+        if not boundary and offset >= limit then
+            return nil
+        end
+    end
+end
+
+local total = redis.call('SCARD', filtered)
+local page = {}
+
+local hits = nil
+if total > 0 and nSort == 1 and topKBatch > 0 and stop >= 0
+        and (stop + 1) * redis.call('ZCARD', sortKeys[1]) / total < total then
+    hits = topK(sortKeys[1], tonumber(ARGV[9]), stop + 1, total)
+end
+
+if hits then
+    -- 与 ZINTERSTORE 后 ZRANGE 的顺序一致: 按加权分数, 分数相同按文档id
+    table.sort(hits, function(a, b)
+        if a[2] ~= b[2] then return a[2] < b[2] end
+        return a[1] < b[1]
+    end)
+    for i = start + 1, math.min(stop + 1, #hits) do
+        table.insert(page, hits[i][1])
+        if withScores then
+            table.insert(page, tostring(hits[i][2]))
+        end
+    end
+elseif total > 0 then
+    if nSort > 0 then
+        local args = {'ZINTERSTORE', KEYS[4], nSort + 1}
+        for i = 1, nSort do
+            table.insert(args, sortKeys[i])
+        end
+        table.insert(args, filtered)
+        table.insert(args, 'WEIGHTS')
+        for i = 1, nSort do
+            table.insert(args, ARGV[8 + i])
+        end
+        table.insert(args, 0)
+        redis.call(unpack(args))
+    else
+        redis.call('RENAME', filtered, KEYS[4])
+    end
+    redis.call('EXPIRE', KEYS[4], ttl)
+    page = range(KEYS[4])
+end
+
+redis.call('DEL', KEYS[1], KEYS[2], KEYS[3])
+
+return reply(total, 0, page)
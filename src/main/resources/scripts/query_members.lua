@@ -0,0 +1,141 @@
+-- 小结果集查询: 取最小集合的成员逐个检查, 不创建临时 key
+--
+-- KEYS[1]    最小的 intersect 集合
+-- KEYS[2..]  依次为其余 intersect 的 key, union 的 key, diff 的 key, 排序 zset, 区间条件的 zset
+-- ARGV       start, stop, 其余 intersect 数量, union 数量, diff 数量, 排序数量, 是否返回分数(0/1), 排序权重...,
+--            区间数量, 每个区间的 min max (ZRANGEBYSCORE 的参数形式)
+--
+-- 返回格式与 query.lua 相同: {总数, 0, 第 start..stop 条文档id...}, 返回分数时每个文档id后跟其分数
+
+local start = tonumber(ARGV[1])
+local stop = tonumber(ARGV[2])
+local nIntersect = tonumber(ARGV[3])
+local nUnion = tonumber(ARGV[4])
+local nDiff = tonumber(ARGV[5])
+local nSort = tonumber(ARGV[6])
+local withScores = ARGV[7] == '1'
+local nRange = tonumber(ARGV[8 + nSort])
+
+local cursor = 2
+local function slice(n)
+    local keys = {}
+    for i = 1, n do
+        keys[i] = KEYS[cursor]
+        cursor = cursor + 1
+    end
+    return keys
+end
+
+local intersectKeys = slice(nIntersect)
+local unionKeys = slice(nUnion)
+local diffKeys = slice(nDiff)
+local sortKeys = slice(nSort)
+local rangeKeys = slice(nRange)
+
+local candidates = redis.call('SMEMBERS', KEYS[1])
+
+-- 保留 flags[i] == expected 的成员
+local function keep(flags, expected)
+    local kept = {}
+    for i = 1, #candidates do
+        if flags[i] == expected then
+            table.insert(kept, candidates[i])
+        end
+    end
+    candidates = kept
+end
+
+for _, key in ipairs(intersectKeys) do
+    if #candidates == 0 then break end
+    keep(redis.call('SMISMEMBER', key, unpack(candidates)), 1)
+end
+
+if nUnion > 0 and #candidates > 0 then
+    local any = {}
+    for i = 1, #candidates do any[i] = 0 end
+    for _, key in ipairs(unionKeys) do
+        local flags = redis.call('SMISMEMBER', key, unpack(candidates))
+        for i = 1, #candidates do
+            if flags[i] == 1 then any[i] = 1 end
+        end
+    end
+    keep(any, 1)
+end
+
+local function bound(arg, unbounded)
+    if arg == '-inf' or arg == '+inf' then
+        return unbounded, false
+    end
+    if string.sub(arg, 1, 1) == '(' then
+        return tonumber(string.sub(arg, 2)), true
+    end
+    return tonumber(arg), false
+end
+
+for r, key in ipairs(rangeKeys) do
+    if #candidates == 0 then break end
+    local lower, lowerOpen = bound(ARGV[8 + nSort + 2 * r - 1], -math.huge)
+    local upper, upperOpen = bound(ARGV[8 + nSort + 2 * r], math.huge)
+    local scores = redis.call('ZMSCORE', key, unpack(candidates))
+    local flags = {}
+    for i = 1, #candidates do
+        local score = scores[i] and tonumber(scores[i])
+        flags[i] = (score and not (score < lower or (lowerOpen and score == lower))
+                and not (score > upper or (upperOpen and score == upper))) and 1 or 0
+    end
+    keep(flags, 1)
+end
+
+for _, key in ipairs(diffKeys) do
+    if #candidates == 0 then break end
+    keep(redis.call('SMISMEMBER', key, unpack(candidates)), 0)
+end
+
+local total = #candidates
+local rows = {}
+
+if total > 0 then
+    if nSort > 0 then
+        -- 与 ZINTERSTORE 一致: 不在所有排序 zset 中的成员被丢弃, 分数按权重求和
+        local scores = {}
+        for i = 1, total do scores[i] = 0 end
+        for s, key in ipairs(sortKeys) do
+            local weight = tonumber(ARGV[7 + s])
+            local values = redis.call('ZMSCORE', key, unpack(candidates))
+            for i = 1, total do
+                if scores[i] and values[i] then
+                    scores[i] = scores[i] + weight * tonumber(values[i])
+                else
+                    scores[i] = false
+                end
+            end
+        end
+        for i = 1, total do
+            if scores[i] then
+                table.insert(rows, {candidates[i], scores[i]})
+            end
+        end
+        table.sort(rows, function(a, b)
+            if a[2] ~= b[2] then return a[2] < b[2] end
+            return a[1] < b[1]
+        end)
+    else
+        for i = 1, total do rows[i] = {candidates[i]} end
+        table.sort(rows, function(a, b) return a[1] < b[1] end)
+    end
+end
+
+local n = #rows
+local first = start < 0 and n + start or start
+local last = stop < 0 and n + stop or stop
+if first < 0 then first = 0 end
+if last >= n then last = n - 1 end
+
+local result = {total, 0}
+for i = first, last do
+    table.insert(result, rows[i + 1][1])
+    if withScores and nSort > 0 then
+        table.insert(result, tostring(rows[i + 1][2]))
+    end
+end
+return result
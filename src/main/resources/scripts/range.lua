@@ -0,0 +1,69 @@
+-- 排序 zset 上的分数区间过滤, 结果为 source ∩ {min <= score <= max} 的集合; 没有 source 时为区间内的所有成员
+--
+-- KEYS[1]  结果 key
+-- KEYS[2]  排序 zset
+-- KEYS[3]  可选, 被过滤的集合
+-- ARGV     min, max (ZRANGEBYSCORE 的参数形式), ttl
+--
+-- source 不大于区间时用 ZMSCORE 逐个检查 source 成员的分数, 否则展开区间后与 source 求交集
+-- 返回结果集合的大小
+
+local min = ARGV[1]
+local max = ARGV[2]
+local ttl = tonumber(ARGV[3])
+
+local function bound(arg, unbounded)
+    if arg == '-inf' or arg == '+inf' then
+        return unbounded, false
+    end
+    if string.sub(arg, 1, 1) == '(' then
+        return tonumber(string.sub(arg, 2)), true
+    end
+    return tonumber(arg), false
+end
+
+local lower, lowerOpen = bound(min, -math.huge)
+local upper, upperOpen = bound(max, math.huge)
+
+local function within(score)
+    if not score then return false end
+    score = tonumber(score)
+    if score < lower or (lowerOpen and score == lower) then return false end
+    if score > upper or (upperOpen and score == upper) then return false end
+    return true
+end
+
+local function addAll(key, members)
+    for i = 1, #members, 1000 do
+        redis.call('SADD', key, unpack(members, i, math.min(i + 999, #members)))
+    end
+end
+
+local source = KEYS[3]
+if source and redis.call('SCARD', source) <= redis.call('ZCOUNT', KEYS[2], min, max) then
+    local members = redis.call('SMEMBERS', source)
+    local kept = {}
+    for i = 1, #members, 1000 do
+        local chunk = {unpack(members, i, math.min(i + 999, #members))}
+        local scores = redis.call('ZMSCORE', KEYS[2], unpack(chunk))
+        for j = 1, #chunk do
+            if within(scores[j]) then
+                table.insert(kept, chunk[j])
+            end
+        end
+    end
+    redis.call('DEL', KEYS[1])
+    addAll(KEYS[1], kept)
+else
+    redis.call('DEL', KEYS[1])
+    addAll(KEYS[1], redis.call('ZRANGEBYSCORE', KEYS[2], min, max))
+    if source then
+        redis.call('SINTERSTORE', KEYS[1], KEYS[1], source)
+    end
+end
+
+local total = redis.call('SCARD', KEYS[1])
+if total > 0 then
+    redis.call('EXPIRE', KEYS[1], ttl)
+end
+return total
@@ -0,0 +1,70 @@
+-- 相关性排序: 过滤结果按 BM25 打分, 可叠加排序 zset, 只返回一页
+--
+-- KEYS[1]    结果 key
+-- KEYS[2]    临时 key, 保存各词评分 posting 的加权并集, 脚本内删除
+-- KEYS[3]    过滤结果集合
+-- KEYS[4..]  每个查询词两个 key: 评分 posting, 所在字段的文档长度 zset; 之后为排序 zset
+-- ARGV[1]    ttl
+-- ARGV[2]    start
+-- ARGV[3]    stop
+-- ARGV[4]    查询词数量
+-- ARGV[5..]  每个排序 zset 的权重
+--
+-- idf = ln(1 + (N - df + 0.5) / (df + 0.5)), N 为字段有词的文档数, df 为词的文档数;
+-- 分数 = sum(idf * 词频分量) + sum(权重 * 排序值), 不含任何查询词的文档不在结果中
+--
+-- 返回 {total, 0, member, score, ...}, 与 query.lua 相同的格式, 按分数降序
+
+local ttl = tonumber(ARGV[1])
+local start = tonumber(ARGV[2])
+local stop = tonumber(ARGV[3])
+local nTerms = tonumber(ARGV[4])
+
+local postings = {}
+local idfs = {}
+for i = 0, nTerms - 1 do
+    local posting = KEYS[4 + i * 2]
+    local df = redis.call('ZCARD', posting)
+    if df > 0 then
+        local n = redis.call('ZCARD', KEYS[5 + i * 2])
+        table.insert(postings, posting)
+        table.insert(idfs, math.log(1 + (math.max(n - df, 0) + 0.5) / (df + 0.5)))
+    end
+end
+if #postings == 0 then
+    return {0, 0}
+end
+
+local union = {KEYS[2], #postings}
+for _, posting in ipairs(postings) do
+    table.insert(union, posting)
+end
+table.insert(union, 'WEIGHTS')
+for _, idf in ipairs(idfs) do
+    table.insert(union, idf)
+end
+redis.call('ZUNIONSTORE', unpack(union))
+
+local nSort = #ARGV - 4
+local intersect = {KEYS[1], 2 + nSort, KEYS[2], KEYS[3]}
+for i = 1, nSort do
+    table.insert(intersect, KEYS[3 + nTerms * 2 + i])
+end
+table.insert(intersect, 'WEIGHTS')
+table.insert(intersect, 1)
+table.insert(intersect, 0)
+for i = 1, nSort do
+    table.insert(intersect, ARGV[4 + i])
+end
+local total = redis.call('ZINTERSTORE', unpack(intersect))
+redis.call('DEL', KEYS[2])
+if total == 0 then
+    return {0, 0}
+end
+redis.call('EXPIRE', KEYS[1], ttl)
+
+local result = {total, 0}
+for _, v in ipairs(redis.call('ZREVRANGE', KEYS[1], start, stop, 'WITHSCORES')) do
+    table.insert(result, v)
+end
+return result
@@ -0,0 +1,65 @@
+-- 评分 posting: 每个词一个 zset 保存文档的 BM25 词频分量, 同时维护字段的文档长度和总长度
+--
+-- KEYS[1]    文档反向索引 key
+-- KEYS[2]    索引代数 key
+-- KEYS[3]    字段的文档长度 zset, 文档id -> 词数
+-- KEYS[4]    字段的评分统计 hash, length 为所有文档的总词数
+-- KEYS[5..]  每个词的评分 posting zset
+-- ARGV[1]    文档id
+-- ARGV[2]    反向索引成员省略的 key 前缀, 成员加上该前缀为 key (默认布局为空)
+-- ARGV[3]    字段评分 posting 的反向索引成员前缀
+-- ARGV[4]    BM25 参数 k1
+-- ARGV[5]    BM25 参数 b
+-- ARGV[6..]  每个词的词频, 与 KEYS[5..] 一一对应
+--
+-- 文档已有而不再出现的词从其 posting 中移除, 即字段值整体替换.
+-- 词频分量 tf * (k1 + 1) / (tf + k1 * (1 - b + b * dl / avgdl)) 按写入时的平均长度计算, 查询时乘以 idf 即为 BM25 分数
+--
+-- 返回文档长度
+
+local docKey = KEYS[1]
+local lengthKey = KEYS[3]
+local documentId = ARGV[1]
+local base = ARGV[2]
+local prefix = ARGV[3]
+local k1 = tonumber(ARGV[4])
+local b = tonumber(ARGV[5])
+
+local dl = 0
+local wanted = {}
+for i = 5, #KEYS do
+    dl = dl + tonumber(ARGV[i + 1])
+    wanted[string.sub(KEYS[i], #base + 1)] = true
+end
+
+for _, member in ipairs(redis.call('SMEMBERS', docKey)) do
+    if string.sub(member, 1, #prefix) == prefix and not wanted[member] then
+        redis.call('ZREM', base .. member, documentId)
+        redis.call('SREM', docKey, member)
+    end
+end
+
+local old = tonumber(redis.call('ZSCORE', lengthKey, documentId) or 0)
+local total = redis.call('HINCRBY', KEYS[4], 'length', dl - old)
+local lengthMember = string.sub(lengthKey, #base + 1)
+if dl > 0 then
+    redis.call('ZADD', lengthKey, dl, documentId)
+    redis.call('SADD', docKey, lengthMember)
+else
+    redis.call('ZREM', lengthKey, documentId)
+    redis.call('SREM', docKey, lengthMember)
+end
+
+local docs = redis.call('ZCARD', lengthKey)
+local avgdl = 1
+if total > 0 and docs > 0 then
+    avgdl = total / docs
+end
+for i = 5, #KEYS do
+    local tf = tonumber(ARGV[i + 1])
+    redis.call('ZADD', KEYS[i], tf * (k1 + 1) / (tf + k1 * (1 - b + b * dl / avgdl)), documentId)
+    redis.call('SADD', docKey, string.sub(KEYS[i], #base + 1))
+end
+
+redis.call('INCR', KEYS[2])
+return dl
@@ -0,0 +1,69 @@
+-- 前缀联想: 以前缀开头的词按文档数降序、相同时按词排列, 文档数来自随写入和删除维护的文档数 zset
+--
+-- KEYS[1]  词表 zset, 所有分值为 0
+-- KEYS[2]  词的文档数 zset
+-- ARGV     前缀, 按字典序最多读取的词数, 返回的词数(0 表示不限), 最小文档数
+--
+-- 以前缀开头的词不超过最多读取的词数时按字典序读出后逐个取文档数; 超过时按文档数从高到低分批遍历文档数 zset,
+-- 过滤出以前缀开头的词, 取够返回的词数且后面的文档数更低时停止. 两种方式的结果相同
+-- 返回 {词, 文档数, ...}
+
+local prefix = ARGV[1]
+local expansions = tonumber(ARGV[2])
+local limit = tonumber(ARGV[3])
+local minCount = tonumber(ARGV[4])
+
+local min, max = '-', '+'
+if prefix ~= '' then
+    min = '[' .. prefix
+    max = '[' .. prefix .. '\255'
+end
+
+local function before(a, b)
+    if a[2] ~= b[2] then
+        return a[2] > b[2]
+    end
+    return a[1] < b[1]
+end
+
+local found = {}
+local terms = redis.call('ZRANGEBYLEX', KEYS[1], min, max, 'LIMIT', 0, expansions + 1)
+if #terms <= expansions then
+    for _, term in ipairs(terms) do
+        local count = tonumber(redis.call('ZSCORE', KEYS[2], term))
+        if count and count >= minCount then
+            table.insert(found, {term, count})
+        end
+    end
+    table.sort(found, before)
+else
+    local batch = 1000
+    local offset = 0
+    repeat
+        local page = redis.call('ZREVRANGEBYSCORE', KEYS[2], '+inf', minCount, 'WITHSCORES', 'LIMIT', offset, batch)
+        for i = 1, #page, 2 do
+            if string.sub(page[i], 1, #prefix) == prefix then
+                table.insert(found, {page[i], tonumber(page[i + 1])})
+            end
+        end
+        offset = offset + batch
+        local done = #page < batch * 2
+        if not done and limit > 0 and #found >= limit then
+            -- 文档数相同的词按字典序排列, 读完与第 limit 个词文档数相同的词后停止
+            table.sort(found, before)
+            done = tonumber(page[#page]) < found[limit][2]
+        end
+    until done
+    table.sort(found, before)
+end
+
+local result = {}
+local size = #found
+if limit > 0 then
+    size = math.min(limit, size)
+end
+for i = 1, size do
+    table.insert(result, found[i][1])
+    table.insert(result, found[i][2])
+end
+return result
@@ -0,0 +1,36 @@
+-- 清理前缀索引词表: 移除 posting 已不存在的词, 其余词按 posting 大小校正文档数; 每次按字典序处理游标之后的一批词
+--
+-- KEYS[1]  词表 zset
+-- KEYS[2]  词的文档数 zset
+-- ARGV     posting key 前缀(加上词即为 posting key), 游标(上一批的最后一个词, 第一批为空), 每批的词数
+--
+-- 检查 posting 和移除词在同一脚本中原子执行, 不会移除并发写入后又有文档的词;
+-- 校正同时为维护文档数之前写入的词补上文档数
+-- 返回 {移除的词数, 游标}; 本批不足每批的词数时游标为空, 表示已处理完
+
+local batch = tonumber(ARGV[3])
+local min = '-'
+if ARGV[2] ~= '' then
+    min = '(' .. ARGV[2]
+end
+
+local terms = redis.call('ZRANGEBYLEX', KEYS[1], min, '+', 'LIMIT', 0, batch)
+local stale = {}
+for _, term in ipairs(terms) do
+    local count = redis.call('SCARD', ARGV[1] .. term)
+    if count == 0 then
+        table.insert(stale, term)
+    else
+        redis.call('ZADD', KEYS[2], count, term)
+    end
+end
+for i = 1, #stale, 1000 do
+    redis.call('ZREM', KEYS[1], unpack(stale, i, math.min(i + 999, #stale)))
+    redis.call('ZREM', KEYS[2], unpack(stale, i, math.min(i + 999, #stale)))
+end
+
+local cursor = ''
+if #terms == batch then
+    cursor = terms[#terms]
+end
+return {#stale, cursor}
@@ -0,0 +1,24 @@
+-- 写入文档字段的前缀索引: 文档加入每个词的 posting, 新加入时词的文档数加一; 词加入词表, posting 记录在文档反向索引中
+--
+-- KEYS[1]     词表 zset
+-- KEYS[2]     词的文档数 zset
+-- KEYS[3]     文档反向索引 key
+-- KEYS[4..]   每个词的 posting
+-- ARGV[1]     文档id
+-- ARGV[2..]   每个词, 与 posting 一一对应; 之后依次为每个 posting 在反向索引中的成员
+--
+-- 重复写入同一文档时文档数不变. 返回新加入 posting 的词数
+
+local documentId = ARGV[1]
+local n = #KEYS - 3
+local added = 0
+for i = 1, n do
+    local term = ARGV[i + 1]
+    if redis.call('SADD', KEYS[i + 3], documentId) == 1 then
+        redis.call('ZINCRBY', KEYS[2], 1, term)
+        added = added + 1
+    end
+    redis.call('ZADD', KEYS[1], 0, term)
+    redis.call('SADD', KEYS[3], ARGV[n + i + 1])
+end
+return added
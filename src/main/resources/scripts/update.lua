@@ -0,0 +1,85 @@
+-- 增量更新文档索引: 只对新旧分词的差异执行 SREM/SADD, 排序值不变时不写入
+--
+-- KEYS[1]    文档反向索引 key
+-- KEYS[2]    索引代数 key, 有修改时自增
+-- KEYS[3..]  依次为每个字段的新反向索引 key, 该字段的词的文档数 zset(前缀索引的伪字段), 以及该字段的排序 zset(有排序值时)
+-- ARGV[1]    文档id
+-- ARGV[2]    字段数量
+-- ARGV[3]    反向索引成员省略的 key 前缀, 成员加上该前缀为 posting/排序 zset key (默认布局为空)
+-- ARGV[4..]  每个字段四个参数: 反向索引成员前缀, 新 key 数量(-1 表示不更新反向索引), 排序值(空表示不更新),
+--            为 1 时维护词的文档数(前缀索引的伪字段, 成员去掉前缀即为词)
+--
+-- 返回执行的修改数量
+
+local docKey = KEYS[1]
+local documentId = ARGV[1]
+local nFields = tonumber(ARGV[2])
+local base = ARGV[3]
+
+local members = redis.call('SMEMBERS', docKey)
+local changed = 0
+local cursor = 3
+
+for f = 0, nFields - 1 do
+    local prefix = ARGV[4 + f * 4]
+    local nKeys = tonumber(ARGV[5 + f * 4])
+    local score = ARGV[6 + f * 4]
+    local counted = ARGV[7 + f * 4] == '1'
+
+    if nKeys >= 0 then
+        local counts = counted and KEYS[cursor + nKeys]
+        local first = cursor
+        local wanted = {}
+        for i = 1, nKeys do
+            wanted[string.sub(KEYS[cursor], #base + 1)] = true
+            cursor = cursor + 1
+        end
+        local current = {}
+        for _, member in ipairs(members) do
+            if string.sub(member, 1, #prefix) == prefix then
+                current[member] = true
+                if not wanted[member] then
+                    if redis.call('SREM', base .. member, documentId) == 1 and counts then
+                        local term = string.sub(member, #prefix + 1)
+                        if tonumber(redis.call('ZINCRBY', counts, -1, term)) <= 0 then
+                            redis.call('ZREM', counts, term)
+                        end
+                    end
+                    redis.call('SREM', docKey, member)
+                    changed = changed + 1
+                end
+            end
+        end
+        for i = first, cursor - 1 do
+            local member = string.sub(KEYS[i], #base + 1)
+            if not current[member] then
+                if redis.call('SADD', KEYS[i], documentId) == 1 and counts then
+                    redis.call('ZINCRBY', counts, 1, string.sub(member, #prefix + 1))
+                end
+                redis.call('SADD', docKey, member)
+                current[member] = true
+                changed = changed + 1
+            end
+        end
+        if counts then
+            cursor = cursor + 1
+        end
+    end
+
+    if score ~= '' then
+        local sortKey = KEYS[cursor]
+        cursor = cursor + 1
+        local old = redis.call('ZSCORE', sortKey, documentId)
+        if not old or tonumber(old) ~= tonumber(score) then
+            redis.call('ZADD', sortKey, score, documentId)
+            redis.call('SADD', docKey, string.sub(sortKey, #base + 1))
+            changed = changed + 1
+        end
+    end
+end
+
+if changed > 0 then
+    redis.call('INCR', KEYS[2])
+end
+
+return changed
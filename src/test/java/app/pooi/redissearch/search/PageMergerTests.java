@@ -0,0 +1,76 @@
+package app.pooi.redissearch.search;
+
+import org.junit.Test;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class PageMergerTests {
+
+    private final List<List<ZSetOperations.TypedTuple<String>>> shards = Arrays.asList(
+            page("1", 1D, "4", 4D, "6", 6D),
+            page("2", 2D, "3", 3D),
+            page("5", 5D, "7", 7D));
+
+    private static List<ZSetOperations.TypedTuple<String>> page(Object... valueScores) {
+        final List<ZSetOperations.TypedTuple<String>> page = new ArrayList<>();
+        for (int i = 0; i < valueScores.length; i += 2) {
+            page.add(new DefaultTypedTuple<>((String) valueScores[i], (Double) valueScores[i + 1]));
+        }
+        return page;
+    }
+
+    private static List<String> values(List<ZSetOperations.TypedTuple<String>> merged) {
+        return merged.stream().map(ZSetOperations.TypedTuple::getValue).collect(Collectors.toList());
+    }
+
+    private static List<String> merge(List<List<ZSetOperations.TypedTuple<String>>> pages, long start, long stop) {
+        return values(PageMerger.merge(pages, SearchCore.pageOrder(true), start, stop));
+    }
+
+    @Test
+    public void slicesMergedOrder() {
+        assertEquals(Arrays.asList("1", "2", "3"), merge(this.shards, 0, 2));
+        assertEquals(Arrays.asList("3", "4", "5"), merge(this.shards, 2, 4));
+        assertEquals(Collections.singletonList("7"), merge(this.shards, 6, 6));
+        assertEquals(Collections.emptyList(), merge(this.shards, 7, 9));
+        assertEquals(Arrays.asList("6", "7"), merge(this.shards, 5, 20));
+    }
+
+    @Test
+    public void negativeStopReadsToTheEnd() {
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6", "7"), merge(this.shards, 0, -1));
+        assertEquals(Arrays.asList("5", "6", "7"), merge(this.shards, 4, -1));
+    }
+
+    @Test
+    public void tiesAreBrokenByDocumentId() {
+        final List<List<ZSetOperations.TypedTuple<String>>> ties = Arrays.asList(
+                page("b", 1D, "d", 1D, "a", 2D),
+                page("a", 1D, "c", 1D, "b", 2D));
+        assertEquals(Arrays.asList("a", "b", "c", "d", "a", "b"), merge(ties, 0, -1));
+        assertEquals(Arrays.asList("c", "d"), merge(ties, 2, 3));
+
+        // 不排序时按文档id归并
+        final List<List<ZSetOperations.TypedTuple<String>>> unsorted = Arrays.asList(
+                page("10", null, "3", null), page("2", null, "4", null));
+        assertEquals(Arrays.asList("10", "2", "3", "4"),
+                values(PageMerger.merge(unsorted, SearchCore.pageOrder(false), 0, -1)));
+    }
+
+    @Test
+    public void emptyShardPagesAreSkipped() {
+        final List<List<ZSetOperations.TypedTuple<String>>> pages = Arrays.asList(
+                Collections.emptyList(), page("2", 2D), Collections.emptyList(), page("1", 1D, "3", 3D));
+        assertEquals(Arrays.asList("1", "2", "3"), merge(pages, 0, -1));
+        assertEquals(Collections.singletonList("2"), merge(pages, 1, 1));
+
+        assertEquals(Collections.emptyList(), merge(Collections.emptyList(), 0, -1));
+        assertEquals(Collections.emptyList(),
+                merge(Arrays.asList(Collections.emptyList(), Collections.emptyList()), 0, 9));
+    }
+}
@@ -0,0 +1,203 @@
+package app.pooi.redissearch.search;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * 需要本机 redis, 连接失败时跳过
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = { "spring.redis.host=127.0.0.1", "redis.search.prefix=searchcoretest",
+        "redis.search.planner.top-k-batch=4" })
+public class SearchCoreTests {
+
+    private static final String INDEX = "person";
+
+    @Autowired
+    private SearchCore searchCore;
+
+    @Autowired
+    private KeyLayouts keyLayouts;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private QueryPlanner queryPlanner;
+
+    private IndexKeys keys;
+
+    @Before
+    public void setUp() {
+        try {
+            this.redisTemplate.hasKey("rs:searchcoretest");
+        } catch (RuntimeException e) {
+            Assume.assumeNoException(e);
+        }
+        this.clean();
+
+        final Map<String, FieldMeta> meta = new HashMap<>();
+        meta.put("name", new FieldMeta(false, "", false, true));
+        meta.put("age", new FieldMeta(true));
+        this.searchCore.indexMeta(INDEX, meta);
+        this.keys = this.keyLayouts.read(INDEX);
+
+        this.index("1", "ab", 21D);
+        this.index("2", "bc", 22D);
+        this.index("3", "cd", 23D);
+    }
+
+    @After
+    public void tearDown() {
+        this.clean();
+    }
+
+    private void clean() {
+        final Set<String> existing = this.redisTemplate.keys("rs:searchcoretest:*");
+        if (existing != null && !existing.isEmpty()) {
+            this.redisTemplate.delete(existing);
+        }
+    }
+
+    private void index(String documentId, String name, Double age) {
+        this.searchCore.indexDocument(INDEX, "name", documentId, name);
+        this.searchCore.indexSortField(INDEX, "age", documentId, age);
+    }
+
+    private Set<String> posting(String token) {
+        return this.redisTemplate.opsForSet().members(this.keys.posting(INDEX, "name", token));
+    }
+
+    private Set<String> zset(String key) {
+        return this.redisTemplate.opsForZSet().range(key, 0, -1);
+    }
+
+    private long length() {
+        final Object length = this.redisTemplate.opsForHash().get(this.keys.stats(INDEX, "name"), "length");
+        return length == null ? 0L : Long.parseLong((String) length);
+    }
+
+    @Test
+    public void deleteBatchRemovesOnlyExistingDocuments() {
+        final long generation = this.searchCore.generation(INDEX);
+        assertEquals(6L, this.length());
+
+        assertEquals(2, this.searchCore.deleteDocumentIndexes(INDEX, Arrays.asList("1", "9", "3", "1")));
+
+        assertEquals(Collections.emptySet(), this.posting("a"));
+        assertEquals(Collections.singleton("2"), this.posting("b"));
+        assertEquals(Collections.singleton("2"), this.posting("c"));
+        assertEquals(Collections.emptySet(), this.posting("d"));
+        assertEquals(Collections.singleton("2"), this.zset(this.keys.sort(INDEX, "age")));
+        assertEquals(Collections.singleton("2"), this.zset(this.keys.scoredPosting(INDEX, "name", "b")));
+        assertEquals(Collections.emptySet(), this.zset(this.keys.scoredPosting(INDEX, "name", "a")));
+        assertEquals(Collections.singleton("2"), this.zset(this.keys.lengths(INDEX, "name")));
+        assertFalse(this.redisTemplate.hasKey(this.keys.document(INDEX, "1")));
+        assertFalse(this.redisTemplate.hasKey(this.keys.document(INDEX, "3")));
+        assertTrue(this.redisTemplate.hasKey(this.keys.document(INDEX, "2")));
+
+        assertEquals(2L, this.length());
+        assertEquals(generation + 1, this.searchCore.generation(INDEX));
+
+        assertEquals(0, this.searchCore.deleteDocumentIndexes(INDEX, Collections.singletonList("9")));
+        assertEquals(generation + 1, this.searchCore.generation(INDEX));
+    }
+
+    @Test
+    public void updateTouchesOnlyChangedTokens() {
+        assertEquals(2, this.searchCore.updateDocumentIndex(INDEX, "name", "1", "bd"));
+
+        assertEquals(Collections.emptySet(), this.posting("a"));
+        assertEquals(new HashSet<>(Arrays.asList("1", "2")), this.posting("b"));
+        assertEquals(new HashSet<>(Arrays.asList("2", "3")), this.posting("c"));
+        assertEquals(new HashSet<>(Arrays.asList("1", "3")), this.posting("d"));
+        assertEquals(new HashSet<>(Arrays.asList(this.keys.posting(INDEX, "name", "b"),
+                this.keys.posting(INDEX, "name", "d"))),
+                this.redisTemplate.opsForSet().members(this.keys.document(INDEX, "1")).stream()
+                        .map(member -> this.keys.key(INDEX, member))
+                        .filter(key -> key.startsWith(this.keys.postingPrefix(INDEX, "name")))
+                        .collect(Collectors.toSet()));
+
+        assertEquals(0, this.searchCore.updateDocumentIndex(INDEX, "name", "1", "db"));
+        final long generation = this.searchCore.generation(INDEX);
+        assertEquals(0, this.searchCore.updateSortField(INDEX, "age", "1", 21D));
+        assertEquals(generation, this.searchCore.generation(INDEX));
+
+        assertEquals(1, this.searchCore.updateSortField(INDEX, "age", "1", 31D));
+        assertEquals(Arrays.asList("2", "3", "1"), new ArrayList<>(this.zset(this.keys.sort(INDEX, "age"))));
+        assertEquals(generation + 1, this.searchCore.generation(INDEX));
+    }
+
+    @Test
+    public void topKMatchesIntersectStoreWithTies() {
+        // 偶数id含 x, age 取值 0..6, 每个分数有多个文档并列
+        for (int id = 10; id < 50; id++) {
+            this.index(String.valueOf(id), id % 2 == 0 ? "x" : "y", (double) (id % 7));
+        }
+
+        for (String sort : Arrays.asList("age", "-age")) {
+            this.assertTopK("x", sort, 0, 4);
+            this.assertTopK("x", sort, 3, 8);
+            this.assertTopK("x", sort, 0, 0);
+            this.assertTopK("x", sort, 8, 8);
+        }
+    }
+
+    @Test
+    public void topKMatchesIntersectStoreWhenSortExhausted() {
+        // 只有 4 个含 x 的文档有排序值, 扫描完排序 zset 仍取不满一页
+        for (int id = 10; id < 40; id++) {
+            this.searchCore.indexDocument(INDEX, "name", String.valueOf(id), "x");
+            if (id < 14) {
+                this.searchCore.indexSortField(INDEX, "age", String.valueOf(id), 30D);
+            }
+        }
+
+        this.assertTopK("x", "age", 0, 9);
+        this.assertTopK("x", "-age", 2, 9);
+    }
+
+    /**
+     * 以 top-K 执行查询脚本, 结果应与 ZINTERSTORE 后 ZRANGE 相同, 且没有创建结果 key
+     */
+    private void assertTopK(String token, String sort, int start, int stop) {
+        final Map<String, Integer> weights = this.searchCore.sortWeights(INDEX, INDEX, sort);
+        final String posting = this.keys.posting(INDEX, "name", token);
+        final QueryPlan plan = this.queryPlanner.sorted(new QueryPlan(Collections.emptyList(),
+                Collections.singletonList(posting), Collections.emptyList(), Collections.emptyList(),
+                Collections.emptyList(), Collections.emptyList(), QueryPlan.Strategy.SET_ALGEBRA,
+                Collections.emptyMap(), 0L), weights, start, stop);
+        assertEquals(QueryPlan.Strategy.TOP_K, plan.getStrategy());
+
+        final String resultId = "rs:searchcoretest:result";
+        final List<Object> result = this.redisTemplate.execute(SearchScripts.QUERY,
+                this.searchCore.queryScriptKeys(INDEX, plan, weights, resultId),
+                this.searchCore.queryScriptArgs(plan, weights, start, stop, true).toArray());
+        assertFalse(this.redisTemplate.hasKey(resultId));
+
+        final String expected = "rs:searchcoretest:expected";
+        final String sortKey = weights.keySet().iterator().next();
+        this.redisTemplate.opsForZSet().intersectAndStore(sortKey, Collections.singleton(posting), expected,
+                RedisZSetCommands.Aggregate.SUM, RedisZSetCommands.Weights.of(weights.get(sortKey), 0));
+        final List<String> want = this.redisTemplate.opsForZSet().rangeWithScores(expected, start, stop).stream()
+                .map(t -> t.getValue() + "=" + t.getScore()).collect(Collectors.toList());
+        this.redisTemplate.delete(expected);
+
+        assertEquals(this.redisTemplate.opsForSet().size(posting), result.get(0));
+        assertEquals(sort + " " + start + ".." + stop, want, SearchCore.tuples(result, true).stream()
+                .map(t -> t.getValue() + "=" + t.getScore()).collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,171 @@
+package app.pooi.redissearch.search;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SnapshotFileTests {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static SnapshotFile.Header header() {
+        final Map<String, Long> names = new LinkedHashMap<>();
+        names.put("person", 1L);
+        names.put("name", 2L);
+        return new SnapshotFile.Header("src", "person", "person_v2", KeyLayouts.COMPACT, 2, names);
+    }
+
+    /**
+     * 写入两个分块: 一个 DUMP 条目, 一个 DUMP 和一个集合条目
+     */
+    private Path write() throws IOException {
+        final Path path = this.folder.newFile("person.rsnp").toPath();
+        try (SnapshotFile.Writer writer = new SnapshotFile.Writer(path, header())) {
+            writer.write(Collections.singletonList(
+                    new SnapshotFile.Entry(SnapshotFile.DUMP, bytes("rs:src:c:1:2:a"), -1L, bytes("dump-a"), null)));
+            writer.write(Collections.emptyList());
+            writer.write(Arrays.asList(
+                    new SnapshotFile.Entry(SnapshotFile.DUMP, bytes("rs:src:c:1:2:b"), 1500L, bytes("dump-b"), null),
+                    new SnapshotFile.Entry(SnapshotFile.MEMBERS, bytes("rs:src:r:1:7"), -1L, null,
+                            Arrays.asList(bytes("2:a"), bytes("2:b")))));
+            assertEquals(3L, writer.getEntries());
+            assertEquals(2L, writer.getChunks());
+        }
+        return path;
+    }
+
+    /**
+     * 第一个分块的位置: 头部长度 int 加头部
+     */
+    private static long firstChunk(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, 0L);
+            length.flip();
+            return 4L + length.getInt();
+        }
+    }
+
+    private static void overwrite(Path path, long position, ByteBuffer content) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            content.flip();
+            channel.write(content, position);
+        }
+    }
+
+    private static void truncate(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    /**
+     * 读完所有分块, 期望在 next 时失败
+     */
+    private static IOException readAll(Path path) {
+        try (SnapshotFile.Reader reader = new SnapshotFile.Reader(path)) {
+            while (reader.next() != null) {
+                continue;
+            }
+        } catch (IOException e) {
+            return e;
+        }
+        fail("expected " + path + " to be rejected");
+        return null;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final Path path = this.write();
+        try (SnapshotFile.Reader reader = new SnapshotFile.Reader(path)) {
+            assertEquals(header(), reader.header());
+
+            final List<SnapshotFile.Entry> first = reader.next();
+            assertEquals(1, first.size());
+            assertEquals(SnapshotFile.DUMP, first.get(0).getType());
+            assertArrayEquals(bytes("rs:src:c:1:2:a"), first.get(0).getKey());
+            assertEquals(-1L, first.get(0).getTtl());
+            assertArrayEquals(bytes("dump-a"), first.get(0).getValue());
+
+            final List<SnapshotFile.Entry> second = reader.next();
+            assertEquals(2, second.size());
+            assertEquals(1500L, second.get(0).getTtl());
+            assertArrayEquals(bytes("dump-b"), second.get(0).getValue());
+            assertEquals(SnapshotFile.MEMBERS, second.get(1).getType());
+            assertArrayEquals(bytes("rs:src:r:1:7"), second.get(1).getKey());
+            assertNull(second.get(1).getValue());
+            assertEquals(2, second.get(1).getMembers().size());
+            assertArrayEquals(bytes("2:a"), second.get(1).getMembers().get(0));
+            assertArrayEquals(bytes("2:b"), second.get(1).getMembers().get(1));
+
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void checksumMismatch() throws IOException {
+        final Path path = this.write();
+        // 分块: 原始长度 int, 压缩后长度 int, CRC32 long
+        overwrite(path, firstChunk(path) + 8, ByteBuffer.allocate(8).putLong(42L));
+
+        final IOException e = readAll(path);
+        assertTrue(e.getMessage(), e.getMessage().contains("checksum mismatch in chunk 0"));
+    }
+
+    @Test
+    public void entryCountMismatch() throws IOException {
+        final Path path = this.write();
+        final long size = path.toFile().length();
+        overwrite(path, size - 8, ByteBuffer.allocate(8).putLong(4L));
+
+        final IOException e = readAll(path);
+        assertTrue(e.getMessage(), e.getMessage().contains("has 3 entries, expected 4"));
+    }
+
+    @Test
+    public void truncated() throws IOException {
+        final Path path = this.write();
+        // 去掉结尾
+        truncate(path, path.toFile().length() - 16);
+        assertTrue(readAll(path) instanceof EOFException);
+
+        // 截断在分块中间
+        truncate(path, firstChunk(path) + 20);
+        assertTrue(readAll(path) instanceof EOFException);
+    }
+
+    @Test
+    public void invalidLengthIsRejectedBeforeAllocation() throws IOException {
+        final Path path = this.write();
+        final long chunk = firstChunk(path);
+        overwrite(path, chunk + 4, ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE));
+        assertTrue(readAll(path) instanceof EOFException);
+
+        overwrite(path, chunk, ByteBuffer.allocate(4).putInt(-1));
+        assertTrue(readAll(path).getMessage().contains("invalid chunk length -1"));
+
+        overwrite(path, 0L, ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE));
+        try {
+            new SnapshotFile.Reader(path).close();
+            fail("expected header length to be rejected");
+        } catch (EOFException e) {
+            assertTrue(e.getMessage().contains("truncated"));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package app.pooi.redissearch.search.tokenizer;
+
+import app.pooi.redissearch.search.FieldMeta;
+import org.junit.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenizersTests {
+
+    private final Tokenizers tokenizers = new Tokenizers(
+            new DefaultListableBeanFactory().getBeanProvider(Tokenizer.class));
+
+    @Test
+    public void defaultsFollowSortFlag() {
+        assertEquals(Arrays.asList("a", "b"), tokenizers.forField(new FieldMeta(false)).tokenize("aba"));
+        assertEquals(Collections.singletonList("21"), tokenizers.forField(new FieldMeta(true)).tokenize("21"));
+        assertEquals(Arrays.asList("a", "b"), tokenizers.forField(null).tokenize("ab"));
+    }
+
+    @Test
+    public void ngrams() {
+        assertEquals(Arrays.asList("he", "el", "ll", "lo", "a"),
+                tokenizers.forField(new FieldMeta(false, "bigram")).tokenize("Hello, a"));
+        assertEquals(Arrays.asList("hel", "ell", "llo"),
+                tokenizers.forField(new FieldMeta(false, "trigram")).tokenize("hello"));
+    }
+
+    @Test
+    public void words() {
+        assertEquals(Arrays.asList("redis", "search", "2019"),
+                tokenizers.get("word").tokenize("Redis-Search, 2019 redis"));
+    }
+
+    @Test
+    public void cjkBigrams() {
+        assertEquals(Arrays.asList("中文", "文分", "分词", "redis", "库"),
+                tokenizers.get("cjk").tokenize("中文分词 Redis 库"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownTokenizer() {
+        tokenizers.forField(new FieldMeta(false, "nope"));
+    }
+}